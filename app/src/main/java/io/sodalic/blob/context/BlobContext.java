@@ -2,10 +2,12 @@ package io.sodalic.blob.context;
 
 import android.content.Context;
 
+import io.sodalic.blob.face.FaceAnalysisService;
 import io.sodalic.blob.face.FaceSightcorpApi;
 import io.sodalic.blob.storage.UserStateData;
 import io.sodalic.blob.tracking.UploadManager;
 
+import io.sodalic.blob.net.HttpStack;
 import io.sodalic.blob.net.ServerApi;
 
 /**
@@ -44,6 +46,11 @@ public interface BlobContext {
      */
     void initServerApi(String serverUrl);
 
+    /**
+     * The HTTP stack (connection pool, TLS sessions, cache) shared by all the APIs
+     */
+    HttpStack getHttpStack();
+
     /**
      * Helper to upload tracked data files onto the server side
      */
@@ -54,6 +61,12 @@ public interface BlobContext {
      */
     FaceSightcorpApi getFaceApi();
 
+    /**
+     * This object should be used to analyze face images instead of calling {@link #getFaceApi()} directly
+     * as it caches the results and limits the API calls.
+     */
+    FaceAnalysisService getFaceAnalysisService();
+
 
     /**
      * @return Object that handles access to locally stored user data
@@ -9,6 +9,7 @@ import io.sentry.Sentry;
 import io.sentry.android.AndroidSentryClientFactory;
 import io.sentry.dsn.InvalidDsnException;
 
+import io.sodalic.blob.face.FaceAnalysisService;
 import io.sodalic.blob.face.FaceSightcorpApi;
 import io.sodalic.blob.storage.UserStateData;
 import io.sodalic.blob.tracking.UploadManager;
@@ -17,6 +18,7 @@ import org.beiwe.app.CrashHandler;
 import org.beiwe.app.storage.PersistentData;
 import org.beiwe.app.storage.TextFileManager;
 import io.sodalic.blob.BuildConfig;
+import io.sodalic.blob.net.HttpStack;
 import io.sodalic.blob.net.ServerApi;
 import io.sodalic.blob.utils.StringUtils;
 import io.sodalic.blob.utils.Utils;
@@ -29,17 +31,21 @@ public class BlobContextImpl implements BlobContext {
 
     private final Context rootContext;
 
+    private final HttpStack httpStack;
     private ServerApi serverApi;
     private final UploadManager uploadManager;
     private final FaceSightcorpApi faceApi;
+    private final FaceAnalysisService faceAnalysisService;
     private final UserStateData userStateData;
 
 
     public BlobContextImpl(Context context) {
         Objects.requireNonNull(context, "context");
         rootContext = context;
+        httpStack = new HttpStack(context);
         uploadManager = new UploadManager(this);
-        faceApi = new FaceSightcorpApi(BuildConfig.FACESIGHTCORP_API_KEY);
+        faceApi = new FaceSightcorpApi(BuildConfig.FACESIGHTCORP_API_KEY, httpStack);
+        faceAnalysisService = new FaceAnalysisService(faceApi);
         userStateData = new UserStateData(context);
 
         init();
@@ -94,7 +100,13 @@ public class BlobContextImpl implements BlobContext {
     @Override
     public void initServerApi(String serverUrl) {
         Objects.requireNonNull(serverUrl, "serverUrl");
-        serverApi = new ServerApi(rootContext, serverUrl);
+        // cheap as the HTTP stack is shared, only the URL changes
+        serverApi = new ServerApi(rootContext, serverUrl, httpStack);
+    }
+
+    @Override
+    public HttpStack getHttpStack() {
+        return httpStack;
     }
 
     @Override
@@ -107,6 +119,11 @@ public class BlobContextImpl implements BlobContext {
         return faceApi;
     }
 
+    @Override
+    public FaceAnalysisService getFaceAnalysisService() {
+        return faceAnalysisService;
+    }
+
     @Override
     public UserStateData getUserStateData() {
         return userStateData;
@@ -2,7 +2,9 @@ package io.sodalic.blob.context;
 
 import android.content.Context;
 import io.sodalic.blob.BlobApp;
+import io.sodalic.blob.face.FaceAnalysisService;
 import io.sodalic.blob.face.FaceSightcorpApi;
+import io.sodalic.blob.net.HttpStack;
 import io.sodalic.blob.net.ServerApi;
 
 import java.util.Objects;
@@ -66,6 +68,11 @@ public final class BlobContextProxy implements BlobContext {
         blobContext.initServerApi(serverUrl);
     }
 
+    @Override
+    public HttpStack getHttpStack() {
+        return blobContext.getHttpStack();
+    }
+
     @Override
     public UploadManager getUploadManager() {
         return blobContext.getUploadManager();
@@ -76,6 +83,11 @@ public final class BlobContextProxy implements BlobContext {
         return blobContext.getFaceApi();
     }
 
+    @Override
+    public FaceAnalysisService getFaceAnalysisService() {
+        return blobContext.getFaceAnalysisService();
+    }
+
     @Override
     public UserStateData getUserStateData() {
         return blobContext.getUserStateData();
@@ -0,0 +1,62 @@
+package io.sodalic.blob.face;
+
+import android.support.annotation.NonNull;
+import android.util.Size;
+
+/**
+ * Picks the camera capture size for a face picture: the smallest one that still gives
+ * the face analysis the required resolution across the face instead of the full sensor resolution.
+ * <p>
+ * The face is assumed to take at least {@code 1/FACE_SHARE_DIVISOR} of the shorter side of
+ * a selfie taken at arm's length, so the shorter side of the picture must be at least
+ * {@code minFacePixels * FACE_SHARE_DIVISOR}.
+ */
+public final class CaptureSizePolicy {
+    private static final int FACE_SHARE_DIVISOR = 3;
+
+    private final int minShortSide;
+
+    /**
+     * @param minFacePixels how many pixels across the face the analysis needs
+     */
+    public CaptureSizePolicy(int minFacePixels) {
+        this.minShortSide = minFacePixels * FACE_SHARE_DIVISOR;
+    }
+
+    /**
+     * @return the minimal shorter side of the whole picture
+     */
+    public int getMinShortSide() {
+        return minShortSide;
+    }
+
+    /**
+     * Chooses among {@code choices} the smallest size that has the same aspect ratio as {@code aspectRatio}
+     * and is big enough. If none is big enough, the largest one is returned, if none has the same aspect ratio,
+     * the aspect ratio is ignored.
+     */
+    @NonNull
+    public Size chooseCaptureSize(@NonNull Size[] choices, @NonNull Size aspectRatio) {
+        Size chosen = chooseCaptureSize(choices, aspectRatio, true);
+        return (chosen != null) ? chosen : chooseCaptureSize(choices, aspectRatio, false);
+    }
+
+    private Size chooseCaptureSize(Size[] choices, Size aspectRatio, boolean sameAspectOnly) {
+        Size smallestBigEnough = null;
+        Size largest = null;
+        for (Size option : choices) {
+            if (sameAspectOnly && ((long) option.getHeight() * aspectRatio.getWidth() != (long) option.getWidth() * aspectRatio.getHeight()))
+                continue;
+            if ((largest == null) || (getArea(option) > getArea(largest)))
+                largest = option;
+            if (Math.min(option.getWidth(), option.getHeight()) >= minShortSide
+                    && ((smallestBigEnough == null) || (getArea(option) < getArea(smallestBigEnough))))
+                smallestBigEnough = option;
+        }
+        return (smallestBigEnough != null) ? smallestBigEnough : largest;
+    }
+
+    private static long getArea(Size size) {
+        return (long) size.getWidth() * size.getHeight();
+    }
+}
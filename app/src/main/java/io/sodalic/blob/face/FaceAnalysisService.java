@@ -0,0 +1,219 @@
+package io.sodalic.blob.face;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import io.sodalic.blob.utils.ImageUtils;
+import io.sodalic.blob.utils.StringUtils;
+import io.sodalic.blob.utils.Utils;
+
+/**
+ * The single entry point for the face analysis that sits in front of {@link FaceSightcorpApi}:
+ * <ul>
+ * <li>the latest result is cached by the perceptual hash of the image, so sending (almost) the same
+ * picture again doesn't call the API</li>
+ * <li>requests for similar pictures that run at the same time are coalesced into one API call</li>
+ * <li>API calls are rate-limited per API key, so repeated taps don't burn the quota</li>
+ * </ul>
+ * Two images are considered the same if their {@link ImageUtils#computeDifferenceHash(ByteBuffer) hashes}
+ * differ in at most {@link #MAX_HASH_DISTANCE} bits.
+ * <p>
+ * This class is thread-safe.
+ */
+public class FaceAnalysisService {
+    private static final String TAG = Utils.getLogTag(FaceAnalysisService.class);
+
+    private static final int MAX_HASH_DISTANCE = 6;
+    private static final long CACHE_TTL_MILLIS = 10 * 60 * 1000;
+    private static final int RATE_LIMIT_MAX_CALLS = 5;
+    private static final long RATE_LIMIT_WINDOW_MILLIS = 60 * 1000;
+
+    private final FaceSightcorpApi faceApi;
+
+    private final Object lock = new Object();
+    // all guarded by the lock
+    private CachedResult latestResult = null;
+    private final List<InFlightRequest> inFlight = new ArrayList<>();
+    private final Map<String, ArrayDeque<Long>> callTimesByKey = new HashMap<>();
+
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger missCount = new AtomicInteger();
+    private final AtomicInteger coalescedCount = new AtomicInteger();
+    private final AtomicInteger rateLimitedCount = new AtomicInteger();
+
+    public FaceAnalysisService(@NonNull FaceSightcorpApi faceApi) {
+        this.faceApi = faceApi;
+    }
+
+    private static final class CachedResult {
+        final long hash;
+        final long time;
+        final FaceSightcorpApi.PersonFaceData faceData;
+
+        CachedResult(long hash, long time, FaceSightcorpApi.PersonFaceData faceData) {
+            this.hash = hash;
+            this.time = time;
+            this.faceData = faceData;
+        }
+    }
+
+    private static final class InFlightRequest {
+        final long hash;
+        final FutureTask<FaceSightcorpApi.PersonFaceData> task;
+
+        InFlightRequest(long hash, FutureTask<FaceSightcorpApi.PersonFaceData> task) {
+            this.hash = hash;
+            this.task = task;
+        }
+    }
+
+    private static boolean isSameImage(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2) <= MAX_HASH_DISTANCE;
+    }
+
+    /**
+     * Returns the analysis of the JPEG in {@code jpeg} from the cache, from a running request
+     * for a similar image or from a new API call. This method blocks, don't call it on the UI thread.
+     *
+     * @param jpeg see {@link FaceSightcorpApi#analyzeImage(ByteBuffer)}
+     */
+    @NonNull
+    public FaceSightcorpApi.PersonFaceData analyzeImage(@NonNull final ByteBuffer jpeg) throws FaceApiException {
+        final long hash;
+        try {
+            hash = ImageUtils.computeDifferenceHash(jpeg);
+        } catch (IOException e) {
+            throw new FaceApiException(e);
+        }
+
+        final InFlightRequest request;
+        boolean isOwner = false;
+        synchronized (lock) {
+            long now = SystemClock.elapsedRealtime();
+            if ((latestResult != null) && (now - latestResult.time < CACHE_TTL_MILLIS) && isSameImage(latestResult.hash, hash)) {
+                int hits = hitCount.incrementAndGet();
+                Log.i(TAG, StringUtils.formatEn("Face analysis cache hit (%d hits, %d misses)", hits, missCount.get()));
+                return latestResult.faceData;
+            }
+            InFlightRequest running = findInFlight(hash);
+            if (running != null) {
+                coalescedCount.incrementAndGet();
+                Log.i(TAG, "Joining the running face analysis of a similar image");
+                request = running;
+            } else {
+                missCount.incrementAndGet();
+                acquireRateLimit(now);
+                request = new InFlightRequest(hash, new FutureTask<>(new Callable<FaceSightcorpApi.PersonFaceData>() {
+                    @Override
+                    public FaceSightcorpApi.PersonFaceData call() throws Exception {
+                        return faceApi.analyzeImage(jpeg);
+                    }
+                }));
+                inFlight.add(request);
+                isOwner = true;
+            }
+        }
+
+        if (isOwner) {
+            // the API call runs on the thread of the first caller, the others wait for it
+            try {
+                request.task.run();
+            } finally {
+                synchronized (lock) {
+                    inFlight.remove(request);
+                }
+            }
+        }
+        FaceSightcorpApi.PersonFaceData faceData = getResult(request.task);
+        if (isOwner) {
+            synchronized (lock) {
+                latestResult = new CachedResult(hash, SystemClock.elapsedRealtime(), faceData);
+            }
+        }
+        return faceData;
+    }
+
+    private InFlightRequest findInFlight(long hash) {
+        for (InFlightRequest request : inFlight) {
+            if (isSameImage(request.hash, hash))
+                return request;
+        }
+        return null;
+    }
+
+    /**
+     * Records a call for the API key or throws if there were too many calls within the window
+     */
+    private void acquireRateLimit(long now) throws FaceApiException {
+        ArrayDeque<Long> callTimes = callTimesByKey.get(faceApi.getAppKey());
+        if (callTimes == null) {
+            callTimes = new ArrayDeque<>();
+            callTimesByKey.put(faceApi.getAppKey(), callTimes);
+        }
+        while (!callTimes.isEmpty() && (now - callTimes.peekFirst() >= RATE_LIMIT_WINDOW_MILLIS)) {
+            callTimes.pollFirst();
+        }
+        if (callTimes.size() >= RATE_LIMIT_MAX_CALLS) {
+            rateLimitedCount.incrementAndGet();
+            Log.w(TAG, StringUtils.formatEn("Face API rate limit of %d calls per %d ms is reached", RATE_LIMIT_MAX_CALLS, RATE_LIMIT_WINDOW_MILLIS));
+            throw new FaceApiException("Too many face analysis requests, please try again in a minute");
+        }
+        callTimes.addLast(now);
+    }
+
+    @NonNull
+    private static FaceSightcorpApi.PersonFaceData getResult(@NonNull FutureTask<FaceSightcorpApi.PersonFaceData> task) throws FaceApiException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FaceApiException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FaceApiException)
+                throw (FaceApiException) cause;
+            throw new FaceApiException(cause);
+        }
+    }
+
+    /**
+     * @return how many requests were answered from the cache
+     */
+    public int getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return how many requests needed an API call (including the rate-limited ones)
+     */
+    public int getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return how many requests joined a running API call for a similar image
+     */
+    public int getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return how many requests were rejected by the rate limit
+     */
+    public int getRateLimitedCount() {
+        return rateLimitedCount.get();
+    }
+}
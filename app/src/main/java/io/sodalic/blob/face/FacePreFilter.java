@@ -0,0 +1,153 @@
+package io.sodalic.blob.face;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.PointF;
+import android.graphics.Rect;
+import android.media.FaceDetector;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import io.sodalic.blob.utils.ByteBufferInputStream;
+import io.sodalic.blob.utils.ImageUtils;
+import io.sodalic.blob.utils.StringUtils;
+import io.sodalic.blob.utils.Utils;
+
+/**
+ * Local check of a face picture before it is sent to {@link FaceSightcorpApi}.
+ * <p>
+ * A picture without a face is rejected right away instead of after a round trip to the API
+ * (which can take up to a minute and costs the quota). A picture with a face is cropped to the face,
+ * so only the crop is uploaded. The detection runs with {@link FaceDetector} on a downscaled copy
+ * of the picture, the crop is decoded from the original one with {@link BitmapRegionDecoder}.
+ * <p>
+ * {@link FaceDetector} expects an upright face, so the picture must be normalized already,
+ * see {@link ImageUtils#normalizeImageRotation(ByteBuffer)}.
+ */
+public final class FacePreFilter {
+    private static final String TAG = Utils.getLogTag(FacePreFilter.class);
+
+    private static final int DETECTION_SHORT_SIDE = 240;
+    private static final int MAX_FACES = 3;
+    /**
+     * The side of the crop in the distances between the eyes, the API needs the whole head to be visible
+     */
+    private static final float CROP_SIZE_IN_EYE_DISTANCES = 4.0f;
+    /**
+     * The eyes are above the center of the face by about this share of the distance between them
+     */
+    private static final float EYES_TO_FACE_CENTER = 0.5f;
+    private static final int CROP_JPEG_QUALITY = 90;
+
+    // for the log only: how many API round trips the check has saved so far
+    private static final AtomicInteger checkedCount = new AtomicInteger();
+    private static final AtomicInteger rejectedCount = new AtomicInteger();
+
+    private FacePreFilter() {
+    }
+
+    /**
+     * @param jpeg buffer with an upright JPEG image between its position and limit, it is not modified
+     * @return the JPEG cropped to the biggest face found
+     * @throws FaceApiException if no face was found, nothing should be sent to the API then
+     * @throws IOException      if the image can't be decoded
+     */
+    @NonNull
+    public static ByteBuffer cropToFace(@NonNull ByteBuffer jpeg) throws FaceApiException, IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(new ByteBufferInputStream(jpeg.duplicate()), null, bounds);
+        final int width = bounds.outWidth;
+        final int height = bounds.outHeight;
+        if ((width <= 0) || (height <= 0))
+            throw new IOException("Failed to decode the face picture");
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = ImageUtils.calculateInSampleSize(width, height, DETECTION_SHORT_SIDE);
+        options.inPreferredConfig = Bitmap.Config.RGB_565; // the only format FaceDetector accepts
+        Bitmap sampled = BitmapFactory.decodeStream(new ByteBufferInputStream(jpeg.duplicate()), null, options);
+        if (sampled == null)
+            throw new IOException("Failed to decode the face picture");
+        final float scale = (float) width / sampled.getWidth();
+
+        FaceDetector.Face face = findBiggestFace(sampled);
+        int checked = checkedCount.incrementAndGet();
+        if (face == null) {
+            int rejected = rejectedCount.incrementAndGet();
+            Log.i(TAG, StringUtils.formatEn("No face found locally, %d of %d pictures were not sent to the API", rejected, checked));
+            throw new FaceApiException("No face found on the picture, please try again");
+        }
+
+        PointF midPoint = new PointF();
+        face.getMidPoint(midPoint);
+        Rect crop = getFaceCrop(midPoint.x * scale, midPoint.y * scale, face.eyesDistance() * scale, width, height);
+        if (crop == null)
+            return jpeg;
+
+        ByteBuffer cropped = decodeAndCompressRegion(jpeg, crop);
+        Log.i(TAG, StringUtils.formatEn("Face found at %s of %dx%d, sending %d bytes instead of %d (%d of %d pictures were not sent)",
+                crop, width, height, cropped.remaining(), jpeg.remaining(), rejectedCount.get(), checked));
+        return cropped;
+    }
+
+    /**
+     * @param eyesMidX     the point between the eyes in the picture coordinates
+     * @param eyesDistance the distance between the eyes in the picture pixels
+     * @return the square around the whole head clipped to the picture or {@code null} if it is outside of the picture
+     */
+    @VisibleForTesting
+    @Nullable
+    static Rect getFaceCrop(float eyesMidX, float eyesMidY, float eyesDistance, int width, int height) {
+        float centerY = eyesMidY + eyesDistance * EYES_TO_FACE_CENTER;
+        float halfSide = eyesDistance * CROP_SIZE_IN_EYE_DISTANCES / 2;
+        Rect crop = new Rect(Math.round(eyesMidX - halfSide), Math.round(centerY - halfSide),
+                Math.round(eyesMidX + halfSide), Math.round(centerY + halfSide));
+        return crop.intersect(0, 0, width, height) ? crop : null;
+    }
+
+    private static FaceDetector.Face findBiggestFace(@NonNull Bitmap sampled) {
+        Bitmap bitmap = sampled;
+        // FaceDetector requires an even width
+        if ((bitmap.getWidth() % 2) != 0) {
+            bitmap = Bitmap.createBitmap(sampled, 0, 0, sampled.getWidth() - 1, sampled.getHeight());
+            sampled.recycle();
+        }
+        try {
+            FaceDetector.Face[] faces = new FaceDetector.Face[MAX_FACES];
+            int found = new FaceDetector(bitmap.getWidth(), bitmap.getHeight(), MAX_FACES).findFaces(bitmap, faces);
+            FaceDetector.Face biggest = null;
+            for (int i = 0; i < found; i++) {
+                if ((biggest == null) || (faces[i].eyesDistance() > biggest.eyesDistance()))
+                    biggest = faces[i];
+            }
+            return biggest;
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    @NonNull
+    private static ByteBuffer decodeAndCompressRegion(@NonNull ByteBuffer jpeg, @NonNull Rect region) throws IOException {
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(new ByteBufferInputStream(jpeg.duplicate()), false);
+        Bitmap regionBitmap;
+        try {
+            regionBitmap = decoder.decodeRegion(region, null);
+        } finally {
+            decoder.recycle();
+        }
+        if (regionBitmap == null)
+            throw new IOException("Failed to decode the face region " + region);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        regionBitmap.compress(Bitmap.CompressFormat.JPEG, CROP_JPEG_QUALITY, out);
+        regionBitmap.recycle();
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+}
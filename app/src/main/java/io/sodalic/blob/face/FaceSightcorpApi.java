@@ -1,7 +1,7 @@
 package io.sodalic.blob.face;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
@@ -15,7 +15,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import io.sodalic.blob.BuildConfig;
+import io.sodalic.blob.net.ByteBufferRequestBody;
 import io.sodalic.blob.net.DebugLoggingInterceptor;
+import io.sodalic.blob.net.HttpStack;
 import io.sodalic.blob.net.ServerApi;
 import io.sodalic.blob.storage.UserMood;
 import io.sodalic.blob.utils.StringUtils;
@@ -33,11 +35,12 @@ public class FaceSightcorpApi {
     private final OkHttpClient okHttpClient;
     private final String appKey;
 
-    public FaceSightcorpApi(@NonNull String apiKey) {
+    public FaceSightcorpApi(@NonNull String apiKey, @NonNull HttpStack httpStack) {
         Objects.requireNonNull(apiKey);
+        Objects.requireNonNull(httpStack);
         this.appKey = apiKey;
 
-        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+        OkHttpClient.Builder builder = httpStack.newClientBuilder();
         // enabling logging effectively means we are sharing it with the whole world
         if (BuildConfig.APP_IS_DEV && BuildConfig.ALLOW_INSECURE_CONNECTION) {
             builder.addInterceptor(new DebugLoggingInterceptor(TAG, false, true));
@@ -104,11 +107,23 @@ public class FaceSightcorpApi {
         }
     }
 
+    /**
+     * @return the key the API is called with, each key has its own quota
+     */
+    @NonNull
+    public String getAppKey() {
+        return appKey;
+    }
+
+    /**
+     * Sends the JPEG in {@code jpeg} for the analysis. The buffer is streamed into the request as is,
+     * so it may be a direct buffer of an {@link android.media.Image} but it must stay valid until this method returns.
+     */
     @NonNull
-    public PersonFaceData analyzeImage(@NonNull File imageFile) throws FaceApiException {
-        Log.i(TAG, StringUtils.formatEn("Sending image '%s' of size %d for a face analysis", imageFile, imageFile.length()));
+    public PersonFaceData analyzeImage(@NonNull ByteBuffer jpeg) throws FaceApiException {
+        Log.i(TAG, StringUtils.formatEn("Sending image of size %d for a face analysis", jpeg.remaining()));
 
-        String jsonResponseStr = sendApiRequest(imageFile);
+        String jsonResponseStr = sendApiRequest(new ByteBufferRequestBody(MEDIA_TYPE_JPEG, jpeg));
         PersonFaceData faceData = parseApiResponse(jsonResponseStr);
         Log.i(TAG, "Face API data = " + faceData);
         return faceData;
@@ -116,11 +131,11 @@ public class FaceSightcorpApi {
     }
 
     @NonNull
-    private String sendApiRequest(@NonNull File imageFile) throws FaceApiException {
+    private String sendApiRequest(@NonNull RequestBody imageBody) throws FaceApiException {
         MultipartBody body = new MultipartBody.Builder()
                 .setType(MultipartBody.FORM)
                 .addFormDataPart("app_key", appKey)
-                .addFormDataPart("img", "image.jpeg", RequestBody.create(MEDIA_TYPE_JPEG, imageFile))
+                .addFormDataPart("img", "image.jpeg", imageBody)
                 .build();
 
         Request request = new Request.Builder()
@@ -0,0 +1,45 @@
+package io.sodalic.blob.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.support.annotation.NonNull;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * {@link RequestBody} that streams the remaining bytes of a {@link ByteBuffer} (e.g. a direct buffer of
+ * an {@link android.media.Image} plane) without copying them into a {@code byte[]} or a file first.
+ * <p>
+ * The buffer is not consumed, so the body can be written several times (retries, logging interceptors),
+ * but it must stay valid until the call is finished.
+ */
+public class ByteBufferRequestBody extends RequestBody {
+    private final MediaType contentType;
+    private final ByteBuffer data;
+
+    public ByteBufferRequestBody(MediaType contentType, @NonNull ByteBuffer data) {
+        this.contentType = contentType;
+        this.data = data.slice();
+    }
+
+    @Override
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    @Override
+    public long contentLength() {
+        return data.remaining();
+    }
+
+    @Override
+    public void writeTo(@NonNull BufferedSink sink) throws IOException {
+        ByteBuffer source = data.duplicate();
+        while (source.hasRemaining()) {
+            sink.write(source);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package io.sodalic.blob.net;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.X509TrustManager;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import okhttp3.*;
+
+import io.sodalic.blob.tracking.UploadManager;
+import io.sodalic.blob.utils.StringUtils;
+import io.sodalic.blob.utils.Utils;
+
+/**
+ * The process-wide HTTP stack owned by the {@link io.sodalic.blob.context.BlobContext}.
+ * <p>
+ * Every API builds its client with {@link #newClientBuilder()}, so all of them share
+ * the connection pool (and thus HTTP/2 connections where the server supports them),
+ * the dispatcher threads, the TLS session cache (so a new connection to a known host resumes the session
+ * instead of a full handshake) and the response cache. Per-API settings such as timeouts or
+ * interceptors go on the returned builder.
+ * <p>
+ * The stack also counts how often a call got an already open connection and how long the TLS handshakes
+ * of the new ones took, the summary is logged every {@link #STATS_LOG_INTERVAL_CALLS} calls.
+ */
+public final class HttpStack {
+    private static final String TAG = Utils.getLogTag(HttpStack.class);
+
+    private static final String CACHE_DIR_NAME = "http_cache";
+    private static final long CACHE_SIZE_BYTES = 2 * 1024 * 1024;
+    private static final int STATS_LOG_INTERVAL_CALLS = 20;
+
+    private final OkHttpClient baseClient;
+
+    private final AtomicInteger callCount = new AtomicInteger();
+    private final AtomicInteger acquiredConnectionCount = new AtomicInteger();
+    private final AtomicInteger newConnectionCount = new AtomicInteger();
+    private final AtomicInteger handshakeCount = new AtomicInteger();
+    private final AtomicLong handshakeTotalMillis = new AtomicLong();
+
+    public HttpStack(@NonNull Context context) {
+        this(context, null, null);
+    }
+
+    /**
+     * A stack that trusts only the certificates of {@code trustManager}, for the tests against a local HTTPS server
+     */
+    @VisibleForTesting
+    public HttpStack(@NonNull Context context, @Nullable SSLSocketFactory sslSocketFactory, @Nullable X509TrustManager trustManager) {
+        Objects.requireNonNull(context, "context");
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                // keep a connection per parallel upload worker alive between the files plus one for the rest
+                .connectionPool(new ConnectionPool(UploadManager.MAX_UPLOAD_CONCURRENCY + 1, 5, TimeUnit.MINUTES))
+                .cache(new Cache(new File(context.getCacheDir(), CACHE_DIR_NAME), CACHE_SIZE_BYTES))
+                .eventListenerFactory(new EventListener.Factory() {
+                    @Override
+                    public EventListener create(@NonNull Call call) {
+                        return new StatsListener();
+                    }
+                });
+        if (sslSocketFactory != null)
+            builder.sslSocketFactory(sslSocketFactory, trustManager);
+        baseClient = builder.build();
+    }
+
+    /**
+     * @return a builder for a client that shares everything with all the other clients of this stack
+     */
+    @NonNull
+    public OkHttpClient.Builder newClientBuilder() {
+        return baseClient.newBuilder();
+    }
+
+    /**
+     * @return share of the calls that reused an open connection, from 0 to 1
+     */
+    public float getConnectionReuseRate() {
+        int acquired = acquiredConnectionCount.get();
+        return (acquired == 0) ? 0 : (float) (acquired - newConnectionCount.get()) / acquired;
+    }
+
+    /**
+     * @return the average TLS handshake time in milliseconds or 0 if there was none
+     */
+    public long getAverageHandshakeMillis() {
+        int handshakes = handshakeCount.get();
+        return (handshakes == 0) ? 0 : handshakeTotalMillis.get() / handshakes;
+    }
+
+    /**
+     * Collects the stats of a single call, OkHttp creates one per call
+     */
+    private final class StatsListener extends EventListener {
+        private long handshakeStart;
+
+        @Override
+        public void callStart(Call call) {
+            int calls = callCount.incrementAndGet();
+            if (calls % STATS_LOG_INTERVAL_CALLS == 0) {
+                Cache cache = baseClient.cache();
+                Log.i(TAG, StringUtils.formatEn("HTTP stats: %d calls, %d connections acquired, %d opened, reuse rate %.2f, %d TLS handshakes avg %d ms, cache hits %d of %d",
+                        calls, acquiredConnectionCount.get(), newConnectionCount.get(), getConnectionReuseRate(),
+                        handshakeCount.get(), getAverageHandshakeMillis(),
+                        (cache != null) ? cache.hitCount() : 0, (cache != null) ? cache.requestCount() : 0));
+            }
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            newConnectionCount.incrementAndGet();
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            handshakeStart = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            handshakeCount.incrementAndGet();
+            handshakeTotalMillis.addAndGet(SystemClock.elapsedRealtime() - handshakeStart);
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            acquiredConnectionCount.incrementAndGet();
+        }
+    }
+}
@@ -2,14 +2,18 @@ package io.sodalic.blob.net;
 
 import java.io.*;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 import android.content.Context;
 import android.util.Log;
 
 import okhttp3.*;
 import okio.Buffer;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -19,6 +23,7 @@ import org.beiwe.app.storage.PersistentData;
 import org.beiwe.app.storage.SetDeviceSettings;
 import org.beiwe.app.storage.TextFileManager;
 import io.sodalic.blob.BuildConfig;
+import io.sodalic.blob.storage.TrackingFileFormat;
 import io.sodalic.blob.utils.StringUtils;
 import io.sodalic.blob.utils.Utils;
 
@@ -30,10 +35,7 @@ public class ServerApi {
     private static final String TAG = Utils.getLogTag(ServerApi.class);
 
     public static final int MAX_LOG_BODY_LEN = 1000;
-
-    // This is the media type used to describe our uploaded files
-    // Let's use some fair description
-    private static final MediaType MEDIA_TYPE_FILE_UPLOAD = MediaType.get("text/x.csv-encrypted");
+    private static final int HTTP_NOT_MODIFIED = 304;
 
     private final Context androidContext;
     private final String baseServerUrl;
@@ -41,14 +43,15 @@ public class ServerApi {
     private final OkHttpClient client;
 
 
-    public ServerApi(Context androidContext, String baseServerUrl) {
+    public ServerApi(Context androidContext, String baseServerUrl, HttpStack httpStack) {
         Objects.requireNonNull(androidContext);
         Objects.requireNonNull(baseServerUrl);
+        Objects.requireNonNull(httpStack);
         this.androidContext = androidContext;
         this.baseServerUrl = fixUrl(baseServerUrl);
         Log.i(TAG, StringUtils.formatEn("Init ServerApi for '%s' => '%s'", baseServerUrl, this.baseServerUrl));
 
-        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+        OkHttpClient.Builder builder = httpStack.newClientBuilder();
         // enabling logging effectively means we are sharing it with the whole world
         if (BuildConfig.APP_IS_DEV && BuildConfig.ALLOW_INSECURE_CONNECTION) {
             builder.addInterceptor(new DebugLoggingInterceptor(TAG, false, true));
@@ -82,30 +85,34 @@ public class ServerApi {
                 .build();
 
         try (Response response = client.newCall(request).execute()) {
-            final ResponseBody responseBody = response.body();
-            if (!response.isSuccessful()) {
-                int code = response.code();
-                Log.w(TAG, StringUtils.formatEn("Bad response code = %d", code));
-                Log.w(TAG, StringUtils.formatEn("Bad response body = '%s'", responseBody));
-                if (responseBody != null)
-                    Log.w(TAG, StringUtils.formatEn("Bad response body = '%s'", responseBody.string()));
-                throw new ServerException(code);
-            }
-            if (responseBody == null) {
-                // not an expected case
-                Log.w(TAG, StringUtils.formatEn("Response code = %d, body is empty", response.code()));
-                return null;
-            } else {
-                String responseBodyText = responseBody.string();
-                String bodyForLog = StringUtils.truncate(responseBodyText, MAX_LOG_BODY_LEN);
-                Log.i(TAG, "Response = '" + bodyForLog + "'");
-                return responseBodyText;
-            }
+            return readResponseBody(response);
         } catch (IOException e) {
             throw new ServerException(e);
         }
     }
 
+    private static String readResponseBody(Response response) throws IOException, ServerException {
+        final ResponseBody responseBody = response.body();
+        if (!response.isSuccessful()) {
+            int code = response.code();
+            Log.w(TAG, StringUtils.formatEn("Bad response code = %d", code));
+            Log.w(TAG, StringUtils.formatEn("Bad response body = '%s'", responseBody));
+            if (responseBody != null)
+                Log.w(TAG, StringUtils.formatEn("Bad response body = '%s'", responseBody.string()));
+            throw new ServerException(code);
+        }
+        if (responseBody == null) {
+            // not an expected case
+            Log.w(TAG, StringUtils.formatEn("Response code = %d, body is empty", response.code()));
+            return null;
+        } else {
+            String responseBodyText = responseBody.string();
+            String bodyForLog = StringUtils.truncate(responseBodyText, MAX_LOG_BODY_LEN);
+            Log.i(TAG, "Response = '" + bodyForLog + "'");
+            return responseBodyText;
+        }
+    }
+
     /////////////////////////////////////////////////////////////////////////////////////////////
     //// legacy authentication
 
@@ -253,12 +260,50 @@ public class ServerApi {
     }
 
     /**
-     * This request is used to download JSON with information about relevant surveys
+     * The result of {@link #downloadSurveys(String)}
+     */
+    public static class SurveysDownload {
+        public final String json;
+        /**
+         * The ETag of the response or {@code null} if the server doesn't send one
+         */
+        public final String etag;
+
+        SurveysDownload(String json, String etag) {
+            this.json = json;
+            this.etag = etag;
+        }
+    }
+
+    /**
+     * This request is used to download JSON with information about relevant surveys.
+     * If {@code etag} of the previous download is passed, the server may answer with 304 Not Modified
+     * and no body at all.
+     *
+     * @return the surveys or {@code null} if they are not modified since the download with {@code etag}
      */
-    public String downloadSurveys() throws ServerException {
+    public SurveysDownload downloadSurveys(String etag) throws ServerException {
         FormBody.Builder formBodyBuilder = new FormBody.Builder();
         addSecurityParameters(formBodyBuilder);
-        return sendSimplePost("/download_surveys", formBodyBuilder.build());
+
+        final String fullUrl = baseServerUrl + "/download_surveys";
+        Log.i(TAG, StringUtils.formatEn("Sending request to '%s', If-None-Match = '%s'", fullUrl, etag));
+        Request.Builder requestBuilder = new Request.Builder()
+                .url(fullUrl)
+                .post(formBodyBuilder.build());
+        if (etag != null)
+            requestBuilder.header("If-None-Match", etag);
+
+        try (Response response = client.newCall(requestBuilder.build()).execute()) {
+            if (response.code() == HTTP_NOT_MODIFIED) {
+                Log.i(TAG, "Surveys are not modified");
+                return null;
+            }
+            String json = readResponseBody(response);
+            return new SurveysDownload(json, response.header("ETag"));
+        } catch (IOException e) {
+            throw new ServerException(e);
+        }
     }
 
     /**
@@ -269,6 +314,8 @@ public class ServerApi {
      */
     public void uploadFile(File file) throws ServerException {
         Log.i(TAG, StringUtils.formatEn("Uploading file '%s'", file.getName()));
+        // This is the media type used to describe our uploaded files, it depends on the file format
+        MediaType mediaType = MediaType.get(TrackingFileFormat.forFileName(file.getName()).getMediaType());
 
         MultipartBody.Builder multipartBuilder = new MultipartBody.Builder()
                 .setType(MultipartBody.FORM);
@@ -276,10 +323,89 @@ public class ServerApi {
         addSecurityParameters(multipartBuilder);
         multipartBuilder
                 .addFormDataPart("file_name", file.getName())
-                .addFormDataPart("file", file.getName(), RequestBody.create(MEDIA_TYPE_FILE_UPLOAD, file));
+                .addFormDataPart("file", file.getName(), RequestBody.create(mediaType, file));
         sendSimplePost("/upload", multipartBuilder.build());
     }
 
+    /**
+     * Uploads several files in a single request. The security parameters are sent only once and
+     * the files are streamed from the disk one after another as parts of the same multipart body.
+     * <p>
+     * The server responds with the names of the files it has stored e.g. {@code {"accepted": ["a.csv", "b.csv"]}}.
+     * Only those files may be deleted, the rest should be uploaded again later.
+     * Servers that don't support this request respond with 404.
+     *
+     * @param files files to upload, see {@link #uploadFile(File)}
+     * @return names of the files accepted by the server
+     */
+    public Set<String> uploadFiles(List<File> files) throws ServerException {
+        Log.i(TAG, StringUtils.formatEn("Uploading a batch of %d files", files.size()));
+        MultipartBody.Builder multipartBuilder = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM);
+
+        addSecurityParameters(multipartBuilder);
+        multipartBuilder.addFormDataPart("file_count", Integer.toString(files.size()));
+        for (File file : files) {
+            MediaType mediaType = MediaType.get(TrackingFileFormat.forFileName(file.getName()).getMediaType());
+            multipartBuilder.addFormDataPart("files", file.getName(), RequestBody.create(mediaType, file));
+        }
+        String responseBody = sendSimplePost("/upload_batch", multipartBuilder.build());
+        if (responseBody == null)
+            throw new ServerException("Empty response for the batch upload");
+        try {
+            JSONArray accepted = new JSONObject(responseBody).getJSONArray("accepted");
+            Set<String> acceptedNames = new HashSet<>();
+            for (int i = 0; i < accepted.length(); i++) {
+                acceptedNames.add(accepted.getString(i));
+            }
+            return acceptedNames;
+        } catch (JSONException e) {
+            // treat a malformed answer as if nothing was accepted
+            throw new ServerException(e);
+        }
+    }
+
+    /**
+     * Sends one chunk of a resumable upload. Chunks are addressed by their {@code offset} in the file
+     * so re-sending a chunk after a failure is harmless.
+     *
+     * @return the offset the server expects the next chunk to start at. Normally it is {@code offset + length}
+     * but it is less if the server has lost some of the previously sent data, the caller must continue from there.
+     */
+    public long uploadFileChunk(String fileName, long totalSize, long offset, byte[] chunk, int length) throws ServerException {
+        MultipartBody.Builder multipartBuilder = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM);
+
+        addSecurityParameters(multipartBuilder);
+        multipartBuilder
+                .addFormDataPart("file_name", fileName)
+                .addFormDataPart("total_size", Long.toString(totalSize))
+                .addFormDataPart("offset", Long.toString(offset))
+                .addFormDataPart("chunk", fileName, RequestBody.create(MediaType.get("application/octet-stream"), chunk, 0, length));
+        String responseBody = sendSimplePost("/upload_chunk", multipartBuilder.build());
+        if (responseBody == null)
+            throw new ServerException("Empty response for the chunk upload");
+        try {
+            return new JSONObject(responseBody).getLong("next_offset");
+        } catch (JSONException e) {
+            throw new ServerException(e);
+        }
+    }
+
+    /**
+     * Finishes a resumable upload started with {@link #uploadFileChunk}. The server checks the size and
+     * the SHA-256 of the assembled file and responds with 409 if they don't match, in which case the
+     * partial upload is discarded on the server and has to be started from scratch.
+     */
+    public void completeChunkedUpload(String fileName, long totalSize, String sha256Hex) throws ServerException {
+        FormBody.Builder formBodyBuilder = new FormBody.Builder()
+                .add("file_name", fileName)
+                .add("total_size", Long.toString(totalSize))
+                .add("sha256", sha256Hex);
+        addSecurityParameters(formBodyBuilder);
+        sendSimplePost("/upload_chunk_complete", formBodyBuilder.build());
+    }
+
     public static final class UrlPostData {
         public final String url;
         public final byte[] postData;
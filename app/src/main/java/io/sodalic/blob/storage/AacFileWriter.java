@@ -0,0 +1,182 @@
+package io.sodalic.blob.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import io.sodalic.blob.utils.Utils;
+
+/**
+ * Encodes PCM audio to AAC-LC with the platform {@link MediaCodec} encoder and stores it
+ * in an MPEG-4 file with {@link MediaMuxer}. The recordings get the {@code .mp4} extension,
+ * the same as the ones of {@link android.media.MediaRecorder}, which the server already knows.
+ * <p>
+ * The encoding happens synchronously in {@link #write(byte[], int, int)} on the caller's thread,
+ * which is expected to be the recording thread, so nothing of it runs on the UI thread.
+ * Voice at 64 kbit/s takes about 0.5MB per minute instead of about 5MB of 16-bit PCM at 44.1kHz.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class AacFileWriter implements PcmAudioSink {
+    private static final String TAG = Utils.getLogTag(AacFileWriter.class);
+
+    private static final String MIME_TYPE = MediaFormat.MIMETYPE_AUDIO_AAC;
+    private static final long DEQUEUE_TIMEOUT_US = 10 * 1000;
+    // how long to wait for the encoder to hand over the last frames after the end of the stream
+    private static final long END_OF_STREAM_TIMEOUT_MILLIS = 5 * 1000;
+    private static final int BYTES_PER_SAMPLE = 2;
+
+    private final int sampleRate;
+    private final int channels;
+    private final MediaCodec codec;
+    private final MediaMuxer muxer;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+    private int trackIndex = -1;
+    private boolean muxerStarted = false;
+    private long pcmBytes = 0;
+    private long encodedBytes = 0;
+    private boolean finished = false;
+
+    public AacFileWriter(File file, int sampleRate, int channels, int bitRate) throws IOException {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, sampleRate, channels);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+
+        codec = MediaCodec.createEncoderByType(MIME_TYPE);
+        try {
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+            muxer = new MediaMuxer(file.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch (IOException | RuntimeException e) {
+            codec.release();
+            throw (e instanceof IOException) ? (IOException) e : new IOException(e);
+        }
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int len) throws IOException {
+        try {
+            while (len > 0) {
+                int index = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                if (index < 0) {
+                    // the encoder is busy, let it make progress by taking its output
+                    drainOutput(false);
+                    continue;
+                }
+                ByteBuffer input = codec.getInputBuffer(index);
+                input.clear();
+                int count = Math.min(len, input.remaining());
+                input.put(data, offset, count);
+                codec.queueInputBuffer(index, 0, count, getPresentationTimeUs(), 0);
+                pcmBytes += count;
+                offset += count;
+                len -= count;
+            }
+            drainOutput(false);
+        } catch (IllegalStateException e) {
+            throw new IOException("AAC encoder has failed", e);
+        }
+    }
+
+    private long getPresentationTimeUs() {
+        return pcmBytes * 1000 * 1000 / ((long) sampleRate * channels * BYTES_PER_SAMPLE);
+    }
+
+    /**
+     * Moves everything the encoder has produced so far into the muxer
+     *
+     * @param endOfStream if {@code true} waits until the encoder reports the end of the stream
+     */
+    private void drainOutput(boolean endOfStream) throws IOException {
+        final long deadline = System.currentTimeMillis() + END_OF_STREAM_TIMEOUT_MILLIS;
+        while (true) {
+            int index = codec.dequeueOutputBuffer(bufferInfo, endOfStream ? DEQUEUE_TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream)
+                    return;
+                if (System.currentTimeMillis() > deadline)
+                    throw new IOException("AAC encoder didn't finish the stream in time");
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (muxerStarted)
+                    throw new IOException("AAC encoder output format changed twice");
+                trackIndex = muxer.addTrack(codec.getOutputFormat());
+                muxer.start();
+                muxerStarted = true;
+            } else if (index >= 0) {
+                ByteBuffer output = codec.getOutputBuffer(index);
+                // the codec config is already in the track format from INFO_OUTPUT_FORMAT_CHANGED
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && bufferInfo.size > 0 && muxerStarted) {
+                    output.position(bufferInfo.offset);
+                    output.limit(bufferInfo.offset + bufferInfo.size);
+                    muxer.writeSampleData(trackIndex, output, bufferInfo);
+                    encodedBytes += bufferInfo.size;
+                }
+                codec.releaseOutputBuffer(index, false);
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                    return;
+            }
+        }
+    }
+
+    @Override
+    public long getDataSize() {
+        return pcmBytes;
+    }
+
+    /**
+     * @return the number of the AAC bytes produced so far, without the container overhead
+     */
+    public long getEncodedSize() {
+        return encodedBytes;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        finished = true;
+        try {
+            int index = codec.dequeueInputBuffer(END_OF_STREAM_TIMEOUT_MILLIS * 1000);
+            if (index < 0)
+                throw new IOException("AAC encoder didn't accept the end of the stream");
+            codec.queueInputBuffer(index, 0, 0, getPresentationTimeUs(), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drainOutput(true);
+        } catch (IllegalStateException e) {
+            throw new IOException("AAC encoder has failed", e);
+        } finally {
+            release();
+        }
+    }
+
+    private void release() {
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Failed to stop the encoder", e);
+        }
+        codec.release();
+        try {
+            // stop fails if not a single sample was written, the file is useless anyway then
+            if (muxerStarted)
+                muxer.stop();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Failed to stop the muxer", e);
+        }
+        muxer.release();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+}
@@ -0,0 +1,58 @@
+package io.sodalic.blob.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The reference decoder for the blocks produced by {@link BinaryBlockWriter}.
+ * It turns a decrypted block back into the same CSV rows the text format would contain
+ * (timestamp first, then the columns in the schema order). The server-side implementation
+ * is expected to follow this one.
+ */
+public final class BinaryBlockDecoder {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private BinaryBlockDecoder() {
+        throw new RuntimeException("This is a static class");
+    }
+
+    public static List<String> decodeToCsv(BinaryRecordSchema schema, byte[] block) {
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        int rowCount = buffer.getInt();
+        long timestamp = buffer.getLong();
+
+        List<StringBuilder> rows = new ArrayList<>(rowCount);
+        for (int i = 0; i < rowCount; i++) {
+            timestamp += buffer.getInt();
+            rows.add(new StringBuilder().append(timestamp));
+        }
+        for (BinaryRecordSchema.Column column : schema.getColumns()) {
+            for (int i = 0; i < rowCount; i++) {
+                StringBuilder row = rows.get(i).append(',');
+                switch (column.type) {
+                    case INT:
+                        row.append(buffer.getInt());
+                        break;
+                    case FLOAT:
+                        row.append(buffer.getFloat());
+                        break;
+                    case DOUBLE:
+                        row.append(buffer.getDouble());
+                        break;
+                    case STRING:
+                        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+                        buffer.get(bytes);
+                        row.append(new String(bytes, UTF8));
+                        break;
+                }
+            }
+        }
+        List<String> result = new ArrayList<>(rowCount);
+        for (StringBuilder row : rows) {
+            result.add(row.toString());
+        }
+        return result;
+    }
+}
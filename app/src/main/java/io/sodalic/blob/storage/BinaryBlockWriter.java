@@ -0,0 +1,209 @@
+package io.sodalic.blob.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import io.sodalic.blob.utils.StringUtils;
+
+/**
+ * Accumulates records of a {@link BinaryRecordSchema} in a columnar layout and encodes them as a single block.
+ * <p>
+ * The block layout (all values are big-endian):
+ * <pre>
+ * int32           rowCount
+ * int64           timestamp of the first row
+ * int32[rowCount] timestamp delta from the previous row (0 for the first one)
+ * for every column: rowCount values of that column, strings are uint16 length + UTF-8 bytes
+ * </pre>
+ * The whole block is then encrypted as one unit by the caller.
+ * <p>
+ * A record is written as {@link #startRow(long)}, then one {@code putXxx} call per column in the
+ * schema order, then {@link #endRow()}. Adding a record does not allocate unless there are string columns.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class BinaryBlockWriter {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final BinaryRecordSchema schema;
+    private final BinaryRecordSchema.ColumnType[] columnTypes;
+    private final int maxRows;
+
+    private final int[] timestampDeltas;
+    private final ByteBuffer[] fixedColumns;
+    private final GrowableBuffer[] stringColumns;
+
+    private int rowCount = 0;
+    private int nextColumn = -1;
+    private long firstTimestamp;
+    private long lastTimestamp;
+
+    public BinaryBlockWriter(BinaryRecordSchema schema, int maxRows) {
+        this.schema = schema;
+        this.maxRows = maxRows;
+        List<BinaryRecordSchema.Column> columns = schema.getColumns();
+        this.columnTypes = new BinaryRecordSchema.ColumnType[columns.size()];
+        this.timestampDeltas = new int[maxRows];
+        this.fixedColumns = new ByteBuffer[columns.size()];
+        this.stringColumns = new GrowableBuffer[columns.size()];
+        for (int i = 0; i < columns.size(); i++) {
+            BinaryRecordSchema.ColumnType type = columns.get(i).type;
+            columnTypes[i] = type;
+            if (type.isFixedWidth())
+                fixedColumns[i] = ByteBuffer.allocate(type.width * maxRows);
+            else
+                stringColumns[i] = new GrowableBuffer(32 * maxRows);
+        }
+    }
+
+    public BinaryRecordSchema getSchema() {
+        return schema;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public boolean isEmpty() {
+        return rowCount == 0;
+    }
+
+    public boolean isFull() {
+        return rowCount == maxRows;
+    }
+
+    public long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    /**
+     * @return {@code false} if the block must be encoded before a record with this {@code timestamp}
+     * can be added, either because it is full or the timestamp delta doesn't fit the int32 column
+     */
+    public boolean canAppend(long timestamp) {
+        if (rowCount == 0)
+            return true;
+        if (rowCount == maxRows)
+            return false;
+        long delta = timestamp - lastTimestamp;
+        return (delta >= Integer.MIN_VALUE) && (delta <= Integer.MAX_VALUE);
+    }
+
+    public void startRow(long timestamp) {
+        if (nextColumn >= 0)
+            throw new IllegalStateException("Previous row is not finished");
+        if (!canAppend(timestamp))
+            throw new IllegalStateException("Block must be encoded first");
+        if (rowCount == 0) {
+            firstTimestamp = timestamp;
+            timestampDeltas[0] = 0;
+        } else {
+            timestampDeltas[rowCount] = (int) (timestamp - lastTimestamp);
+        }
+        lastTimestamp = timestamp;
+        nextColumn = 0;
+    }
+
+    private int nextColumn(BinaryRecordSchema.ColumnType type) {
+        if (nextColumn < 0 || nextColumn >= columnTypes.length)
+            throw new IllegalStateException("No column is expected now");
+        if (columnTypes[nextColumn] != type) {
+            throw new IllegalStateException(StringUtils.formatEn("Column #%d of '%s' is %s, not %s",
+                    nextColumn, schema.getStreamName(), columnTypes[nextColumn], type));
+        }
+        return nextColumn++;
+    }
+
+    public BinaryBlockWriter putInt(int value) {
+        fixedColumns[nextColumn(BinaryRecordSchema.ColumnType.INT)].putInt(value);
+        return this;
+    }
+
+    public BinaryBlockWriter putFloat(float value) {
+        fixedColumns[nextColumn(BinaryRecordSchema.ColumnType.FLOAT)].putFloat(value);
+        return this;
+    }
+
+    public BinaryBlockWriter putDouble(double value) {
+        fixedColumns[nextColumn(BinaryRecordSchema.ColumnType.DOUBLE)].putDouble(value);
+        return this;
+    }
+
+    public BinaryBlockWriter putString(String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        if (bytes.length > 0xFFFF)
+            throw new IllegalArgumentException("String value is too long: " + bytes.length);
+        GrowableBuffer column = stringColumns[nextColumn(BinaryRecordSchema.ColumnType.STRING)];
+        column.putShort(bytes.length);
+        column.put(bytes);
+        return this;
+    }
+
+    public void endRow() {
+        if (nextColumn != columnTypes.length) {
+            throw new IllegalStateException(StringUtils.formatEn("Row of '%s' has %d of %d columns",
+                    schema.getStreamName(), nextColumn, columnTypes.length));
+        }
+        nextColumn = -1;
+        rowCount++;
+    }
+
+    /**
+     * Encodes all the accumulated records and resets this writer for the next block
+     */
+    public byte[] encodeBlock() {
+        if (nextColumn >= 0)
+            throw new IllegalStateException("Current row is not finished");
+        int size = 4 + 8 + 4 * rowCount;
+        for (int i = 0; i < columnTypes.length; i++) {
+            size += (fixedColumns[i] != null) ? fixedColumns[i].position() : stringColumns[i].size;
+        }
+        ByteBuffer block = ByteBuffer.allocate(size);
+        block.putInt(rowCount);
+        block.putLong(firstTimestamp);
+        for (int i = 0; i < rowCount; i++) {
+            block.putInt(timestampDeltas[i]);
+        }
+        for (int i = 0; i < columnTypes.length; i++) {
+            if (fixedColumns[i] != null) {
+                block.put(fixedColumns[i].array(), 0, fixedColumns[i].position());
+                fixedColumns[i].clear();
+            } else {
+                block.put(stringColumns[i].data, 0, stringColumns[i].size);
+                stringColumns[i].size = 0;
+            }
+        }
+        rowCount = 0;
+        return block.array();
+    }
+
+    private static final class GrowableBuffer {
+        byte[] data;
+        int size = 0;
+
+        GrowableBuffer(int initialCapacity) {
+            data = new byte[initialCapacity];
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > data.length) {
+                byte[] newData = new byte[Math.max(data.length * 2, size + extra)];
+                System.arraycopy(data, 0, newData, 0, size);
+                data = newData;
+            }
+        }
+
+        void putShort(int value) {
+            ensureCapacity(2);
+            data[size++] = (byte) (value >>> 8);
+            data[size++] = (byte) value;
+        }
+
+        void put(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, data, size, bytes.length);
+            size += bytes.length;
+        }
+    }
+}
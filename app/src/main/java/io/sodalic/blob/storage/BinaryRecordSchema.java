@@ -0,0 +1,112 @@
+package io.sodalic.blob.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.sodalic.blob.utils.StringUtils;
+
+/**
+ * Describes the columns of a binary tracking stream, see {@link BinaryBlockWriter}.
+ * <p>
+ * Every record starts with a {@code long} millisecond timestamp that is stored delta-encoded
+ * and is not listed among the columns. The schema is written as the (encrypted) header line
+ * of the file, e.g. {@code BLOBBIN/1;stream=accel;columns=accuracy:i32,x:f32,y:f32,z:f32},
+ * so the server and {@link BinaryBlockDecoder} can decode the file without any out-of-band data.
+ */
+public final class BinaryRecordSchema {
+    public static final String FORMAT_MAGIC = "BLOBBIN";
+    public static final int FORMAT_VERSION = 1;
+
+    public enum ColumnType {
+        INT("i32", 4),
+        FLOAT("f32", 4),
+        DOUBLE("f64", 8),
+        /**
+         * Short UTF-8 string prefixed with its length as an unsigned 16-bit value
+         */
+        STRING("str", -1);
+
+        final String code;
+        final int width;
+
+        ColumnType(String code, int width) {
+            this.code = code;
+            this.width = width;
+        }
+
+        public boolean isFixedWidth() {
+            return width > 0;
+        }
+
+        static ColumnType forCode(String code) {
+            for (ColumnType type : values()) {
+                if (type.code.equals(code))
+                    return type;
+            }
+            throw new IllegalArgumentException(StringUtils.formatEn("Unknown column type '%s'", code));
+        }
+    }
+
+    public static final class Column {
+        public final String name;
+        public final ColumnType type;
+
+        public Column(String name, ColumnType type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    private final String streamName;
+    private final List<Column> columns;
+
+    public BinaryRecordSchema(String streamName, Column... columns) {
+        this(streamName, Arrays.asList(columns));
+    }
+
+    private BinaryRecordSchema(String streamName, List<Column> columns) {
+        this.streamName = streamName;
+        this.columns = Collections.unmodifiableList(new ArrayList<>(columns));
+    }
+
+    public String getStreamName() {
+        return streamName;
+    }
+
+    public List<Column> getColumns() {
+        return columns;
+    }
+
+    public String getHeaderLine() {
+        List<String> parts = new ArrayList<>();
+        for (Column column : columns) {
+            parts.add(column.name + ":" + column.type.code);
+        }
+        return StringUtils.formatEn("%s/%d;stream=%s;columns=%s", FORMAT_MAGIC, FORMAT_VERSION, streamName, StringUtils.join(",", parts));
+    }
+
+    /**
+     * Reverse of {@link #getHeaderLine()}
+     *
+     * @throws IllegalArgumentException if the header is not a supported binary schema header
+     */
+    public static BinaryRecordSchema parseHeaderLine(String headerLine) {
+        String[] parts = headerLine.split(";");
+        if (parts.length != 3 || !parts[0].equals(FORMAT_MAGIC + "/" + FORMAT_VERSION)
+                || !parts[1].startsWith("stream=") || !parts[2].startsWith("columns=")) {
+            throw new IllegalArgumentException(StringUtils.formatEn("Unsupported binary header '%s'", headerLine));
+        }
+        String streamName = parts[1].substring("stream=".length());
+        List<Column> columns = new ArrayList<>();
+        String columnsPart = parts[2].substring("columns=".length());
+        if (!columnsPart.isEmpty()) {
+            for (String columnDef : columnsPart.split(",")) {
+                int sep = columnDef.lastIndexOf(':');
+                columns.add(new Column(columnDef.substring(0, sep), ColumnType.forCode(columnDef.substring(sep + 1))));
+            }
+        }
+        return new BinaryRecordSchema(streamName, columns);
+    }
+}
@@ -0,0 +1,122 @@
+package io.sodalic.blob.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A line-oriented writer that keeps a single {@link FileOutputStream} open for the whole
+ * lifetime of a data file and accumulates lines in memory between flushes.
+ * <p>
+ * The buffer is written to the disk when it grows above the size limit or when more
+ * than {@code flushIntervalMillis} have passed since the previous flush, whichever comes first.
+ * The time is only checked on a write, so the owner should also call {@link #flush()} periodically
+ * for the streams that may stop getting lines.
+ * <p>
+ * This class is not thread-safe, callers are expected to provide their own synchronization
+ * (see {@link org.beiwe.app.storage.TextFileManager}).
+ */
+public final class BufferedStreamWriter implements Closeable {
+    private static final byte NEW_LINE = '\n';
+
+    private final File file;
+    private final FileOutputStream outStream;
+    private final byte[] buffer;
+    private final long flushIntervalMillis;
+
+    private int count = 0;
+    private long lastFlushTime;
+    private long flushCount = 0;
+
+    /**
+     * Opens {@code file} in the append mode.
+     *
+     * @param flushSizeBytes      size of the in-memory buffer, it is flushed when it is full
+     * @param flushIntervalMillis max age of the buffered data checked on each write
+     */
+    public BufferedStreamWriter(File file, int flushSizeBytes, long flushIntervalMillis) throws FileNotFoundException {
+        this.file = file;
+        this.outStream = new FileOutputStream(file, true);
+        this.buffer = new byte[flushSizeBytes];
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.lastFlushTime = System.currentTimeMillis();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return how many times the buffer was actually written to the disk, i.e. the number of write syscalls
+     */
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    public void writeLine(String data) throws IOException {
+        writeLine(data.getBytes());
+    }
+
+    public void writeLine(byte[] data) throws IOException {
+        write(data, 0, data.length);
+        if (count == buffer.length)
+            flushBuffer();
+        buffer[count++] = NEW_LINE;
+        if (count == buffer.length || System.currentTimeMillis() - lastFlushTime >= flushIntervalMillis)
+            flush();
+    }
+
+    /**
+     * Writes raw bytes without a line terminator using the same buffering rules as {@link #writeLine(byte[])}
+     */
+    public void write(byte[] data, int offset, int len) throws IOException {
+        if (len > buffer.length - count) {
+            flushBuffer();
+            if (len >= buffer.length) {
+                // too big for the buffer anyway, write it through
+                outStream.write(data, offset, len);
+                flushCount++;
+                return;
+            }
+        }
+        System.arraycopy(data, offset, buffer, count, len);
+        count += len;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            outStream.write(buffer, 0, count);
+            flushCount++;
+            count = 0;
+        }
+    }
+
+    public void flush() throws IOException {
+        flushBuffer();
+        lastFlushTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            outStream.close();
+        }
+    }
+
+    /**
+     * Closes the underlying stream dropping any buffered data. This is used after a failed write
+     * so that we don't try to write the same data again and again.
+     */
+    public void abandon() {
+        count = 0;
+        try {
+            outStream.close();
+        } catch (IOException ignored) {
+            // we are already in the error handling mode
+        }
+    }
+}
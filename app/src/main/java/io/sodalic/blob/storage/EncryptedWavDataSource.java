@@ -0,0 +1,179 @@
+package io.sodalic.blob.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import org.beiwe.app.storage.EncryptionEngine;
+
+/**
+ * Lets {@link android.media.MediaPlayer} play a recording written by {@link EncryptedWavFileWriter}
+ * without decrypting it to the disk.
+ * <p>
+ * The file is memory-mapped and only the frame that is being read is decrypted, the last decrypted
+ * frame is kept since the player mostly reads sequentially. The player sees a plain WAV file:
+ * the header with the actual sizes followed by the PCM data of all the complete frames.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public final class EncryptedWavDataSource extends MediaDataSource {
+    private static final int NONCE_LENGTH = EncryptionEngine.AESFrameEncryptor.NONCE_LENGTH;
+    private static final int TAG_LENGTH = EncryptionEngine.AESFrameEncryptor.TAG_LENGTH;
+    private static final int HEADER_SIZE = WavFileWriter.HEADER_SIZE;
+
+    private final MappedByteBuffer mapped;
+    private final SecretKeySpec keySpec;
+    private final Cipher cipher;
+    private final byte[] header;
+
+    // for the PCM frames (the header frame is not included): where each frame starts in the file and in the PCM stream
+    private long[] frameFileOffsets = new long[64];
+    private long[] framePcmOffsets = new long[64];
+    private int[] frameLengths = new int[64];
+    private int frameCount = 0;
+    private final long pcmSize;
+
+    private int cachedFrame = -1;
+    // some providers want room for the tag in the output even though the plain text is shorter
+    private final byte[] cachedPcm = new byte[EncryptedWavFileWriter.FRAME_SIZE_BYTES + TAG_LENGTH];
+    private int cachedPcmLength = 0;
+
+    public EncryptedWavDataSource(File file, byte[] aesKey) throws IOException, GeneralSecurityException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        keySpec = new SecretKeySpec(aesKey, "AES");
+        cipher = Cipher.getInstance("AES/GCM/NoPadding");
+
+        // skip the key line and the descriptor line
+        int position = skipLine(skipLine(0));
+        // the header frame only tells the format, the sizes are taken from the frames
+        int headerFrameLength = readFrameLength(position);
+        if (headerFrameLength < 0)
+            throw new IOException("No WAV header in " + file);
+        byte[] headerFrame = new byte[HEADER_SIZE + TAG_LENGTH];
+        if (decryptFrame(position, headerFrameLength, headerFrame) != HEADER_SIZE)
+            throw new IOException("Bad WAV header in " + file);
+        position += FramedFileWriter.FRAME_HEADER_LENGTH + headerFrameLength;
+
+        long pcmOffset = 0;
+        int frameLength;
+        while ((frameLength = readFrameLength(position)) >= 0) {
+            addFrame(position, pcmOffset, frameLength);
+            pcmOffset += frameLength - NONCE_LENGTH - TAG_LENGTH;
+            position += FramedFileWriter.FRAME_HEADER_LENGTH + frameLength;
+        }
+        pcmSize = pcmOffset;
+        header = patchHeader(headerFrame, pcmSize);
+    }
+
+    private int skipLine(int position) throws IOException {
+        while (position < mapped.limit()) {
+            if (mapped.get(position++) == '\n')
+                return position;
+        }
+        throw new IOException("Truncated encrypted audio file");
+    }
+
+    /**
+     * @return the length of the frame body starting at {@code position} or -1 if there is no complete frame there
+     */
+    private int readFrameLength(int position) {
+        if (mapped.limit() - position < FramedFileWriter.FRAME_HEADER_LENGTH)
+            return -1;
+        if (mapped.get(position) != FramedFileWriter.FRAME_MARKER_0 || mapped.get(position + 1) != FramedFileWriter.FRAME_MARKER_1)
+            return -1;
+        int length = mapped.getInt(position + 2);
+        if (length < NONCE_LENGTH + TAG_LENGTH || length > mapped.limit() - position - FramedFileWriter.FRAME_HEADER_LENGTH)
+            return -1; // torn by a crash
+        return length;
+    }
+
+    private void addFrame(long fileOffset, long pcmOffset, int length) {
+        if (frameCount == frameFileOffsets.length) {
+            frameFileOffsets = Arrays.copyOf(frameFileOffsets, frameCount * 2);
+            framePcmOffsets = Arrays.copyOf(framePcmOffsets, frameCount * 2);
+            frameLengths = Arrays.copyOf(frameLengths, frameCount * 2);
+        }
+        frameFileOffsets[frameCount] = fileOffset;
+        framePcmOffsets[frameCount] = pcmOffset;
+        frameLengths[frameCount] = length;
+        frameCount++;
+    }
+
+    private int decryptFrame(int framePosition, int frameLength, byte[] target) throws GeneralSecurityException {
+        int noncePosition = framePosition + FramedFileWriter.FRAME_HEADER_LENGTH;
+        byte[] nonce = new byte[NONCE_LENGTH];
+        ByteBuffer view = mapped.duplicate();
+        view.position(noncePosition);
+        view.get(nonce);
+        cipher.init(Cipher.DECRYPT_MODE, keySpec, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        view.limit(noncePosition + frameLength);
+        return cipher.doFinal(view, ByteBuffer.wrap(target));
+    }
+
+    private static byte[] patchHeader(byte[] headerFrame, long pcmSize) {
+        byte[] patched = Arrays.copyOf(headerFrame, HEADER_SIZE);
+        ByteBuffer buffer = ByteBuffer.wrap(patched).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(4, (int) (pcmSize + HEADER_SIZE - 8));
+        buffer.putInt(40, (int) pcmSize);
+        return patched;
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        long total = getSize();
+        if (position >= total)
+            return -1;
+        if (size == 0)
+            return 0;
+        if (position < HEADER_SIZE) {
+            int count = (int) Math.min(size, HEADER_SIZE - position);
+            System.arraycopy(header, (int) position, buffer, offset, count);
+            return count;
+        }
+        long pcmPosition = position - HEADER_SIZE;
+        int frame = findFrame(pcmPosition);
+        if (frame != cachedFrame) {
+            try {
+                cachedPcmLength = decryptFrame((int) frameFileOffsets[frame], frameLengths[frame], cachedPcm);
+            } catch (GeneralSecurityException e) {
+                cachedFrame = -1;
+                throw new IOException("Failed to decrypt the audio frame " + frame, e);
+            }
+            cachedFrame = frame;
+        }
+        int inFrame = (int) (pcmPosition - framePcmOffsets[frame]);
+        int count = Math.min(size, cachedPcmLength - inFrame);
+        System.arraycopy(cachedPcm, inFrame, buffer, offset, count);
+        return count;
+    }
+
+    private int findFrame(long pcmPosition) {
+        int index = Arrays.binarySearch(framePcmOffsets, 0, frameCount, pcmPosition);
+        return (index >= 0) ? index : (-index - 2);
+    }
+
+    @Override
+    public long getSize() {
+        return HEADER_SIZE + pcmSize;
+    }
+
+    @Override
+    public void close() {
+        // the mapping is released with the buffer, nothing to close here
+    }
+}
@@ -0,0 +1,86 @@
+package io.sodalic.blob.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.spec.InvalidKeySpecException;
+
+import org.beiwe.app.storage.EncryptionEngine;
+
+/**
+ * Encrypts PCM audio as it is recorded, so the plain samples never get to the disk.
+ * <p>
+ * The result is a framed file (see {@link FramedFileWriter}) with the {@link FramedFileWriter#PAYLOAD_WAV} payload:
+ * the RSA-wrapped key line, the descriptor line, a frame with the WAV header and then frames of
+ * {@link #FRAME_SIZE_BYTES} of PCM each (the last one may be shorter). A recording can be played back
+ * from the file with {@link EncryptedWavDataSource} using the same AES key.
+ * <p>
+ * This class is not thread-safe, it is expected to be used by the single recording thread.
+ */
+public final class EncryptedWavFileWriter implements PcmAudioSink {
+    /**
+     * About 0.75 seconds of 16-bit mono at 44.1kHz, so a crash loses at most that much
+     */
+    public static final int FRAME_SIZE_BYTES = 64 * 1024;
+    private static final int WRITE_BUFFER_SIZE_BYTES = 2 * FRAME_SIZE_BYTES;
+
+    private final BufferedStreamWriter out;
+    private final FramedFileWriter framedWriter;
+    private long dataSize = 0;
+    private boolean finished = false;
+
+    /**
+     * Creates {@code file} that must not exist yet and writes everything up to the header frame
+     *
+     * @param aesKey          the per-recording AES key
+     * @param encryptedAesKey the same key wrapped with {@link EncryptionEngine#encryptRSA(byte[])}
+     */
+    public EncryptedWavFileWriter(File file, byte[] aesKey, String encryptedAesKey, long sampleRate, int channels, int bitDepth)
+            throws IOException, InvalidKeySpecException {
+        EncryptionEngine.AESFrameEncryptor encryptor = EncryptionEngine.newAESFrameEncryptor(aesKey);
+        out = new BufferedStreamWriter(file, WRITE_BUFFER_SIZE_BYTES, Long.MAX_VALUE);
+        framedWriter = new FramedFileWriter(out, encryptor, Integer.MAX_VALUE, FRAME_SIZE_BYTES, Long.MAX_VALUE);
+        try {
+            out.writeLine(encryptedAesKey);
+            out.writeLine(FramedFileWriter.getDescriptorLine(FramedFileWriter.PAYLOAD_WAV));
+            framedWriter.writeFrame(WavFileWriter.buildHeader(WavFileWriter.UNKNOWN_DATA_SIZE, sampleRate, channels, bitDepth));
+        } catch (IOException | InvalidKeyException e) {
+            out.abandon();
+            throw (e instanceof IOException) ? (IOException) e : new IOException(e);
+        }
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int len) throws IOException {
+        try {
+            framedWriter.append(data, offset, len);
+        } catch (InvalidKeyException e) {
+            throw new IOException(e);
+        }
+        dataSize += len;
+    }
+
+    @Override
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        finished = true;
+        try {
+            framedWriter.flush();
+        } catch (InvalidKeyException e) {
+            throw new IOException(e);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+}
@@ -0,0 +1,105 @@
+package io.sodalic.blob.storage;
+
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.beiwe.app.storage.EncryptionEngine;
+import io.sodalic.blob.utils.StringUtils;
+import io.sodalic.blob.utils.Utils;
+
+/**
+ * Keeps a few per-file keys ready: a new AES key and the same key wrapped with the server's RSA key,
+ * the first line of every encrypted data file. The RSA encryption is by far the most expensive part of creating
+ * a file, so it is done here on a background thread ahead of time instead of while the writers of the stream wait
+ * for the new file, see {@link org.beiwe.app.storage.TextFileManager#makeNewFilesForEverything()}.
+ * <p>
+ * A taken key is never handed out again. The pool is refilled right after every {@link #take()}, so it is full again
+ * long before the next rotation. When it is empty the caller creates the key itself, as it always did.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class FileKeyPool {
+    private static final String TAG = Utils.getLogTag(FileKeyPool.class);
+
+    public static final class FileKey {
+        public final byte[] aesKey;
+        /**
+         * The RSA-wrapped {@link #aesKey}, see {@link EncryptionEngine#encryptRSA(byte[])}
+         */
+        public final String wrappedKey;
+
+        FileKey(byte[] aesKey, String wrappedKey) {
+            this.aesKey = aesKey;
+            this.wrappedKey = wrappedKey;
+        }
+    }
+
+    private final int size;
+    private final ConcurrentLinkedQueue<FileKey> keys = new ConcurrentLinkedQueue<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            return new Thread(r, "file_key_pool");
+        }
+    });
+    private final AtomicBoolean refillPending = new AtomicBoolean();
+
+    /**
+     * @param size how many keys to keep ready, the number of the files created at once by a rotation
+     */
+    public FileKeyPool(int size) {
+        this.size = size;
+    }
+
+    /**
+     * @return a ready key or {@code null} if there is none, the pool is refilled in the background either way
+     */
+    @Nullable
+    public FileKey take() {
+        FileKey key = keys.poll();
+        requestRefill();
+        return key;
+    }
+
+    /**
+     * Schedules the pool to be filled up on the background thread unless that is already scheduled
+     */
+    public void requestRefill() {
+        if (!refillPending.compareAndSet(false, true))
+            return;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                refillPending.set(false);
+                refill();
+            }
+        });
+    }
+
+    private void refill() {
+        long startTime = System.currentTimeMillis();
+        int created = 0;
+        // the size of the queue is only changed here and by take(), so it is at most a bit less than the actual one
+        while (keys.size() < size) {
+            byte[] aesKey = EncryptionEngine.newAESKey();
+            try {
+                keys.add(new FileKey(aesKey, EncryptionEngine.encryptRSA(aesKey)));
+                created++;
+            } catch (InvalidKeySpecException e) {
+                // there is no RSA key before the registration, the files are not created then anyway
+                Log.w(TAG, "Can't prepare file keys without the RSA key");
+                return;
+            }
+        }
+        if (created > 0)
+            Log.d(TAG, StringUtils.formatEn("Prepared %d file keys in %d ms", created, System.currentTimeMillis() - startTime));
+    }
+}
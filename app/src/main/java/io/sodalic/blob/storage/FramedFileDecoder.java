@@ -0,0 +1,126 @@
+package io.sodalic.blob.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.beiwe.app.storage.EncryptionEngine;
+
+/**
+ * The reference decoder for the files produced by {@link FramedFileWriter}.
+ * The server-side implementation is expected to follow this one, in particular in how it
+ * treats a torn final frame: everything up to the last complete and authentic frame is kept,
+ * the rest of the file is reported as {@link Result#droppedBytes}.
+ */
+public final class FramedFileDecoder {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int NONCE_LENGTH = EncryptionEngine.AESFrameEncryptor.NONCE_LENGTH;
+    private static final int TAG_LENGTH = EncryptionEngine.AESFrameEncryptor.TAG_LENGTH;
+
+    private FramedFileDecoder() {
+        throw new RuntimeException("This is a static class");
+    }
+
+    public static final class Result {
+        public final String descriptorLine;
+        /**
+         * Decrypted (and inflated, for the compressed files) frames, the first one is the header
+         */
+        public final List<byte[]> frames;
+        public final int droppedBytes;
+
+        Result(String descriptorLine, List<byte[]> frames, int droppedBytes) {
+            this.descriptorLine = descriptorLine;
+            this.frames = Collections.unmodifiableList(frames);
+            this.droppedBytes = droppedBytes;
+        }
+    }
+
+    /**
+     * @param fileContent the whole file
+     * @param aesKey      the AES key already unwrapped from the first line of the file
+     * @throws DataFormatException if an authentic frame of a compressed file doesn't inflate, that is a writer bug
+     */
+    public static Result decode(byte[] fileContent, byte[] aesKey) throws GeneralSecurityException, DataFormatException {
+        int keyLineEnd = indexOf(fileContent, (byte) '\n', 0);
+        int descriptorEnd = (keyLineEnd < 0) ? -1 : indexOf(fileContent, (byte) '\n', keyLineEnd + 1);
+        if (descriptorEnd < 0)
+            return new Result(null, new ArrayList<byte[]>(), fileContent.length);
+        String descriptorLine = new String(fileContent, keyLineEnd + 1, descriptorEnd - keyLineEnd - 1, UTF8);
+        // the frames of a compressed file are the parts of a single zlib stream, see FramedFileWriter
+        Inflater inflater = isCompressed(descriptorLine) ? new Inflater() : null;
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        SecretKeySpec keySpec = new SecretKeySpec(aesKey, "AES");
+        List<byte[]> frames = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(fileContent);
+        buffer.position(descriptorEnd + 1);
+        while (buffer.remaining() >= FramedFileWriter.FRAME_HEADER_LENGTH) {
+            int frameStart = buffer.position();
+            if (buffer.get() != FramedFileWriter.FRAME_MARKER_0 || buffer.get() != FramedFileWriter.FRAME_MARKER_1) {
+                buffer.position(frameStart);
+                break;
+            }
+            int frameLen = buffer.getInt();
+            if (frameLen < NONCE_LENGTH + TAG_LENGTH || frameLen > buffer.remaining()) {
+                // torn by a crash in the middle of the write
+                buffer.position(frameStart);
+                break;
+            }
+            cipher.init(Cipher.DECRYPT_MODE, keySpec, new GCMParameterSpec(TAG_LENGTH * 8, fileContent, buffer.position(), NONCE_LENGTH));
+            byte[] frame;
+            try {
+                frame = cipher.doFinal(fileContent, buffer.position() + NONCE_LENGTH, frameLen - NONCE_LENGTH);
+            } catch (GeneralSecurityException e) {
+                // the tag doesn't match: partially written frame
+                buffer.position(frameStart);
+                break;
+            }
+            frames.add((inflater != null) ? inflate(inflater, frame) : frame);
+            buffer.position(buffer.position() + frameLen);
+        }
+        if (inflater != null)
+            inflater.end();
+        return new Result(descriptorLine, frames, buffer.remaining());
+    }
+
+    private static boolean isCompressed(String descriptorLine) {
+        for (String field : descriptorLine.split(";")) {
+            if (field.equals("compression=" + FramedFileWriter.COMPRESSION_DEFLATE))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Every frame ends with a sync flush point, so all of it comes out before the next frame is given
+     */
+    private static byte[] inflate(Inflater inflater, byte[] frame) throws DataFormatException {
+        inflater.setInput(frame);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(frame.length * 4);
+        byte[] chunk = new byte[8 * 1024];
+        int count;
+        while ((count = inflater.inflate(chunk)) > 0) {
+            out.write(chunk, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static int indexOf(byte[] data, byte value, int from) {
+        for (int i = from; i < data.length; i++) {
+            if (data[i] == value)
+                return i;
+        }
+        return -1;
+    }
+}
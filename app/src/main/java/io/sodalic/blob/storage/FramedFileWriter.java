@@ -0,0 +1,235 @@
+package io.sodalic.blob.storage;
+
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.beiwe.app.storage.EncryptionEngine;
+import io.sodalic.blob.utils.StringUtils;
+
+/**
+ * Writes the body of a framed tracking file: the plain lines (or binary blocks) are gathered into
+ * frames and each frame is encrypted at once with AES-GCM, see {@link EncryptionEngine.AESFrameEncryptor}.
+ * <p>
+ * The file layout:
+ * <pre>
+ * RSA-wrapped AES key, Base64 + '\n'        (the same as in the CSV files)
+ * descriptor line + '\n'                    (plain text, see {@link #getDescriptorLine(String, boolean)})
+ * frames: 0xB1 0x0F, int32 big-endian length L, then L bytes of nonce + ciphertext + tag
+ * </pre>
+ * The first frame always holds the header (CSV header or binary schema line), every following frame
+ * holds either '\n'-terminated lines or a single binary block. For the {@link #PAYLOAD_WAV} audio files
+ * the first frame is a 44-byte WAV header with the sizes unknown (0xFFFFFFFF) and the following frames
+ * are the consecutive chunks of the PCM data, the actual sizes follow from the total length of the frames. A frame that was only partially written
+ * before a crash fails the length or tag check and the reader drops it, see {@link FramedFileDecoder}.
+ * <p>
+ * With the {@link #COMPRESSION_DEFLATE} compression every frame (the header one too) is compressed before
+ * the encryption, the ciphertext can't be compressed later. The frames are parts of a single zlib stream and each
+ * one ends with a sync flush point, so a frame can be inflated as soon as it is read, as long as all the frames before
+ * it were, and the window carries the repeating values (timestamp prefixes, MACs, accuracies) over from frame to frame.
+ * A torn final frame is dropped just the same, nothing follows it.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class FramedFileWriter {
+    public static final String FORMAT_MAGIC = "BLOBFRAMES";
+    public static final int FORMAT_VERSION = 1;
+    public static final String PAYLOAD_CSV = "csv";
+    public static final String PAYLOAD_BINARY = "binary";
+    public static final String PAYLOAD_WAV = "wav";
+    public static final String COMPRESSION_DEFLATE = "deflate";
+
+    static final byte FRAME_MARKER_0 = (byte) 0xB1;
+    static final byte FRAME_MARKER_1 = (byte) 0x0F;
+    static final int FRAME_HEADER_LENGTH = 6;
+
+    private final BufferedStreamWriter out;
+    private final EncryptionEngine.AESFrameEncryptor encryptor;
+    private final int maxFrameLines;
+    private final long flushIntervalMillis;
+    // null when the frames are not compressed
+    private final Deflater deflater;
+    private byte[] compressed;
+
+    private final byte[] pending;
+    private final byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];
+    private int pendingSize = 0;
+    private int pendingLines = 0;
+    private long pendingSince = 0;
+    private long frameCount = 0;
+    private long plainBytes = 0;
+    private long storedBytes = 0;
+
+    /**
+     * @param out                 the stream to write frames into, it must be positioned right after the descriptor line
+     * @param maxFrameLines       a frame is sealed when it has that many lines
+     * @param maxFrameBytes       or that many bytes
+     * @param flushIntervalMillis or when its oldest line is older than that
+     */
+    public FramedFileWriter(BufferedStreamWriter out, EncryptionEngine.AESFrameEncryptor encryptor,
+                            int maxFrameLines, int maxFrameBytes, long flushIntervalMillis) {
+        this(out, encryptor, maxFrameLines, maxFrameBytes, flushIntervalMillis, false);
+    }
+
+    /**
+     * @param compress whether to deflate the frames, it must match the descriptor line,
+     *                 see {@link #getDescriptorLine(String, boolean)}. {@link #release()} must be called then.
+     */
+    public FramedFileWriter(BufferedStreamWriter out, EncryptionEngine.AESFrameEncryptor encryptor,
+                            int maxFrameLines, int maxFrameBytes, long flushIntervalMillis, boolean compress) {
+        this.out = out;
+        this.encryptor = encryptor;
+        this.maxFrameLines = maxFrameLines;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.pending = new byte[maxFrameBytes];
+        frameHeader[0] = FRAME_MARKER_0;
+        frameHeader[1] = FRAME_MARKER_1;
+        // the fastest level: most of the gain on such data comes from the long matches anyway
+        this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        this.compressed = compress ? new byte[Math.max(maxFrameBytes / 2, 64)] : null;
+    }
+
+    public static String getDescriptorLine(String payload) {
+        return getDescriptorLine(payload, false);
+    }
+
+    public static String getDescriptorLine(String payload, boolean compressed) {
+        String line = StringUtils.formatEn("%s/%d;payload=%s;cipher=AES-128-GCM", FORMAT_MAGIC, FORMAT_VERSION, payload);
+        return compressed ? line + ";compression=" + COMPRESSION_DEFLATE : line;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the bytes of the frames before the compression and the encryption
+     */
+    public long getPlainBytes() {
+        return plainBytes;
+    }
+
+    /**
+     * @return the bytes written out for the frames, the frame headers included
+     */
+    public long getStoredBytes() {
+        return storedBytes;
+    }
+
+    public void appendLine(String line) throws IOException, InvalidKeyException {
+        appendLine(line.getBytes());
+    }
+
+    public void appendLine(byte[] line) throws IOException, InvalidKeyException {
+        int len = line.length + 1;
+        if (len > pending.length - pendingSize)
+            sealFrame();
+        if (len > pending.length) {
+            // a huge line goes into its own frame
+            byte[] frame = new byte[len];
+            System.arraycopy(line, 0, frame, 0, line.length);
+            frame[line.length] = '\n';
+            writeFrame(frame, 0, len);
+            return;
+        }
+        if (pendingSize == 0)
+            pendingSince = System.currentTimeMillis();
+        System.arraycopy(line, 0, pending, pendingSize, line.length);
+        pendingSize += line.length;
+        pending[pendingSize++] = '\n';
+        pendingLines++;
+        if (pendingLines >= maxFrameLines || pendingSize == pending.length
+                || System.currentTimeMillis() - pendingSince >= flushIntervalMillis) {
+            sealFrame();
+        }
+    }
+
+    /**
+     * Appends raw bytes with no line structure, a frame is sealed every time it gets full.
+     * This is used for the audio, the interval and the line limits don't apply here.
+     */
+    public void append(byte[] data, int offset, int len) throws IOException, InvalidKeyException {
+        while (len > 0) {
+            int count = Math.min(len, pending.length - pendingSize);
+            System.arraycopy(data, offset, pending, pendingSize, count);
+            pendingSize += count;
+            offset += count;
+            len -= count;
+            if (pendingSize == pending.length)
+                sealFrame();
+        }
+    }
+
+    /**
+     * Writes {@code data} as a frame of its own, any pending lines are sealed first to keep the order
+     */
+    public void writeFrame(byte[] data) throws IOException, InvalidKeyException {
+        sealFrame();
+        writeFrame(data, 0, data.length);
+    }
+
+    /**
+     * Encrypts and writes out the pending lines, if any
+     */
+    public void sealFrame() throws IOException, InvalidKeyException {
+        if (pendingSize == 0)
+            return;
+        writeFrame(pending, 0, pendingSize);
+        pendingSize = 0;
+        pendingLines = 0;
+    }
+
+    private void writeFrame(byte[] data, int offset, int len) throws IOException, InvalidKeyException {
+        plainBytes += len;
+        if (deflater != null) {
+            len = deflate(data, offset, len);
+            data = compressed;
+            offset = 0;
+        }
+        byte[] frame = encryptor.encryptFrame(data, offset, len);
+        int frameLen = frame.length;
+        frameHeader[2] = (byte) (frameLen >>> 24);
+        frameHeader[3] = (byte) (frameLen >>> 16);
+        frameHeader[4] = (byte) (frameLen >>> 8);
+        frameHeader[5] = (byte) frameLen;
+        out.write(frameHeader, 0, FRAME_HEADER_LENGTH);
+        out.write(frame, 0, frameLen);
+        frameCount++;
+        storedBytes += FRAME_HEADER_LENGTH + frameLen;
+    }
+
+    /**
+     * Compresses the frame into {@link #compressed}, the buffer grows if the data doesn't compress well
+     *
+     * @return the compressed length
+     */
+    private int deflate(byte[] data, int offset, int len) {
+        deflater.setInput(data, offset, len);
+        int size = 0;
+        while (true) {
+            size += deflater.deflate(compressed, size, compressed.length - size, Deflater.SYNC_FLUSH);
+            // a full buffer means there may be more output
+            if (size < compressed.length)
+                return size;
+            compressed = Arrays.copyOf(compressed, compressed.length * 2);
+        }
+    }
+
+    /**
+     * Seals the pending lines and flushes the underlying stream
+     */
+    public void flush() throws IOException, InvalidKeyException {
+        sealFrame();
+        out.flush();
+    }
+
+    /**
+     * Frees the native memory of the compressor, if any. The writer can't be used after that,
+     * the underlying stream is not closed.
+     */
+    public void release() {
+        if (deflater != null)
+            deflater.end();
+    }
+}
@@ -77,16 +77,41 @@ public final class KnownDirs {
         return dir;
     }
 
+    /**
+     * @return the root of the data files waiting for the upload, see {@link TrackingFileLayout}.
+     * The private files such as the key file stay directly in {@link Context#getFilesDir()}, where
+     * the older versions also kept the data files.
+     */
     public static File getTrackingFilesDir(@NonNull Context context, boolean ensureExists) {
-        // TODO SG: move all the writing to use getTrackingFilesDir
-        // instead of just appContext.openFileOutput
-        /*
         File baseDir = context.getFilesDir();
         File dir = new File(baseDir, "tracking");
         if (ensureExists)
             ensureDirectoryExists(dir, "tracking");
         return dir;
-        //*/
-        return context.getFilesDir();
+    }
+
+    /**
+     * @return the layout of the data files, the root directory is always created
+     */
+    @NonNull
+    public static TrackingFileLayout getTrackingFileLayout(@NonNull Context context) {
+        return new TrackingFileLayout(getTrackingFilesDir(context, true));
+    }
+
+    /**
+     * @return a private directory for the state of the uploads in progress such as resume cursors.
+     * It is intentionally outside of {@link #getTrackingFilesDir(Context, boolean)} so that
+     * nothing in it is ever uploaded itself. The directory is always created.
+     */
+    public static File getUploadStateDir(@NonNull Context context) {
+        return context.getDir("upload_state", Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return a private directory for the survey contents and settings, see {@link SurveyBlobStore}.
+     * The directory is always created.
+     */
+    public static File getSurveysDir(@NonNull Context context) {
+        return context.getDir("surveys", Context.MODE_PRIVATE);
     }
 }
@@ -0,0 +1,25 @@
+package io.sodalic.blob.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A destination for the 16-bit PCM samples produced by {@link android.media.AudioRecord}
+ * that stores them in some file format.
+ *
+ * @see WavFileWriter
+ * @see AacFileWriter
+ */
+public interface PcmAudioSink extends Closeable {
+    void write(byte[] data, int offset, int len) throws IOException;
+
+    /**
+     * Writes out everything that is still buffered, completes the file and closes it
+     */
+    void finish() throws IOException;
+
+    /**
+     * @return the number of PCM bytes written so far
+     */
+    long getDataSize();
+}
@@ -0,0 +1,115 @@
+package io.sodalic.blob.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.support.annotation.NonNull;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import io.sodalic.blob.utils.Utils;
+
+/**
+ * Keeps big strings such as survey contents in a file per key instead of the SharedPreferences,
+ * where every write of any small flag rewrites the whole XML with all of them.
+ * <p>
+ * A value is read from the disk once and then served from memory. A write replaces only the file of its key
+ * and does it atomically with {@link AtomicFile}, so a crash leaves either the old or the new value.
+ * Keys are used as file names, so they must be plain names without path separators.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class SurveyBlobStore {
+    private static final String TAG = Utils.getLogTag(SurveyBlobStore.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File dir;
+    // a null value means the key is known to be absent
+    private final Map<String, String> cache = new HashMap<>();
+
+    public SurveyBlobStore(@NonNull File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return the value or {@code null} if there is none
+     */
+    public synchronized String get(@NonNull String key) {
+        if (cache.containsKey(key))
+            return cache.get(key);
+        String value = read(getFile(key));
+        cache.put(key, value);
+        return value;
+    }
+
+    /**
+     * Stores the value, {@code null} removes the key
+     *
+     * @return whether the value is on the disk now, {@code false} if the write failed and the old value is kept
+     */
+    public synchronized boolean put(@NonNull String key, String value) {
+        if (value == null) {
+            remove(key);
+            return true;
+        }
+        if (cache.containsKey(key) && value.equals(cache.get(key)))
+            return true;
+        AtomicFile file = new AtomicFile(getFile(key));
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            out.write(value.getBytes(UTF_8));
+            // finishWrite() syncs the file before it replaces the old one
+            file.finishWrite(out);
+            cache.put(key, value);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + key, e);
+            file.failWrite(out);
+            // the old value is still on the disk, make the next read get it
+            cache.remove(key);
+            return false;
+        }
+    }
+
+    public synchronized void remove(@NonNull String key) {
+        new AtomicFile(getFile(key)).delete();
+        cache.put(key, null);
+    }
+
+    private File getFile(String key) {
+        if (key.indexOf('/') >= 0 || key.startsWith("."))
+            throw new IllegalArgumentException("Bad key '" + key + "'");
+        return new File(dir, key);
+    }
+
+    private static String read(File file) {
+        AtomicFile atomicFile = new AtomicFile(file);
+        try (FileInputStream in = atomicFile.openRead()) {
+            return new String(readFully(in), UTF_8);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + file, e);
+            return null;
+        }
+    }
+
+    private static byte[] readFully(FileInputStream in) throws IOException {
+        byte[] data = new byte[(int) in.getChannel().size()];
+        int offset = 0;
+        while (offset < data.length) {
+            int read = in.read(data, offset, data.length - offset);
+            if (read < 0)
+                break;
+            offset += read;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,56 @@
+package io.sodalic.blob.storage;
+
+/**
+ * Known on-disk formats of the tracking data files produced by {@link org.beiwe.app.storage.TextFileManager}.
+ * The format is encoded in the file extension so that the upload code can tell the server
+ * what it is sending without re-reading the file.
+ */
+public enum TrackingFileFormat {
+    /**
+     * The original format: RSA-wrapped key line, then one {@code IV:ciphertext} line per CSV row
+     */
+    CSV(".csv", "text/x.csv-encrypted"),
+    /**
+     * The same key line, then an encrypted {@link BinaryRecordSchema} header line and one
+     * {@code IV:ciphertext} line per block of {@link BinaryBlockWriter} records
+     */
+    BINARY(".bin", "application/x.blob-binary-encrypted"),
+    /**
+     * The same key line, then a plain descriptor line and AES-GCM frames, see {@link FramedFileWriter}.
+     * The payload of the frames is either CSV lines or binary blocks, the descriptor tells which.
+     */
+    FRAMED(".frm", "application/x.blob-framed"),
+    /**
+     * {@link #FRAMED} with the frames deflated before the encryption. It has a media type of its own
+     * so the server that doesn't support it rejects the upload instead of storing unreadable data.
+     */
+    FRAMED_DEFLATE(".frz", "application/x.blob-framed+deflate");
+
+    private final String fileExtension;
+    private final String mediaType;
+
+    TrackingFileFormat(String fileExtension, String mediaType) {
+        this.fileExtension = fileExtension;
+        this.mediaType = mediaType;
+    }
+
+    public String getFileExtension() {
+        return fileExtension;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * @return the format of the file with the given name. Files with unknown extensions, such as
+     * the encrypted audio files, are treated as {@link #CSV} as they always were.
+     */
+    public static TrackingFileFormat forFileName(String fileName) {
+        for (TrackingFileFormat format : values()) {
+            if (format != CSV && fileName.endsWith(format.fileExtension))
+                return format;
+        }
+        return CSV;
+    }
+}
@@ -0,0 +1,222 @@
+package io.sodalic.blob.storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import io.sodalic.blob.utils.StringUtils;
+import io.sodalic.blob.utils.Utils;
+
+/**
+ * The layout of the data files waiting for the upload under {@link KnownDirs#getTrackingFilesDir(android.content.Context, boolean)}:
+ * a directory per stream and in it a directory per hour the files were created in, e.g. {@code gps/2019-06-01_13/<file name>}.
+ * So no directory grows with the whole backlog and a bucket that is complete (its hour is over, so no new files appear in it)
+ * can be listed once and then left alone.
+ * <p>
+ * The files are identified by their path relative to the root, see {@link #getRelativePath(String, long)}.
+ * The name of a file doesn't change, it is what the server gets.
+ */
+public final class TrackingFileLayout {
+    private static final String TAG = Utils.getLogTag(TrackingFileLayout.class);
+
+    private static final long BUCKET_MILLIS = 60 * 60 * 1000;
+    /**
+     * How long after its end a bucket is considered complete, covers the clock skew and the files created
+     * just at the end of the hour
+     */
+    private static final long BUCKET_COMPLETE_DELAY_MILLIS = 5 * 60 * 1000;
+    private static final String CRASH_LOG_PREFIX = "crashlog_";
+    public static final String CRASH_LOG_STREAM = "crashlog";
+    private static final String UNKNOWN_STREAM = "other";
+
+    private final File root;
+
+    public TrackingFileLayout(@NonNull File root) {
+        this.root = root;
+    }
+
+    @NonNull
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * The stream of a file is taken from its name, so it is the same for the new and the migrated files:
+     * {@code <patient id>_<stream>_...}, e.g. {@code gps} or {@code surveyAnswers}.
+     */
+    @NonNull
+    public static String getStreamName(@NonNull String fileName) {
+        if (fileName.startsWith(CRASH_LOG_PREFIX))
+            return CRASH_LOG_STREAM;
+        String[] parts = fileName.split("_");
+        if ((parts.length < 3) || parts[1].isEmpty())
+            return UNKNOWN_STREAM;
+        return parts[1];
+    }
+
+    /**
+     * @return the name of the bucket for the files created at {@code time}, the hour in UTC
+     */
+    @NonNull
+    static String getBucketName(long time) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(time - time % BUCKET_MILLIS);
+        return StringUtils.formatEn("%04d-%02d-%02d_%02d", calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1,
+                calendar.get(Calendar.DAY_OF_MONTH), calendar.get(Calendar.HOUR_OF_DAY));
+    }
+
+    /**
+     * @return the path of the file relative to the root
+     */
+    @NonNull
+    public static String getRelativePath(@NonNull String fileName, long creationTime) {
+        return getStreamName(fileName) + File.separator + getBucketName(creationTime) + File.separator + fileName;
+    }
+
+    /**
+     * @param relativePath a path returned by {@link #getRelativePath(String, long)}
+     */
+    @NonNull
+    public File getFile(@NonNull String relativePath) {
+        return new File(root, relativePath);
+    }
+
+    /**
+     * @return the file for a new data file with its bucket directory created
+     */
+    @NonNull
+    public File prepareFile(@NonNull String relativePath) {
+        File file = getFile(relativePath);
+        File bucketDir = file.getParentFile();
+        if (!bucketDir.isDirectory() && !bucketDir.mkdirs())
+            Log.e(TAG, StringUtils.formatEn("Failed to create the bucket directory '%s'", bucketDir));
+        return file;
+    }
+
+    /**
+     * Deletes the bucket if nothing is left in it
+     *
+     * @param bucket see {@link #getBucket(String)}
+     */
+    public void deleteBucketIfEmpty(@NonNull String bucket) {
+        File bucketDir = getFile(bucket);
+        String[] names = bucketDir.list();
+        if ((names != null) && (names.length == 0) && !bucketDir.delete())
+            Log.w(TAG, StringUtils.formatEn("Failed to delete the empty bucket '%s'", bucketDir));
+    }
+
+    /**
+     * @return the bucket part of the path of a file, e.g. {@code gps/2019-06-01_13}
+     */
+    @NonNull
+    public static String getBucket(@NonNull String relativePath) {
+        int end = relativePath.lastIndexOf(File.separatorChar);
+        return (end < 0) ? "" : relativePath.substring(0, end);
+    }
+
+    /**
+     * Lists the buckets of all the streams.
+     *
+     * @param completeBefore only the buckets that ended before this time (minus a safety delay) are listed,
+     *                       {@code Long.MAX_VALUE} lists all of them
+     * @return the relative paths of the buckets, e.g. {@code gps/2019-06-01_13}
+     */
+    @NonNull
+    public List<String> listBuckets(long completeBefore) {
+        List<String> buckets = new ArrayList<>();
+        String completeBucket = (completeBefore == Long.MAX_VALUE) ? null : getBucketName(completeBefore - BUCKET_MILLIS - BUCKET_COMPLETE_DELAY_MILLIS);
+        String[] streams = root.list();
+        if (streams == null)
+            return buckets;
+        for (String stream : streams) {
+            String[] streamBuckets = new File(root, stream).list();
+            if (streamBuckets == null)
+                continue;
+            for (String bucket : streamBuckets) {
+                // the names sort the same way as the times
+                if ((completeBucket == null) || (bucket.compareTo(completeBucket) <= 0))
+                    buckets.add(stream + File.separator + bucket);
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * @param bucket a path returned by {@link #listBuckets(long)}
+     * @return the relative paths of the files in the bucket
+     */
+    @NonNull
+    public List<String> listFiles(@NonNull String bucket) {
+        String[] names = new File(root, bucket).list();
+        List<String> files = new ArrayList<>((names != null) ? names.length : 0);
+        if (names == null)
+            return files;
+        for (String name : names) {
+            files.add(bucket + File.separator + name);
+        }
+        return files;
+    }
+
+    /**
+     * @return the relative paths of all the files of all the streams
+     */
+    @NonNull
+    public List<String> listAllFiles() {
+        List<String> files = new ArrayList<>();
+        for (String bucket : listBuckets(Long.MAX_VALUE)) {
+            files.addAll(listFiles(bucket));
+        }
+        return files;
+    }
+
+    /**
+     * @return the files of a single stream in all the buckets
+     */
+    @NonNull
+    public List<File> listStreamFiles(@NonNull String stream) {
+        List<File> files = new ArrayList<>();
+        String[] buckets = new File(root, stream).list();
+        if (buckets == null)
+            return files;
+        for (String bucket : buckets) {
+            File[] bucketFiles = new File(new File(root, stream), bucket).listFiles();
+            if (bucketFiles != null)
+                files.addAll(Arrays.asList(bucketFiles));
+        }
+        return files;
+    }
+
+    /**
+     * Moves the data files written by the older versions directly into {@code flatDir} into their buckets.
+     * The files' modification time is used as the creation time. Directories and the files
+     * in {@code privateNames} (e.g. the key file) stay where they are.
+     *
+     * @return how many files were moved
+     */
+    public int migrateFlatFiles(@NonNull File flatDir, @NonNull Set<String> privateNames) {
+        File[] files = flatDir.listFiles();
+        if (files == null)
+            return 0;
+        int moved = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (privateNames.contains(name) || !file.isFile())
+                continue;
+            File target = prepareFile(getRelativePath(name, file.lastModified()));
+            if (file.renameTo(target))
+                moved++;
+            else
+                Log.e(TAG, StringUtils.formatEn("Failed to move '%s' to '%s'", file, target));
+        }
+        if (moved > 0)
+            Log.i(TAG, StringUtils.formatEn("Moved %d data files from '%s' into the buckets", moved, flatDir));
+        return moved;
+    }
+}
@@ -0,0 +1,117 @@
+package io.sodalic.blob.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes PCM audio straight into a WAV file.
+ * <p>
+ * The header is written up front with zero sizes, the samples are appended as they come and
+ * {@link #finish()} patches the RIFF and the data chunk sizes in place. So the final file is produced
+ * without a second copy of the raw data. A file that was never finished (e.g. the process died) still
+ * has a valid header with zero sizes and the samples after it, most players cope with that.
+ * <p>
+ * This class is not thread-safe, it is expected to be used by the single recording thread.
+ */
+public final class WavFileWriter implements PcmAudioSink {
+    public static final int HEADER_SIZE = 44;
+    /**
+     * The data size for a header written before the size is known, both sizes in the header are 0xFFFFFFFF then
+     */
+    public static final long UNKNOWN_DATA_SIZE = -1;
+    private static final int RIFF_SIZE_OFFSET = 4;
+    private static final int DATA_SIZE_OFFSET = 40;
+    // RIFF sizes are unsigned 32-bit
+    private static final long MAX_DATA_SIZE = 0xFFFFFFFFL - (HEADER_SIZE - 8);
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private long dataSize = 0;
+    private boolean finished = false;
+
+    /**
+     * Creates or truncates {@code file} and writes the WAV header placeholder
+     */
+    public WavFileWriter(File file, long sampleRate, int channels, int bitDepth) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+        try {
+            this.file.setLength(0);
+            this.file.write(buildHeader(0, sampleRate, channels, bitDepth));
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int len) throws IOException {
+        if (dataSize + len > MAX_DATA_SIZE)
+            throw new IOException("WAV file is limited to 4GB");
+        file.write(data, offset, len);
+        dataSize += len;
+    }
+
+    @Override
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    /**
+     * Patches the sizes in the header and closes the file
+     */
+    @Override
+    public void finish() throws IOException {
+        try {
+            ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            size.putInt(0, (int) (dataSize + HEADER_SIZE - 8));
+            channel.write(size, RIFF_SIZE_OFFSET);
+            size.clear();
+            size.putInt(0, (int) dataSize);
+            channel.write(size, DATA_SIZE_OFFSET);
+            channel.force(false);
+            finished = true;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Closes the file, the header is patched if {@link #finish()} wasn't called yet
+     */
+    @Override
+    public void close() throws IOException {
+        if (!finished)
+            finish();
+    }
+
+    /**
+     * Builds the canonical 44-byte header of a PCM WAV file.
+     *
+     * @param dataSize number of bytes of the samples following the header or {@link #UNKNOWN_DATA_SIZE}
+     */
+    public static byte[] buildHeader(long dataSize, long sampleRate, int channels, int bitDepth) {
+        int blockAlign = channels * bitDepth / 8;
+        long byteRate = sampleRate * blockAlign;
+        boolean unknown = (dataSize == UNKNOWN_DATA_SIZE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[]{'R', 'I', 'F', 'F'});
+        header.putInt(unknown ? 0xFFFFFFFF : (int) (dataSize + HEADER_SIZE - 8));
+        header.put(new byte[]{'W', 'A', 'V', 'E'});
+        header.put(new byte[]{'f', 'm', 't', ' '});
+        header.putInt(16); // size of the 'fmt ' chunk
+        header.putShort((short) 1); // PCM
+        header.putShort((short) channels);
+        header.putInt((int) sampleRate);
+        header.putInt((int) byteRate);
+        header.putShort((short) blockAlign);
+        header.putShort((short) bitDepth);
+        header.put(new byte[]{'d', 'a', 't', 'a'});
+        header.putInt(unknown ? 0xFFFFFFFF : (int) dataSize);
+        return header.array();
+    }
+}
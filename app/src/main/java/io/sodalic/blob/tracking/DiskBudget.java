@@ -0,0 +1,208 @@
+package io.sodalic.blob.tracking;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import org.beiwe.app.storage.PersistentData;
+import io.sodalic.blob.utils.StringUtils;
+import io.sodalic.blob.utils.Utils;
+
+/**
+ * Keeps the data files waiting for the upload within a storage budget: the quota set by the server
+ * (see {@link PersistentData#getStorageQuotaMegabytes()}) or the free space minus a reserve, whichever is lower.
+ * <p>
+ * Every stream has a priority. As the usage approaches the budget, the writes of the expendable
+ * streams (the raw accelerometer, the debug log) are refused, and when it reaches the budget the oldest
+ * expendable files are evicted and, if that is not enough, the normal streams are refused as well.
+ * The essential streams (the survey answers and timings, the voice recordings) are never refused or evicted.
+ * <p>
+ * The writers only read a volatile field in {@link #isWriteAllowed(String)}, the disk is checked on a background
+ * thread, at most once per {@link #CHECK_INTERVAL_MILLIS} unless the writers report that the disk is full,
+ * see {@link #onOutOfSpace()}. The sizes come from the {@link UploadManifest}, so the files being written to are
+ * not counted, they are limited by the rotation of the files.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class DiskBudget {
+    private static final String TAG = Utils.getLogTag(DiskBudget.class);
+
+    public static final int PRIORITY_EXPENDABLE = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_ESSENTIAL = 2;
+
+    private static final Set<String> EXPENDABLE_STREAMS = new HashSet<>(Arrays.asList("accel", "logFile"));
+    private static final Set<String> ESSENTIAL_STREAMS = new HashSet<>(Arrays.asList("surveyAnswers", "surveyTimings", "voiceRecording"));
+
+    private static final long CHECK_INTERVAL_MILLIS = 60 * 1000;
+    // the free space left for the system and the other apps
+    private static final long RESERVED_FREE_BYTES = 100 * 1024 * 1024;
+    // the share of the budget after which the expendable streams are refused
+    private static final float SOFT_LIMIT = 0.9f;
+    // the share of the budget the eviction frees the space down to
+    private static final float EVICTION_TARGET = 0.8f;
+
+    /**
+     * Receives the changes of the budget state, called on the background thread
+     */
+    public interface Listener {
+        /**
+         * Deletes an evicted file
+         *
+         * @param path the path of the file in the {@link UploadManifest}
+         */
+        void evictFile(@NonNull String path);
+
+        /**
+         * Called when the lowest priority allowed to write has changed
+         */
+        void onStateChanged(int minAllowedPriority, @NonNull String summary);
+    }
+
+    private final File dataDir;
+    private final UploadManifest manifest;
+    private final Listener listener;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            return new Thread(r, "disk_budget");
+        }
+    });
+    private final AtomicBoolean checkPending = new AtomicBoolean();
+
+    private volatile int minAllowedPriority = PRIORITY_EXPENDABLE;
+    private volatile long lastCheckTime = 0;
+    private volatile boolean outOfSpace = false;
+    private int evictedCount = 0; // only used on the background thread
+
+    /**
+     * @param dataDir any directory on the volume of the data files, for the free space
+     */
+    public DiskBudget(@NonNull File dataDir, @NonNull UploadManifest manifest, @NonNull Listener listener) {
+        this.dataDir = dataDir;
+        this.manifest = manifest;
+        this.listener = listener;
+    }
+
+    /**
+     * @return the priority of the stream, see {@link io.sodalic.blob.storage.TrackingFileLayout#getStreamName(String)}
+     */
+    public static int getStreamPriority(@NonNull String stream) {
+        if (ESSENTIAL_STREAMS.contains(stream))
+            return PRIORITY_ESSENTIAL;
+        if (EXPENDABLE_STREAMS.contains(stream))
+            return PRIORITY_EXPENDABLE;
+        return PRIORITY_NORMAL;
+    }
+
+    /**
+     * A cheap check for every write. It also schedules a check of the disk if the last one is too old.
+     */
+    public boolean isWriteAllowed(@NonNull String stream) {
+        if (SystemClock.elapsedRealtime() - lastCheckTime >= CHECK_INTERVAL_MILLIS)
+            requestCheck();
+        return getStreamPriority(stream) >= minAllowedPriority;
+    }
+
+    /**
+     * Called by the writers when a write failed because the disk is full: everything but the essential streams
+     * is refused right away, so the writes stop failing one after another, and the disk is checked again.
+     */
+    public void onOutOfSpace() {
+        if (minAllowedPriority < PRIORITY_ESSENTIAL)
+            Log.w(TAG, "The disk is full, refusing all but the essential writes");
+        outOfSpace = true;
+        minAllowedPriority = PRIORITY_ESSENTIAL;
+        lastCheckTime = 0;
+        requestCheck();
+    }
+
+    /**
+     * Schedules a check of the disk on the background thread unless one is already scheduled
+     */
+    public void requestCheck() {
+        if (!checkPending.compareAndSet(false, true))
+            return;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                checkPending.set(false);
+                check();
+            }
+        });
+    }
+
+    /**
+     * @return the space the pending files may take: the quota or what they take now plus the free space
+     * above the reserve, whichever is lower
+     */
+    @VisibleForTesting
+    static long getBudgetBytes(long quotaBytes, long usedBytes, long freeBytes) {
+        return Math.max(0, Math.min(quotaBytes, usedBytes + freeBytes - RESERVED_FREE_BYTES));
+    }
+
+    /**
+     * Checks the disk right on the calling thread, the writers use {@link #requestCheck()}
+     */
+    @VisibleForTesting
+    void check() {
+        lastCheckTime = SystemClock.elapsedRealtime();
+        long quotaBytes = PersistentData.getStorageQuotaMegabytes() * 1024L * 1024L;
+        long freeBytes = dataDir.getUsableSpace();
+        long usedBytes = manifest.getPendingBytes();
+        long budgetBytes = getBudgetBytes(quotaBytes, usedBytes, freeBytes);
+
+        if (usedBytes >= budgetBytes || outOfSpace) {
+            long toEvict = usedBytes - (long) (budgetBytes * EVICTION_TARGET);
+            List<UploadManifest.Entry> evicted = manifest.getOldestFiles(EXPENDABLE_STREAMS, toEvict);
+            for (UploadManifest.Entry entry : evicted) {
+                listener.evictFile(entry.path);
+                usedBytes -= entry.size;
+            }
+            if (!evicted.isEmpty()) {
+                evictedCount += evicted.size();
+                freeBytes = dataDir.getUsableSpace();
+                Log.w(TAG, StringUtils.formatEn("Evicted %d expendable files, %d in total", evicted.size(), evictedCount));
+            }
+        }
+        // the writes may fail again only if the eviction didn't help
+        outOfSpace = false;
+
+        int newMinAllowedPriority;
+        if (usedBytes >= budgetBytes || freeBytes < RESERVED_FREE_BYTES)
+            newMinAllowedPriority = PRIORITY_ESSENTIAL;
+        else if (usedBytes >= budgetBytes * SOFT_LIMIT)
+            newMinAllowedPriority = PRIORITY_NORMAL;
+        else
+            newMinAllowedPriority = PRIORITY_EXPENDABLE;
+        int oldMinAllowedPriority = minAllowedPriority;
+        minAllowedPriority = newMinAllowedPriority;
+
+        if (newMinAllowedPriority != oldMinAllowedPriority) {
+            String summary = formatSummary(usedBytes, budgetBytes, freeBytes);
+            Log.w(TAG, StringUtils.formatEn("Disk budget state changed from %d to %d: %s", oldMinAllowedPriority, newMinAllowedPriority, summary));
+            listener.onStateChanged(newMinAllowedPriority, summary);
+        }
+    }
+
+    private String formatSummary(long usedBytes, long budgetBytes, long freeBytes) {
+        StringBuilder summary = new StringBuilder(StringUtils.formatEn("%d of %d bytes used, %d free, %d files evicted, by stream:",
+                usedBytes, budgetBytes, freeBytes, evictedCount));
+        for (Map.Entry<String, Long> stream : manifest.getPendingBytesByStream().entrySet()) {
+            summary.append(' ').append(stream.getKey()).append('=').append(stream.getValue());
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,221 @@
+package io.sodalic.blob.tracking;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.util.Log;
+
+import io.sodalic.blob.net.ServerApi;
+import io.sodalic.blob.net.ServerException;
+import io.sodalic.blob.utils.StringUtils;
+import io.sodalic.blob.utils.Utils;
+
+/**
+ * Uploads big files in fixed-size chunks so that an interrupted upload continues from the last
+ * chunk confirmed by the server instead of starting from zero.
+ * <p>
+ * The progress of each file is saved in a small cursor file in {@code stateDir} after every chunk,
+ * so it survives the process death. A cursor is only valid for the same file size and modification time,
+ * otherwise the upload starts over. After the last chunk the SHA-256 of the whole file is sent to the server
+ * to verify the assembled file.
+ * <p>
+ * The upload of a file is given up when the server doesn't move the offset forward for
+ * {@link #MAX_STALLED_CHUNKS} chunks in a row, and the {@link StopCondition} is checked between the chunks,
+ * so a single big file can neither loop forever nor outlive the upload pass.
+ */
+public class ResumableUploader {
+    private static final String TAG = Utils.getLogTag(ResumableUploader.class);
+
+    public static final int CHUNK_SIZE_BYTES = 256 * 1024;
+    private static final String CURSOR_EXTENSION = ".cursor";
+    private static final int CHECKSUM_MISMATCH_CODE = 409;
+    static final int MAX_STALLED_CHUNKS = 3;
+
+    /**
+     * Tells whether the upload pass has to stop, e.g. because of the network state or the time limit
+     */
+    public interface StopCondition {
+        boolean shouldStop();
+    }
+
+    /**
+     * The chunked upload calls of {@link ServerApi}
+     */
+    interface ChunkApi {
+        long uploadFileChunk(String fileName, long totalSize, long offset, byte[] chunk, int length) throws ServerException;
+
+        void completeChunkedUpload(String fileName, long totalSize, String sha256Hex) throws ServerException;
+    }
+
+    private final ChunkApi chunkApi;
+    private final File stateDir;
+
+    public ResumableUploader(final ServerApi serverApi, File stateDir) {
+        this(new ChunkApi() {
+            @Override
+            public long uploadFileChunk(String fileName, long totalSize, long offset, byte[] chunk, int length) throws ServerException {
+                return serverApi.uploadFileChunk(fileName, totalSize, offset, chunk, length);
+            }
+
+            @Override
+            public void completeChunkedUpload(String fileName, long totalSize, String sha256Hex) throws ServerException {
+                serverApi.completeChunkedUpload(fileName, totalSize, sha256Hex);
+            }
+        }, stateDir);
+    }
+
+    ResumableUploader(ChunkApi chunkApi, File stateDir) {
+        this.chunkApi = chunkApi;
+        this.stateDir = stateDir;
+    }
+
+    /**
+     * Uploads the rest of the {@code file}. When this method returns normally the server has the whole
+     * file verified and the file may be deleted.
+     *
+     * @param stopCondition checked before every chunk, the progress so far is kept in the cursor when it stops the upload
+     * @throws ServerException also when the upload is stopped or makes no progress
+     */
+    public void upload(File file, StopCondition stopCondition) throws ServerException {
+        final String fileName = file.getName();
+        final long totalSize = file.length();
+        final long lastModified = file.lastModified();
+        final File cursorFile = getCursorFile(fileName);
+
+        long offset = readCursor(cursorFile, totalSize, lastModified);
+        if (offset > 0)
+            Log.i(TAG, StringUtils.formatEn("Resuming upload of '%s' at %d of %d", fileName, offset, totalSize));
+
+        byte[] chunk = new byte[CHUNK_SIZE_BYTES];
+        int stalledChunks = 0;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            while (offset < totalSize) {
+                if (stopCondition.shouldStop())
+                    throw new ServerException(StringUtils.formatEn("Upload of '%s' stopped at %d of %d", fileName, offset, totalSize));
+                int length = (int) Math.min(CHUNK_SIZE_BYTES, totalSize - offset);
+                in.seek(offset);
+                in.readFully(chunk, 0, length);
+                long nextOffset = chunkApi.uploadFileChunk(fileName, totalSize, offset, chunk, length);
+                if (nextOffset != offset + length) {
+                    Log.w(TAG, StringUtils.formatEn("Server expects '%s' to continue at %d instead of %d", fileName, nextOffset, offset + length));
+                }
+                if (nextOffset < 0 || nextOffset > totalSize)
+                    throw new ServerException(StringUtils.formatEn("Bad next offset %d for '%s' of %d bytes", nextOffset, fileName, totalSize));
+                // the server rejects the chunk or is out of sync, sending the same chunk again won't help for long
+                stalledChunks = (nextOffset > offset) ? 0 : stalledChunks + 1;
+                if (stalledChunks >= MAX_STALLED_CHUNKS)
+                    throw new ServerException(StringUtils.formatEn("Upload of '%s' is stuck at %d of %d after %d chunks",
+                            fileName, offset, totalSize, stalledChunks));
+                offset = nextOffset;
+                writeCursor(cursorFile, offset, totalSize, lastModified);
+            }
+        } catch (IOException e) {
+            throw new ServerException(e);
+        }
+
+        String checksum = computeSha256(file);
+        try {
+            chunkApi.completeChunkedUpload(fileName, totalSize, checksum);
+        } catch (ServerException e) {
+            if (e.getResponseCode() == CHECKSUM_MISMATCH_CODE) {
+                Log.e(TAG, StringUtils.formatEn("Checksum mismatch for '%s', the upload will start over", fileName));
+                deleteCursor(fileName);
+            }
+            throw e;
+        }
+        deleteCursor(fileName);
+    }
+
+    public void deleteCursor(String fileName) {
+        File cursorFile = getCursorFile(fileName);
+        if (cursorFile.exists() && !cursorFile.delete())
+            Log.w(TAG, "Failed to delete the cursor " + cursorFile);
+    }
+
+    /**
+     * Deletes cursors of the files that are not waiting for the upload anymore e.g. were deleted after an upload
+     * through some other path. There is normally no cursor at all, then the manifest is not even looked at.
+     */
+    public void deleteStaleCursors(UploadManifest manifest) {
+        String[] names = stateDir.list();
+        if (names == null)
+            return;
+        List<String> cursorFileNames = new ArrayList<>();
+        for (String name : names) {
+            if (name.endsWith(CURSOR_EXTENSION))
+                cursorFileNames.add(name.substring(0, name.length() - CURSOR_EXTENSION.length()));
+        }
+        if (cursorFileNames.isEmpty())
+            return;
+        Set<String> pendingFileNames = new HashSet<>();
+        for (String path : manifest.getPendingPaths()) {
+            pendingFileNames.add(new File(path).getName());
+        }
+        for (String fileName : cursorFileNames) {
+            if (!pendingFileNames.contains(fileName))
+                deleteCursor(fileName);
+        }
+    }
+
+    private File getCursorFile(String fileName) {
+        return new File(stateDir, fileName + CURSOR_EXTENSION);
+    }
+
+    /**
+     * @return the saved offset or 0 if there is no valid cursor for this version of the file
+     */
+    private static long readCursor(File cursorFile, long totalSize, long lastModified) {
+        if (!cursorFile.exists())
+            return 0;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(cursorFile))) {
+            long offset = in.readLong();
+            long savedSize = in.readLong();
+            long savedLastModified = in.readLong();
+            if (savedSize != totalSize || savedLastModified != lastModified || offset < 0 || offset > totalSize)
+                return 0;
+            return offset;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the cursor " + cursorFile, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Writes to a temporary file and renames it, so a cursor is never torn
+     */
+    private static void writeCursor(File cursorFile, long offset, long totalSize, long lastModified) throws IOException {
+        File tmpFile = new File(cursorFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmpFile);
+             DataOutputStream out = new DataOutputStream(fos)) {
+            out.writeLong(offset);
+            out.writeLong(totalSize);
+            out.writeLong(lastModified);
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmpFile.renameTo(cursorFile))
+            throw new IOException("Failed to rename " + tmpFile + " to " + cursorFile);
+    }
+
+    private static String computeSha256(File file) throws ServerException {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return StringUtils.toHex(digest.digest());
+        } catch (IOException e) {
+            throw new ServerException(e);
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is guaranteed to exist on Android
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package io.sodalic.blob.tracking;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.beiwe.app.CrashHandler;
+
+import io.sodalic.blob.utils.Utils;
+
+/**
+ * A dedicated writer thread that drains a {@link SensorSampleRingBuffer} in batches so that
+ * the encryption and the disk IO run off the sensor delivery thread.
+ * The thread only exists between {@link #start()} and {@link #stop()}, plus the time it takes to write out
+ * what was still in the buffer when it was stopped. Neither method waits for the thread, so both are safe
+ * to call on the main thread.
+ * <p>
+ * An exception thrown by the consumer costs the sample it was given, the thread logs it and keeps draining.
+ */
+public final class SensorSampleDrainer implements Runnable {
+    private static final String TAG = Utils.getLogTag(SensorSampleDrainer.class);
+
+    private static final int BATCH_SIZE = 256;
+    // how long the thread sleeps when there is nothing to write
+    private static final long IDLE_SLEEP_MILLIS = 50;
+
+    private final SensorSampleRingBuffer ringBuffer;
+    private final SensorSampleRingBuffer.SampleConsumer consumer;
+    private final String threadName;
+    private final Context context;
+
+    // both are guarded by this, the thread clears its own reference when it exits
+    private boolean running = false;
+    private Thread thread = null;
+
+    /**
+     * @param context used for the crash reports of the consumer failures
+     */
+    public SensorSampleDrainer(SensorSampleRingBuffer ringBuffer, SensorSampleRingBuffer.SampleConsumer consumer, String threadName, Context context) {
+        this.ringBuffer = ringBuffer;
+        this.consumer = consumer;
+        this.threadName = threadName;
+        this.context = context;
+    }
+
+    /**
+     * Starts the thread. If the previous one is still writing out the buffer after {@link #stop()},
+     * it just keeps running, so there is never more than one consumer of the ring buffer.
+     */
+    public synchronized void start() {
+        running = true;
+        if (thread != null)
+            return;
+        thread = new Thread(this, threadName);
+        thread.start();
+    }
+
+    /**
+     * Asks the thread to stop once it has written out everything that is in the buffer and returns right away
+     */
+    public synchronized void stop() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        // a broken consumer fails on every sample, only the first failure of a run is sent as a crash report
+        boolean failureReported = false;
+        try {
+            while (true) {
+                int drained;
+                try {
+                    drained = ringBuffer.drain(consumer, BATCH_SIZE);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, threadName + " dropped a sample: " + e);
+                    if (!failureReported) {
+                        failureReported = true;
+                        CrashHandler.writeCrashlog(e, context);
+                    }
+                    continue;
+                }
+                if (drained > 0)
+                    continue;
+                // the buffer is empty, decided under the lock so that start() never misses the exit.
+                // The samples offered right before stop() may have come after the drain above, they go first
+                synchronized (this) {
+                    if (!running && ringBuffer.getDepth() == 0) {
+                        thread = null;
+                        Log.d(TAG, threadName + " stopped");
+                        return;
+                    }
+                }
+                Utils.sleep(IDLE_SLEEP_MILLIS);
+            }
+        } finally {
+            // for an Error out of the loop, so that start() makes a new thread. After a normal exit it may already have made one
+            synchronized (this) {
+                if (thread == Thread.currentThread())
+                    thread = null;
+            }
+        }
+    }
+}
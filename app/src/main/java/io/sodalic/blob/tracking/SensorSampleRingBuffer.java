@@ -0,0 +1,125 @@
+package io.sodalic.blob.tracking;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free single-producer/single-consumer ring buffer of primitive sensor samples
+ * (timestamp, accuracy, x, y, z). The sensor callback publishes with {@link #offer} without allocating
+ * and without waiting for the disk, a writer thread takes samples out in batches with {@link #drain}.
+ * <p>
+ * When the buffer is full new samples are dropped and counted, see {@link #getDroppedCount()}.
+ * Only one thread may call {@link #offer} and only one (other) thread may call {@link #drain}.
+ */
+public final class SensorSampleRingBuffer {
+
+    /**
+     * Receives drained samples, called on the consumer thread
+     */
+    public interface SampleConsumer {
+        void accept(long timestamp, int accuracy, float x, float y, float z);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final long[] timestamps;
+    private final int[] accuracies;
+    private final float[] xs;
+    private final float[] ys;
+    private final float[] zs;
+
+    // next slot to be written, only advanced by the producer
+    private final AtomicLong head = new AtomicLong();
+    // next slot to be read, only advanced by the consumer
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile int maxDepth = 0;
+
+    /**
+     * @param capacity must be a power of 2
+     */
+    public SensorSampleRingBuffer(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity must be a power of 2: " + capacity);
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.timestamps = new long[capacity];
+        this.accuracies = new int[capacity];
+        this.xs = new float[capacity];
+        this.ys = new float[capacity];
+        this.zs = new float[capacity];
+    }
+
+    /**
+     * Publishes a sample. Called only from the producer thread.
+     *
+     * @return {@code false} if the buffer is full and the sample was dropped
+     */
+    public boolean offer(long timestamp, int accuracy, float x, float y, float z) {
+        long h = head.get();
+        if (h - tail.get() >= capacity) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        int i = (int) h & mask;
+        timestamps[i] = timestamp;
+        accuracies[i] = accuracy;
+        xs[i] = x;
+        ys[i] = y;
+        zs[i] = z;
+        // the ordered store makes the slot contents visible before the new head
+        head.lazySet(h + 1);
+        return true;
+    }
+
+    /**
+     * Passes up to {@code maxCount} of the oldest samples to {@code consumer}. Called only from the consumer thread.
+     * If the consumer throws, the exception is passed on and the sample it was given is dropped along
+     * with the ones before it, so that the next call doesn't fail on the same sample again.
+     *
+     * @return the number of drained samples
+     */
+    public int drain(SampleConsumer consumer, int maxCount) {
+        long t = tail.get();
+        long depth = head.get() - t;
+        if (depth > maxDepth)
+            maxDepth = (int) depth;
+        int count = (int) Math.min(depth, maxCount);
+        int n = 0;
+        try {
+            for (; n < count; n++) {
+                int i = (int) (t + n) & mask;
+                consumer.accept(timestamps[i], accuracies[i], xs[i], ys[i], zs[i]);
+            }
+        } finally {
+            tail.lazySet(t + Math.min(n + 1, count));
+        }
+        return count;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return current number of samples waiting for the consumer
+     */
+    public int getDepth() {
+        return (int) (head.get() - tail.get());
+    }
+
+    /**
+     * @return the highest depth seen by the consumer so far, a value close to {@link #getCapacity()}
+     * means the writer is falling behind
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getPublishedCount() {
+        return head.get();
+    }
+}
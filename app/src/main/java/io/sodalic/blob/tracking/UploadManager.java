@@ -1,18 +1,33 @@
 package io.sodalic.blob.tracking;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
 import org.beiwe.app.CrashHandler;
 import org.beiwe.app.networking.NetworkUtility;
+import org.beiwe.app.storage.PersistentData;
 import org.beiwe.app.storage.TextFileManager;
 import io.sodalic.blob.context.BlobContext;
 import io.sodalic.blob.net.ServerApi;
 import io.sodalic.blob.net.ServerException;
 import io.sodalic.blob.storage.KnownDirs;
+import io.sodalic.blob.storage.TrackingFileLayout;
 import io.sodalic.blob.utils.StringUtils;
 import io.sodalic.blob.utils.Utils;
 
@@ -23,12 +38,48 @@ public class UploadManager {
 
     private static final String TAG = Utils.getLogTag(UploadManager.class);
 
+    /**
+     * Upper bound for the server-provided concurrency, also the size of the
+     * connection pool in {@link ServerApi}
+     */
+    public static final int MAX_UPLOAD_CONCURRENCY = 8;
+    private static final long UPLOAD_TIME_LIMIT_MILLIS = 1000 * 60 * 60; //One hour to upload files
+
+    // Small files are packed into batch requests within these limits, bigger ones are uploaded one by one
+    static final int BATCH_MAX_FILES = 50;
+    static final long BATCH_MAX_BYTES = 1024 * 1024;
+    static final long BATCH_FILE_MAX_BYTES = 256 * 1024;
+    // Files starting from this size, i.e. voice recordings, are uploaded in resumable chunks
+    private static final long RESUMABLE_UPLOAD_MIN_BYTES = 1024 * 1024;
+    // The files are taken from the manifest in pages of this size, so a big backlog is not loaded at once
+    private static final int UPLOAD_PAGE_SIZE = 500;
+
     private final Object FILE_UPLOAD_LOCK = new Object(); //Our lock for file uploading
     private final BlobContext blobContext;
+    private final long uploadTimeLimitMillis;
+    private final int uploadPageSize;
+    // set when the server doesn't know the batch upload request, then only single files are uploaded
+    private volatile boolean batchUploadUnsupported = false;
+    // the same for the chunked uploads
+    private volatile boolean resumableUploadUnsupported = false;
 
     public UploadManager(BlobContext blobContext) {
+        this(blobContext, UPLOAD_TIME_LIMIT_MILLIS, UPLOAD_PAGE_SIZE);
+    }
+
+    @VisibleForTesting
+    UploadManager(BlobContext blobContext, long uploadTimeLimitMillis, int uploadPageSize) {
         Objects.requireNonNull(blobContext);
         this.blobContext = blobContext;
+        this.uploadTimeLimitMillis = uploadTimeLimitMillis;
+        this.uploadPageSize = uploadPageSize;
+    }
+
+    /**
+     * @return the number of the upload workers set by the server, within 1..{@link #MAX_UPLOAD_CONCURRENCY}
+     */
+    static int getUploadConcurrency() {
+        return Math.max(1, Math.min(MAX_UPLOAD_CONCURRENCY, PersistentData.getUploadConcurrency()));
     }
 
     /**
@@ -56,58 +107,319 @@ public class UploadManager {
     }
 
     /**
-     * Uploads all files to the server.
-     * Files get deleted as soon as a 200 OK code in received from the server.
+     * Uploads all files to the server using a bounded pool of workers.
+     * The files are taken from the {@link UploadManifest} in pages of {@link #UPLOAD_PAGE_SIZE}, in the order
+     * of {@link PendingUpload} i.e. the most important and the oldest first, so the data directory is not listed.
+     * Each file gets deleted as soon as a 200 OK code in received from the server for it.
      */
-    private void doUploadAllFiles() {
+    void doUploadAllFiles() {
         final Context appContext = blobContext.getAppContext();
-        final ServerApi serverApi = blobContext.getServerApi();
-        final File baseDir = KnownDirs.getTrackingFilesDir(appContext, false);
-
-        final long startTime = System.currentTimeMillis();
-        final long stopTime = startTime + 1000 * 60 * 60; //One hour to upload files
+        final TrackingFileLayout layout = KnownDirs.getTrackingFileLayout(appContext);
+        final UploadManifest manifest = TextFileManager.getUploadManifest();
 
         synchronized (FILE_UPLOAD_LOCK) {
-            // get files under the lock!
-            final String[] files = TextFileManager.getAllUploadableFiles();
-            Log.i(TAG, "uploading " + files.length + " files");
-
-            for (int i = 0; i < files.length; i++) {
-                String fileName = files[i];
-                if (((i + 1) % 5 == 0) && (files.length > 10)) {
-                    Log.i(TAG, StringUtils.formatEn("Uploading %d of %d", i + 1, files.length));
+            // the files of the older versions are moved into the buckets first, so the reconciliation finds them
+            TextFileManager.migrateFlatFiles();
+            // picks up the files left by a crash, only scans the directory once per process and then once a day
+            manifest.reconcileIfNeeded(new UploadManifest.InUseFiles() {
+                @NonNull
+                @Override
+                public Set<String> getInUsePaths() {
+                    return TextFileManager.getFilesInUse();
+                }
+            });
+
+            final int concurrency = getUploadConcurrency();
+            ResumableUploader resumableUploader = new ResumableUploader(blobContext.getServerApi(), KnownDirs.getUploadStateDir(appContext));
+            resumableUploader.deleteStaleCursors(manifest);
+
+            final long startTime = System.currentTimeMillis();
+            // the files of the previous pages, the failed ones stay in the manifest until the next pass
+            final Set<String> attempted = new HashSet<>();
+            int fileCount = 0;
+            int uploadedCount = 0;
+            int failedCount = 0;
+            UploadBatch batch = null;
+            while ((batch == null) || !batch.stopped.get()) {
+                final List<UploadManifest.Entry> page = manifest.getPendingFiles(uploadPageSize, attempted);
+                if (page.isEmpty())
+                    break;
+                final List<PendingUpload> uploads = new ArrayList<>(page.size());
+                for (UploadManifest.Entry entry : page) {
+                    attempted.add(entry.path);
+                    uploads.add(new PendingUpload(entry.path, layout.getFile(entry.path), entry.closeTime, entry.size));
                 }
+                final List<List<PendingUpload>> units = groupIntoRequests(uploads, !batchUploadUnsupported);
+                Log.i(TAG, StringUtils.formatEn("uploading %d files in %d requests with %d workers, %d files pending",
+                        uploads.size(), units.size(), concurrency, manifest.getPendingCount()));
 
-                if (!NetworkUtility.canUpload(appContext)) {
-                    Log.i(TAG, "Stop uploading because of no WiFi");
+                batch = new UploadBatch(units, uploads.size(), resumableUploader, startTime);
+                if (!runBatch(batch, concurrency))
                     return;
+                fileCount += uploads.size();
+                uploadedCount += batch.uploadedCount.get();
+                failedCount += batch.failedCount.get();
+            }
+
+            if (batch == null) {
+                Log.i(TAG, "Nothing to upload");
+            } else if (batch.timeLimitReached.get()) {
+                Log.w(TAG, "shutting down upload due to time limit, we should never reach this.");
+                TextFileManager.getDebugLogFile().writeEncrypted(
+                        StringUtils.formatEn("%d upload time limit of 1 hr since %d is reached, %d of %d files uploaded, %d failed, there are likely files still on the phone that have not been uploaded.",
+                                System.currentTimeMillis(), startTime, uploadedCount, fileCount, failedCount));
+                CrashHandler.writeCrashlog(new RuntimeException(StringUtils.formatEn("Upload took longer than 1 hour, %d of %d files uploaded, %d failed",
+                        uploadedCount, fileCount, failedCount)), appContext);
+            } else if (batch.stopped.get()) {
+                Log.i(TAG, StringUtils.formatEn("Stopped uploading after %d of %d files uploaded, %d failed", uploadedCount, fileCount, failedCount));
+            } else {
+                Log.i(TAG, StringUtils.formatEn("DONE WITH UPLOAD of %d files, %d uploaded, %d failed", fileCount, uploadedCount, failedCount));
+            }
+        }
+    }
+
+    /**
+     * Runs the batch on {@code concurrency} workers and waits for them
+     *
+     * @return {@code false} if the thread was interrupted
+     */
+    private boolean runBatch(UploadBatch batch, int concurrency) {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "uploader_worker_" + threadNumber.incrementAndGet());
+            }
+        });
+        for (int i = 0; i < concurrency; i++) {
+            executor.execute(batch);
+        }
+        executor.shutdown();
+        try {
+            // the workers check the time limit themselves, this is just a safety net
+            if (!executor.awaitTermination(uploadTimeLimitMillis + 1000 * 60, TimeUnit.MILLISECONDS)) {
+                Log.e(TAG, "Upload workers didn't stop in time");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Splits the sorted list of files into requests preserving the order. Consecutive small files
+     * are packed together, every big file goes in a request of its own.
+     */
+    static List<List<PendingUpload>> groupIntoRequests(List<PendingUpload> uploads, boolean useBatches) {
+        List<List<PendingUpload>> units = new ArrayList<>();
+        List<PendingUpload> current = null;
+        long currentBytes = 0;
+        for (PendingUpload upload : uploads) {
+            boolean batchable = useBatches && (upload.length <= BATCH_FILE_MAX_BYTES);
+            if (!batchable) {
+                units.add(Collections.singletonList(upload));
+                // the files after it go into a new request, not into the one before it
+                current = null;
+                continue;
+            }
+            if ((current == null) || (current.size() >= BATCH_MAX_FILES) || (currentBytes + upload.length > BATCH_MAX_BYTES)) {
+                current = new ArrayList<>();
+                currentBytes = 0;
+                units.add(current);
+            }
+            current.add(upload);
+            currentBytes += upload.length;
+        }
+        return units;
+    }
+
+    /**
+     * A single pass over the sorted list of requests shared by all the workers.
+     * Every worker takes the next not yet taken request until the list is exhausted or
+     * the upload is stopped because of the network state or the time limit.
+     */
+    private final class UploadBatch implements Runnable, ResumableUploader.StopCondition {
+        final List<List<PendingUpload>> units;
+        final int fileCount;
+        final ResumableUploader resumableUploader;
+        final long stopTime;
+
+        final AtomicInteger nextIndex = new AtomicInteger();
+        // only the files the server has accepted, the failed ones stay for the next pass
+        final AtomicInteger uploadedCount = new AtomicInteger();
+        final AtomicInteger failedCount = new AtomicInteger();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final AtomicBoolean timeLimitReached = new AtomicBoolean();
+
+        /**
+         * @param startTime the start of the whole upload pass, the time limit is shared by all of its batches
+         */
+        UploadBatch(List<List<PendingUpload>> units, int fileCount, ResumableUploader resumableUploader, long startTime) {
+            this.units = units;
+            this.fileCount = fileCount;
+            this.resumableUploader = resumableUploader;
+            this.stopTime = startTime + uploadTimeLimitMillis;
+        }
+
+        @Override
+        public void run() {
+            final ServerApi serverApi = blobContext.getServerApi();
+            final int total = units.size();
+
+            while (!shouldStop()) {
+                int i = nextIndex.getAndIncrement();
+                if (i >= total)
+                    return;
+                List<PendingUpload> unit = units.get(i);
+                if (unit.size() > 1 && !batchUploadUnsupported) {
+                    uploadMany(serverApi, unit);
+                } else {
+                    for (PendingUpload upload : unit) {
+                        uploadSingle(serverApi, upload);
+                    }
                 }
 
-                File file = new File(baseDir + "/" + fileName);
-                if (!file.exists()) {
-                    Log.e(TAG, StringUtils.formatEn("Non-existent file '%s', full path '%s'", fileName, file));
-                    continue;
+                if ((i % 5 == 4) && (total > 10)) {
+                    Log.i(TAG, StringUtils.formatEn("Uploaded %d of %d, %d failed", uploadedCount.get(), fileCount, failedCount.get()));
                 }
-                try {
+            }
+        }
+
+        /**
+         * Checked before every request and between the chunks of a resumable upload
+         */
+        @Override
+        public boolean shouldStop() {
+            if (stopped.get())
+                return true;
+            if (!NetworkUtility.canUpload(blobContext.getAppContext())) {
+                Log.i(TAG, "Stop uploading because of no WiFi");
+                stopped.set(true);
+                return true;
+            }
+            if (stopTime < System.currentTimeMillis()) {
+                timeLimitReached.set(true);
+                stopped.set(true);
+                return true;
+            }
+            return false;
+        }
+
+        private void uploadSingle(ServerApi serverApi, PendingUpload upload) {
+            final File file = upload.file;
+            try {
+                // the size is the one recorded in the manifest when the file was closed, no need to stat the file
+                if (upload.length >= RESUMABLE_UPLOAD_MIN_BYTES && !resumableUploadUnsupported)
+                    uploadResumable(serverApi, file);
+                else
                     serverApi.uploadFile(file);
-                    // delete file only if there is no error in serverApi.uploadFile
-                    TextFileManager.delete(fileName);
-                } catch (ServerException e) {
-                    Log.w(TAG, "Failed to upload file '" + fileName + "'.", e);
-                }
+                // delete file only if there is no error in serverApi.uploadFile
+                TextFileManager.deleteTrackingFile(upload.path);
+                uploadedCount.incrementAndGet();
+            } catch (ServerException e) {
+                failedCount.incrementAndGet();
+                Log.w(TAG, "Failed to upload file '" + file.getName() + "'.", e);
+            }
+        }
 
-                if (stopTime < System.currentTimeMillis()) {
-                    Log.w(TAG, "shutting down upload due to time limit, we should never reach this.");
-                    TextFileManager.getDebugLogFile().writeEncrypted(
-                            StringUtils.formatEn("%d upload time limit of 1 hr since %d is reached %d of %d files, there are likely files still on the phone that have not been uploaded.",
-                                    System.currentTimeMillis(), startTime, i, files.length));
-                    CrashHandler.writeCrashlog(new RuntimeException(StringUtils.formatEn("Upload took longer than 1 hour for %d of %d files", i, files.length)), appContext);
-                    return;
+        private void uploadResumable(ServerApi serverApi, File file) throws ServerException {
+            try {
+                resumableUploader.upload(file, this);
+            } catch (ServerException e) {
+                if (e.getResponseCode() != 404)
+                    throw e;
+                // an old server, fall back to the whole-file uploads for good
+                Log.w(TAG, "Server doesn't support chunked upload, uploading whole files");
+                resumableUploadUnsupported = true;
+                resumableUploader.deleteCursor(file.getName());
+                serverApi.uploadFile(file);
+            }
+        }
+
+        private void uploadMany(ServerApi serverApi, List<PendingUpload> unit) {
+            List<File> files = new ArrayList<>(unit.size());
+            for (PendingUpload upload : unit) {
+                files.add(upload.file);
+            }
+            Set<String> accepted;
+            try {
+                accepted = serverApi.uploadFiles(files);
+            } catch (ServerException e) {
+                if (e.getResponseCode() == 404) {
+                    // an old server, fall back to the one-by-one mode for good
+                    Log.w(TAG, "Server doesn't support batch upload, uploading files one by one");
+                    batchUploadUnsupported = true;
+                    for (PendingUpload upload : unit) {
+                        uploadSingle(serverApi, upload);
+                    }
+                } else {
+                    failedCount.addAndGet(files.size());
+                    Log.w(TAG, StringUtils.formatEn("Failed to upload a batch of %d files starting with '%s'.", files.size(), files.get(0).getName()), e);
+                }
+                return;
+            }
+            // delete exactly the files the server has confirmed, the rest will be retried next time
+            for (PendingUpload upload : unit) {
+                if (accepted.contains(upload.file.getName())) {
+                    TextFileManager.deleteTrackingFile(upload.path);
+                    uploadedCount.incrementAndGet();
+                } else {
+                    failedCount.incrementAndGet();
+                    Log.w(TAG, "File '" + upload.file.getName() + "' was not accepted by the server.");
                 }
             }
-            Log.i(TAG, StringUtils.formatEn("DONE WITH UPLOAD of %d files", files.length));
         }
     }
 
+    /**
+     * A file waiting to be uploaded. The natural order puts the data entered by the participant
+     * before the passively collected one and then the older files before the newer ones, so that if
+     * the upload is cut short the data the researchers care about most is already on the server.
+     */
+    static final class PendingUpload implements Comparable<PendingUpload> {
+        static final int PRIORITY_SURVEY = 0;
+        static final int PRIORITY_AUDIO = 1;
+        static final int PRIORITY_DEFAULT = 2;
+        static final int PRIORITY_DEBUG_LOG = 3;
+
+        final String path;
+        final File file;
+        final int priority;
+        final long lastModified;
+        final long length;
+
+        /**
+         * @param path         the path of the file in the {@link TrackingFileLayout}
+         * @param lastModified when the file was closed, taken from the {@link UploadManifest} instead of the file system
+         * @param length       the size of the file, the same
+         */
+        PendingUpload(String path, File file, long lastModified, long length) {
+            this.path = path;
+            this.file = file;
+            this.priority = getPriority(file.getName());
+            this.lastModified = lastModified;
+            this.length = length;
+        }
 
+        static int getPriority(String fileName) {
+            if (fileName.contains("_surveyAnswers") || fileName.contains("_surveyTimings"))
+                return PRIORITY_SURVEY;
+            if (fileName.contains("_voiceRecording_"))
+                return PRIORITY_AUDIO;
+            if (fileName.contains("_logFile_"))
+                return PRIORITY_DEBUG_LOG;
+            return PRIORITY_DEFAULT;
+        }
+
+        @Override
+        public int compareTo(PendingUpload other) {
+            if (priority != other.priority)
+                return (priority < other.priority) ? -1 : 1;
+            return (lastModified < other.lastModified) ? -1 : ((lastModified == other.lastModified) ? 0 : 1);
+        }
+    }
 }
@@ -0,0 +1,404 @@
+package io.sodalic.blob.tracking;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import android.support.annotation.NonNull;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import io.sodalic.blob.storage.TrackingFileLayout;
+import io.sodalic.blob.utils.StringUtils;
+import io.sodalic.blob.utils.Utils;
+
+/**
+ * The list of the closed data files waiting to be uploaded, so that the uploader doesn't need to list
+ * and stat the whole data directory on every pass.
+ * <p>
+ * A file is added when its writer closes it for good and removed when it is deleted after the upload.
+ * The list is kept in memory ordered the same way as {@link UploadManager.PendingUpload} and is persisted
+ * as an append-only log of {@code +} and {@code -} lines that is compacted when it gets mostly removals.
+ * The log is not synced to the disk on every line, so a crash can lose its tail, and a crash also
+ * leaves behind the files that were open at that moment. Both are picked up by {@link #reconcile(InUseFiles)},
+ * the only directory scan, which runs once per process and then once per {@link #RECONCILE_INTERVAL_MILLIS}
+ * and only walks the complete buckets of the {@link TrackingFileLayout}.
+ * <p>
+ * The files are identified by their path relative to the layout root.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class UploadManifest {
+    private static final String TAG = Utils.getLogTag(UploadManifest.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String ADDED = "+";
+    private static final String REMOVED = "-";
+    private static final char SEPARATOR = '\t';
+    private static final long RECONCILE_INTERVAL_MILLIS = 24 * 60 * 60 * 1000;
+    // the log is rewritten when it has this many lines more than the live entries
+    private static final int COMPACT_MIN_DEAD_LINES = 1000;
+
+    /**
+     * Provides the paths of the data files that must not be uploaded now because they are still being written to
+     */
+    public interface InUseFiles {
+        @NonNull
+        Set<String> getInUsePaths();
+    }
+
+    /**
+     * A closed file waiting for the upload
+     */
+    public static final class Entry {
+        /**
+         * see {@link TrackingFileLayout#getRelativePath(String, long)}
+         */
+        public final String path;
+        /**
+         * the data stream the file belongs to, see {@link TrackingFileLayout#getStreamName(String)}
+         */
+        public final String stream;
+        public final long size;
+        public final long closeTime;
+        final int priority;
+
+        Entry(String path, String stream, long size, long closeTime) {
+            this.path = path;
+            this.stream = stream;
+            this.size = size;
+            this.closeTime = closeTime;
+            this.priority = UploadManager.PendingUpload.getPriority(new File(path).getName());
+        }
+    }
+
+    private static final Comparator<Entry> UPLOAD_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            if (e1.priority != e2.priority)
+                return (e1.priority < e2.priority) ? -1 : 1;
+            if (e1.closeTime != e2.closeTime)
+                return (e1.closeTime < e2.closeTime) ? -1 : 1;
+            return e1.path.compareTo(e2.path);
+        }
+    };
+
+    private final TrackingFileLayout layout;
+    private final AtomicFile logFile;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final TreeSet<Entry> ordered = new TreeSet<>(UPLOAD_ORDER);
+    private final Map<String, Long> bytesByStream = new HashMap<>();
+    private long totalBytes = 0;
+    private int logLineCount = 0;
+    private boolean loaded = false;
+    private long lastReconcileTime = 0;
+    // the files removed while a reconciliation lists the directory, so that it doesn't bring them back
+    private Set<String> removedDuringReconcile = null;
+
+    /**
+     * @param layout  the layout of the data files
+     * @param logFile the file to persist the list to, it must not be under the layout root
+     */
+    public UploadManifest(@NonNull TrackingFileLayout layout, @NonNull File logFile) {
+        this.layout = layout;
+        this.logFile = new AtomicFile(logFile);
+    }
+
+    /**
+     * Adds a file that is closed and will not be written to again. Nothing is added if the file doesn't exist,
+     * e.g. if its creation has failed.
+     *
+     * @param stream the data stream the file belongs to
+     */
+    public synchronized void addClosedFile(@NonNull String path, @NonNull String stream) {
+        ensureLoaded();
+        File file = layout.getFile(path);
+        if (!file.isFile())
+            return;
+        Entry entry = new Entry(path, stream, file.length(), System.currentTimeMillis());
+        if (put(entry))
+            appendLine(formatAdded(entry));
+    }
+
+    /**
+     * Removes a file that was uploaded or deleted, it is a no-op for the files that are not in the manifest
+     */
+    public synchronized void removeFile(@NonNull String path) {
+        ensureLoaded();
+        if (removedDuringReconcile != null)
+            removedDuringReconcile.add(path);
+        Entry entry = entries.get(path);
+        if (entry == null)
+            return;
+        forget(entry);
+        appendLine(REMOVED + SEPARATOR + path);
+        if (logLineCount - entries.size() >= Math.max(COMPACT_MIN_DEAD_LINES, entries.size()))
+            compact();
+    }
+
+    /**
+     * @param maxCount the size of the page
+     * @param skipped  the files to leave out, e.g. the ones already tried during this upload pass
+     * @return at most {@code maxCount} files in the upload order
+     */
+    @NonNull
+    public synchronized List<Entry> getPendingFiles(int maxCount, @NonNull Set<String> skipped) {
+        ensureLoaded();
+        List<Entry> page = new ArrayList<>(Math.min(maxCount, ordered.size()));
+        for (Entry entry : ordered) {
+            if (page.size() >= maxCount)
+                break;
+            if (!skipped.contains(entry.path))
+                page.add(entry);
+        }
+        return page;
+    }
+
+    /**
+     * @return the paths of all the files waiting for the upload
+     */
+    @NonNull
+    public synchronized List<String> getPendingPaths() {
+        ensureLoaded();
+        List<String> names = new ArrayList<>(entries.size());
+        for (Entry entry : ordered) {
+            names.add(entry.path);
+        }
+        return names;
+    }
+
+    public synchronized int getPendingCount() {
+        ensureLoaded();
+        return entries.size();
+    }
+
+    /**
+     * @return the total size of the files waiting for the upload
+     */
+    public synchronized long getPendingBytes() {
+        ensureLoaded();
+        return totalBytes;
+    }
+
+    /**
+     * @return the size of the files waiting for the upload by their stream
+     */
+    @NonNull
+    public synchronized Map<String, Long> getPendingBytesByStream() {
+        ensureLoaded();
+        return new HashMap<>(bytesByStream);
+    }
+
+    /**
+     * @param streams  the streams to take the files of
+     * @param minBytes how many bytes the files should take together
+     * @return the oldest files of the streams that take at least {@code minBytes} or all of them
+     */
+    @NonNull
+    public synchronized List<Entry> getOldestFiles(@NonNull Set<String> streams, long minBytes) {
+        ensureLoaded();
+        List<Entry> files = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (streams.contains(entry.stream))
+                files.add(entry);
+        }
+        Collections.sort(files, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return (e1.closeTime < e2.closeTime) ? -1 : ((e1.closeTime == e2.closeTime) ? 0 : 1);
+            }
+        });
+        long bytes = 0;
+        int count = 0;
+        while ((count < files.size()) && (bytes < minBytes)) {
+            bytes += files.get(count).size;
+            count++;
+        }
+        return new ArrayList<>(files.subList(0, count));
+    }
+
+    /**
+     * Runs {@link #reconcile(InUseFiles)} if it didn't run in this process yet or too long ago
+     */
+    public void reconcileIfNeeded(@NonNull InUseFiles inUseFiles) {
+        synchronized (this) {
+            if ((lastReconcileTime != 0) && (System.currentTimeMillis() - lastReconcileTime < RECONCILE_INTERVAL_MILLIS))
+                return;
+        }
+        reconcile(inUseFiles);
+    }
+
+    /**
+     * Makes the manifest match the complete buckets of the layout: adds the closed files it doesn't know about
+     * (left by a crash or written by the code that doesn't report the files it closes) and drops the entries
+     * of the files that no longer exist. The directories are listed without holding any lock, so the writers
+     * and the uploads are not blocked by it. The files in the buckets that are not complete yet are left
+     * to a later reconciliation.
+     */
+    public void reconcile(@NonNull InUseFiles inUseFiles) {
+        final long startTime = System.currentTimeMillis();
+        synchronized (this) {
+            ensureLoaded();
+            removedDuringReconcile = new HashSet<>();
+        }
+        List<String> buckets = layout.listBuckets(startTime);
+        List<String> listed = new ArrayList<>();
+        for (String bucket : buckets) {
+            List<String> files = layout.listFiles(bucket);
+            if (files.isEmpty())
+                layout.deleteBucketIfEmpty(bucket);
+            listed.addAll(files);
+        }
+        // the files in use must be taken after the listing: a file opened before it is either still open
+        // or already closed and then added by addClosedFile
+        Set<String> inUse = inUseFiles.getInUsePaths();
+        synchronized (this) {
+            Set<String> removedMeanwhile = removedDuringReconcile;
+            removedDuringReconcile = null;
+            Set<String> existing = new HashSet<>(listed);
+            Set<String> listedBuckets = new HashSet<>(buckets);
+
+            int orphanCount = 0;
+            for (String path : listed) {
+                if (entries.containsKey(path) || inUse.contains(path) || removedMeanwhile.contains(path))
+                    continue;
+                File file = layout.getFile(path);
+                if (!file.isFile())
+                    continue;
+                put(new Entry(path, TrackingFileLayout.getStreamName(file.getName()), file.length(), file.lastModified()));
+                orphanCount++;
+            }
+            int missingCount = 0;
+            for (Entry entry : new ArrayList<>(entries.values())) {
+                // the files added after the listing started are not in it yet
+                if (listedBuckets.contains(TrackingFileLayout.getBucket(entry.path))
+                        && !existing.contains(entry.path) && (entry.closeTime < startTime)) {
+                    forget(entry);
+                    missingCount++;
+                }
+            }
+            lastReconcileTime = System.currentTimeMillis();
+            compact();
+            Log.i(TAG, StringUtils.formatEn("Reconciled the upload manifest with %d files in %d buckets in %d ms: %d orphaned files added, %d missing removed, %d pending",
+                    listed.size(), buckets.size(), lastReconcileTime - startTime, orphanCount, missingCount, entries.size()));
+        }
+    }
+
+    private boolean put(Entry entry) {
+        // a reconciliation may have found the file already, keep the first entry
+        if (entries.containsKey(entry.path))
+            return false;
+        entries.put(entry.path, entry);
+        ordered.add(entry);
+        addBytes(entry.stream, entry.size);
+        return true;
+    }
+
+    private void forget(Entry entry) {
+        entries.remove(entry.path);
+        ordered.remove(entry);
+        addBytes(entry.stream, -entry.size);
+    }
+
+    private void addBytes(String stream, long bytes) {
+        Long streamBytes = bytesByStream.get(stream);
+        long newBytes = ((streamBytes != null) ? streamBytes : 0) + bytes;
+        if (newBytes == 0)
+            bytesByStream.remove(stream);
+        else
+            bytesByStream.put(stream, newBytes);
+        totalBytes += bytes;
+    }
+
+    private void ensureLoaded() {
+        if (loaded)
+            return;
+        loaded = true;
+        try (FileInputStream in = logFile.openRead();
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                logLineCount++;
+                parseLine(line);
+            }
+            Log.i(TAG, StringUtils.formatEn("Loaded the upload manifest: %d pending files, %d lines", entries.size(), logLineCount));
+        } catch (FileNotFoundException e) {
+            // the first start with the manifest, the reconciliation will fill it from the directory
+            Log.i(TAG, "No upload manifest yet");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read the upload manifest", e);
+        }
+    }
+
+    private void parseLine(String line) {
+        String[] parts = line.split(String.valueOf(SEPARATOR), -1);
+        try {
+            if (ADDED.equals(parts[0]) && (parts.length == 5)) {
+                // the entries of the flat layout are dropped, the migration moves the files and the reconciliation adds them again
+                if (parts[1].indexOf(File.separatorChar) < 0)
+                    return;
+                put(new Entry(parts[1], parts[2], Long.parseLong(parts[3]), Long.parseLong(parts[4])));
+                return;
+            }
+            if (REMOVED.equals(parts[0]) && (parts.length == 2)) {
+                Entry entry = entries.get(parts[1]);
+                if (entry != null)
+                    forget(entry);
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        // most probably the last line torn by a crash, the reconciliation will fix what is lost
+        Log.w(TAG, "Skipping a bad upload manifest line '" + line + "'");
+    }
+
+    private static String formatAdded(Entry entry) {
+        return ADDED + SEPARATOR + entry.path + SEPARATOR + entry.stream + SEPARATOR + entry.size + SEPARATOR + entry.closeTime;
+    }
+
+    private void appendLine(String line) {
+        try (FileOutputStream out = new FileOutputStream(logFile.getBaseFile(), true)) {
+            out.write((line + "\n").getBytes(UTF_8));
+            logLineCount++;
+        } catch (IOException e) {
+            // the entry is still in memory, the next reconciliation restores it in the log
+            Log.e(TAG, "Failed to append to the upload manifest", e);
+        }
+    }
+
+    /**
+     * Rewrites the log with only the live entries
+     */
+    private void compact() {
+        FileOutputStream out = null;
+        try {
+            out = logFile.startWrite();
+            StringBuilder text = new StringBuilder();
+            for (Entry entry : ordered) {
+                text.append(formatAdded(entry)).append('\n');
+            }
+            out.write(text.toString().getBytes(UTF_8));
+            logFile.finishWrite(out);
+            logLineCount = entries.size();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compact the upload manifest", e);
+            logFile.failWrite(out);
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package io.sodalic.blob.ui.face;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -22,8 +24,10 @@ import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Bundle;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.Fragment;
@@ -40,7 +44,10 @@ import android.widget.Toast;
 
 import io.sodalic.blob.BuildConfig;
 import io.sodalic.blob.R;
+import org.beiwe.app.storage.PersistentData;
 import io.sodalic.blob.context.BlobContext;
+import io.sodalic.blob.face.CaptureSizePolicy;
+import io.sodalic.blob.face.FacePreFilter;
 import io.sodalic.blob.face.FaceSightcorpApi;
 import io.sodalic.blob.sharedui.BlobActivity;
 import io.sodalic.blob.sharedui.HttpUIAsync;
@@ -215,20 +222,40 @@ public class CaptureFaceActivity extends BlobActivity {
     private ImageReader mImageReader;
 
     /**
-     * This is the output file for our picture.
+     * This is the file a copy of our picture is saved to in dev builds, the picture itself is sent from memory.
      */
     private File mFile;
 
+    /**
+     * When the user pressed the button, for the capture-to-response latency
+     */
+    private volatile long mCaptureStartedAt;
+
+    /**
+     * The last image handed over for the processing, see {@link #closeCamera()}
+     */
+    private volatile CapturedImage mCapturedImage;
+
     /**
      * This a callback object for the {@link ImageReader}. "onImageAvailable" will be called when a
-     * still image is ready to be saved.
+     * still image is ready to be sent. It is sent straight from the {@link Image} buffer.
      */
     private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
             = new ImageReader.OnImageAvailableListener() {
 
         @Override
         public void onImageAvailable(ImageReader reader) {
-            mBackgroundHandler.post(new ImageSaver(reader.acquireNextImage(), mFile));
+            Image image = reader.acquireNextImage();
+            if (image == null)
+                return;
+            final CapturedImage capturedImage = new CapturedImage(image, reader, mCaptureStartedAt);
+            mCapturedImage = capturedImage;
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    new SendImageForProcessing(CaptureFaceActivity.this, capturedImage, mFile).execute();
+                }
+            });
         }
 
     };
@@ -540,14 +567,17 @@ public class CaptureFaceActivity extends BlobActivity {
             return false;
         }
 
-        // For still image captures, we use the largest available size.
-        Size largest = Collections.max(
-                Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
-                new CompareSizesByArea());
-        Log.i(TAG, Arrays.toString(map.getOutputSizes(ImageFormat.JPEG)));
+        // For still image captures, we use the smallest size that is good enough for the face analysis
+        // with the aspect ratio of the full sensor. The full resolution is just a waste of memory and traffic.
+        Size[] jpegSizes = map.getOutputSizes(ImageFormat.JPEG);
+        Size largest = Collections.max(Arrays.asList(jpegSizes), new CompareSizesByArea());
+        Log.i(TAG, Arrays.toString(jpegSizes));
+        CaptureSizePolicy sizePolicy = new CaptureSizePolicy(PersistentData.getFaceMinResolutionPixels());
+        Size captureSize = sizePolicy.chooseCaptureSize(jpegSizes, largest);
+        Log.i(TAG, StringUtils.formatEn("Capture image size is %s (min short side %d, largest %s)", captureSize, sizePolicy.getMinShortSide(), largest));
 
 
-        mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
+        mImageReader = ImageReader.newInstance(captureSize.getWidth(), captureSize.getHeight(),
                 ImageFormat.JPEG, /*maxImages*/2);
         mImageReader.setOnImageAvailableListener(
                 mOnImageAvailableListener, mBackgroundHandler);
@@ -602,7 +632,7 @@ public class CaptureFaceActivity extends BlobActivity {
         // garbage capture data.
         mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
                 rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
-                maxPreviewHeight, largest);
+                maxPreviewHeight, captureSize);
 
         Log.i(TAG, StringUtils.formatEn("Preview image size is %s", mPreviewSize));
 
@@ -664,7 +694,13 @@ public class CaptureFaceActivity extends BlobActivity {
                 mCameraDevice = null;
             }
             if (null != mImageReader) {
-                mImageReader.close();
+                // closing the reader frees the buffer of the image that might still be being sent
+                CapturedImage capturedImage = mCapturedImage;
+                if ((capturedImage != null) && capturedImage.isFrom(mImageReader)) {
+                    capturedImage.closeReaderWhenDone();
+                } else {
+                    mImageReader.close();
+                }
                 mImageReader = null;
             }
         } catch (InterruptedException e) {
@@ -795,6 +831,7 @@ public class CaptureFaceActivity extends BlobActivity {
      */
     private void takePicture() {
         Log.d(TAG, "Taking picture");
+        mCaptureStartedAt = SystemClock.elapsedRealtime();
         lockFocus();
     }
 
@@ -851,7 +888,8 @@ public class CaptureFaceActivity extends BlobActivity {
             captureBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
             setAutoFlash(captureBuilder);
 
-            // Orientation
+            // Orientation. Most cameras rotate the pixels accordingly, some only set the EXIF
+            // orientation, see SendImageForProcessing
             int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
             int jpegOrientation = getOrientation(displayRotation);
             Log.i(TAG, StringUtils.formatEn("display rot = %d, jpeg = %d, sensor = %d", displayRotation, jpegOrientation, mSensorOrientation));
@@ -863,12 +901,8 @@ public class CaptureFaceActivity extends BlobActivity {
                 public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                                @NonNull CaptureRequest request,
                                                @NonNull TotalCaptureResult result) {
-                    Log.d(TAG, "Saved to " + mFile.toString());
-                    if (BuildConfig.APP_IS_DEV) {
-                        showToast("Saved: " + mFile);
-                    }
+                    // the image itself is sent from mOnImageAvailableListener
                     unlockFocus();
-                    new SendImageForProcessing(CaptureFaceActivity.this, mFile).execute();
                 }
             };
 
@@ -881,33 +915,54 @@ public class CaptureFaceActivity extends BlobActivity {
     }
 
     static class SendImageForProcessing extends HttpUIAsync<FaceSightcorpApi.PersonFaceData> {
-        private final File imageFile;
+        private final CapturedImage capturedImage;
+        private final File debugImageFile;
 
-        SendImageForProcessing(BlobActivity activity, File imageFile) {
+        SendImageForProcessing(BlobActivity activity, CapturedImage capturedImage, File debugImageFile) {
             super(activity, "Image processing");
-            this.imageFile = imageFile;
+            this.capturedImage = capturedImage;
+            this.debugImageFile = debugImageFile;
         }
 
 
         @Override
         protected FaceSightcorpApi.PersonFaceData doTask(BlobContext blobContext) throws Exception {
-            // This is a necessary step as FaceSightcorp API fails on a non-rotated images
-            // and on Android a typical portrait image is rotated by 90 degrees.
-            File rotatedImage = null;
             try {
-                rotatedImage = ImageUtils.normalizeImageFileRotation(imageFile);
-                FaceSightcorpApi.PersonFaceData faceData = blobContext.getFaceApi().analyzeImage(rotatedImage);
+                ByteBuffer jpeg = capturedImage.getJpeg();
+                if (BuildConfig.APP_IS_DEV) {
+                    saveImageCopy(jpeg, debugImageFile);
+                }
+                // This is a necessary step as FaceSightcorp API fails on a non-rotated images
+                // and on Android a typical portrait image is rotated by 90 degrees.
+                // Usually this is a no-op as the camera has applied JPEG_ORIENTATION already.
+                ByteBuffer rotatedJpeg = ImageUtils.normalizeImageRotation(jpeg);
+                // no round trip to the API if there is no face, only the face itself is sent otherwise
+                ByteBuffer faceJpeg = FacePreFilter.cropToFace(rotatedJpeg);
+                FaceSightcorpApi.PersonFaceData faceData = blobContext.getFaceAnalysisService().analyzeImage(faceJpeg);
+                logStats(rotatedJpeg != jpeg);
                 return faceData;
             } finally {
-                if(!BuildConfig.APP_IS_DEV) {
-                    Log.i(TAG, "Deleting image files");
-                    if (!imageFile.delete()) {
-                        Log.w(TAG, StringUtils.formatEn("Failed to delete image file '%s'", imageFile));
-                    }
-                    if((rotatedImage != null) && rotatedImage.exists() && !rotatedImage.delete()){
-                        Log.w(TAG, StringUtils.formatEn("Failed to delete rotated image file '%s'", rotatedImage));
-                    }
+                capturedImage.close();
+            }
+        }
+
+        private void logStats(boolean wasRotated) {
+            Runtime runtime = Runtime.getRuntime();
+            long latency = SystemClock.elapsedRealtime() - capturedImage.captureStartedAt;
+            Log.i(TAG, StringUtils.formatEn("Face image: capture-to-response %d ms, rotated in memory = %b, Java heap %d KB (max %d KB), native heap %d KB",
+                    latency, wasRotated, (runtime.totalMemory() - runtime.freeMemory()) / 1024, runtime.maxMemory() / 1024,
+                    Debug.getNativeHeapAllocatedSize() / 1024));
+        }
+
+        private void saveImageCopy(ByteBuffer jpeg, File file) {
+            try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+                ByteBuffer source = jpeg.duplicate();
+                while (source.hasRemaining()) {
+                    channel.write(source);
                 }
+                Log.d(TAG, "Saved a copy to " + file);
+            } catch (IOException e) {
+                Log.w(TAG, StringUtils.formatEn("Failed to save a copy to '%s'", file), e);
             }
         }
 
@@ -963,47 +1018,52 @@ public class CaptureFaceActivity extends BlobActivity {
     }
 
     /**
-     * Saves a JPEG {@link Image} into the specified {@link File}.
+     * A captured JPEG {@link Image} that is sent straight from its buffer. Closing the {@link ImageReader}
+     * frees the buffers of its images, so if the camera is closed while the image is still being sent,
+     * the reader is closed only after the image.
      */
-    private static class ImageSaver implements Runnable {
+    static final class CapturedImage implements Closeable {
+        private final Image image;
+        private final ImageReader reader;
+        final long captureStartedAt;
+        private boolean closed = false;
+        private boolean closeReader = false;
+
+        CapturedImage(Image image, ImageReader reader, long captureStartedAt) {
+            this.image = image;
+            this.reader = reader;
+            this.captureStartedAt = captureStartedAt;
+        }
 
         /**
-         * The JPEG image
+         * @return the direct buffer with the JPEG, valid until {@link #close()}
          */
-        private final Image mImage;
-        /**
-         * The file we save the image into.
-         */
-        private final File mFile;
+        ByteBuffer getJpeg() {
+            return image.getPlanes()[0].getBuffer();
+        }
 
-        ImageSaver(Image image, File file) {
-            mImage = image;
-            mFile = file;
+        boolean isFrom(ImageReader imageReader) {
+            return reader == imageReader;
         }
 
-        @Override
-        public void run() {
-            ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
-            byte[] bytes = new byte[buffer.remaining()];
-            buffer.get(bytes);
-            FileOutputStream output = null;
-            try {
-                output = new FileOutputStream(mFile);
-                output.write(bytes);
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                mImage.close();
-                if (null != output) {
-                    try {
-                        output.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
+        synchronized void closeReaderWhenDone() {
+            if (closed) {
+                reader.close();
+            } else {
+                closeReader = true;
             }
         }
 
+        @Override
+        public synchronized void close() {
+            if (closed)
+                return;
+            closed = true;
+            image.close();
+            if (closeReader) {
+                reader.close();
+            }
+        }
     }
 
     /**
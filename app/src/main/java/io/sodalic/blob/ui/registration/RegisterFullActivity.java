@@ -29,6 +29,7 @@ import io.sodalic.blob.net.ServerApi;
 import io.sodalic.blob.sharedui.BlobActivity;
 import io.sodalic.blob.sharedui.HttpUIAsync;
 import io.sodalic.blob.storage.KnownDirs;
+import io.sodalic.blob.storage.TrackingFileLayout;
 import io.sodalic.blob.utils.Utils;
 
 import static android.view.ViewGroup.LayoutParams.MATCH_PARENT;
@@ -115,11 +116,11 @@ public class RegisterFullActivity extends BlobActivity {
         File dir = KnownDirs.getTrackingFilesDir(this, false);
         if (!dir.exists())
             return;
-        String[] files = dir.list();
-        for (String fn : files) {
+        for (File file : new TrackingFileLayout(dir).listStreamFiles(TrackingFileLayout.CRASH_LOG_STREAM)) {
+            String fn = file.getName();
             if (fn.contains("crashlog_")) {
                 Log.i(TAG, "Appending log from " + fn);
-                String all = readAll(new File(dir, fn));
+                String all = readAll(file);
                 LinearLayout main = findViewById(R.id.registerActivityMain);
                 main.addView(new View(this), new LinearLayout.LayoutParams(MATCH_PARENT, 50)); // separator
                 TextView tv = new TextView(this);
@@ -0,0 +1,65 @@
+package io.sodalic.blob.utils;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import android.support.annotation.NonNull;
+
+/**
+ * {@link InputStream} over the remaining bytes of a {@link ByteBuffer}, so the stream-based APIs such as
+ * {@link android.support.media.ExifInterface} or {@link android.graphics.BitmapFactory} can read a direct buffer
+ * without copying it into a {@code byte[]}. The stream moves the position of the buffer, pass a
+ * {@link ByteBuffer#duplicate()} to keep the original one intact.
+ */
+public final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+    private int mark;
+
+    public ByteBufferInputStream(@NonNull ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.mark = buffer.position();
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) {
+        if (len == 0)
+            return 0;
+        if (!buffer.hasRemaining())
+            return -1;
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mark = buffer.position();
+    }
+
+    @Override
+    public synchronized void reset() {
+        buffer.position(mark);
+    }
+}
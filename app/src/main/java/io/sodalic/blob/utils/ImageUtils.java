@@ -1,9 +1,13 @@
 package io.sodalic.blob.utils;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import android.Manifest;
 import android.content.Context;
@@ -31,15 +35,20 @@ public final class ImageUtils {
     @NonNull
     private static Matrix getImageRotationMatrix(@NonNull File inputImageFile) throws IOException {
         ExifInterface exif = new ExifInterface(inputImageFile.getAbsolutePath());
+        return getImageRotationMatrix(exif, inputImageFile.toString());
+    }
+
+    @NonNull
+    private static Matrix getImageRotationMatrix(@NonNull ExifInterface exif, @NonNull String imageName) {
         int orientationId = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-        Log.i(TAG, StringUtils.formatEn("image orientationID for '%s' is = %d", inputImageFile, orientationId));
+        Log.i(TAG, StringUtils.formatEn("image orientationID for '%s' is = %d", imageName, orientationId));
         Matrix matrix = new Matrix();
         switch (orientationId) {
             case ExifInterface.ORIENTATION_NORMAL:
                 // do nothing!
                 break;
             case ExifInterface.ORIENTATION_UNDEFINED:
-                Log.w(TAG, StringUtils.formatEn("Orientation is undefined for '%s'", inputImageFile));
+                Log.w(TAG, StringUtils.formatEn("Orientation is undefined for '%s'", imageName));
                 break;
             case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
                 matrix.setScale(-1, 1);
@@ -71,14 +80,21 @@ public final class ImageUtils {
         return matrix;
     }
 
-    private static void rotateImageFile(@NonNull File inputImageFile, @NonNull File rotatedImageFile, @NonNull Matrix matrix) throws IOException {
-        Bitmap origBitmap = BitmapFactory.decodeFile(inputImageFile.getAbsolutePath());
-        Bitmap rotateBitmap = Bitmap.createBitmap(origBitmap, 0, 0, origBitmap.getWidth(), origBitmap.getHeight(), matrix, false);
-        origBitmap.recycle();
-
+    private static void rotateImageFile(@NonNull File inputImageFile, @NonNull File rotatedImageFile, @NonNull Matrix matrix, int inSampleSize) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = inSampleSize;
+        Bitmap origBitmap = BitmapFactory.decodeFile(inputImageFile.getAbsolutePath(), options);
+        if (origBitmap == null)
+            throw new IOException(StringUtils.formatEn("Failed to decode '%s'", inputImageFile));
         try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(rotatedImageFile))) {
-            rotateBitmap.compress(Bitmap.CompressFormat.JPEG, 90, bos);
+            rotateAndCompress(origBitmap, matrix, bos);
         }
+    }
+
+    private static void rotateAndCompress(@NonNull Bitmap origBitmap, @NonNull Matrix matrix, @NonNull OutputStream out) {
+        Bitmap rotateBitmap = Bitmap.createBitmap(origBitmap, 0, 0, origBitmap.getWidth(), origBitmap.getHeight(), matrix, false);
+        origBitmap.recycle();
+        rotateBitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
         rotateBitmap.recycle();
     }
 
@@ -93,8 +109,21 @@ public final class ImageUtils {
      */
     @NonNull
     public static File normalizeImageFileRotation(@NonNull File inputImageFile) throws IOException {
+        return normalizeImageFileRotation(inputImageFile, 0);
+    }
+
+    /**
+     * The same as {@link #normalizeImageFileRotation(File)} but the image is also downscaled if its shorter side
+     * is at least twice as long as {@code minShortSide}. The image is decoded with {@link BitmapFactory.Options#inSampleSize}
+     * so the full-size bitmap is never allocated.
+     *
+     * @param minShortSide the shorter side of the result is not less than this, 0 means no downscaling
+     */
+    @NonNull
+    public static File normalizeImageFileRotation(@NonNull File inputImageFile, int minShortSide) throws IOException {
         Matrix matrix = getImageRotationMatrix(inputImageFile);
-        if (matrix.isIdentity())
+        int inSampleSize = calculateInSampleSize(inputImageFile, minShortSide);
+        if (matrix.isIdentity() && (inSampleSize == 1))
             return inputImageFile;
 
         String inputFileName = inputImageFile.getName();
@@ -102,8 +131,119 @@ public final class ImageUtils {
         String rotatedFileName = inputFileName.substring(0, dot_pos) + "_rot" + inputFileName.substring(dot_pos);
         File rotatedImageFile = new File(inputImageFile.getParentFile(), rotatedFileName);
 
-        rotateImageFile(inputImageFile, rotatedImageFile, matrix);
+        rotateImageFile(inputImageFile, rotatedImageFile, matrix, inSampleSize);
 
         return rotatedImageFile;
     }
+
+    /**
+     * Decodes {@code imageFile} subsampled by the largest power of 2 that keeps its shorter side not less than
+     * {@code minShortSide}, which takes {@code inSampleSize^2} times less memory than the full-size decode.
+     *
+     * @return the bitmap or {@code null} if the image can't be decoded
+     */
+    public static Bitmap decodeSampledBitmap(@NonNull File imageFile, int minShortSide) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = calculateInSampleSize(imageFile, minShortSide);
+        return BitmapFactory.decodeFile(imageFile.getAbsolutePath(), options);
+    }
+
+    private static int calculateInSampleSize(@NonNull File imageFile, int minShortSide) {
+        if (minShortSide <= 0)
+            return 1;
+        // only the header is read here
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(imageFile.getAbsolutePath(), bounds);
+        return calculateInSampleSize(bounds.outWidth, bounds.outHeight, minShortSide);
+    }
+
+    /**
+     * @return the largest power of 2 that keeps the shorter side of {@code width x height} divided by it
+     * not less than {@code minShortSide}, 1 if the size is unknown
+     */
+    public static int calculateInSampleSize(int width, int height, int minShortSide) {
+        int shortSide = Math.min(width, height);
+        int inSampleSize = 1;
+        if ((shortSide <= 0) || (minShortSide <= 0))
+            return inSampleSize;
+        while (shortSide / (inSampleSize * 2) >= minShortSide) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Computes the 64-bit difference hash (dHash) of a JPEG: the image is shrunk to 9x8 gray pixels and each bit
+     * tells whether a pixel is brighter than its right neighbour. Similar images (re-encoded, slightly shifted or
+     * differently exposed) have hashes that differ only in a few bits, see {@link Long#bitCount(long)} of their XOR.
+     *
+     * @param jpeg buffer with a JPEG image between its position and limit, it is not modified
+     */
+    public static long computeDifferenceHash(@NonNull ByteBuffer jpeg) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(new ByteBufferInputStream(jpeg.duplicate()), null, bounds);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = calculateInSampleSize(bounds.outWidth, bounds.outHeight, 4 * DHASH_WIDTH);
+        Bitmap sampled = BitmapFactory.decodeStream(new ByteBufferInputStream(jpeg.duplicate()), null, options);
+        if (sampled == null)
+            throw new IOException("Failed to decode the image for hashing");
+        Bitmap tiny = Bitmap.createScaledBitmap(sampled, DHASH_WIDTH, DHASH_HEIGHT, true);
+        if (tiny != sampled)
+            sampled.recycle();
+        int[] pixels = new int[DHASH_WIDTH * DHASH_HEIGHT];
+        tiny.getPixels(pixels, 0, DHASH_WIDTH, 0, 0, DHASH_WIDTH, DHASH_HEIGHT);
+        tiny.recycle();
+
+        long hash = 0;
+        for (int y = 0; y < DHASH_HEIGHT; y++) {
+            for (int x = 0; x < DHASH_WIDTH - 1; x++) {
+                int offset = y * DHASH_WIDTH + x;
+                hash <<= 1;
+                if (getLuminance(pixels[offset]) > getLuminance(pixels[offset + 1]))
+                    hash |= 1;
+            }
+        }
+        return hash;
+    }
+
+    private static final int DHASH_WIDTH = 9;
+    private static final int DHASH_HEIGHT = 8;
+
+    private static int getLuminance(int argb) {
+        // integer approximation of 0.299R + 0.587G + 0.114B
+        return (((argb >> 16) & 0xFF) * 77 + ((argb >> 8) & 0xFF) * 150 + (argb & 0xFF) * 29) >> 8;
+    }
+
+    /**
+     * The in-memory version of {@link #normalizeImageFileRotation(File)}. Only the EXIF of {@code jpeg} is read,
+     * so if the camera has already rotated the pixels (see {@code CaptureRequest.JPEG_ORIENTATION}) the very
+     * same buffer is returned without any copy. Otherwise the image is decoded, rotated and re-encoded into a new heap buffer.
+     *
+     * @param jpeg buffer with a JPEG image between its position and limit, it is not modified
+     * @return The buffer with the normalized JPEG. Beware, depending on the image rotation this might or might not be the same as {@code jpeg}
+     * @throws IOException
+     */
+    @NonNull
+    public static ByteBuffer normalizeImageRotation(@NonNull ByteBuffer jpeg) throws IOException {
+        Matrix matrix;
+        try (InputStream in = new ByteBufferInputStream(jpeg.duplicate())) {
+            matrix = getImageRotationMatrix(new ExifInterface(in), "in-memory image");
+        }
+        if (matrix.isIdentity())
+            return jpeg;
+
+        Log.i(TAG, "The camera has only set the EXIF orientation, rotating the image");
+        // BitmapFactory can't decode from a direct buffer, this copy only happens on such devices
+        byte[] jpegBytes = new byte[jpeg.remaining()];
+        jpeg.duplicate().get(jpegBytes);
+        Bitmap origBitmap = BitmapFactory.decodeByteArray(jpegBytes, 0, jpegBytes.length);
+        if (origBitmap == null)
+            throw new IOException("Failed to decode the captured JPEG");
+        ByteArrayOutputStream rotated = new ByteArrayOutputStream(jpegBytes.length);
+        jpegBytes = null; // let GC take it while the rotated bitmap is being allocated
+        rotateAndCompress(origBitmap, matrix, rotated);
+        return ByteBuffer.wrap(rotated.toByteArray());
+    }
 }
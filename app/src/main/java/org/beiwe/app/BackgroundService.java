@@ -88,6 +88,10 @@ public class BackgroundService extends Service {
         gpsListener = new GPSListener(appContext); // Permissions are checked in the broadcast receiver
         WifiListener.initialize(appContext);
         if (PersistentData.getAccelerometerEnabled()) {
+            // doSetup() runs again after the consent, the old listener would keep its sensor thread
+            if (accelerometerListener != null) {
+                accelerometerListener.destroy();
+            }
             accelerometerListener = new AccelerometerListener(appContext);
         }
         //Bluetooth, wifi, gps, calls, and texts need permissions
@@ -552,6 +556,7 @@ public class BackgroundService extends Service {
     @Override
     public void onTaskRemoved(Intent rootIntent) { //Log.d("BackroundService onTaskRemoved", "onTaskRemoved called with intent: " + rootIntent.toString() );
         TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis() + " " + "onTaskRemoved called with intent: " + rootIntent.toString());
+        TextFileManager.flushEverything();
         restartService();
     }
 
@@ -566,6 +571,10 @@ public class BackgroundService extends Service {
     public void onDestroy() { //Log.w("BackgroundService", "BackgroundService was destroyed.");
         //note: this does not run when the service is killed in a task manager, OR when the stopService() function is called from debugActivity.
         TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis() + " " + "BackgroundService was destroyed.");
+        if (accelerometerListener != null) {
+            accelerometerListener.destroy();
+        }
+        TextFileManager.flushEverything();
         restartService();
         super.onDestroy();
     }
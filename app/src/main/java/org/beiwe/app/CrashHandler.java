@@ -16,9 +16,11 @@ import io.sentry.Sentry;
 import io.sentry.event.BreadcrumbBuilder;
 
 import org.beiwe.app.storage.PersistentData;
+import org.beiwe.app.storage.TextFileManager;
 import io.sodalic.blob.BuildConfig;
 import io.sodalic.blob.context.BlobContextProxy;
 import io.sodalic.blob.storage.KnownDirs;
+import io.sodalic.blob.storage.TrackingFileLayout;
 import io.sodalic.blob.utils.StringUtils;
 import io.sodalic.blob.utils.Utils;
 
@@ -124,10 +126,10 @@ public class CrashHandler implements java.lang.Thread.UncaughtExceptionHandler {
      * @param context   An android Context
      */
     public static void writeCrashlog(Throwable exception, Context context) {
-        BlobContextProxy contextProxy = new BlobContextProxy(context);
-        String serverUrl = contextProxy.isFullyInitialized() ? contextProxy.getServerApi().getBaseServerUrl() : PersistentData.getServerUrl();
-
         try {
+            // inside the try as well, this is called from the catch blocks and must not throw itself
+            BlobContextProxy contextProxy = new BlobContextProxy(context);
+            String serverUrl = contextProxy.isFullyInitialized() ? contextProxy.getServerApi().getBaseServerUrl() : PersistentData.getServerUrl();
             Sentry.getContext().addTag("user_id", PersistentData.getPatientID());
             Sentry.getContext().addTag("server_url", serverUrl);
             Sentry.capture(exception);
@@ -159,11 +161,16 @@ public class CrashHandler implements java.lang.Thread.UncaughtExceptionHandler {
         }
 
         FileOutputStream outStream; //write a file...
+        long crashTime = System.currentTimeMillis();
+        String filePath = TrackingFileLayout.getRelativePath("crashlog_" + crashTime, crashTime);
         try {
-            outStream = context.openFileOutput("crashlog_" + System.currentTimeMillis(), Context.MODE_APPEND);
+            // not KnownDirs.getTrackingFileLayout, it throws if the directory can't be created
+            File file = new TrackingFileLayout(KnownDirs.getTrackingFilesDir(context, false)).prepareFile(filePath);
+            outStream = new FileOutputStream(file, true);
             outStream.write((exceptionInfo).getBytes());
             outStream.flush();
             outStream.close();
+            TextFileManager.registerClosedFile(filePath);
         } catch (FileNotFoundException e) {
             Log.e(TAG, "Could not write to file, file DNE.", e);
             e.printStackTrace();
@@ -1,17 +1,30 @@
 package org.beiwe.app.listeners;
 
+import org.beiwe.app.storage.PersistentData;
 import org.beiwe.app.storage.TextFileManager;
+import io.sodalic.blob.tracking.SensorSampleDrainer;
+import io.sodalic.blob.tracking.SensorSampleRingBuffer;
+import io.sodalic.blob.storage.BinaryRecordSchema;
+import io.sodalic.blob.storage.BinaryRecordSchema.Column;
+import io.sodalic.blob.storage.BinaryRecordSchema.ColumnType;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 
-public class AccelerometerListener implements SensorEventListener{
+public class AccelerometerListener implements SensorEventListener2{
 	public static String header = "timestamp,accuracy,x,y,z";
+	/** The binary format equivalent of the header, accuracy is -1 when it is unknown */
+	public static final BinaryRecordSchema binarySchema = new BinaryRecordSchema("accel",
+			new Column("accuracy", ColumnType.INT), new Column("x", ColumnType.FLOAT),
+			new Column("y", ColumnType.FLOAT), new Column("z", ColumnType.FLOAT));
 	
 	private SensorManager accelSensorManager;
 	private Sensor accelSensor;
@@ -22,7 +35,46 @@ public class AccelerometerListener implements SensorEventListener{
 	private Boolean exists = null;
 	private Boolean enabled = null;
 	
-	private String accuracy;
+	private static final int UNKNOWN_ACCURACY = -1;
+	// enough for 20 seconds at 200Hz before the samples start being dropped
+	private static final int SAMPLE_BUFFER_CAPACITY = 4096;
+	
+	private volatile int accuracy = UNKNOWN_ACCURACY;
+	
+	// how long turn_off() lets the sensor hub hand over the samples still sitting in its FIFO
+	private static final long FIFO_FLUSH_TIMEOUT_MILLIS = 2000;
+	/* Batched events whose age doesn't fit in the max report latency plus this margin are assumed to have
+	 * a timestamp from some other clock. The margin is for the delivery of a full FIFO and the flush at turn_off(). */
+	private static final long EVENT_AGE_MARGIN_NANOS = 30 * 1000 * 1000000L;
+	// set on each turn_on() from the latency the listener is registered with, read on the sensor thread
+	private volatile long maxEventAgeNanos = EVENT_AGE_MARGIN_NANOS;
+	
+	/* Sensor events are delivered on their own thread instead of the main one, at 100Hz and with
+	 * batches of a few thousand events coming at once the main thread can't be relied on. */
+	private HandlerThread sensorThread;
+	private Handler sensorHandler;
+	// set by turn_off() until the listener is unregistered on the sensor thread, see finishTurnOff()
+	private boolean stopPending = false;
+	private final Runnable fifoFlushTimeout = new Runnable() {
+		@Override
+		public void run() {
+			Log.w("Accelerometer", "timed out waiting for the sensor FIFO flush");
+			finishTurnOff(); } };
+	
+	/* The sensor thread only publishes samples into the ring buffer, the string building,
+	 * the encryption and the disk IO happen on the writer thread that drains it. */
+	private final SensorSampleRingBuffer sampleBuffer = new SensorSampleRingBuffer(SAMPLE_BUFFER_CAPACITY);
+	private final SensorSampleRingBuffer.SampleConsumer sampleWriter = new SensorSampleRingBuffer.SampleConsumer() {
+		@Override
+		public void accept(long timestamp, int accuracy, float x, float y, float z) {
+			TextFileManager accelFile = TextFileManager.getAccelFile();
+			if (accelFile.isBinary()) {
+				accelFile.writeRecord(timestamp, accuracy, x, y, z);
+				return; }
+			String accuracyText = (accuracy == UNKNOWN_ACCURACY) ? "unknown" : Integer.toString(accuracy);
+			accelFile.writeEncrypted(timestamp + "," + accuracyText + ',' + x + ',' + y + ',' + z);
+		} };
+	private final SensorSampleDrainer sampleDrainer;
 	
 	public Boolean check_status(){ 
 		if (exists) return enabled;
@@ -34,8 +86,8 @@ public class AccelerometerListener implements SensorEventListener{
 	 * @param applicationContext a Context from an activity or service. */
 	public AccelerometerListener(Context applicationContext){
 		this.appContext = applicationContext;
+		this.sampleDrainer = new SensorSampleDrainer(sampleBuffer, sampleWriter, "accelerometer_writer", appContext);
 		this.pkgManager = appContext.getPackageManager();
-		this.accuracy = "unknown";
 		this.exists = pkgManager.hasSystemFeature(PackageManager.FEATURE_SENSOR_ACCELEROMETER);
 		
 		if (this.exists) {
@@ -51,31 +103,91 @@ public class AccelerometerListener implements SensorEventListener{
 				Log.e("Accelerometer Problems", "accelSensor does not exist? (2)" );
 				TextFileManager.getDebugLogFile().writeEncrypted("accelSensor does not exist? (2)");
 				exists = false;	}
+			
+			if (this.exists) {
+				sensorThread = new HandlerThread("accelerometer_sensor");
+				sensorThread.start();
+				sensorHandler = new Handler(sensorThread.getLooper()); }
 	} }
 	 
+	/** Registers with the sampling period and the hardware batching latency from the study settings.
+	 * With a non-zero latency the samples are collected in the sensor hub FIFO and the CPU is only woken up
+	 * when it has to be emptied, on devices without a FIFO the latency is silently ignored by the OS. */
 	public synchronized void turn_on() {
-		if ( !accelSensorManager.registerListener(this, accelSensor, SensorManager.SENSOR_DELAY_NORMAL) ) {
+		if (stopPending) { finishTurnOff(); } //the previous session is still waiting for its FIFO flush
+		sampleDrainer.start();
+		int samplingPeriodMicroseconds = PersistentData.getAccelerometerSamplingPeriodMicroseconds();
+		int maxReportLatencyMicroseconds = PersistentData.getAccelerometerMaxReportLatencyMicroseconds();
+		maxEventAgeNanos = maxReportLatencyMicroseconds * 1000L + EVENT_AGE_MARGIN_NANOS;
+		if ( !accelSensorManager.registerListener(this, accelSensor, samplingPeriodMicroseconds, maxReportLatencyMicroseconds, sensorHandler) ) {
 			Log.e("Accelerometer", "Accelerometer is broken");
 			TextFileManager.getDebugLogFile().writeEncrypted("Trying to start Accelerometer session, device cannot find accelerometer."); }
 		enabled = true;	}
 	
+	/** Called on the main thread, so it doesn't wait for anything. Unregistering right away would throw away
+	 * the batched samples still in the sensor hub FIFO, so they are requested first and the listener is unregistered
+	 * on the sensor thread once they are delivered, or after FIFO_FLUSH_TIMEOUT_MILLIS. */
 	public synchronized void turn_off(){
+		enabled = false;
+		if (stopPending) { return; }
+		stopPending = true;
+		//with no hardware batching (or when not registered) there is nothing to wait for
+		if ( accelSensor.getFifoMaxEventCount() > 0 && accelSensorManager.flush(this) ) {
+			sensorHandler.postDelayed(fifoFlushTimeout, FIFO_FLUSH_TIMEOUT_MILLIS); }
+		else { finishTurnOff(); } }
+	
+	/** The second half of turn_off(). The writer thread writes out what is still in the buffer and exits by itself. */
+	private synchronized void finishTurnOff() {
+		if (!stopPending) { return; }
+		stopPending = false;
+		sensorHandler.removeCallbacks(fifoFlushTimeout);
 		accelSensorManager.unregisterListener(this);
-		enabled = false; }
+		sampleDrainer.stop();
+		TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis() + " accelerometer samples: " + sampleBuffer.getPublishedCount()
+				+ ", dropped: " + sampleBuffer.getDroppedCount() + ", max queue depth: " + sampleBuffer.getMaxDepth() + " of " + sampleBuffer.getCapacity()); }
 	
-	/** Update the accuracy, synchronized so very closely timed trigger events do not overlap.
-	 * (only triggered by the system.) */
+	/** Stops the listener for good when the service is destroyed: unregisters it without waiting for the FIFO,
+	 * lets the writer thread write out the buffer and quits the sensor thread once it has run what was posted to it. */
+	public synchronized void destroy() {
+		enabled = false;
+		if (!this.exists) { return; }
+		accelSensorManager.unregisterListener(this);
+		sampleDrainer.stop();
+		sensorHandler.removeCallbacks(fifoFlushTimeout);
+		stopPending = false;
+		sensorThread.quitSafely(); }
+	
+	/** Counters of the sample buffer, a non-zero dropped count or a max depth close to the capacity
+	 * mean the writer thread can't keep up with the sampling rate. */
+	public long getDroppedSampleCount() { return sampleBuffer.getDroppedCount(); }
+	public int getQueueDepth() { return sampleBuffer.getDepth(); }
+	public int getMaxQueueDepth() { return sampleBuffer.getMaxDepth(); }
+	
+	/** Called on the sensor thread after all the events from the FIFO flush were delivered. */
+	@Override
+	public void onFlushCompleted(Sensor sensor) { finishTurnOff(); }
+	
+	/** Update the accuracy. (only triggered by the system.) */
 	@Override
-	public synchronized void onAccuracyChanged(Sensor arg0, int arg1) {	accuracy = "" + arg1; }
+	public void onAccuracyChanged(Sensor arg0, int arg1) { accuracy = arg1; }
 	
 	/** On receipt of a sensor change, record it.  Include accuracy. 
-	 * (only ever triggered by the system.) */
+	 * (only ever triggered by the system, on a single thread.)
+	 * Not synchronized and does not allocate, the sample is just published for the writer thread. */
 	@Override
-	public synchronized void onSensorChanged(SensorEvent arg0) {
+	public void onSensorChanged(SensorEvent arg0) {
 //		Log.e("Accelerometer", "accelerometer update");
-		Long javaTimeCode = System.currentTimeMillis();
 		float[] values = arg0.values;
-		String data = javaTimeCode.toString() + ',' + accuracy + ',' + values[0] + ',' + values[1] + ',' + values[2];
-		TextFileManager.getAccelFile().writeEncrypted(data);
+		sampleBuffer.offer(toWallClockMillis(arg0.timestamp), accuracy, values[0], values[1], values[2]);
+	}
+	
+	/** Batched events are delivered long after they were sampled, so the time of the callback is not
+	 * the time of the sample. The event timestamp is in the elapsedRealtime time base, we convert it
+	 * using the current offset between the two clocks. */
+	private long toWallClockMillis(long eventTimestampNanos) {
+		long now = System.currentTimeMillis();
+		long ageNanos = SystemClock.elapsedRealtimeNanos() - eventTimestampNanos;
+		if (ageNanos < 0 || ageNanos > maxEventAgeNanos) { return now; } //some devices use a different time base
+		return now - ageNanos / 1000000L;
 	}
 }
\ No newline at end of file
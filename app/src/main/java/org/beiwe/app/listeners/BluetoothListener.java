@@ -2,6 +2,9 @@ package org.beiwe.app.listeners;
 
 import org.beiwe.app.storage.EncryptionEngine;
 import org.beiwe.app.storage.TextFileManager;
+import io.sodalic.blob.storage.BinaryRecordSchema;
+import io.sodalic.blob.storage.BinaryRecordSchema.Column;
+import io.sodalic.blob.storage.BinaryRecordSchema.ColumnType;
 
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
@@ -42,6 +45,9 @@ If you want to declare that your app is available to BLE-capable devices only, i
  * @author Eli Jones */
 public class BluetoothListener extends BroadcastReceiver {
 	public static String header = "timestamp, hashed MAC, RSSI";
+	/** The binary format equivalent of the header */
+	public static final BinaryRecordSchema binarySchema = new BinaryRecordSchema("bluetoothLog",
+			new Column("hashed MAC", ColumnType.STRING), new Column("RSSI", ColumnType.INT));
 	
 	private BluetoothAdapter bluetoothAdapter;
 	//bluetoothExists can be set to false if the device does not meet our needs.
@@ -166,7 +172,11 @@ public class BluetoothListener extends BroadcastReceiver {
 	private LeScanCallback bluetoothCallback = new LeScanCallback() {
 		@Override
 		public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-			TextFileManager.getBluetoothLogFile().writeEncrypted( System.currentTimeMillis() + "," + EncryptionEngine.hashMAC( device.toString() ) + "," + rssi );
+			TextFileManager bluetoothLog = TextFileManager.getBluetoothLogFile();
+			if (bluetoothLog.isBinary()) {
+				bluetoothLog.writeRecord( System.currentTimeMillis(), EncryptionEngine.hashMAC( device.toString() ), rssi ); }
+			else {
+				bluetoothLog.writeEncrypted( System.currentTimeMillis() + "," + EncryptionEngine.hashMAC( device.toString() ) + "," + rssi ); }
 //			Log.i("Bluetooth",  System.currentTimeMillis() + "," + device.toString() + ", " + rssi );
 		} }; 
 	
@@ -4,6 +4,9 @@ import org.beiwe.app.CrashHandler;
 import org.beiwe.app.PermissionHandler;
 import org.beiwe.app.storage.PersistentData;
 import org.beiwe.app.storage.TextFileManager;
+import io.sodalic.blob.storage.BinaryRecordSchema;
+import io.sodalic.blob.storage.BinaryRecordSchema.Column;
+import io.sodalic.blob.storage.BinaryRecordSchema.ColumnType;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
@@ -26,6 +29,10 @@ import android.util.Log;
 public class GPSListener implements LocationListener {
 	
 	public static String header = "timestamp, latitude, longitude, altitude, accuracy";
+	/** The binary format equivalent of the header */
+	public static final BinaryRecordSchema binarySchema = new BinaryRecordSchema("gps",
+			new Column("latitude", ColumnType.DOUBLE), new Column("longitude", ColumnType.DOUBLE),
+			new Column("altitude", ColumnType.DOUBLE), new Column("accuracy", ColumnType.FLOAT));
 	
 	private Context appContext;
 	private PackageManager pkgManager;
@@ -114,13 +121,19 @@ public class GPSListener implements LocationListener {
 		double latitude = (location.getLatitude() + PersistentData.getLatitudeOffset());
 		double longitude = ((location.getLongitude() + PersistentData.getLongitudeOffset() + 180.0) % 360) - 180.0;
 
+		TextFileManager gpsFile = TextFileManager.getGPSFile();
+		if (gpsFile.isBinary()) {
+			gpsFile.writeRecord(javaTimeCode, latitude, longitude, location.getAltitude(), location.getAccuracy());
+			return;
+		}
+
 		String data = javaTimeCode.toString() + TextFileManager.DELIMITER
 				+ latitude + TextFileManager.DELIMITER
 				+ longitude + TextFileManager.DELIMITER
 				+ location.getAltitude() + TextFileManager.DELIMITER
 				+ location.getAccuracy();
 		//note, altitude is notoriously inaccurate, getAccuracy only applies to latitude/longitude
-		TextFileManager.getGPSFile().writeEncrypted(data);
+		gpsFile.writeEncrypted(data);
 	}
 	
 	/*  We do not actually need to implement any of the following overrides.
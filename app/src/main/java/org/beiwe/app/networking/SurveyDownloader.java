@@ -1,13 +1,17 @@
 package org.beiwe.app.networking;
 
 import android.content.Context;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 import io.sodalic.blob.context.BlobContext;
+import io.sodalic.blob.net.ServerApi;
+import io.sodalic.blob.net.ServerException;
 import io.sodalic.blob.sharedui.HttpBgAsync;
 import io.sodalic.blob.utils.Utils;
 import org.beiwe.app.BackgroundService;
 import org.beiwe.app.CrashHandler;
 import org.beiwe.app.JSONUtils;
+import org.beiwe.app.storage.EncryptionEngine;
 import org.beiwe.app.storage.PersistentData;
 import org.beiwe.app.survey.SurveyScheduler;
 import org.beiwe.app.ui.utils.SurveyNotifications;
@@ -15,6 +19,8 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.UnsupportedEncodingException;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -29,13 +35,46 @@ public class SurveyDownloader {
         new HttpBgAsync(TAG, blobContext) {
             @Override
             protected void doTaskImpl(BlobContext blobContext, Context appContext) throws Exception {
-                String jsonResponseString = blobContext.getServerApi().downloadSurveys();
-                int res = updateSurveys(appContext, jsonResponseString);
-                Log.i(TAG, "Update survey res = " + res);
+                downloadAndUpdate(appContext, blobContext.getServerApi());
             }
         }.execute();
     }
 
+    @VisibleForTesting
+    static void downloadAndUpdate(Context appContext, ServerApi serverApi) throws ServerException {
+        // with no surveys stored there is nothing to compare with, always do the full download then
+        boolean hasSurveys = !PersistentData.getSurveyIds().isEmpty();
+        String knownEtag = hasSurveys ? PersistentData.getSurveysEtag() : null;
+        ServerApi.SurveysDownload download = serverApi.downloadSurveys(knownEtag);
+        if (download == null) {
+            Log.i(TAG, "Surveys are not modified (304)");
+            return;
+        }
+        // the server might not support ETags, then at least skip the parsing and all the writes
+        String contentHash = hashSurveys(download.json);
+        if (hasSurveys && (contentHash != null) && contentHash.equals(PersistentData.getSurveysContentHash())) {
+            Log.i(TAG, "Surveys are not modified (same content hash)");
+            if ((download.etag != null) && !download.etag.equals(knownEtag))
+                PersistentData.setSurveysDownloadState(download.etag, contentHash);
+            return;
+        }
+        int res = updateSurveys(appContext, download.json);
+        Log.i(TAG, "Update survey res = " + res);
+        if (res == 200)
+            PersistentData.setSurveysDownloadState(download.etag, contentHash);
+    }
+
+    private static String hashSurveys(String jsonString) {
+        if (jsonString == null)
+            return null;
+        try {
+            return EncryptionEngine.unsafeHash(jsonString);
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            Log.w(TAG, "Failed to hash the surveys", e);
+            return null;
+        }
+    }
+
     //Returns an appropriate return code for the httpAsync error parsing.  -1 if something goes wrong, 200 if it works.
     private static int updateSurveys(Context appContext, String jsonString) {
         if (jsonString == null) {
@@ -118,13 +157,17 @@ public class SurveyDownloader {
 
             if (oldSurveyIds.contains(surveyId)) { //if surveyId already exists, check for changes, add to list of new survey ids.
                 // Log.d("debugging survey update", "checking for changes");
-                PersistentData.setSurveyContent(surveyId, jsonQuestionsString);
-                PersistentData.setSurveyType(surveyId, surveyType);
-                PersistentData.setSurveySettings(surveyId, jsonSettingsString);
+                // only what has actually changed is written, an unchanged value causes no write at all
+                if (!jsonQuestionsString.equals(PersistentData.getSurveyContent(surveyId)))
+                    PersistentData.setSurveyContent(surveyId, jsonQuestionsString);
+                if (!surveyType.equals(PersistentData.getSurveyType(surveyId)))
+                    PersistentData.setSurveyType(surveyId, surveyType);
+                if (!jsonSettingsString.equals(PersistentData.getSurveySettings(surveyId)))
+                    PersistentData.setSurveySettings(surveyId, jsonSettingsString);
 //				Log.d("debugging survey update", "A is incoming, B is current.");
 //				Log.d("debugging survey update", "A) " + jsonTimingsString);
 //				Log.d("debugging survey update", "B) " + PersistentData.getSurveyTimes(surveyId) );
-                if (!PersistentData.getSurveyTimes(surveyId).equals(jsonTimingsString)) {
+                if (!jsonTimingsString.equals(PersistentData.getSurveyTimes(surveyId))) {
 //					Log.i("SurveyDownloader.java", "The survey times, they are a changin!");
                     BackgroundService.cancelSurveyAlarm(surveyId);
                     PersistentData.setSurveyTimes(surveyId, jsonTimingsString);
@@ -1,17 +1,25 @@
 package org.beiwe.app.storage;
 
-import java.io.DataInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.InvalidKeyException;
 import java.security.spec.InvalidKeySpecException;
 
 import org.beiwe.app.CrashHandler;
+import io.sodalic.blob.storage.KnownDirs;
+import io.sodalic.blob.storage.TrackingFileLayout;
+import io.sodalic.blob.storage.WavFileWriter;
 
 import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
 public class AudioFileManager {
@@ -25,27 +33,97 @@ public class AudioFileManager {
     }
     
     /** Reads in the existing temporary audio file and encrypts it. Generates AES keys as needed.
-     * Behavior is to spend as little time writing the file as possible, at the expense of memory.*/
-	public static void encryptAudioFile(String unencryptedTempAudioFilePath, String extension, String surveyId, Context appContext) {
+     * The file is streamed through the cipher straight into the output file, a chunk at a time,
+     * so the memory use is the same for a 10 second and for a 60 minute recording.
+     * The output format is unchanged: the RSA encrypted key line and then one IV:data line.
+     * The file is written in the cache dir and moved to the data files only when it is complete,
+     * so the uploader never sees a half-written recording. */
+	public static synchronized void encryptAudioFile(String unencryptedTempAudioFilePath, String extension, String surveyId, Context appContext) {
 		if (unencryptedTempAudioFilePath != null) {
 			// If the audio file has been written to, encrypt the audio file
 			String fileName = generateNewEncryptedAudioFileName(surveyId) + extension;
+			String filePath = TrackingFileLayout.getRelativePath(fileName, System.currentTimeMillis());
 			byte[] aesKey = EncryptionEngine.newAESKey();
-			String encryptedRSA = null;
-			String encryptedAudio = null;
-			try{encryptedRSA = EncryptionEngine.encryptRSA( aesKey ); 
-				encryptedAudio = EncryptionEngine.encryptAES( readInAudioFile(unencryptedTempAudioFilePath, appContext), aesKey ); }
+			File partialFile = new File(appContext.getCacheDir(), fileName);
+			InputStream inStream = null;
+			OutputStream outStream = null;
+			try {
+				String encryptedRSA = EncryptionEngine.encryptRSA( aesKey );
+				inStream = new FileInputStream( unencryptedTempAudioFilePath );
+				outStream = new BufferedOutputStream( new FileOutputStream(partialFile), AUDIO_WRITE_BUFFER_SIZE );
+				outStream.write( encryptedRSA.getBytes() );
+				outStream.write( '\n' );
+				EncryptionEngine.encryptAES( inStream, outStream, aesKey );
+				outStream.write( '\n' );
+				outStream.close();
+				outStream = null;
+				if ( !partialFile.renameTo( KnownDirs.getTrackingFileLayout(appContext).prepareFile(filePath) ) ) {
+					throw new IOException("could not move " + partialFile + " to the data files"); }
+				TextFileManager.registerClosedFile(filePath); }
 			catch (InvalidKeySpecException e) {
 				Log.e("AudioFileManager", "encrypted write operation to the audio file without a keyFile.");
 				CrashHandler.writeCrashlog(e, appContext); }
 	        catch (InvalidKeyException e) {
 	        	Log.e("AudioFileManager", "encrypted write operation to the audio file without an aes key? how is that even...");
 	        	CrashHandler.writeCrashlog(e, appContext); }
-			writePlaintext( encryptedRSA, fileName, appContext );
-			writePlaintext( encryptedAudio, fileName, appContext );
+			catch (FileNotFoundException e) {
+				Log.e("AudioRecording", "file " + unencryptedTempAudioFilePath + " or " + fileName + " cannot be opened");
+				CrashHandler.writeCrashlog(e, appContext); }
+			catch (IOException e) {
+				Log.e("AudioRecording", "error in the encryption of " + unencryptedTempAudioFilePath + ": " + e.getMessage() );
+				CrashHandler.writeCrashlog(e, appContext); }
+			finally {
+				closeQuietly(inStream);
+				closeQuietly(outStream); //only still open if something went wrong half way
+				if ( partialFile.exists() && !partialFile.delete() ) {
+					Log.e("AudioRecording", "could not delete " + partialFile); } }
 		}
 	}
-
+	
+	/** Publishes a recording that was encrypted while it was being recorded, see EncryptedWavFileWriter.
+	 * The file is hard linked under its final name, which takes the same time for any length of the recording.
+	 * The captured file itself stays in place for the playback and is deleted with the rest of the temp files. */
+	public static synchronized void publishEncryptedAudioFile(String capturedAudioFilePath, String extension, String surveyId, Context appContext) {
+		String fileName = generateNewEncryptedAudioFileName(surveyId) + extension;
+		String filePath = TrackingFileLayout.getRelativePath(fileName, System.currentTimeMillis());
+		File publishedFile = KnownDirs.getTrackingFileLayout(appContext).prepareFile(filePath);
+		try { Os.link(capturedAudioFilePath, publishedFile.getPath()); }
+		catch (ErrnoException e) { //no hard links on this file system? copy it then, still no plaintext involved
+			Log.w("AudioRecording", "could not link " + capturedAudioFilePath + ", copying: " + e.getMessage());
+			copyFile(capturedAudioFilePath, publishedFile, appContext); }
+		TextFileManager.registerClosedFile(filePath); //a no-op if the copy has failed
+	}
+	
+	private static void copyFile(String sourcePath, File target, Context appContext) {
+		File partialFile = new File(appContext.getCacheDir(), target.getName());
+		InputStream inStream = null;
+		OutputStream outStream = null;
+		try {
+			inStream = new FileInputStream( sourcePath );
+			outStream = new FileOutputStream( partialFile );
+			byte[] buffer = new byte[AUDIO_WRITE_BUFFER_SIZE];
+			int read;
+			while ( (read = inStream.read(buffer)) != -1 ) { outStream.write(buffer, 0, read); }
+			outStream.close();
+			outStream = null;
+			if ( !partialFile.renameTo(target) ) { throw new IOException("could not move " + partialFile + " to the data files"); } }
+		catch (IOException e) {
+			Log.e("AudioRecording", "could not copy " + sourcePath + ": " + e.getMessage() );
+			CrashHandler.writeCrashlog(e, appContext); }
+		finally {
+			closeQuietly(inStream);
+			closeQuietly(outStream);
+			if ( partialFile.exists() && !partialFile.delete() ) {
+				Log.e("AudioRecording", "could not delete " + partialFile); } }
+	}
+	
+	private static final int AUDIO_WRITE_BUFFER_SIZE = 64 * 1024;
+	
+	private static void closeQuietly(Closeable stream) {
+		if (stream == null) return;
+		try { stream.close(); }
+		catch (IOException e) { Log.e("AudioRecording", "could not close a stream: " + e.getMessage()); }
+	}
 	
     /** Writes string data to a the audio file. */
 	public static synchronized void writePlaintext(String data, String outputFileName, Context appContext){
@@ -65,32 +143,9 @@ public class AudioFileManager {
 			e.printStackTrace();
 			CrashHandler.writeCrashlog(e, appContext); }
 	}
-    
-	
-	/** Reads a byte array of the current temp audio file's contents.
-	 * @return byte array of file contents. */
-	public static synchronized byte[] readInAudioFile(String unencryptedTempAudioFilePath, Context appContext) {
-		DataInputStream dataInputStream;
-		byte[] data = null;
-		File file = new File(unencryptedTempAudioFilePath);
-		try {  //Read the (data) input stream, into a bytearray.  Catch exceptions.
-			dataInputStream = new DataInputStream( new FileInputStream( file ) );
-			data = new byte[ (int) file.length() ];
-			try{ dataInputStream.readFully(data); }
-			catch (IOException e) {
-				Log.e("DataFileManager", "error reading " + unencryptedTempAudioFilePath);
-				CrashHandler.writeCrashlog(e, appContext); }
-			dataInputStream.close(); }
-		catch (FileNotFoundException e) {
-			Log.e("AudioRecording", "file " + unencryptedTempAudioFilePath + " does not exist");
-			CrashHandler.writeCrashlog(e, appContext); }
-		catch (IOException e) {
-			Log.e("AudioRecording", "could not close " + unencryptedTempAudioFilePath);
-			CrashHandler.writeCrashlog(e, appContext); }
-		return data;
-	}
 	
 	/** Used to transform a raw recording file into a wav file.
+	 * The enhanced recorder writes the wav file directly with WavFileWriter now, this is kept for raw files.
 	 * @param inFilename File name of the raw file
 	 * @param outFilename Name of the file to copy it to
 	 * @param sampleRate The sample rate of the provided raw file
@@ -98,18 +153,16 @@ public class AudioFileManager {
 	 * @param bufferSize size of the read-in buffer */
 	public static void copyToWaveFile( String inFilename, String outFilename, long sampleRate, int bitDepth, int bufferSize ) {
 		int channels = 1;
-		long byteRate = (bitDepth * sampleRate * channels) / 8;
 		byte[] data = new byte[bufferSize];
 		try {
 			FileInputStream rawFileIn = new FileInputStream( inFilename );
 			FileOutputStream waveFileOut = new FileOutputStream( outFilename );
 			long totalAudioLen = rawFileIn.getChannel().size();
-			long totalDataLen = totalAudioLen + 36;
-			writeWaveFileHeader( waveFileOut, totalAudioLen, totalDataLen,
-								 sampleRate, channels, byteRate, bitDepth );
-
-			while( rawFileIn.read( data ) != -1 ) {
-				waveFileOut.write( data );
+			waveFileOut.write( WavFileWriter.buildHeader( totalAudioLen, sampleRate, channels, bitDepth ) );
+			
+			int read;
+			while( (read = rawFileIn.read( data )) != -1 ) {
+				waveFileOut.write( data, 0, read ); //the last read is usually partial
 			}
 			
 			rawFileIn.close();
@@ -118,65 +171,4 @@ public class AudioFileManager {
 		catch ( FileNotFoundException e ) { e.printStackTrace(); }
 		catch ( IOException e ) { e.printStackTrace(); }
 	}
-	
-	/**Handles the gory details of writing a wav header to the file.
-	 * @param audioFile the output stream for the file.
-	 * @param totalAudioLen number of bytes in the audio stream.
-	 * @param totalDataLen number of bytes in the file total.
-	 * @param longSampleRate sample rate of the wav file.
-	 * @param channels number of channels (1)
-	 * @param byteRate effective byte rate of the stream
-	 * @param bitDepth bits per sample (sample depth)
-	 * @throws IOException */
-	private static void writeWaveFileHeader( FileOutputStream audioFile, long totalAudioLen, long totalDataLen,
-			long longSampleRate, int channels, long byteRate, int bitDepth ) throws IOException {
-		/* this was pulled, along with a bunch of other code, from 
-		 * //http://www.edumobile.org/android/audio-recording-in-wav-format-in-android-programming/ */
-		byte[] header = new byte[44];
-		header[0] = 'R'; // RIFF/WAVE header
-		header[1] = 'I';
-		header[2] = 'F';
-		header[3] = 'F';
-		header[4] = (byte) ( totalDataLen & 0xff );
-		header[5] = (byte) ( ( totalDataLen >> 8 ) & 0xff );
-		header[6] = (byte) ( ( totalDataLen >> 16 ) & 0xff );
-		header[7] = (byte) ( ( totalDataLen >> 24 ) & 0xff );
-		header[8] = 'W';
-		header[9] = 'A';
-		header[10] = 'V';
-		header[11] = 'E';
-		header[12] = 'f'; // 'fmt ' chunk
-		header[13] = 'm';
-		header[14] = 't';
-		header[15] = ' ';
-		header[16] = 16; // 4 bytes: size of 'fmt ' chunk
-		header[17] = 0;
-		header[18] = 0;
-		header[19] = 0;
-		header[20] = 1; // format = 1
-		header[21] = 0;
-		header[22] = (byte) channels;
-		header[23] = 0;
-		header[24] = (byte) ( longSampleRate & 0xff );
-		header[25] = (byte) ( ( longSampleRate >> 8 ) & 0xff );
-		header[26] = (byte) ( ( longSampleRate >> 16 ) & 0xff );
-		header[27] = (byte) ( ( longSampleRate >> 24 ) & 0xff );
-		header[28] = (byte) ( byteRate & 0xff );
-		header[29] = (byte) ( ( byteRate >> 8 ) & 0xff );
-		header[30] = (byte) ( ( byteRate >> 16 ) & 0xff );
-		header[31] = (byte) ( ( byteRate >> 24 ) & 0xff );
-		header[32] = (byte) (2 * 16 / 8 ); // block align
-		header[33] = 0;
-		header[34] = (byte) bitDepth; // bits per sample
-		header[35] = 0;
-		header[36] = 'd';
-		header[37] = 'a';
-		header[38] = 't';
-		header[39] = 'a';
-		header[40] = (byte) ( totalAudioLen & 0xff );
-		header[41] = (byte) ( ( totalAudioLen >> 8 ) & 0xff );
-		header[42] = (byte) ( ( totalAudioLen >> 16 ) & 0xff );
-		header[43] = (byte) ( ( totalAudioLen >> 24 ) & 0xff );
-		audioFile.write( header, 0, 44 );
-	}
 }
\ No newline at end of file
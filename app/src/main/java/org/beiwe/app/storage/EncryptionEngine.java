@@ -1,4 +1,8 @@
 package org.beiwe.app.storage;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -12,15 +16,19 @@ import java.security.spec.X509EncodedKeySpec;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import android.annotation.SuppressLint;
 import android.util.Base64;
+import android.util.Base64OutputStream;
 import android.util.Log;
 
 import org.spongycastle.crypto.PBEParametersGenerator;
@@ -36,6 +44,11 @@ import org.spongycastle.crypto.params.KeyParameter;
 public class EncryptionEngine {
 	
 	private static PublicKey RSAkey = null;
+	//initialized once for the current RSAkey and reused by encryptRSA, guarded by the class lock
+	private static Cipher rsaCipher = null;
+	private static PublicKey rsaCipherKey = null;
+	//SecureRandom.nextBytes does not block on the entropy pool the way generateSeed does
+	private static final SecureRandom ivSource = new SecureRandom();
 	
 	/*############################################################################
 	 * ############################### Hashing ###################################
@@ -131,10 +144,11 @@ public class EncryptionEngine {
 	
 	
 	/**Encrypts data using the RSA cipher and the public half of an RSA key pairing provided by the server. 
+	 * The cipher is only created and initialized once per key, a Cipher returns to its initialized state after doFinal.
 	 * @param data to be encrypted
 	 * @return a hex string of the encrypted data. */
 	@SuppressLint("TrulyRandom")
-	public static String encryptRSA(byte[] data) throws InvalidKeySpecException {
+	public static synchronized String encryptRSA(byte[] data) throws InvalidKeySpecException {
 		if (RSAkey == null) readKey();
 		
 		//unfortunately we have problems encrypting this data, it occasionally loses a character, so we need to
@@ -142,21 +156,26 @@ public class EncryptionEngine {
 		data = toBase64Array(data);
 		
 		byte[] encryptedText = null;
-		Cipher rsaCipher = null;
 		
-		try { rsaCipher = Cipher.getInstance("RSA"); }
-		catch (NoSuchAlgorithmException e) {
-			Log.e("Encryption Engine", "THIS DEVICE DOES NOT SUPPORT RSA");
-			throw new NullPointerException("device is too stupid to live");}
-		catch (NoSuchPaddingException e) {
-			Log.e("Encryption Engine", "Device does not reconize padding format.  this is interesting because there ISN'T ONE (instance 1)");
-			throw new NullPointerException("device is too stupid to live");}
-		
-		try { rsaCipher.init(Cipher.ENCRYPT_MODE, RSAkey);	}
-		catch (InvalidKeyException e) {
-			Log.e("Encryption Engine", "The key is not a valid public RSA key.");
-			throw new NullPointerException("the RSA key was not valid");
-		} //will crash soon
+		if (rsaCipher == null || rsaCipherKey != RSAkey) {
+			rsaCipher = null;
+			Cipher cipher = null;
+			try { cipher = Cipher.getInstance("RSA"); }
+			catch (NoSuchAlgorithmException e) {
+				Log.e("Encryption Engine", "THIS DEVICE DOES NOT SUPPORT RSA");
+				throw new NullPointerException("device is too stupid to live");}
+			catch (NoSuchPaddingException e) {
+				Log.e("Encryption Engine", "Device does not reconize padding format.  this is interesting because there ISN'T ONE (instance 1)");
+				throw new NullPointerException("device is too stupid to live");}
+			
+			try { cipher.init(Cipher.ENCRYPT_MODE, RSAkey);	}
+			catch (InvalidKeyException e) {
+				Log.e("Encryption Engine", "The key is not a valid public RSA key.");
+				throw new NullPointerException("the RSA key was not valid");
+			} //will crash soon
+			rsaCipher = cipher;
+			rsaCipherKey = RSAkey;
+		}
 		
 		try { encryptedText = rsaCipher.doFinal( data ); }
 		catch (IllegalBlockSizeException e1) { Log.e("Encryption Engine", "The key is malformed.");
@@ -185,13 +204,87 @@ public class EncryptionEngine {
 		if (RSAkey == null) readKey(); 
 		
 		//create an iv, 16 bytes of data
-		SecureRandom random = new SecureRandom();
-		IvParameterSpec ivSpec = new IvParameterSpec( random.generateSeed(16) );
+		byte[] iv = new byte[16];
+		ivSource.nextBytes(iv);
+		return encryptAESWithCipher( newAESCipher(), new SecretKeySpec( aesKey, "AES" ), iv, plainText );
+	}
+	
+	private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+	
+	/**Streaming version of encryptAES for data that should never be held in memory at once, i.e. audio recordings.
+	 * Writes exactly what encryptAES would return for the whole input (the IV:data, no line break) to the output stream,
+	 * reading the input STREAM_CHUNK_SIZE bytes at a time, so the memory use does not depend on the size of the input.
+	 * Neither of the streams is closed.
+	 * @throws IOException on a failed read or write, the output is incomplete then. */
+	public static void encryptAES(InputStream plainText, OutputStream out, byte[] aesKey) throws InvalidKeyException, InvalidKeySpecException, IOException {
+		if (RSAkey == null) readKey();
+		
+		byte[] iv = new byte[16];
+		ivSource.nextBytes(iv);
+		Cipher cipher = newAESCipher();
+		try { cipher.init( Cipher.ENCRYPT_MODE, new SecretKeySpec( aesKey, "AES" ), new IvParameterSpec( iv ) ); }
+		catch (InvalidAlgorithmParameterException e) { //seems unlikely, iv generation failed?
+			Log.e("Encryption Engine", "InvalidAlgorithmParameterException during AES encryption..." );
+			e.printStackTrace();
+			throw new NullPointerException("InvalidAlgorithmParameterException during AES encryption..."); }
+		
+		out.write( toBase64String( iv ).getBytes() );
+		out.write( ':' );
+		// the same Base64 flags as toBase64String, the encoder keeps the partial groups between the chunks
+		Base64OutputStream base64Out = new Base64OutputStream( new NonClosingOutputStream( out ), Base64.NO_WRAP | Base64.URL_SAFE );
+		CipherOutputStream cipherOut = new CipherOutputStream( base64Out, cipher );
+		byte[] buffer = new byte[STREAM_CHUNK_SIZE];
+		int read;
+		while ( (read = plainText.read(buffer)) != -1 ) { cipherOut.write(buffer, 0, read); }
+		cipherOut.close(); //writes the final padded block and the Base64 tail, out stays open
+	}
+	
+	/** Lets the Cipher and Base64 streams be closed (which is how they write their final bytes) without closing the file under them. */
+	private static class NonClosingOutputStream extends FilterOutputStream {
+		NonClosingOutputStream(OutputStream out) { super(out); }
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); }
+		@Override
+		public void close() throws IOException { flush(); }
+	}
+	
+	/**Creates a per-file AES encryption context, see AESFileEncryptor.
+	 * @param aesKey A byte array, must contain 128 bits, used as the AES key.
+	 * @throws InvalidKeySpecException when there is no RSA key yet, same as encryptAES. */
+	public static AESFileEncryptor newAESFileEncryptor(byte[] aesKey) throws InvalidKeySpecException {
+		if (RSAkey == null) readKey();
+		return new AESFileEncryptor(aesKey);
+	}
+	
+	/**The per-file AES encryption context.
+	 * Holds the key spec, a Cipher instance and a non-blocking IV source for the lifetime of a data file,
+	 * so encrypting a line costs a cipher init with the new IV and the doFinal, nothing else.
+	 * The Cipher is not thread safe, the owner must confine an instance to one thread or lock around it
+	 * (TextFileManager does the latter). */
+	public static class AESFileEncryptor {
+		private final SecretKeySpec secretKeySpec;
+		private final Cipher cipher;
+		private final SecureRandom ivSource;
+		private final byte[] iv = new byte[16];
 		
-		//initialize an AES encryption cipher, we are using CBC mode.
-		SecretKeySpec secretKeySpec = new SecretKeySpec( aesKey, "AES" );
-		Cipher cipher = null;
-		try { cipher = Cipher.getInstance("AES/CBC/PKCS5Padding"); }
+		private AESFileEncryptor(byte[] aesKey) {
+			this.secretKeySpec = new SecretKeySpec( aesKey, "AES" );
+			this.cipher = newAESCipher();
+			this.ivSource = new SecureRandom();
+		}
+		
+		/**@return the same colon separated IV:data format as encryptAES. */
+		public String encrypt(String plainText) throws InvalidKeyException { return encrypt( plainText.getBytes() ); }
+		
+		public String encrypt(byte[] plainText) throws InvalidKeyException {
+			ivSource.nextBytes(iv);
+			return encryptAESWithCipher( cipher, secretKeySpec, iv, plainText );
+		}
+	}
+	
+	/**Looks up an AES/CBC/PKCS5Padding cipher, crashes the app if the device can't do that. */
+	private static Cipher newAESCipher() {
+		try { return Cipher.getInstance("AES/CBC/PKCS5Padding"); }
 		catch (NoSuchAlgorithmException e) { // seems unlikely and should fail at the previous AES
 			Log.e("Encryption Engine", "device does not know what AES is, instance 2" );
 			e.printStackTrace();
@@ -199,15 +292,19 @@ public class EncryptionEngine {
 		catch (NoSuchPaddingException e) { //seems unlikely
 			Log.e("Encryption Engine", "device does not know what PKCS5 padding is" );
 			e.printStackTrace();
-			throw new NullPointerException("device is too stupid to live"); } 
-		try { cipher.init( Cipher.ENCRYPT_MODE, secretKeySpec, ivSpec ); }
+			throw new NullPointerException("device is too stupid to live"); }
+	}
+	
+	private static String encryptAESWithCipher(Cipher cipher, SecretKeySpec secretKeySpec, byte[] iv, byte[] plainText) throws InvalidKeyException {
+		//initialize the AES encryption cipher, we are using CBC mode.
+		try { cipher.init( Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec( iv ) ); }
 		catch (InvalidAlgorithmParameterException e) { //seems unlikely, iv generation failed?
 			Log.e("Encryption Engine", "InvalidAlgorithmParameterException during AES encryption..." );
 			e.printStackTrace();
 			throw new NullPointerException("InvalidAlgorithmParameterException during AES encryption..."); }
 		
 		//encrypt the data
-		try { return toBase64String( ivSpec.getIV() ) + ":" +
+		try { return toBase64String( iv ) + ":" +
 					 toBase64String( cipher.doFinal( plainText ) ); }
 		catch (IllegalBlockSizeException e) { //not possible, block size is coded to use the pkcs5 spec
 			Log.e("Encryption Engine", "an impossible error ocurred" );
@@ -219,6 +316,65 @@ public class EncryptionEngine {
 			throw new NullPointerException("an unknown error occured in AES encryption."); }
 	}
 	
+	/**Creates a per-file AES-GCM frame encryption context, see AESFrameEncryptor.
+	 * @param aesKey A byte array, must contain 128 bits, used as the AES key.
+	 * @throws InvalidKeySpecException when there is no RSA key yet, same as encryptAES. */
+	public static AESFrameEncryptor newAESFrameEncryptor(byte[] aesKey) throws InvalidKeySpecException {
+		if (RSAkey == null) readKey();
+		return new AESFrameEncryptor(aesKey);
+	}
+	
+	/**Authenticated encryption of whole frames (many lines or a binary block at once) with AES-GCM.
+	 * The 12 byte nonce is a random 4 byte prefix followed by the frame counter, the key is unique to
+	 * a file so the nonce never repeats for a key.  Every frame carries its nonce and a 16 byte tag,
+	 * the tag lets the reader drop a frame that was torn by a crash.
+	 * Not thread safe, same as AESFileEncryptor. */
+	public static class AESFrameEncryptor {
+		public static final int NONCE_LENGTH = 12;
+		public static final int TAG_LENGTH = 16;
+		
+		private final SecretKeySpec secretKeySpec;
+		private final Cipher cipher;
+		private final byte[] nonce = new byte[NONCE_LENGTH];
+		private long frameCounter = 0;
+		
+		private AESFrameEncryptor(byte[] aesKey) {
+			this.secretKeySpec = new SecretKeySpec( aesKey, "AES" );
+			try { this.cipher = Cipher.getInstance("AES/GCM/NoPadding"); }
+			catch (NoSuchAlgorithmException e) {
+				Log.e("Encryption Engine", "device does not know what AES/GCM is" );
+				e.printStackTrace();
+				throw new NullPointerException("device is too stupid to live"); }
+			catch (NoSuchPaddingException e) {
+				Log.e("Encryption Engine", "device does not know what NoPadding is" );
+				e.printStackTrace();
+				throw new NullPointerException("device is too stupid to live"); }
+			ivSource.nextBytes(nonce); //only the first 4 bytes stay random
+		}
+		
+		/**@return the nonce followed by the ciphertext and the tag. */
+		public byte[] encryptFrame(byte[] plainText, int offset, int length) throws InvalidKeyException {
+			long counter = frameCounter++;
+			for (int i = NONCE_LENGTH - 1; i >= NONCE_LENGTH - 8; i--) {
+				nonce[i] = (byte) counter;
+				counter >>>= 8; }
+			try { cipher.init( Cipher.ENCRYPT_MODE, secretKeySpec, new GCMParameterSpec( TAG_LENGTH * 8, nonce ) ); }
+			catch (InvalidAlgorithmParameterException e) {
+				Log.e("Encryption Engine", "InvalidAlgorithmParameterException during AES-GCM encryption..." );
+				e.printStackTrace();
+				throw new NullPointerException("InvalidAlgorithmParameterException during AES-GCM encryption..."); }
+			
+			byte[] frame = new byte[NONCE_LENGTH + cipher.getOutputSize(length)];
+			System.arraycopy(nonce, 0, frame, 0, NONCE_LENGTH);
+			try { cipher.doFinal( plainText, offset, length, frame, NONCE_LENGTH ); }
+			catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) { //none of them can happen in the GCM encrypt mode
+				Log.e("Encryption Engine", "an impossible error ocurred in AES-GCM" );
+				e.printStackTrace();
+				throw new NullPointerException("an unknown error occured in AES-GCM encryption."); }
+			return frame;
+		}
+	}
+	
 	/* #######################################################################
 	 * ########################## Key Management #############################  
 	 * #####################################################################*/
@@ -242,6 +398,9 @@ public class EncryptionEngine {
 			throw e2; }
 	}
 	
+	/**Sets the RSA key without the key file, only for the tests. */
+	static void setRSAKey(PublicKey key) { RSAkey = key; }
+	
 	/**Generates a new 128 bit AES Encryption key.
 	 * @return a byte array 128 bits long for use as an AES Encryption key*/
 	public static byte[] newAESKey() {
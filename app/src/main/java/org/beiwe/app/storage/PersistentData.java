@@ -2,9 +2,12 @@ package org.beiwe.app.storage;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
 import io.sodalic.blob.BuildConfig;
+import io.sodalic.blob.storage.KnownDirs;
+import io.sodalic.blob.storage.SurveyBlobStore;
 import org.beiwe.app.JSONUtils;
 import io.sodalic.blob.R;
 import org.json.JSONArray;
@@ -25,8 +28,12 @@ public class PersistentData {
 	private static boolean isInitialized = false;
 
 	// Private things that are encapsulated using functions in this class 
+	// The setters apply() their changes: the reads see them right away and the disk writes are batched in the background.
+	// Only the values that identify the participant (credentials, hashing salt, GPS offsets) are commit()ed synchronously.
 	private static SharedPreferences pref; 
 	private static Editor editor;
+	// the survey contents and settings are big, they live in files so that the small writes don't rewrite them
+	private static SurveyBlobStore surveyBlobs;
 	private static Context appContext;
 	
 	/**  Editor key-strings */
@@ -47,9 +54,20 @@ public class PersistentData {
 	private static final String BLUETOOTH = "bluetooth";
 	private static final String POWER_STATE = "power_state";
 	private static final String ALLOW_UPLOAD_OVER_CELLULAR_DATA = "allow_upload_over_cellular_data";
+	private static final String USE_BUFFERED_WRITES = "use_buffered_writes";
+	private static final String USE_BINARY_SENSOR_FORMAT = "use_binary_sensor_format";
+	private static final String USE_FRAMED_ENCRYPTION = "use_framed_encryption";
+	private static final String USE_FRAME_COMPRESSION = "use_frame_compression";
 
 	private static final String ACCELEROMETER_OFF_DURATION_SECONDS = "accelerometer_off_duration_seconds";
 	private static final String ACCELEROMETER_ON_DURATION_SECONDS = "accelerometer_on_duration_seconds";
+	private static final String ACCELEROMETER_SAMPLING_PERIOD_MICROSECONDS = "accelerometer_sampling_period_microseconds";
+	private static final String ACCELEROMETER_MAX_REPORT_LATENCY_MICROSECONDS = "accelerometer_max_report_latency_microseconds";
+	private static final String UPLOAD_CONCURRENCY = "upload_concurrency";
+	private static final String FACE_MIN_RESOLUTION_PIXELS = "face_min_resolution_pixels";
+	private static final String STORAGE_QUOTA_MEGABYTES = "storage_quota_megabytes";
+	private static final String SURVEYS_ETAG = "surveys_etag";
+	private static final String SURVEYS_CONTENT_HASH = "surveys_content_hash";
 	private static final String BLUETOOTH_ON_DURATION_SECONDS = "bluetooth_on_duration_seconds";
 	private static final String BLUETOOTH_TOTAL_DURATION_SECONDS = "bluetooth_total_duration_seconds";
 	private static final String BLUETOOTH_GLOBAL_OFFSET_SECONDS = "bluetooth_global_offset_seconds";
@@ -62,6 +80,7 @@ public class PersistentData {
 	private static final String VOICE_RECORDING_MAX_TIME_LENGTH_SECONDS = "voice_recording_max_time_length_seconds";
 	private static final String WIFI_LOG_FREQUENCY_SECONDS = "wifi_log_frequency_seconds";
 	private static final String SURVEY_IDS = "survey_ids";
+	private static final String SURVEY_BLOBS_MIGRATED = "survey_blobs_migrated";
 //	private static final String SURVEY_QUESTION_IDS = "question_ids";
 
 	/*#####################################################################################
@@ -75,9 +94,35 @@ public class PersistentData {
 		appContext = context;
 		pref = appContext.getSharedPreferences(PREF_NAME, PRIVATE_MODE); //sets Shared Preferences private mode
 		editor = pref.edit();
-		editor.commit();
+		surveyBlobs = new SurveyBlobStore(KnownDirs.getSurveysDir(appContext));
+		migrateSurveyBlobs();
 		isInitialized = true;
-	} 
+	}
+	
+	/**Lets the tests see which values are written, the listener is only weakly referenced. */
+	@VisibleForTesting
+	public static void registerOnChangeListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
+		pref.registerOnSharedPreferenceChangeListener(listener); }
+	@VisibleForTesting
+	public static void unregisterOnChangeListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
+		pref.unregisterOnSharedPreferenceChangeListener(listener); }
+	
+	/** Moves the survey contents and settings out of the preferences file into the SurveyBlobStore, once.
+	 * A key is only removed from the preferences after its file is written, a crash in between just repeats the migration.
+	 * A key whose file fails to be written (e.g. the disk is full) stays in the preferences and the next start tries again,
+	 * see getSurveyBlob(). */
+	private static void migrateSurveyBlobs() {
+		if ( pref.getBoolean(SURVEY_BLOBS_MIGRATED, false) ) { return; }
+		boolean allMigrated = true;
+		for (String surveyId : getSurveyIds()) {
+			for (String key : new String[] { surveyId + "-content", surveyId + "-settings" }) {
+				String value = pref.getString(key, null);
+				if (value == null) { continue; }
+				if ( surveyBlobs.put(key, value) ) { editor.remove(key); }
+				else { allMigrated = false; } } }
+		if (allMigrated) { editor.putBoolean(SURVEY_BLOBS_MIGRATED, true); }
+		editor.commit();
+	}
 
 	/*#####################################################################################
 	##################################### User State ######################################
@@ -92,12 +137,12 @@ public class PersistentData {
 	/** Set the login session to expire a fixed amount of time in the future */
 	public static void loginOrRefreshLogin() {
 		editor.putLong(LOGIN_EXPIRATION, System.currentTimeMillis() + getMillisecondsBeforeAutoLogout());
-		editor.commit(); }
+		editor.apply(); }
 
 	/** Set the login session to "expired" */
 	public static void logout() {
 		editor.putLong(LOGIN_EXPIRATION, 0);
-		editor.commit(); }
+		editor.apply(); }
 
 	/**Getter for the IS_REGISTERED value. */
 	public static boolean isRegistered() { 
@@ -156,31 +201,47 @@ public class PersistentData {
 	public static boolean getBluetoothEnabled(){ return pref.getBoolean(BLUETOOTH, false); }
 	public static boolean getPowerStateEnabled(){ return pref.getBoolean(POWER_STATE, false); }
 	public static boolean getAllowUploadOverCellularData(){ return pref.getBoolean(ALLOW_UPLOAD_OVER_CELLULAR_DATA, false); }
+	public static boolean getUseBufferedWrites(){ return pref.getBoolean(USE_BUFFERED_WRITES, false); }
+	public static boolean getUseBinarySensorFormat(){ return pref.getBoolean(USE_BINARY_SENSOR_FORMAT, false); }
+	public static boolean getUseFramedEncryption(){ return pref.getBoolean(USE_FRAMED_ENCRYPTION, false); }
+	public static boolean getUseFrameCompression(){ return pref.getBoolean(USE_FRAME_COMPRESSION, false); }
 	
 	public static void setAccelerometerEnabled(boolean enabled) {
 		editor.putBoolean(ACCELEROMETER, enabled);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setGpsEnabled(boolean enabled) {
 		editor.putBoolean(GPS, enabled);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setCallsEnabled(boolean enabled) {
 		editor.putBoolean(CALLS, enabled);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setTextsEnabled(boolean enabled) {
 		editor.putBoolean(TEXTS, enabled);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setWifiEnabled(boolean enabled) {
 		editor.putBoolean(WIFI, enabled);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setBluetoothEnabled(boolean enabled) {
 		editor.putBoolean(BLUETOOTH, enabled);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setPowerStateEnabled(boolean enabled) {
 		editor.putBoolean(POWER_STATE, enabled);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setAllowUploadOverCellularData(boolean enabled) {
 		editor.putBoolean(ALLOW_UPLOAD_OVER_CELLULAR_DATA, enabled);
-		editor.commit(); }
+		editor.apply(); }
+	public static void setUseBufferedWrites(boolean enabled) {
+		editor.putBoolean(USE_BUFFERED_WRITES, enabled);
+		editor.apply(); }
+	public static void setUseBinarySensorFormat(boolean enabled) {
+		editor.putBoolean(USE_BINARY_SENSOR_FORMAT, enabled);
+		editor.apply(); }
+	public static void setUseFramedEncryption(boolean enabled) {
+		editor.putBoolean(USE_FRAMED_ENCRYPTION, enabled);
+		editor.apply(); }
+	public static void setUseFrameCompression(boolean enabled) {
+		editor.putBoolean(USE_FRAME_COMPRESSION, enabled);
+		editor.apply(); }
 	
 	/*#####################################################################################
 	################################## Timer Settings #####################################
@@ -215,51 +276,99 @@ public class PersistentData {
 	public static long getVoiceRecordingMaxTimeLengthMilliseconds() { return 1000L * pref.getLong(VOICE_RECORDING_MAX_TIME_LENGTH_SECONDS, DEFAULT_VOICE_RECORDING_MAX_TIME_LENGTH); }
 	public static long getWifiLogFrequencyMilliseconds() { return 1000L * pref.getLong(WIFI_LOG_FREQUENCY_SECONDS, DEFAULT_WIFI_LOG_FREQUENCY); }
 
+	/* The sensor rates are in microseconds, as the SensorManager takes them. The default period is the one
+	 * of SENSOR_DELAY_NORMAL and the default latency of 0 means no hardware batching, which is the old behavior.
+	 * The values from the server are clamped, a negative one would make registerListener() fail: the period
+	 * to 1Hz..200Hz, 200Hz is the rate the accelerometer writer is sized for, and the latency to 0..5 minutes. */
+	private static final int DEFAULT_ACCELEROMETER_SAMPLING_PERIOD = 200 * 1000;
+	private static final int DEFAULT_ACCELEROMETER_MAX_REPORT_LATENCY = 0;
+	private static final int MIN_ACCELEROMETER_SAMPLING_PERIOD = 5 * 1000;
+	private static final int MAX_ACCELEROMETER_SAMPLING_PERIOD = 1000 * 1000;
+	private static final int MAX_ACCELEROMETER_MAX_REPORT_LATENCY = 5 * 60 * 1000 * 1000;
+	
+	public static int getAccelerometerSamplingPeriodMicroseconds() {
+		int period = pref.getInt(ACCELEROMETER_SAMPLING_PERIOD_MICROSECONDS, DEFAULT_ACCELEROMETER_SAMPLING_PERIOD);
+		return Math.max(MIN_ACCELEROMETER_SAMPLING_PERIOD, Math.min(MAX_ACCELEROMETER_SAMPLING_PERIOD, period)); }
+	public static int getAccelerometerMaxReportLatencyMicroseconds() {
+		int latency = pref.getInt(ACCELEROMETER_MAX_REPORT_LATENCY_MICROSECONDS, DEFAULT_ACCELEROMETER_MAX_REPORT_LATENCY);
+		return Math.max(0, Math.min(MAX_ACCELEROMETER_MAX_REPORT_LATENCY, latency)); }
+	
+	public static void setAccelerometerSamplingPeriodMicroseconds(int microseconds) {
+		editor.putInt(ACCELEROMETER_SAMPLING_PERIOD_MICROSECONDS, microseconds);
+		editor.apply(); }
+	public static void setAccelerometerMaxReportLatencyMicroseconds(int microseconds) {
+		editor.putInt(ACCELEROMETER_MAX_REPORT_LATENCY_MICROSECONDS, microseconds);
+		editor.apply(); }
+	
+	// the number of files uploaded in parallel, 1 is the old one-at-a-time behavior
+	private static final int DEFAULT_UPLOAD_CONCURRENCY = 3;
+	public static int getUploadConcurrency() { return pref.getInt(UPLOAD_CONCURRENCY, DEFAULT_UPLOAD_CONCURRENCY); }
+	public static void setUploadConcurrency(int concurrency) {
+		editor.putInt(UPLOAD_CONCURRENCY, concurrency);
+		editor.apply(); }
+	
+	/** The width in pixels the face analysis needs across the face, the camera capture size is picked from it. */
+	private static final int DEFAULT_FACE_MIN_RESOLUTION_PIXELS = 224;
+	public static int getFaceMinResolutionPixels() { return pref.getInt(FACE_MIN_RESOLUTION_PIXELS, DEFAULT_FACE_MIN_RESOLUTION_PIXELS); }
+	public static void setFaceMinResolutionPixels(int pixels) {
+		editor.putInt(FACE_MIN_RESOLUTION_PIXELS, pixels);
+		editor.apply(); }
+	
+	/** How much space the data files waiting for the upload may take, see DiskBudget. The free space can lower it further.
+	 * The value from the server is clamped, a quota of 0 or less would refuse all but the essential writes. */
+	private static final int DEFAULT_STORAGE_QUOTA_MEGABYTES = 500;
+	private static final int MIN_STORAGE_QUOTA_MEGABYTES = 10;
+	public static int getStorageQuotaMegabytes() {
+		return Math.max(MIN_STORAGE_QUOTA_MEGABYTES, pref.getInt(STORAGE_QUOTA_MEGABYTES, DEFAULT_STORAGE_QUOTA_MEGABYTES)); }
+	public static void setStorageQuotaMegabytes(int megabytes) {
+		editor.putInt(STORAGE_QUOTA_MEGABYTES, megabytes);
+		editor.apply(); }
+	
 	public static void setAccelerometerOffDurationSeconds(long seconds) {
 		editor.putLong(ACCELEROMETER_OFF_DURATION_SECONDS, seconds);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setAccelerometerOnDurationSeconds(long seconds) {
 		editor.putLong(ACCELEROMETER_ON_DURATION_SECONDS, seconds);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setBluetoothOnDurationSeconds(long seconds) {
 		editor.putLong(BLUETOOTH_ON_DURATION_SECONDS, seconds);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setBluetoothTotalDurationSeconds(long seconds) {
 		editor.putLong(BLUETOOTH_TOTAL_DURATION_SECONDS, seconds);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setBluetoothGlobalOffsetSeconds(long seconds) {
 		editor.putLong(BLUETOOTH_GLOBAL_OFFSET_SECONDS, seconds);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setCheckForNewSurveysFrequencySeconds(long seconds) {
 		editor.putLong(CHECK_FOR_NEW_SURVEYS_FREQUENCY_SECONDS, seconds);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setCreateNewDataFilesFrequencySeconds(long seconds) {
 		editor.putLong(CREATE_NEW_DATA_FILES_FREQUENCY_SECONDS, seconds);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setGpsOffDurationSeconds(long seconds) {
 		editor.putLong(GPS_OFF_DURATION_SECONDS, seconds);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setGpsOnDurationSeconds(long seconds) {
 		editor.putLong(GPS_ON_DURATION_SECONDS, seconds);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setSecondsBeforeAutoLogout(long seconds) {
 		editor.putLong(SECONDS_BEFORE_AUTO_LOGOUT, seconds);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setUploadDataFilesFrequencySeconds(long seconds) {
 		editor.putLong(UPLOAD_DATA_FILES_FREQUENCY_SECONDS, seconds);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setVoiceRecordingMaxTimeLengthSeconds(long seconds) {
 		editor.putLong(VOICE_RECORDING_MAX_TIME_LENGTH_SECONDS, seconds);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setWifiLogFrequencySeconds(long seconds) {
 		editor.putLong(WIFI_LOG_FREQUENCY_SECONDS, seconds);
-		editor.commit(); }
+		editor.apply(); }
 
 	
 	//accelerometer, bluetooth, new surveys, create data files, gps, logout,upload, wifilog (not voice recording, that doesn't apply
 	public static void setMostRecentAlarmTime(String identifier, long time) {
 		editor.putLong(identifier + "-prior_alarm", time);
-		editor.commit(); }
+		editor.apply(); }
 	public static long getMostRecentAlarmTime(String identifier) { return pref.getLong( identifier + "-prior_alarm", 0); }
 	//we want default to be 0 so that checks "is this value less than the current expected value" (eg "did this timer event pass already")
 	
@@ -287,16 +396,16 @@ public class PersistentData {
 	
 	public static void setAboutPageText(String text) {
 		editor.putString(ABOUT_PAGE_TEXT_KEY, text);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setCallClinicianButtonText(String text) {
 		editor.putString(CALL_CLINICIAN_BUTTON_TEXT_KEY, text);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setConsentFormText(String text) {
 		editor.putString(CONSENT_FORM_TEXT_KEY, text);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setSurveySubmitSuccessToastText(String text) {
 		editor.putString(SURVEY_SUBMIT_SUCCESS_TOAST_TEXT_KEY, text);
-		editor.commit(); }
+		editor.apply(); }
 
 	/*###########################################################################################
 	################################### User Credentials ########################################
@@ -326,23 +435,31 @@ public class PersistentData {
 	public static String getPrimaryCareNumber() { return pref.getString(PCP_PHONE_KEY, ""); }
 	public static void setPrimaryCareNumber( String phoneNumber) {
 		editor.putString(PCP_PHONE_KEY, phoneNumber );
-		editor.commit(); }
+		editor.apply(); }
 
 	public static String getPasswordResetNumber() { return pref.getString(PASSWORD_RESET_NUMBER_KEY, ""); }
 	public static void setPasswordResetNumber( String phoneNumber ){
 		editor.putString(PASSWORD_RESET_NUMBER_KEY, phoneNumber );
-		editor.commit(); }
+		editor.apply(); }
 
 	/*###########################################################################################
 	###################################### Survey Info ##########################################
 	###########################################################################################*/
 	
+	/** The ETag and the content hash of the last applied survey download, see SurveyDownloader */
+	public static String getSurveysEtag() { return pref.getString(SURVEYS_ETAG, null); }
+	public static String getSurveysContentHash() { return pref.getString(SURVEYS_CONTENT_HASH, null); }
+	public static void setSurveysDownloadState(String etag, String contentHash) {
+		editor.putString(SURVEYS_ETAG, etag);
+		editor.putString(SURVEYS_CONTENT_HASH, contentHash);
+		editor.apply(); }
+	
 	public static List<String> getSurveyIds() { return JSONUtils.jsonArrayToStringList(getSurveyIdsJsonArray()); }
 	public static List<String> getSurveyQuestionMemory(String surveyId) { return JSONUtils.jsonArrayToStringList(getSurveyQuestionMemoryJsonArray(surveyId)); }
 	public static String getSurveyTimes(String surveyId){ return pref.getString(surveyId + "-times", null); }
-	public static String getSurveyContent(String surveyId){ return pref.getString(surveyId + "-content", null); }
+	public static String getSurveyContent(String surveyId){ return getSurveyBlob(surveyId + "-content"); }
 	public static String getSurveyType(String surveyId){ return pref.getString(surveyId + "-type", null); }
-	public static String getSurveySettings(String surveyId){ return pref.getString(surveyId + "-settings", null); }
+	public static String getSurveySettings(String surveyId){ return getSurveyBlob(surveyId + "-settings"); }
 	public static Boolean getSurveyNotificationState( String surveyId) { return pref.getBoolean(surveyId + "-notificationState", false ); }
 	public static long getMostRecentSurveyAlarmTime(String surveyId) { return pref.getLong( surveyId + "-prior_alarm", MAX_LONG); }
 	
@@ -354,27 +471,36 @@ public class PersistentData {
 	}
 	//individual setters
 	public static void setSurveyContent(String surveyId, String content){
-		editor.putString(surveyId + "-content", content);
-		editor.commit(); }
+		setSurveyBlob(surveyId + "-content", content); }
 	public static void setSurveyTimes(String surveyId, String times){
 		editor.putString(surveyId + "-times", times);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setSurveyType(String surveyId, String type){
 		editor.putString(surveyId + "-type", type);
-		editor.commit(); }
+		editor.apply(); }
 	public static void setSurveySettings(String surveyId, String settings){
 //		Log.d("presistent data", "setting survey settings: " + settings);
-		editor.putString(surveyId + "-settings", settings);
-		editor.commit();
+		setSurveyBlob(surveyId + "-settings", settings);
 	}
 	
+	/** The survey contents and settings are in the SurveyBlobStore, only a value that failed to be migrated
+	 * is still in the preferences, see migrateSurveyBlobs(). */
+	private static String getSurveyBlob(String key) {
+		String value = surveyBlobs.get(key);
+		return (value != null) ? value : pref.getString(key, null); }
+	private static void setSurveyBlob(String key, String value) {
+		//an unmigrated old value would otherwise be moved over the new one by the next migration
+		if ( surveyBlobs.put(key, value) && pref.contains(key) ) {
+			editor.remove(key);
+			editor.apply(); } }
+	
 	//survey state storage
 	public static void setSurveyNotificationState(String surveyId, Boolean bool ) {
 		editor.putBoolean(surveyId + "-notificationState", bool );
-		editor.commit(); }
+		editor.apply(); }
 	public static void setMostRecentSurveyAlarmTime(String surveyId, long time) {
 		editor.putLong(surveyId + "-prior_alarm", time);
-		editor.commit(); }
+		editor.apply(); }
 	
 	
 	public static void deleteSurvey(String surveyId) {
@@ -384,7 +510,9 @@ public class PersistentData {
 		editor.remove(surveyId + "-notificationState");
 		editor.remove(surveyId + "-settings");
 		editor.remove(surveyId + "-questionIds");
-		editor.commit();
+		editor.apply();
+		surveyBlobs.remove(surveyId + "-content");
+		surveyBlobs.remove(surveyId + "-settings");
 		removeSurveyId(surveyId);
 	}
 	
@@ -402,7 +530,7 @@ public class PersistentData {
 		if ( !list.contains(surveyId) ) {
 			list.add(surveyId);
 			editor.putString(SURVEY_IDS, new JSONArray(list).toString() );
-			editor.commit();
+			editor.apply();
 		}
 		else { throw new NullPointerException("duplicate survey id added: " + surveyId); } //we ensure uniqueness in the downloader, this should be unreachable.
 	}
@@ -412,7 +540,7 @@ public class PersistentData {
 		if ( list.contains(surveyId) ) {
 			list.remove(surveyId);
 			editor.putString(SURVEY_IDS, new JSONArray(list).toString() );
-			editor.commit();
+			editor.apply();
 		}
 		else { throw new NullPointerException("survey id does not exist: " + surveyId); } //we ensure uniqueness in the downloader, this should be unreachable.
 	}
@@ -431,14 +559,14 @@ public class PersistentData {
 		if ( !list.contains(questionId) ) {
 			list.add(questionId);
 			editor.putString(surveyId + "-questionIds", new JSONArray(list).toString() );
-			editor.commit();
+			editor.apply();
 		}
 		else { throw new NullPointerException("duplicate question id added: " + questionId); } //we ensure uniqueness in the downloader, this should be unreachable.
 	}
 	
 	public static void clearSurveyQuestionMemory(String surveyId) {
 		editor.putString(surveyId + "-questionIds", new JSONArray().toString() );
-		editor.commit();
+		editor.apply();
 	}
 
 	/*###########################################################################################
@@ -480,7 +608,7 @@ public class PersistentData {
 
 	public static void setUseAnonymizedHashing(boolean useAnonymizedHashing) {
 		editor.putBoolean(USE_ANONYMIZED_HASHING_KEY, useAnonymizedHashing);
-		editor.commit();
+		editor.apply();
 	}
 	public static boolean getUseAnonymizedHashing() {
 		return pref.getBoolean(USE_ANONYMIZED_HASHING_KEY, true); //If not present, default to safe hashing
@@ -528,7 +656,7 @@ public class PersistentData {
 
 	public static void setUseGpsFuzzing(boolean useFuzzyGps) {
 		editor.putBoolean(USE_GPS_FUZZING_KEY, useFuzzyGps);
-		editor.commit();
+		editor.apply();
 	}
 	private static boolean getUseGpsFuzzing() {
 		return pref.getBoolean(USE_GPS_FUZZING_KEY, false);
@@ -26,11 +26,53 @@ public class SetDeviceSettings {
 		catch (JSONException e) { allowUploadOverCellularData = false; }
 		PersistentData.setAllowUploadOverCellularData(allowUploadOverCellularData);
 		
+		Boolean useBufferedWrites; // Keeping the sensor files open and buffered is opt-in, up to 10 seconds of data may be lost on a crash
+		try { useBufferedWrites = deviceSettings.getBoolean("use_buffered_writes");}
+		catch (JSONException e) { useBufferedWrites = false; }
+		PersistentData.setUseBufferedWrites(useBufferedWrites);
+		
+		Boolean useBinarySensorFormat; // Binary accelerometer, GPS and bluetooth files are opt-in, old servers can't read them
+		try { useBinarySensorFormat = deviceSettings.getBoolean("use_binary_sensor_format");}
+		catch (JSONException e) { useBinarySensorFormat = false; }
+		PersistentData.setUseBinarySensorFormat(useBinarySensorFormat);
+		
+		Boolean useFramedEncryption; // AES-GCM framed files are opt-in too, for the same reason
+		try { useFramedEncryption = deviceSettings.getBoolean("use_framed_encryption");}
+		catch (JSONException e) { useFramedEncryption = false; }
+		PersistentData.setUseFramedEncryption(useFramedEncryption);
+		
+		Boolean useFrameCompression; // Deflating the frames before the encryption as well, it only applies to the framed files
+		try { useFrameCompression = deviceSettings.getBoolean("use_frame_compression");}
+		catch (JSONException e) { useFrameCompression = false; }
+		PersistentData.setUseFrameCompression(useFrameCompression);
+		
 		// Write timer settings
 		int accelerometerOffDuration = deviceSettings.getInt("accelerometer_off_duration_seconds");
 		PersistentData.setAccelerometerOffDurationSeconds(accelerometerOffDuration);
 		int accelerometerOnDuration = deviceSettings.getInt("accelerometer_on_duration_seconds");
 		PersistentData.setAccelerometerOnDurationSeconds(accelerometerOnDuration);
+		
+		int accelerometerSamplingPeriod; // The sensor rate settings are optional, the defaults match the old fixed rate
+		try { accelerometerSamplingPeriod = deviceSettings.getInt("accelerometer_sampling_period_microseconds");}
+		catch (JSONException e) { accelerometerSamplingPeriod = 200 * 1000; }
+		PersistentData.setAccelerometerSamplingPeriodMicroseconds(accelerometerSamplingPeriod);
+		int accelerometerMaxReportLatency;
+		try { accelerometerMaxReportLatency = deviceSettings.getInt("accelerometer_max_report_latency_microseconds");}
+		catch (JSONException e) { accelerometerMaxReportLatency = 0; }
+		PersistentData.setAccelerometerMaxReportLatencyMicroseconds(accelerometerMaxReportLatency);
+		int uploadConcurrency; // Optional as well, old servers don't know about parallel uploads
+		try { uploadConcurrency = deviceSettings.getInt("upload_concurrency");}
+		catch (JSONException e) { uploadConcurrency = 3; }
+		PersistentData.setUploadConcurrency(uploadConcurrency);
+		int faceMinResolution; // Optional too, the face picture is sized for this
+		try { faceMinResolution = deviceSettings.getInt("face_min_resolution_pixels");}
+		catch (JSONException e) { faceMinResolution = 224; }
+		PersistentData.setFaceMinResolutionPixels(faceMinResolution);
+		int storageQuota; // Optional, the data files backlog may take this much space
+		try { storageQuota = deviceSettings.getInt("storage_quota_megabytes");}
+		catch (JSONException e) { storageQuota = 500; }
+		PersistentData.setStorageQuotaMegabytes(storageQuota);
+		
 		int bluetoothOnDurationSeconds = deviceSettings.getInt("bluetooth_on_duration_seconds");
 		PersistentData.setBluetoothOnDurationSeconds(bluetoothOnDurationSeconds);
 		int bluetoothTotalDurationSeconds = deviceSettings.getInt("bluetooth_total_duration_seconds");
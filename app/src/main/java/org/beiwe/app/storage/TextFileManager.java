@@ -1,6 +1,8 @@
 package org.beiwe.app.storage;
 
 import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -9,8 +11,13 @@ import java.security.spec.InvalidKeySpecException;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
 import org.beiwe.app.CrashHandler;
@@ -19,7 +26,16 @@ import org.beiwe.app.survey.AudioRecorderActivity;
 import org.beiwe.app.survey.AudioRecorderEnhancedActivity;
 import org.beiwe.app.survey.SurveyAnswersRecorder;
 import org.beiwe.app.survey.SurveyTimingsRecorder;
+import io.sodalic.blob.storage.BinaryBlockWriter;
+import io.sodalic.blob.storage.BinaryRecordSchema;
+import io.sodalic.blob.storage.BufferedStreamWriter;
+import io.sodalic.blob.storage.FileKeyPool;
+import io.sodalic.blob.storage.FramedFileWriter;
 import io.sodalic.blob.storage.KnownDirs;
+import io.sodalic.blob.storage.TrackingFileFormat;
+import io.sodalic.blob.storage.TrackingFileLayout;
+import io.sodalic.blob.tracking.DiskBudget;
+import io.sodalic.blob.tracking.UploadManifest;
 import io.sodalic.blob.utils.StringUtils;
 import io.sodalic.blob.utils.Utils;
 
@@ -59,7 +75,28 @@ public class TextFileManager {
 	
 	//"global" static variables
 	private static Context appContext;
+	//the data files are in a directory per stream and hour, the persistent ones stay directly in the files dir
+	private static TrackingFileLayout trackingLayout;
+	//the closed files waiting for the upload, every file is added to it when it is retired, see retireFile()
+	private static UploadManifest uploadManifest;
+	//refuses the writes of the less important streams when the data files take too much space
+	private static DiskBudget diskBudget;
+	//the keys of the new files are prepared in the background, enough for a whole rotation and a survey file
+	private static FileKeyPool fileKeyPool;
+	private static final int FILE_KEY_POOL_SIZE = 8;
+	private static final String UPLOAD_MANIFEST_FILE_NAME = "upload_manifest";
+	private static boolean flatFilesMigrated = false;
 	private static int GETTER_TIMEOUT = 50; //value is in milliseconds
+	//buffered writes settings, data of the high-rate streams is kept in memory for at most that long
+	private static final int BUFFERED_WRITE_SIZE_BYTES = 16 * 1024;
+	private static final long BUFFERED_WRITE_INTERVAL_MILLIS = 10 * 1000;
+	//writes out the buffers every BUFFERED_WRITE_INTERVAL_MILLIS, a stream with no new lines would otherwise keep its last ones in memory
+	private static ScheduledExecutorService flushScheduler = null;
+	//max records in a single encrypted block of a binary file, a block is also written out after BUFFERED_WRITE_INTERVAL_MILLIS
+	private static final int BINARY_BLOCK_ROWS = 512;
+	//limits of a single AES-GCM frame of a framed file, a frame is also sealed after BUFFERED_WRITE_INTERVAL_MILLIS
+	private static final int FRAME_MAX_LINES = 1000;
+	private static final int FRAME_MAX_BYTES = 16 * 1024;
 	private static String getter_error = "Tried to access %s before calling TextFileManager.start().";
 	private static String broken_getter_error = "Tried to access %s before calling TextFileManager.start(), but the timeout failed.";
 	private static void throwGetterError(String sourceName) { throw new NullPointerException( String.format(getter_error, sourceName) ); }
@@ -80,6 +117,7 @@ public class TextFileManager {
 	//(the persistent files)
 	public static TextFileManager getDebugLogFile() { checkAvailableWithTimeout("debugLogFile"); return debugLogFile; }
 	public static TextFileManager getKeyFile() { checkAvailableWithTimeout("keyFile"); return keyFile; }
+	public static UploadManifest getUploadManifest() { return uploadManifest; }
 	
 	/** Checks the availability of a given TextFile, returns true if available, false otherwise. */
 	private static Boolean checkTextFileAvailable(String thing) {
@@ -124,11 +162,21 @@ public class TextFileManager {
 	//and (finally) the non-static object instance variables
 	public String name = null;
 	public String fileName = null;
+	private String stream = null; //see TrackingFileLayout.getStreamName(), the disk budget is per stream
+	private String filePath = null; //of a non-persistent file, relative to the trackingLayout root
 	private String header = null;
 	private Boolean persistent = null;
 	private Boolean encrypted = null;
 	private Boolean isDummy = true;
-	private byte[] AESKey = null;
+	private Boolean bufferedWrites = false;
+	private EncryptionEngine.AESFileEncryptor AESEncryptor = null;
+	private BufferedStreamWriter bufferedWriter = null;
+	private BinaryRecordSchema binarySchema = null;
+	private BinaryBlockWriter binaryBlock = null;
+	private long binaryBlockOpenTime = 0; //when the pending binary block got its first record, by the wall clock
+	private Boolean framed = false;
+	private Boolean compressedFrames = false;
+	private FramedFileWriter framedWriter = null;
 	
 	/*###############################################################################
 	########################### Class Initialization ################################
@@ -139,24 +187,51 @@ public class TextFileManager {
 	 * Initializes all TextFileManager object instances.  Initialization is idempotent.
 	 * @param appContext a Context, provided by the app. */
 	public static synchronized void initialize(Context appContext){
+		if (uploadManifest == null) {
+			trackingLayout = KnownDirs.getTrackingFileLayout(appContext);
+			uploadManifest = new UploadManifest(trackingLayout, new File(KnownDirs.getUploadStateDir(appContext), UPLOAD_MANIFEST_FILE_NAME));
+			diskBudget = new DiskBudget(trackingLayout.getRoot(), uploadManifest, new DiskBudget.Listener() {
+				@Override public void evictFile(String path) { deleteTrackingFile(path); }
+				@Override public void onStateChanged(int minAllowedPriority, String summary) {
+					writeDiskBudgetNotice("writes allowed from priority " + minAllowedPriority + ", " + summary); }
+			});
+			fileKeyPool = new FileKeyPool(FILE_KEY_POOL_SIZE);
+			if (PersistentData.isRegistered()) { fileKeyPool.requestRefill(); } } //ready for the first rotation
 		//the key file for encryption (it is persistent and never written to)
-		keyFile = new TextFileManager(appContext, "keyFile", "", true, true, false, false);
+		keyFile = new TextFileManager(appContext, "keyFile", "", true, true, false, false, false);
 		// Persistent files (old, no longer used, but this is an example of a persistent file (one that does not get abandoned at shut-down/initialization) )
 //		currentDailyQuestions = new TextFileManager(appContext, "currentDailyQuestionsFile.json", EMPTY_HEADER, true, true, false);
 //		currentWeeklyQuestions = new TextFileManager(appContext, "currentWeeklyQuestionsFile.json", EMPTY_HEADER, true, true, false);
 		// The debug file is no longer persistent, so that we can upload it to the server associated with a user, otherwise it has the name "logfile.txt" and fails to upload.
-		debugLogFile = new TextFileManager(appContext, "logFile", "THIS LINE IS A LOG FILE HEADER", false, false, true, false);
-		// Regularly/periodically-created files
-		GPSFile = new TextFileManager(appContext, "gps", GPSListener.header, false, false, true, !PersistentData.getGpsEnabled());
-		accelFile = new TextFileManager(appContext, "accel", AccelerometerListener.header, false, false, true, !PersistentData.getAccelerometerEnabled());
-		textsLog = new TextFileManager(appContext, "textsLog", SmsSentLogger.header, false, false, true, !PersistentData.getTextsEnabled());
-		callLog = new TextFileManager(appContext, "callLog", CallLogger.header, false, false, true, !PersistentData.getCallsEnabled());
-		powerStateLog = new TextFileManager(appContext, "powerState", PowerStateListener.header, false, false, true, !PersistentData.getPowerStateEnabled());
-		bluetoothLog = new TextFileManager(appContext, "bluetoothLog", BluetoothListener.header, false, false, true, !PersistentData.getBluetoothEnabled());
+		debugLogFile = new TextFileManager(appContext, "logFile", "THIS LINE IS A LOG FILE HEADER", false, false, true, false, false);
+		// Regularly/periodically-created files, the high-rate sensor streams may keep their file open and buffer writes.
+		// That is opt-in, it is enabled by the server via the device settings. The framed encryption needs it.
+		boolean bufferedSensorWrites = PersistentData.getUseBufferedWrites() || PersistentData.getUseFramedEncryption();
+		GPSFile = new TextFileManager(appContext, "gps", GPSListener.header, false, false, true, !PersistentData.getGpsEnabled(), bufferedSensorWrites);
+		accelFile = new TextFileManager(appContext, "accel", AccelerometerListener.header, false, false, true, !PersistentData.getAccelerometerEnabled(), bufferedSensorWrites);
+		textsLog = new TextFileManager(appContext, "textsLog", SmsSentLogger.header, false, false, true, !PersistentData.getTextsEnabled(), false);
+		callLog = new TextFileManager(appContext, "callLog", CallLogger.header, false, false, true, !PersistentData.getCallsEnabled(), false);
+		powerStateLog = new TextFileManager(appContext, "powerState", PowerStateListener.header, false, false, true, !PersistentData.getPowerStateEnabled(), false);
+		bluetoothLog = new TextFileManager(appContext, "bluetoothLog", BluetoothListener.header, false, false, true, !PersistentData.getBluetoothEnabled(), bufferedSensorWrites);
+		if (bufferedSensorWrites) { startPeriodicFlush(); }
 		// Files created on specific events/written to in one go.
-		surveyTimings = new TextFileManager(appContext, "surveyTimings_", SurveyTimingsRecorder.header, false, false, true, false);
-		surveyAnswers = new TextFileManager(appContext, "surveyAnswers_", SurveyAnswersRecorder.header, false, false, true, false);
-		wifiLog = new TextFileManager(appContext, "wifiLog", WifiListener.header, false, false, true, !PersistentData.getWifiEnabled());
+		surveyTimings = new TextFileManager(appContext, "surveyTimings_", SurveyTimingsRecorder.header, false, false, true, false, false);
+		surveyAnswers = new TextFileManager(appContext, "surveyAnswers_", SurveyAnswersRecorder.header, false, false, true, false, false);
+		wifiLog = new TextFileManager(appContext, "wifiLog", WifiListener.header, false, false, true, !PersistentData.getWifiEnabled(), false);
+		// The binary format is opt-in, it is enabled by the server via the device settings.
+		if (PersistentData.getUseBinarySensorFormat()) {
+			GPSFile.enableBinaryFormat(GPSListener.binarySchema);
+			accelFile.enableBinaryFormat(AccelerometerListener.binarySchema);
+			bluetoothLog.enableBinaryFormat(BluetoothListener.binarySchema);
+		}
+		// So is the framed encryption, it needs the file to stay open between writes so it only applies to the buffered streams.
+		// The frames may also be compressed, the server tells whether it can read such files.
+		if (PersistentData.getUseFramedEncryption()) {
+			boolean compressFrames = PersistentData.getUseFrameCompression();
+			GPSFile.enableFramedEncryption(compressFrames);
+			accelFile.enableFramedEncryption(compressFrames);
+			bluetoothLog.enableFramedEncryption(compressFrames);
+		}
 	}
 	
 	/*###############################################################################
@@ -170,8 +245,10 @@ public class TextFileManager {
 	 * @param header The first line of the file.  Leave empty if you don't want a header, remember to include a new line at the end of the header.
 	 * @param persistent Set this to true for a persistent file.  Persistent files are not currently encryptable.
 	 * @param openOnInstantiation This boolean value dictates whether the file should be opened, mostly this is used in conjunction persistent files so that they can be read from.
-	 * @param encrypted Set this to True if the file will have encrypted writes. */
-	private TextFileManager(Context appContext, String name, String header, Boolean persistent, Boolean openOnInstantiation, Boolean encrypted, Boolean isDummy ){
+	 * @param encrypted Set this to True if the file will have encrypted writes.
+	 * @param bufferedWrites Set this to True to keep the file open between writes and flush it by size and by time.
+	 *   Meant for the high-rate streams, data written in the last BUFFERED_WRITE_INTERVAL_MILLIS may be lost on a crash. */
+	private TextFileManager(Context appContext, String name, String header, Boolean persistent, Boolean openOnInstantiation, Boolean encrypted, Boolean isDummy, Boolean bufferedWrites ){
 		TextFileManager.appContext = appContext;
 		if ( persistent && encrypted ) { throw new NullPointerException("Persistent files do not support encryption."); }
 		this.name = name;
@@ -179,10 +256,32 @@ public class TextFileManager {
 		this.persistent = persistent;
 		this.encrypted = encrypted;
 		this.isDummy = isDummy;
+		this.bufferedWrites = bufferedWrites;
+		this.stream = name.endsWith("_") ? name.substring(0, name.length() - 1) : name;
 		//if (isDummy) { Log.e("TextFileManager", "creating dummy handle for " + this.name); }
 		if (openOnInstantiation) { this.newFile(); } //immediately creating a file on instantiation was a common code pattern.
 	}
 	
+	/** Switches the file to the binary record format, see BinaryBlockWriter. Records must then be written
+	 * with writeRecord() instead of writeEncrypted(). Only used during initialization, before any file is created. */
+	private void enableBinaryFormat(BinaryRecordSchema schema) {
+		if ( !this.encrypted ) throw new NullPointerException( this.name + " binary format requires encryption." );
+		this.binarySchema = schema;
+		this.binaryBlock = new BinaryBlockWriter(schema, BINARY_BLOCK_ROWS);
+	}
+	
+	/** Switches the file to AES-GCM frames that hold many lines (or a binary block) each instead of
+	 * a separate IV:ciphertext line per row, see FramedFileWriter. Only used during initialization.
+	 * @param compressed whether the frames are deflated before the encryption, such files get the FRAMED_DEFLATE format. */
+	private void enableFramedEncryption(boolean compressed) {
+		if ( !this.encrypted || !this.bufferedWrites ) throw new NullPointerException( this.name + " framed encryption requires encryption and buffered writes." );
+		this.framed = true;
+		this.compressedFrames = compressed;
+	}
+	
+	/** @return whether this file is in the binary record format and has to be written with writeRecord(). */
+	public boolean isBinary() { return this.binarySchema != null; }
+	
 	/** Makes a new file.
 	 * Persistent files do not get a time stamp.
 	 * Encrypted files get a key and have the key encrypted using RSA and written as the first line of the file.
@@ -191,53 +290,127 @@ public class TextFileManager {
 	 * @return A boolean value of whether a new file has been created.*/
 	public synchronized boolean newFile(){
 		if (this.isDummy) { return false; }
+		this.flushBinaryBlock();
+		this.closeBufferedWriter();
+		this.retireFile();
+		PreparedFile file = this.prepareFile(this.name);
+		if (file == null) { return false; }
+		this.installFile(file);
+		return true;
+	}
+	
+	/** The handles of a new file that already has its key and header, see prepareFile(). */
+	private static final class PreparedFile {
+		String fileName = null;
+		String filePath = null;
+		EncryptionEngine.AESFileEncryptor AESEncryptor = null;
+		BufferedStreamWriter bufferedWriter = null;
+		FramedFileWriter framedWriter = null;
+	}
+	
+	/** Creates a new file and writes its key and header (and the descriptor of a framed file), the current file
+	 * of this handle is not touched. Not synchronized, it only reads the settings fixed by initialize(), so that
+	 * rotate() can run it without the lock. The lines are written through a BufferedStreamWriter that stays open
+	 * as the writer of a file with buffered writes.
+	 * @param name the name of the stream, see newFile(String surveyId)
+	 * @return null when the file could not be created, e.g. before the registration */
+	private PreparedFile prepareFile(String name) {
+		PreparedFile file = new PreparedFile();
 		//handle the naming cases for persistent vs. non-persistent files
-		if ( this.persistent ) { this.fileName = this.name; } 
+		if ( this.persistent ) { file.fileName = name; }
 		else { // if user has not registered, stop non-persistent file generation
-			if ( !PersistentData.isRegistered() ) { return false; }
-			this.fileName = PersistentData.getPatientID() + "_" + this.name + "_" + System.currentTimeMillis() + ".csv";
+			if ( !PersistentData.isRegistered() ) { return null; }
+			TrackingFileFormat format;
+			if (this.framed) { format = this.compressedFrames ? TrackingFileFormat.FRAMED_DEFLATE : TrackingFileFormat.FRAMED; }
+			else { format = this.isBinary() ? TrackingFileFormat.BINARY : TrackingFileFormat.CSV; }
+			long creationTime = System.currentTimeMillis();
+			file.fileName = PersistentData.getPatientID() + "_" + name + "_" + creationTime + format.getFileExtension();
+			file.filePath = TrackingFileLayout.getRelativePath(file.fileName, creationTime);
+			trackingLayout.prepareFile(file.filePath);
 		}
+		//the unencrypted (persistent) files have neither a key nor a header, they are created by their first write
+		if ( !this.encrypted ) { return file; }
+		// binary files describe their columns in the header instead of the csv header
+		String fileHeader = this.isBinary() ? this.binarySchema.getHeaderLine() : this.header;
 
+		BufferedStreamWriter writer = null;
 		try {
-			//write the key to the file (if it has one)
-			if (this.encrypted) {
-				this.AESKey = EncryptionEngine.newAESKey();
-				this.unsafeWritePlaintext(EncryptionEngine.encryptRSA(this.AESKey));
-
+			writer = new BufferedStreamWriter(this.getFile(file.fileName, file.filePath), BUFFERED_WRITE_SIZE_BYTES, BUFFERED_WRITE_INTERVAL_MILLIS);
+			//write the key to the file
+			//the RSA encryption is slow, the key is normally prepared in the background, see FileKeyPool
+			FileKeyPool.FileKey fileKey = fileKeyPool.take();
+			byte[] AESKey;
+			String wrappedKey;
+			if (fileKey != null) {
+				AESKey = fileKey.aesKey;
+				wrappedKey = fileKey.wrappedKey; }
+			else {
+				AESKey = EncryptionEngine.newAESKey();
+				wrappedKey = EncryptionEngine.encryptRSA(AESKey); }
+			file.AESEncryptor = EncryptionEngine.newAESFileEncryptor(AESKey);
+			writer.writeLine(wrappedKey);
+			//framed files get a plain descriptor line and the header goes into the first frame
+			if (this.framed) {
+				writer.writeLine(FramedFileWriter.getDescriptorLine(this.isBinary() ? FramedFileWriter.PAYLOAD_BINARY : FramedFileWriter.PAYLOAD_CSV, this.compressedFrames));
+				file.framedWriter = new FramedFileWriter(writer, EncryptionEngine.newAESFrameEncryptor(AESKey),
+						FRAME_MAX_LINES, FRAME_MAX_BYTES, BUFFERED_WRITE_INTERVAL_MILLIS, this.compressedFrames);
+				file.framedWriter.writeFrame(fileHeader.getBytes());
 			}
 			//write the csv header, if the file has a header
-			if (header != null && header.length() > 0) {
-				// We will not call writeEncrypted here because we need to handle the specific case of the new file not being created properly.
-				this.unsafeWritePlaintext(EncryptionEngine.encryptAES(header, this.AESKey));
-
+			else if (fileHeader != null && fileHeader.length() > 0) {
+				writer.writeLine(file.AESEncryptor.encrypt(fileHeader));
 			}
+			if (this.bufferedWrites) { file.bufferedWriter = writer; }
+			else { writer.close(); }
+			return file;
 		}
 		catch (FileNotFoundException e) {
-			Log.e("TextFileManager", "could not find file to write to, " + this.fileName);
+			Log.e("TextFileManager", "could not find file to write to, " + file.fileName);
 			e.printStackTrace();
 			CrashHandler.writeCrashlog(e, appContext);
-			this.fileName = null;  // Set filename null so that the system tries to create the file again later
-			return false;}
+			this.discardPreparedFile(file, writer, false);
+			return null;}
 		catch (IOException e) {
 			if(e.getMessage().toLowerCase().contains("enospc")) { // If the device is out of storage, alert the user
 				Log.e("ENOSPC", "Out of storage space");
+				if (diskBudget != null) { diskBudget.onOutOfSpace(); }
 			}
 			Log.e("TextFileManager", "error in the write operation: " + e.getMessage() );
 			e.printStackTrace();
 			CrashHandler.writeCrashlog(e, appContext);
-			this.fileName = null;
-			return false;}
+			this.discardPreparedFile(file, writer, true);
+			return null;}
 		catch (InvalidKeyException e) {
-			Log.e("TextFileManager", "encrypted write operation without an AES key: " + this.name + ", " + this.fileName);
+			Log.e("TextFileManager", "encrypted write operation without an AES key: " + name + ", " + file.fileName);
 			CrashHandler.writeCrashlog(e, appContext);
-			this.fileName = null;
-			return false; }
+			this.discardPreparedFile(file, writer, false);
+			return null; }
 		catch (InvalidKeySpecException e) { //this occurs when an encrypted write operation occurs without an RSA key file, we eat this error because it only happens during registration/initial config.
-			Log.e("TextFileManager", "EncryptionEngine.AES_TOO_EARLY_ERROR: " + this.name + ", " + header);
+			Log.e("TextFileManager", "EncryptionEngine.AES_TOO_EARLY_ERROR: " + name + ", " + header);
 			e.printStackTrace();
-			this.fileName = null;
-			return false; }
-		return true;
+			this.discardPreparedFile(file, writer, false);
+			return null; }
+	}
+	
+	/** Closes a file that failed to be prepared and hands it over to the upload manifest, same as retireFile() does.
+	 * @param writeFailed whether the writer is broken, its buffered lines are dropped then */
+	private void discardPreparedFile(PreparedFile file, BufferedStreamWriter writer, boolean writeFailed) {
+		if (file.framedWriter != null) { file.framedWriter.release(); }
+		if (writer != null) {
+			if (writeFailed) { writer.abandon(); }
+			else {
+				try { writer.close(); }
+				catch (IOException e) { writer.abandon(); } } }
+		if ( !this.persistent ) { uploadManifest.addClosedFile(file.filePath, TrackingFileLayout.getStreamName(file.fileName)); }
+	}
+	
+	/** Makes a prepared file the current file, the caller holds the lock and has detached the previous one. */
+	private void installFile(PreparedFile file) {
+		this.fileName = file.fileName;
+		this.filePath = file.filePath;
+		this.AESEncryptor = file.AESEncryptor;
+		this.bufferedWriter = file.bufferedWriter;
+		this.framedWriter = file.framedWriter;
 	}
 	
 	/** If it's a SurveyAnswers or SurveyTimings file, we want to append the
@@ -252,6 +425,63 @@ public class TextFileManager {
 		this.name = nameHolder;
 	}
 	
+	/** Replaces the current file with a new one, see makeNewFilesForEverything().
+	 * Only the swap of the handles happens under the lock of this file: the new file is created and gets its key
+	 * and header before (the key is normally ready, see FileKeyPool, but it may have to be wrapped right there),
+	 * and the old file is closed and handed over to the upload manifest afterwards,
+	 * so the writers of the stream wait neither for the RSA encryption nor for the disk.
+	 * @return how long the lock of this file was held, in nanoseconds */
+	private long rotate() {
+		String name;
+		synchronized (this) {
+			if (this.isDummy) { return 0; }
+			name = this.name; }
+		PreparedFile nextFile = this.prepareFile(name);
+		BufferedStreamWriter oldWriter;
+		FramedFileWriter oldFramedWriter;
+		String oldFileName;
+		String oldFilePath;
+		long lockTime;
+		synchronized (this) {
+			long lockStart = System.nanoTime();
+			this.flushBinaryBlock(); //the records belong to the old file
+			oldWriter = this.bufferedWriter;
+			oldFramedWriter = this.framedWriter;
+			oldFileName = this.fileName;
+			oldFilePath = this.filePath;
+			this.bufferedWriter = null;
+			this.framedWriter = null;
+			this.fileName = null;
+			this.filePath = null;
+			//when the new file failed, the next write tries again with newFile()
+			if (nextFile != null) { this.installFile(nextFile); }
+			lockTime = System.nanoTime() - lockStart; }
+		if (oldWriter != null) { this.closeWriters(oldWriter, oldFramedWriter, oldFileName); }
+		if (oldFileName != null && !this.persistent) { uploadManifest.addClosedFile(oldFilePath, TrackingFileLayout.getStreamName(oldFileName)); }
+		return lockTime;
+	}
+	
+	/** A cheap in-memory check done before every write, the disk itself is checked in the background.
+	 * @return whether the disk budget refuses the writes of this stream now, the persistent files are never refused */
+	private boolean isRefusedByDiskBudget() {
+		return !this.persistent && diskBudget != null && !diskBudget.isWriteAllowed(this.stream);
+	}
+	
+	/** Writes a disk budget state change to the debug log, which is how the server learns about it.
+	 * The debug log is refused early by the budget, so the notice bypasses the check. */
+	private static void writeDiskBudgetNotice(String message) {
+		if (debugLogFile == null) { return; }
+		debugLogFile.writeEncryptedUnchecked(System.currentTimeMillis() + " disk budget: " + message);
+	}
+	
+	/** @return the current file, the persistent files are directly in the app's files dir and the rest in their buckets. */
+	private File getFile() { return this.getFile(this.fileName, this.filePath); }
+	
+	private File getFile(String fileName, String filePath) {
+		if ( this.persistent ) { return new File(appContext.getFilesDir(), fileName); }
+		return trackingLayout.getFile(filePath);
+	}
+	
 	/*###############################################################################
 	########################## Read and Write Operations ############################
 	###############################################################################*/
@@ -261,9 +491,16 @@ public class TextFileManager {
 	 * file, a new file will be created.
 	 * @param data any unicode valid string*/
 	private synchronized void unsafeWritePlaintext(String data) throws FileNotFoundException, IOException{
+		if (this.bufferedWrites) {
+			if (this.bufferedWriter == null) {
+				this.bufferedWriter = new BufferedStreamWriter(this.getFile(), BUFFERED_WRITE_SIZE_BYTES, BUFFERED_WRITE_INTERVAL_MILLIS);
+			}
+			this.bufferedWriter.writeLine(data);
+			return;
+		}
 		FileOutputStream outStream;
 		//write the output, we always want mode append
-		outStream = appContext.openFileOutput(this.fileName, Context.MODE_APPEND);
+		outStream = new FileOutputStream(this.getFile(), true);
 		outStream.write( ( data ).getBytes() );
 		outStream.write( "\n".getBytes() );
 		outStream.flush();
@@ -284,30 +521,119 @@ public class TextFileManager {
 		catch (IOException e) {
 			if(e.getMessage().toLowerCase().contains("enospc")) { // If the device is out of storage, alert the user
 				Log.e("ENOSPC", "Out of storage space");
+				if (diskBudget != null) { diskBudget.onOutOfSpace(); }
 			}
 			Log.e("TextFileManager", "error in the write operation: " + e.getMessage() );
 			e.printStackTrace();
-			CrashHandler.writeCrashlog(e, appContext); }
+			CrashHandler.writeCrashlog(e, appContext);
+			this.abandonBufferedWriter(); }
 	}
 
 	/**Encrypts string data and writes it to a file.
+	 * The data is dropped if the disk budget refuses the writes of this stream.
 	 * @param data any unicode valid string */
 	public synchronized void writeEncrypted(String data) {
+		if (this.isDummy) { return; }
+		if ( this.isRefusedByDiskBudget() ) { return; }
+		this.writeEncryptedUnchecked(data);
+	}
+	
+	/** writeEncrypted() without the disk budget check, only for the disk budget notices themselves. */
+	private synchronized void writeEncryptedUnchecked(String data) {
 		if (this.isDummy) { return; }
 		if ( !this.encrypted ) throw new NullPointerException( this.name + "is not supposed to have encrypted writes!" );
 		if ( fileName == null ) { //when newFile fails we are not allowed to write to files.
 			if (!this.newFile() ) { return; }
 		}
 		
-		try { this.safeWritePlaintext( EncryptionEngine.encryptAES( data, this.AESKey ) ); }
+		if ( this.framed ) {
+			this.writeFramed( data.getBytes(), false );
+			return; }
+		try { this.safeWritePlaintext( this.AESEncryptor.encrypt( data ) ); }
 		catch (InvalidKeyException e) {
 			Log.e("TextFileManager", "encrypted write operation without an AES key: " + this.name + ", " + this.fileName);
 			CrashHandler.writeCrashlog(e, appContext);
 //			throw new NullPointerException("encrypted write operation without an AES key: " + this.fileName );
 		}
-		catch (InvalidKeySpecException e) { //this occurs when an encrypted write operation occurs without an RSA key file, we eat this error because it only happens during registration/initial config.
-			Log.e("TextFileManager", "EncryptionEngine.AES_TOO_EARLY_ERROR: " + this.name + ", " + data);
-			e.printStackTrace(); }
+	}
+	
+	/*  Binary counterparts of writeEncrypted, one per record shape used by the binary streams.
+	 *  The arguments must follow the column order of the file's binarySchema.
+	 *  Records are collected into blocks, a block is encrypted and written as a single line. */
+	
+	/** accuracy, x, y, z (the accelerometer) */
+	public synchronized void writeRecord(long timestamp, int a, float b, float c, float d) {
+		if ( !this.startBinaryRecord(timestamp) ) { return; }
+		this.binaryBlock.putInt(a).putFloat(b).putFloat(c).putFloat(d);
+		this.endBinaryRecord();
+	}
+	
+	/** latitude, longitude, altitude, accuracy (the GPS) */
+	public synchronized void writeRecord(long timestamp, double a, double b, double c, float d) {
+		if ( !this.startBinaryRecord(timestamp) ) { return; }
+		this.binaryBlock.putDouble(a).putDouble(b).putDouble(c).putFloat(d);
+		this.endBinaryRecord();
+	}
+	
+	/** hashed MAC, RSSI (the bluetooth) */
+	public synchronized void writeRecord(long timestamp, String a, int b) {
+		if ( !this.startBinaryRecord(timestamp) ) { return; }
+		this.binaryBlock.putString(a).putInt(b);
+		this.endBinaryRecord();
+	}
+	
+	private boolean startBinaryRecord(long timestamp) {
+		if (this.isDummy) { return false; }
+		if ( this.isRefusedByDiskBudget() ) { return false; }
+		if ( !this.isBinary() ) throw new NullPointerException( this.name + " is not a binary file!" );
+		if ( fileName == null ) { //when newFile fails we are not allowed to write to files.
+			if (!this.newFile() ) { return false; }
+		}
+		if ( !this.binaryBlock.canAppend(timestamp) ) { this.flushBinaryBlock(); }
+		//the sample timestamps may be long in the past (batched sensor events), the block age is the wall clock time
+		if ( this.binaryBlock.isEmpty() ) { this.binaryBlockOpenTime = System.currentTimeMillis(); }
+		this.binaryBlock.startRow(timestamp);
+		return true;
+	}
+	
+	private void endBinaryRecord() {
+		this.binaryBlock.endRow();
+		if ( this.binaryBlock.isFull() || System.currentTimeMillis() - this.binaryBlockOpenTime >= BUFFERED_WRITE_INTERVAL_MILLIS ) {
+			this.flushBinaryBlock(); }
+	}
+	
+	/** Encrypts the pending binary records and writes them as a single line of the current file. */
+	private synchronized void flushBinaryBlock() {
+		if (this.binaryBlock == null || this.binaryBlock.isEmpty()) { return; }
+		byte[] block = this.binaryBlock.encodeBlock();
+		if (this.fileName == null) { return; } //the records can only belong to the file they were collected for
+		if ( this.framed ) {
+			this.writeFramed( block, true );
+			return; }
+		try { this.safeWritePlaintext( this.AESEncryptor.encrypt( block ) ); }
+		catch (InvalidKeyException e) {
+			Log.e("TextFileManager", "encrypted write operation without an AES key: " + this.name + ", " + this.fileName);
+			CrashHandler.writeCrashlog(e, appContext); }
+	}
+	
+	/** Adds a line to the current frame of a framed file, or writes a binary block as a frame of its own.
+	 * A failed write leaves a torn frame at the end of the file, so the file is abandoned and the next write starts a new one. */
+	private synchronized void writeFramed(byte[] data, boolean ownFrame) {
+		try {
+			if (ownFrame) { this.framedWriter.writeFrame(data); }
+			else { this.framedWriter.appendLine(data); } }
+		catch (IOException e) {
+			if(e.getMessage().toLowerCase().contains("enospc")) { // If the device is out of storage, alert the user
+				Log.e("ENOSPC", "Out of storage space");
+				if (diskBudget != null) { diskBudget.onOutOfSpace(); }
+			}
+			Log.e("TextFileManager", "error in the write operation: " + e.getMessage() );
+			e.printStackTrace();
+			CrashHandler.writeCrashlog(e, appContext);
+			this.abandonBufferedWriter(); }
+		catch (InvalidKeyException e) {
+			Log.e("TextFileManager", "encrypted write operation without an AES key: " + this.name + ", " + this.fileName);
+			CrashHandler.writeCrashlog(e, appContext); }
 	}
 	
 	/**@return A string of the file contents. */
@@ -317,7 +643,7 @@ public class TextFileManager {
 		StringBuffer stringBuffer = new StringBuffer();
 		int data;
 		try {  //Read through the (buffered) input stream, append to a stringbuffer.  Catch exceptions
-			bufferedInputStream = new BufferedInputStream( appContext.openFileInput(fileName) );
+			bufferedInputStream = new BufferedInputStream( new FileInputStream(this.getFile()) );
 			try { while( (data = bufferedInputStream.read()) != -1)
 				stringBuffer.append((char)data); }
 			catch (IOException e) {
@@ -343,12 +669,85 @@ public class TextFileManager {
 	###############################################################################*/
 	
 	/** Delete the reference to the file so that it can be uploaded */
-	public synchronized void closeFile() { this.fileName = null; }
+	public synchronized void closeFile() {
+		this.flushBinaryBlock();
+		this.closeBufferedWriter();
+		this.retireFile(); }
+
+	/** Hands the current file over to the upload manifest and forgets it, the file is never written to again.
+	 * Persistent files are never uploaded. A file that failed to be created is not added, see UploadManifest.addClosedFile(). */
+	private synchronized void retireFile() {
+		if (this.fileName == null) { return; }
+		if ( !this.persistent ) { uploadManifest.addClosedFile(this.filePath, TrackingFileLayout.getStreamName(this.fileName)); }
+		this.fileName = null;
+		this.filePath = null;
+	}
+
+	/** Writes out any buffered data, the file stays open. */
+	public synchronized void flush() {
+		this.flushBinaryBlock();
+		if (this.bufferedWriter == null) { return; }
+		try {
+			if (this.framedWriter != null) { this.framedWriter.flush(); }
+			else { this.bufferedWriter.flush(); } }
+		catch (IOException e) {
+			Log.e("TextFileManager", "could not flush " + this.fileName + ": " + e.getMessage());
+			CrashHandler.writeCrashlog(e, appContext);
+			this.abandonBufferedWriter(); }
+		catch (InvalidKeyException e) {
+			Log.e("TextFileManager", "encrypted write operation without an AES key: " + this.name + ", " + this.fileName);
+			CrashHandler.writeCrashlog(e, appContext); }
+	}
+
+	/** Flushes and closes the buffered stream of the current file, if there is one. */
+	private synchronized void closeBufferedWriter() {
+		if (this.bufferedWriter == null) { return; }
+		this.closeWriters(this.bufferedWriter, this.framedWriter, this.fileName);
+		this.bufferedWriter = null;
+		this.framedWriter = null;
+	}
+	
+	/** Seals the last frame and closes the stream of a file. Not synchronized, the caller either holds the lock
+	 * or the writers were already detached from this handle, see rotate().
+	 * @param framedWriter null if the file is not framed */
+	private void closeWriters(BufferedStreamWriter writer, FramedFileWriter framedWriter, String fileName) {
+		try {
+			if (framedWriter != null) { framedWriter.sealFrame(); }
+			writer.close(); }
+		catch (IOException e) {
+			Log.e("TextFileManager", "could not close " + fileName + ": " + e.getMessage());
+			CrashHandler.writeCrashlog(e, appContext);
+			writer.abandon(); }
+		catch (InvalidKeyException e) {
+			Log.e("TextFileManager", "encrypted write operation without an AES key: " + this.name + ", " + fileName);
+			CrashHandler.writeCrashlog(e, appContext);
+			writer.abandon(); }
+		if (framedWriter != null) { this.releaseFramedWriter(framedWriter); }
+	}
+	
+	/** Frees the compressor of a framed writer and logs how well the stream compresses. */
+	private void releaseFramedWriter(FramedFileWriter framedWriter) {
+		if (this.compressedFrames && framedWriter.getPlainBytes() > 0) {
+			Log.i("TextFileManager", this.name + " frames compressed from " + framedWriter.getPlainBytes() + " to " + framedWriter.getStoredBytes() + " bytes"); }
+		framedWriter.release();
+	}
+
+	/** Drops the buffered stream after a write error, the next write reopens the file.
+	 * A framed file may now end with a torn frame, so the next write starts a new file instead. */
+	private synchronized void abandonBufferedWriter() {
+		if (this.bufferedWriter == null) { return; }
+		this.bufferedWriter.abandon();
+		this.bufferedWriter = null;
+		if (this.framedWriter != null) { this.releaseFramedWriter(this.framedWriter); }
+		this.framedWriter = null;
+		if (this.framed) { this.retireFile(); }
+	}
 	
 	/** Deletes a file in the safest possible way, based on the file type (persistent-nonpersistent). */
 	public synchronized void deleteSafely() {
 		if (this.isDummy) { return; }
 		String oldFileName = this.fileName;
+		String oldFilePath = this.filePath;
 		// For files that are persistant we have to do a slightly unsafe deletion, for everything else
 		// we allocate the new file and then delete the old file.
 		
@@ -357,10 +756,10 @@ public class TextFileManager {
 			this.newFile(); }
 		else { 					//create then delete
 //			this.newFile();
-			TextFileManager.delete(oldFileName); }
+			if (oldFilePath != null) { TextFileManager.deleteTrackingFile(oldFilePath); } }
 	}
 	
-	/** Deletes a file.  Exists to make file deletion thread-safe.
+	/** Deletes a file directly in the app's files dir (a persistent or a temporary one).  Exists to make file deletion thread-safe.
 	 * @param fileName */
 	public static synchronized void delete(String fileName) {
 		try {
@@ -373,53 +772,125 @@ public class TextFileManager {
 		}
 	}
 	
-	/** Make new files for all the non-persistent files. */
+	/** Deletes a data file, e.g. after it is uploaded, and drops it from the upload manifest.
+	 * The empty bucket directories are cleaned up by the upload manifest reconciliation.
+	 * @param path the path of the file relative to the trackingLayout root */
+	public static synchronized void deleteTrackingFile(String path) {
+		Log.i(TAG, StringUtils.formatEn("Deleting file '%s'", path));
+		File file = trackingLayout.getFile(path);
+		if ( !file.delete() && file.exists() ) { Log.e("TextFileManager", "cannot delete file " + path); }
+		uploadManifest.removeFile(path);
+	}
+	
+	/** Make new files for all the non-persistent files.
+	 * The class lock is held for the whole rotation so getFilesInUse() never misses an old file that is still being closed,
+	 * the writers only take the lock of their own file and that is held just for the swap, see rotate(). */
 	public static synchronized void makeNewFilesForEverything() {
 //		Log.d("TextFileManager.java", "makeNewFilesForEverything() called");
-		GPSFile.newFile();
-		accelFile.newFile();
-		powerStateLog.newFile();
-		callLog.newFile();
-		textsLog.newFile();
-		bluetoothLog.newFile();
-		debugLogFile.newFile();
+		long startTime = System.nanoTime();
+		long maxLockTime = 0; //the longest a writer could have been blocked by the rotation
+		maxLockTime = Math.max(maxLockTime, GPSFile.rotate());
+		maxLockTime = Math.max(maxLockTime, accelFile.rotate());
+		maxLockTime = Math.max(maxLockTime, powerStateLog.rotate());
+		maxLockTime = Math.max(maxLockTime, callLog.rotate());
+		maxLockTime = Math.max(maxLockTime, textsLog.rotate());
+		maxLockTime = Math.max(maxLockTime, bluetoothLog.rotate());
+		maxLockTime = Math.max(maxLockTime, debugLogFile.rotate());
+		Log.i(TAG, StringUtils.formatEn("Rotated the data files in %.1f ms, the longest a stream was locked is %.1f ms",
+				(System.nanoTime() - startTime) / 1e6, maxLockTime / 1e6));
+	}
+
+	/** Runs flushEverything() every BUFFERED_WRITE_INTERVAL_MILLIS on a background thread, so the buffered lines
+	 * reach the disk even if the process is killed without BackgroundService.onDestroy(). Only started once. */
+	private static synchronized void startPeriodicFlush() {
+		if (flushScheduler != null) { return; }
+		flushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override public Thread newThread(Runnable r) { return new Thread(r, "data_file_flush"); }
+		});
+		flushScheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override public void run() {
+				//an exception would cancel the following runs
+				try { flushEverything(); }
+				catch (RuntimeException e) {
+					Log.e("TextFileManager", "periodic flush failed: " + e.getMessage());
+					CrashHandler.writeCrashlog(e, appContext); }
+			}
+		}, BUFFERED_WRITE_INTERVAL_MILLIS, BUFFERED_WRITE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/** Writes out buffered data of all the files, used periodically and when the app may be about to be killed. */
+	public static synchronized void flushEverything() {
+		if (GPSFile == null) { return; } //not initialized yet
+		GPSFile.flush();
+		accelFile.flush();
+		bluetoothLog.flush();
+	}
+	
+	/** For tests only. Forgets the data directory and the upload manifest, so the next initialize() starts over in the
+	 * directories of its context instead of the ones of the previous test. The caller closes the files it wrote to. */
+	@VisibleForTesting
+	public static synchronized void resetForTests() {
+		uploadManifest = null;
+		flatFilesMigrated = false;
 	}
 	
 	/** Very simple function, exists to make any function that needs to grab all extant files thread-safe.
 	 * DO NOT USE THIS FUNCTION, USE getAllFilesSafely() INSTEAD.
-	 * @return a string array of all files in the app's file directory. */
+	 * @return a string array of all data files, as paths relative to the trackingLayout root. */
 	public static synchronized String[] getAllFiles() {
-
-		return KnownDirs.getTrackingFilesDir(appContext,false).list();
+		return trackingLayout.listAllFiles().toArray(new String[0]);
 	}
 		
-	/** Returns all data that are not currently in use
-	 * @return String[] a list of file names */
-	public static synchronized String[] getAllUploadableFiles() {
-		Set<String> files = new HashSet<String>();
-		Collections.addAll(files, getAllFiles());
-		
+	/** Adds a finished data file written outside of the TextFileManager (e.g. an audio recording or a crash log)
+	 * to the upload manifest. Files that are not reported are still found, but only by the next reconciliation.
+	 * @param path the path of the file relative to the trackingLayout root, see TrackingFileLayout.getRelativePath() */
+	public static void registerClosedFile(String path) {
+		if (uploadManifest == null) { return; } //not initialized yet, the reconciliation will find the file
+		uploadManifest.addClosedFile(path, TrackingFileLayout.getStreamName(new File(path).getName()));
+	}
+	
+	/** Returns all data that are not currently in use, these are the closed files listed in the upload manifest.
+	 * @return String[] a list of paths relative to the trackingLayout root */
+	public static String[] getAllUploadableFiles() {
+		return uploadManifest.getPendingPaths().toArray(new String[0]);
+	}
+	
+	/** Moves the data files the older versions kept directly in the app's files dir into the trackingLayout.
+	 * Only lists the files dir once per process, after the first run only the persistent and temporary files are left there. */
+	public static synchronized void migrateFlatFiles() {
+		if (flatFilesMigrated) { return; }
+		Set<String> privateFiles = new HashSet<String>();
 		// These files should never be uploaded
-		files.remove(TextFileManager.getKeyFile().fileName);
-		files.remove(AudioRecorderActivity.unencryptedTempAudioFileName);
-		files.remove(AudioRecorderEnhancedActivity.unencryptedRawAudioFileName);
-		files.remove(AudioRecorderEnhancedActivity.unencryptedTempAudioFileName); //should be identical to regular audiorecording file, but keep in case it changes.
+		privateFiles.add(TextFileManager.getKeyFile().fileName);
+		privateFiles.add(AudioRecorderActivity.unencryptedTempAudioFileName);
+		privateFiles.add(AudioRecorderEnhancedActivity.unencryptedRawAudioFileName);
+		privateFiles.add(AudioRecorderEnhancedActivity.unencryptedTempAudioFileName); //should be identical to regular audiorecording file, but keep in case it changes.
+		trackingLayout.migrateFlatFiles(appContext.getFilesDir(), privateFiles);
+		flatFilesMigrated = true;
+	}
+	
+	/** Returns the data files that must not be uploaded now because they are being written to,
+	 * used by the upload manifest reconciliation to tell the orphaned files from the ones in use.
+	 * @return a set of paths relative to the trackingLayout root */
+	public static synchronized Set<String> getFilesInUse() {
+		Set<String> files = new HashSet<String>();
 		
 		// These files are currently being written to, so they shouldn't be uploaded now
-		files.remove(TextFileManager.getGPSFile().fileName);
-		files.remove(TextFileManager.getAccelFile().fileName);
-		files.remove(TextFileManager.getPowerStateFile().fileName);
-		files.remove(TextFileManager.getCallLogFile().fileName);
-		files.remove(TextFileManager.getTextsLogFile().fileName);
-		files.remove(TextFileManager.getDebugLogFile().fileName);
-		files.remove(TextFileManager.getBluetoothLogFile().fileName);
+		files.add(TextFileManager.getGPSFile().filePath);
+		files.add(TextFileManager.getAccelFile().filePath);
+		files.add(TextFileManager.getPowerStateFile().filePath);
+		files.add(TextFileManager.getCallLogFile().filePath);
+		files.add(TextFileManager.getTextsLogFile().filePath);
+		files.add(TextFileManager.getDebugLogFile().filePath);
+		files.add(TextFileManager.getBluetoothLogFile().filePath);
 
 		// These files are only occasionally open, but they may be currently open. If they are, don't upload them
-		files.remove(TextFileManager.getSurveyAnswersFile().fileName);
-		files.remove(TextFileManager.getSurveyTimingsFile().fileName);
-		files.remove(TextFileManager.getWifiLogFile().fileName);
+		files.add(TextFileManager.getSurveyAnswersFile().filePath);
+		files.add(TextFileManager.getSurveyTimingsFile().filePath);
+		files.add(TextFileManager.getWifiLogFile().filePath);
 
-		return files.toArray(new String[0]);
+		files.remove(null);
+		return files;
 	}
 	
 	/*###############################################################################
@@ -441,17 +912,13 @@ public class TextFileManager {
 		Collections.addAll(files, getAllFilesSafely());
 		
 		//Need to do this crap or else we end up deleting the persistent files repeatedly
-		files.remove(TextFileManager.getDebugLogFile().fileName);
+		files.remove(TextFileManager.getDebugLogFile().filePath);
 		TextFileManager.getDebugLogFile().deleteSafely();
-		files.remove(TextFileManager.getKeyFile().fileName);
 		
-		//and delete things
-		for (String file_name : files) {
-//			Log.i("deleting file", file_name);
-			try { appContext.deleteFile(file_name); }
-			catch (Exception e) {
-				Log.e("TextFileManager", "could not delete file " + file_name); 
-				e.printStackTrace(); }
+		//and delete things (the key file is not among the data files)
+		for (String file_path : files) {
+//			Log.i("deleting file", file_path);
+			deleteTrackingFile(file_path);
 		}
 	}	
 }
@@ -217,7 +217,7 @@ public class AudioRecorderCommon extends SessionActivity {
 	    mediaPlayer = new MediaPlayer();
     	try {
     		// Play the temporary unencrypted file, because you can't read the encrypted file
-            mediaPlayer.setDataSource(unencryptedTempAudioFilePath);
+            setPlaybackDataSource(mediaPlayer);
             mediaPlayer.prepare();
             mediaPlayer.start();
             mediaPlayer.setOnCompletionListener(new OnCompletionListener() {
@@ -227,6 +227,17 @@ public class AudioRecorderCommon extends SessionActivity {
         }
         catch (IOException e) { Log.e(LOG_TAG, "prepare() failed"); }
     }
+    
+    /** Points the player to the recording, override if the recording is not a plain file. */
+    protected void setPlaybackDataSource(MediaPlayer mediaPlayer) throws IOException {
+    	mediaPlayer.setDataSource(unencryptedTempAudioFilePath);
+    }
+    
+    /** Turns the temp recording into the encrypted file to be uploaded, called off the UI thread.
+     * Override if the recording is produced some other way. */
+    protected void saveRecording() {
+    	AudioFileManager.encryptAudioFile(unencryptedTempAudioFilePath, getFileExtension(), surveyId, getApplicationContext() );
+    }
 
 
 	/** When the user presses "Done", just kill this activity and take them
@@ -286,7 +297,7 @@ public class AudioRecorderCommon extends SessionActivity {
 		}
 		@Override
 		protected Void doInBackground(Void... params) {
-			AudioFileManager.encryptAudioFile(unencryptedTempAudioFilePath, getFileExtension(), surveyId, getApplicationContext() );
+			saveRecording();
 			return null;
 		}
 		@Override
@@ -1,19 +1,29 @@
 package org.beiwe.app.survey;
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.spec.InvalidKeySpecException;
 
 import org.beiwe.app.CrashHandler;
 import org.beiwe.app.storage.AudioFileManager;
+import org.beiwe.app.storage.EncryptionEngine;
 import org.beiwe.app.storage.PersistentData;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.beiwe.app.storage.TextFileManager;
+import io.sodalic.blob.storage.AacFileWriter;
+import io.sodalic.blob.storage.EncryptedWavDataSource;
+import io.sodalic.blob.storage.EncryptedWavFileWriter;
+import io.sodalic.blob.storage.PcmAudioSink;
+import io.sodalic.blob.storage.TrackingFileFormat;
+import io.sodalic.blob.storage.WavFileWriter;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
+import android.media.MediaPlayer;
 import android.media.MediaRecorder;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
 //http://www.edumobile.org/android/audio-recording-in-wav-format-in-android-programming/
@@ -21,33 +31,46 @@ import android.util.Log;
 public class AudioRecorderEnhancedActivity extends AudioRecorderCommon{
 	//WAV stuff
 	private static final int BIT_DEPTH = 16;
-	private int SAMPLE_RATE = 44100;
+	private int SAMPLE_RATE = AudioSurveySettings.DEFAULT_SAMPLE_RATE;
 	
 	private int BUFFER_SIZE = 0; //constant set in onCreate
 	
+	/* The samples can also be compressed on the device, set by "audio_encoding": "aac" in the survey settings.
+	 * The default is the uncompressed wav, for the studies that need the raw signal. */
+	private boolean useAac = false;
+	private int BIT_RATE = AudioSurveySettings.DEFAULT_BIT_RATE;
+	
+	/* When the study uses the framed encryption the wav samples are encrypted as they are recorded, so the plain
+	 * audio never gets to the disk. The temp file then holds the encrypted recording, it is played back with
+	 * EncryptedWavDataSource (API 23+, older devices keep the old way) and "saving" it is just a hard link. */
+	private boolean encryptedCapture = false;
+	private byte[] captureKey = null; //the AES key of the current recording, needed for the playback
+	
 	private static final int RECORDER_CHANNELS = AudioFormat.CHANNEL_IN_MONO;
 	private static final int RECORDER_AUDIO_ENCODING = AudioFormat.ENCODING_PCM_16BIT;
 	private static final int IS_INITIALIZED = AudioRecord.STATE_INITIALIZED;
 	
+	// No longer written, the samples go straight into the wav file. Kept so that a leftover from an older version is never uploaded.
 	public static final String unencryptedRawAudioFileName = "unencryptedRawAudioFile";
-	private static String unencryptedRawAudioFilePath;
 	
 	@Override
-    protected String getFileExtension() { return ".wav"; }
+    protected String getFileExtension() {
+		if (encryptedCapture) { return TrackingFileFormat.FRAMED.getFileExtension(); }
+		return useAac ? ".mp4" : ".wav"; }
 
 	private AudioRecord recorder = null;
+	// set until the recording thread has finalized the file, only touched on the UI thread
 	private Thread recordingThread = null;
 
 	@Override
 	public void onCreate( Bundle savedInstanceState ) {
 		super.onCreate( savedInstanceState );
-		unencryptedRawAudioFilePath = getApplicationContext().getFilesDir().getAbsolutePath() + "/" + unencryptedRawAudioFileName;
-		//extract sample rate from survey parameters.  If this fails default to the default value (44100).
-		try { JSONObject surveySettings = new JSONObject( PersistentData.getSurveySettings(surveyId) );
-			  SAMPLE_RATE = surveySettings.getInt("sample_rate"); }
-		catch (JSONException e) { e.printStackTrace(); 
-			Log.e("Enhanced audio recording", "WUH-OH, no sample rate found, using default (44100).");
-		}
+		//extract the sample rate and the encoding from survey parameters, the defaults are used for anything missing.
+		AudioSurveySettings surveySettings = AudioSurveySettings.parse( PersistentData.getSurveySettings(surveyId) );
+		SAMPLE_RATE = surveySettings.sampleRate;
+		useAac = surveySettings.useAac;
+		BIT_RATE = surveySettings.bitRate;
+		encryptedCapture = !useAac && PersistentData.getUseFramedEncryption() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
  
 		BUFFER_SIZE = AudioRecord.getMinBufferSize(SAMPLE_RATE,
 				AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT );
@@ -76,16 +99,19 @@ public class AudioRecorderEnhancedActivity extends AudioRecorderCommon{
     /** Start recording from the device's microphone */
     @Override
     protected void startRecording() {
+    	// the record button is disabled until then, two recording threads would write the same file
+    	if ( recordingThread != null ) { Log.w("enhanced audio", "the previous recording is not finalized yet"); return; }
     	super.startRecording();
     	//recording stuff
 		recorder = new AudioRecord( MediaRecorder.AudioSource.MIC,
 				SAMPLE_RATE, RECORDER_CHANNELS, RECORDER_AUDIO_ENCODING, BUFFER_SIZE );
+		final AudioRecord activeRecorder = recorder; //stopRecording() clears the field, the thread keeps its own reference
 		if ( recorder.getState() == IS_INITIALIZED ) { recorder.startRecording(); }
 		else { stopRecording(); //if it doesn't work, fail gracefully?
 		       Log.e("enhanced audio", "audio recording failed to initialize?"); } 
 		//Start recording.
 		recordingThread = new Thread( new Runnable() {
-			@Override public void run() { writeAudioDataToFile(); }
+			@Override public void run() { writeAudioDataToFile(activeRecorder); }
 		}, "AudioRecorder Thread");
 		recordingThread.start();
 		startRecordingTimeout();
@@ -98,42 +124,91 @@ public class AudioRecorderEnhancedActivity extends AudioRecorderCommon{
     	if ( recorder != null) {
     		currentlyRecording = false;
     		if ( recorder.getState() == IS_INITIALIZED ) { recorder.stop(); }
-    		recorder.release();
-    		recorder = null; //release memory...
-    		recordingThread = null;
+    		// the recording thread releases the recorder and finalizes the wav file, see onRecordingFinalized()
+    		recorder = null;
     	}
-    	//TODO: Eli. low priority. is it too much of a hassle to stick these on a separate thread?  These files will get big if they are wav recordings, causing bad UE.
-    	//We need to do this because the the RAW file is not formatted correctly for playback
-    	AudioFileManager.copyToWaveFile( unencryptedRawAudioFilePath, unencryptedTempAudioFilePath,
-                     					 SAMPLE_RATE, BIT_DEPTH, BUFFER_SIZE );
-    	AudioFileManager.delete(unencryptedRawAudioFileName);
-	    //File has been copy, can now display the button.
+    }
+    
+    /** Called on the UI thread once the recording thread has written out the wav file. */
+    private void onRecordingFinalized() {
+	    //The file is complete, can now display the button.
 	    displayPlaybackButton();
         // Encrypt the audio file as soon as recording is finished
         new EncryptAudioFileTask().execute();
-        //TODO: Eli. Low priority. in cases where long audio recordings are taken the with uncompressed files there is the possibility of an out-of-memory error.
     }
     
-    /**Writes data from the AudioRecord to a file.
+    /**Writes data from the AudioRecord straight into the wav file, the sizes in the header are patched when recording stops.
      * This function is much harder to run as code outside of enhanced audio recording activity,
      * so we are going to keep it here.
-     * This function blocks until currentlyRecording gets set to false, so run on a separate threod. */
-	private void writeAudioDataToFile() {
+     * This function blocks until currentlyRecording gets set to false, so run on a separate threod.
+     * All the finalization (releasing the recorder, patching the header) happens here too, off the UI thread. */
+	private void writeAudioDataToFile(AudioRecord activeRecorder) {
 		int recordingStatus = 0;
 		byte data[] = new byte[BUFFER_SIZE];
-		FileOutputStream rawAudioFile = null;
+		PcmAudioSink audioFile = null;
+		long startCpuTime = SystemClock.currentThreadTimeMillis();
 		//setup file.
-		try { rawAudioFile = new FileOutputStream( unencryptedRawAudioFilePath ); }
-		catch (FileNotFoundException e) { CrashHandler.writeCrashlog(e, getApplicationContext() ); return; }
+		try { File file = new File( unencryptedTempAudioFilePath );
+			if (encryptedCapture) { audioFile = newEncryptedAudioFile(file); }
+			else if (useAac) { audioFile = new AacFileWriter( file, SAMPLE_RATE, 1, BIT_RATE ); }
+			else { audioFile = new WavFileWriter( file, SAMPLE_RATE, 1, BIT_DEPTH ); } }
+		catch (IOException e) { CrashHandler.writeCrashlog(e, getApplicationContext() ); }
+		catch (InvalidKeySpecException e) {
+			Log.e("Enhanced audio recording", "encrypted audio recording without a keyFile.");
+			CrashHandler.writeCrashlog(e, getApplicationContext() ); }
 		//while recording get audio data chunks.
-		while ( currentlyRecording ) {
-			recordingStatus = recorder.read(data, 0, BUFFER_SIZE);
-			if ( recordingStatus != AudioRecord.ERROR_INVALID_OPERATION ) {
-				try { rawAudioFile.write(data); }
+		while ( currentlyRecording && audioFile != null ) {
+			recordingStatus = activeRecorder.read(data, 0, BUFFER_SIZE);
+			if ( recordingStatus > 0 ) { //only the part of the buffer that was actually filled
+				try { audioFile.write(data, 0, recordingStatus); }
 				catch (IOException e) { e.printStackTrace(); } //swallow error.
 			}
 		}
-		try { rawAudioFile.close(); }
-		catch (IOException e) { e.printStackTrace(); }
-	}    
+		activeRecorder.release();
+		if (audioFile != null) {
+			try { audioFile.finish(); }
+			catch (IOException e) { e.printStackTrace();
+				CrashHandler.writeCrashlog(e, getApplicationContext() ); }
+			if (useAac) { logCompressionStats( audioFile.getDataSize(), SystemClock.currentThreadTimeMillis() - startCpuTime ); } }
+		final boolean fileWritten = audioFile != null;
+		runOnUiThread( new Runnable() {
+			@Override public void run() {
+				recordingThread = null;
+				if (fileWritten) { onRecordingFinalized(); }
+				else { enableRecordButton(); } //there is nothing to play back or to save, let the user try again
+			}
+		} );
+	}
+	
+	private PcmAudioSink newEncryptedAudioFile(File file) throws IOException, InvalidKeySpecException {
+		// the previous recording may be linked as a published file, it must not be truncated, only unlinked
+		if ( file.exists() && !file.delete() ) { throw new IOException("could not delete the previous recording " + file); }
+		byte[] aesKey = EncryptionEngine.newAESKey();
+		PcmAudioSink audioFile = new EncryptedWavFileWriter( file, aesKey, EncryptionEngine.encryptRSA( aesKey ), SAMPLE_RATE, 1, BIT_DEPTH );
+		captureKey = aesKey;
+		return audioFile;
+	}
+	
+	@Override
+	protected void setPlaybackDataSource(MediaPlayer mediaPlayer) throws IOException {
+		if ( !encryptedCapture ) { super.setPlaybackDataSource(mediaPlayer); return; }
+		try { mediaPlayer.setDataSource( new EncryptedWavDataSource( new File( unencryptedTempAudioFilePath ), captureKey ) ); }
+		catch (GeneralSecurityException e) { throw new IOException(e); }
+	}
+	
+	@Override
+	protected void saveRecording() {
+		if ( !encryptedCapture ) { super.saveRecording(); return; }
+		AudioFileManager.publishEncryptedAudioFile( unencryptedTempAudioFilePath, getFileExtension(), surveyId, getApplicationContext() );
+	}
+	
+	/** Writes the compression ratio and the CPU time the recording thread spent (reading and encoding) to the debug log. */
+	private void logCompressionStats(long pcmBytes, long cpuTimeMillis) {
+		long encodedBytes = new File( unencryptedTempAudioFilePath ).length();
+		long audioMillis = pcmBytes * 1000 / (SAMPLE_RATE * BIT_DEPTH / 8);
+		String stats = "aac recording of " + audioMillis + "ms, pcm bytes: " + pcmBytes + ", file bytes: " + encodedBytes
+				+ ", ratio: " + ( (encodedBytes > 0) ? Math.round(10.0 * pcmBytes / encodedBytes) / 10.0 : 0 ) + ", cpu time: " + cpuTimeMillis + "ms";
+		Log.i("Enhanced audio recording", stats);
+		TextFileManager.getDebugLogFile().writeEncrypted( System.currentTimeMillis() + " " + stats );
+	}
 }
\ No newline at end of file
@@ -0,0 +1,47 @@
+package org.beiwe.app.survey;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * The recording format of an enhanced audio survey, read from the survey settings.
+ * The sample rate is required by the server but the encoding and the bit rate were added later,
+ * an old survey without them records the uncompressed wav. The bit rate only applies to the AAC encoding.
+ */
+public class AudioSurveySettings {
+	public static final String ENCODING_AAC = "aac";
+	public static final int DEFAULT_SAMPLE_RATE = 44100;
+	public static final int DEFAULT_BIT_RATE = 64000;
+	
+	public final int sampleRate;
+	public final boolean useAac;
+	public final int bitRate;
+	
+	private AudioSurveySettings(int sampleRate, boolean useAac, int bitRate) {
+		this.sampleRate = sampleRate;
+		this.useAac = useAac;
+		this.bitRate = bitRate;
+	}
+	
+	/**@param settingsJson the survey settings, see PersistentData.getSurveySettings
+	 * @return the format, the defaults for anything missing or invalid */
+	public static AudioSurveySettings parse(String settingsJson) {
+		JSONObject settings;
+		try { settings = new JSONObject( (settingsJson != null) ? settingsJson : "{}" ); }
+		catch (JSONException e) {
+			Log.e("Enhanced audio recording", "WUH-OH, bad survey settings, using the defaults.");
+			return new AudioSurveySettings(DEFAULT_SAMPLE_RATE, false, DEFAULT_BIT_RATE); }
+		
+		int sampleRate = settings.optInt("sample_rate", 0);
+		if (sampleRate <= 0) {
+			Log.e("Enhanced audio recording", "WUH-OH, no sample rate found, using default (44100).");
+			sampleRate = DEFAULT_SAMPLE_RATE; }
+		boolean useAac = ENCODING_AAC.equals( settings.optString("audio_encoding") );
+		//the encoder fails to start with a bit rate of 0 or less
+		int bitRate = settings.optInt("bit_rate", DEFAULT_BIT_RATE);
+		if (!useAac || bitRate <= 0) { bitRate = DEFAULT_BIT_RATE; }
+		return new AudioSurveySettings(sampleRate, useAac, bitRate);
+	}
+}
@@ -0,0 +1,71 @@
+package io.sodalic.blob.face;
+
+import android.util.Size;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs with Robolectric for {@link Size}
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CaptureSizePolicyTest {
+    // 224 pixels across the face need 672 on the shorter side
+    private final CaptureSizePolicy policy = new CaptureSizePolicy(224);
+
+    private static final Size FOUR_BY_THREE = new Size(4, 3);
+
+    private static Size[] sizes(int... widthsAndHeights) {
+        Size[] sizes = new Size[widthsAndHeights.length / 2];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = new Size(widthsAndHeights[2 * i], widthsAndHeights[2 * i + 1]);
+        }
+        return sizes;
+    }
+
+    @Test
+    public void testMinShortSide() {
+        assertEquals(672, policy.getMinShortSide());
+    }
+
+    @Test
+    public void testSmallestBigEnough() {
+        Size[] choices = sizes(4032, 3024, 640, 480, 1024, 768, 1280, 960, 1280, 720, 800, 800);
+        // 1024x768 is the smallest 4:3 one with 672 pixels on the shorter side, whatever the order
+        assertEquals(new Size(1024, 768), policy.chooseCaptureSize(choices, FOUR_BY_THREE));
+        assertEquals(new Size(1024, 768), policy.chooseCaptureSize(sizes(1280, 960, 1024, 768, 4032, 3024), FOUR_BY_THREE));
+        // exactly the minimum is enough
+        assertEquals(new Size(896, 672), policy.chooseCaptureSize(sizes(1024, 768, 896, 672, 640, 480), FOUR_BY_THREE));
+    }
+
+    @Test
+    public void testShorterSideOfPortraitSizes() {
+        // the same rule for the sizes listed upright
+        assertEquals(new Size(768, 1024), policy.chooseCaptureSize(sizes(480, 640, 768, 1024, 3024, 4032), new Size(3, 4)));
+    }
+
+    @Test
+    public void testLargestWhenNoneBigEnough() {
+        Size[] choices = sizes(640, 480, 800, 600, 1280, 720, 320, 240);
+        // the largest 4:3 one, not the larger 16:9 one
+        assertEquals(new Size(800, 600), policy.chooseCaptureSize(choices, FOUR_BY_THREE));
+    }
+
+    @Test
+    public void testAspectRatioFallback() {
+        // no 4:3 size at all, the aspect ratio is ignored
+        Size[] choices = sizes(1920, 1080, 1080, 1080, 1280, 720, 640, 360);
+        assertEquals(new Size(1280, 720), policy.chooseCaptureSize(choices, FOUR_BY_THREE));
+        // and the largest of all if none is big enough either
+        assertEquals(new Size(960, 540), policy.chooseCaptureSize(sizes(640, 360, 960, 540, 600, 600), FOUR_BY_THREE));
+    }
+
+    @Test
+    public void testAspectRatioIsNotReduced() {
+        // the sensor size can be passed as the aspect ratio as is
+        assertEquals(new Size(1024, 768), policy.chooseCaptureSize(sizes(1024, 768, 1280, 720), new Size(4032, 3024)));
+    }
+}
@@ -0,0 +1,46 @@
+package io.sodalic.blob.face;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Runs with Robolectric for {@link Rect}
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FacePreFilterTest {
+    @Test
+    public void testCropAroundTheHead() {
+        // 4 eye distances wide, centered half an eye distance below the eyes
+        assertEquals(new Rect(300, 250, 700, 650), FacePreFilter.getFaceCrop(500, 400, 100, 1000, 1000));
+        assertEquals(new Rect(1400, 1075, 2200, 1875), FacePreFilter.getFaceCrop(1800, 1375, 200, 3024, 4032));
+    }
+
+    @Test
+    public void testCropIsRounded() {
+        // 79.8, 85.15, 121.0 and 126.35
+        assertEquals(new Rect(80, 85, 121, 126), FacePreFilter.getFaceCrop(100.4f, 100.6f, 10.3f, 1000, 1000));
+    }
+
+    @Test
+    public void testCropIsClippedToThePicture() {
+        // (-150, -90, 250, 310) before the clipping
+        assertEquals(new Rect(0, 0, 250, 310), FacePreFilter.getFaceCrop(50, 60, 100, 1000, 1000));
+        // (800, 750, 1200, 1150)
+        assertEquals(new Rect(800, 750, 1000, 800), FacePreFilter.getFaceCrop(1000, 900, 100, 1000, 800));
+        // bigger than the picture
+        assertEquals(new Rect(0, 0, 640, 480), FacePreFilter.getFaceCrop(320, 200, 400, 640, 480));
+    }
+
+    @Test
+    public void testCropOutsideOfThePicture() {
+        assertNull(FacePreFilter.getFaceCrop(-500, -500, 100, 1000, 1000));
+        // only touches the left edge
+        assertNull(FacePreFilter.getFaceCrop(-200, 500, 100, 1000, 1000));
+    }
+}
@@ -0,0 +1,70 @@
+package io.sodalic.blob.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import okhttp3.MediaType;
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ByteBufferRequestBodyTest {
+    private static final MediaType JPEG = MediaType.get("image/jpeg");
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] writeOut(ByteBufferRequestBody body) throws IOException {
+        Buffer sink = new Buffer();
+        body.writeTo(sink);
+        return sink.readByteArray();
+    }
+
+    @Test
+    public void testDirectBuffer() throws IOException {
+        // bigger than an okio segment, so the buffer is written in parts
+        byte[] data = randomBytes(100 * 1024);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data);
+        direct.flip();
+
+        ByteBufferRequestBody body = new ByteBufferRequestBody(JPEG, direct);
+        assertEquals(JPEG, body.contentType());
+        assertEquals(data.length, body.contentLength());
+        assertArrayEquals(data, writeOut(body));
+    }
+
+    @Test
+    public void testOnlyRemainingBytesAreSent() throws IOException {
+        byte[] data = randomBytes(1000);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(100);
+        buffer.limit(900);
+
+        ByteBufferRequestBody body = new ByteBufferRequestBody(JPEG, buffer);
+        assertEquals(800, body.contentLength());
+        assertArrayEquals(Arrays.copyOfRange(data, 100, 900), writeOut(body));
+    }
+
+    @Test
+    public void testBodyCanBeWrittenAgain() throws IOException {
+        byte[] data = randomBytes(5000);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        ByteBufferRequestBody body = new ByteBufferRequestBody(JPEG, buffer);
+
+        // a retry or a logging interceptor writes the body once more
+        assertArrayEquals(data, writeOut(body));
+        assertArrayEquals(data, writeOut(body));
+        // the caller's buffer is not consumed either
+        assertEquals(0, buffer.position());
+        assertEquals(data.length, buffer.remaining());
+    }
+}
@@ -0,0 +1,54 @@
+package io.sodalic.blob.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import android.content.Context;
+import android.provider.Settings;
+
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+import org.beiwe.app.DeviceInfo;
+import org.beiwe.app.storage.PersistentData;
+
+/**
+ * A {@link MockWebServer} with a self-signed certificate and a {@link ServerApi} that trusts it.
+ * The release builds only talk HTTPS so the server does too.
+ */
+public class LocalHttpsServer {
+    public final MockWebServer server = new MockWebServer();
+    public final HttpStack httpStack;
+    public final ServerApi serverApi;
+
+    /**
+     * Also sets up the credentials {@link ServerApi} sends with every request
+     */
+    public LocalHttpsServer(Context context) throws IOException {
+        PersistentData.initialize(context);
+        PersistentData.setLoginCredentials("patient", "password");
+        Settings.Secure.putString(context.getContentResolver(), Settings.Secure.ANDROID_ID, "0123456789abcdef");
+        DeviceInfo.initialize(context);
+
+        String host = InetAddress.getByName("localhost").getCanonicalHostName();
+        HeldCertificate certificate = new HeldCertificate.Builder()
+                .addSubjectAlternativeName(host)
+                .build();
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+                .heldCertificate(certificate)
+                .build();
+        HandshakeCertificates clientCertificates = new HandshakeCertificates.Builder()
+                .addTrustedCertificate(certificate.certificate())
+                .build();
+        server.useHttps(serverCertificates.sslSocketFactory(), false);
+        server.start();
+
+        httpStack = new HttpStack(context, clientCertificates.sslSocketFactory(), clientCertificates.trustManager());
+        serverApi = new ServerApi(context, "https://" + server.getHostName() + ":" + server.getPort(), httpStack);
+    }
+
+    public void shutdown() throws IOException {
+        server.shutdown();
+    }
+}
@@ -0,0 +1,129 @@
+package io.sodalic.blob.net;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link ServerApi#uploadFiles(List)} against a local server.
+ * Runs with Robolectric for the preferences and the device info.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ServerApiTest {
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private LocalHttpsServer local;
+    private List<File> files;
+
+    @Before
+    public void setUp() throws Exception {
+        local = new LocalHttpsServer(ApplicationProvider.getApplicationContext());
+        files = Arrays.asList(newFile("patient_gps_1.csv"), newFile("patient_powerState_2.csv"), newFile("patient_accel_3.bin"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        local.shutdown();
+    }
+
+    private File newFile(String name) throws Exception {
+        File file = tmp.newFile(name);
+        Files.write(file.toPath(), ("content of " + name).getBytes("UTF-8"));
+        return file;
+    }
+
+    private static Set<String> set(String... names) {
+        return new HashSet<>(Arrays.asList(names));
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private void uploadExpectingFailure() {
+        try {
+            fail("Accepted " + local.serverApi.uploadFiles(files));
+        } catch (ServerException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAllAccepted() throws Exception {
+        local.server.enqueue(new MockResponse().setBody("{\"accepted\": [\"patient_gps_1.csv\", \"patient_powerState_2.csv\", \"patient_accel_3.bin\"]}"));
+        assertEquals(set("patient_gps_1.csv", "patient_powerState_2.csv", "patient_accel_3.bin"), local.serverApi.uploadFiles(files));
+
+        RecordedRequest request = local.server.takeRequest();
+        assertEquals("/upload_batch", request.getPath());
+        String body = request.getBody().readUtf8();
+        // the security parameters go once per request, every file goes as a part of its own
+        assertEquals(1, count(body, "name=\"patient_id\""));
+        assertEquals(1, count(body, "name=\"password_hash\""));
+        assertEquals(1, count(body, "name=\"device_id\""));
+        assertTrue(body.contains("name=\"file_count\"\r\nContent-Length: 1\r\n\r\n3\r\n"));
+        assertEquals(3, count(body, "name=\"files\""));
+        for (File file : files) {
+            assertTrue(body.contains("filename=\"" + file.getName() + "\""));
+            assertEquals(1, count(body, "content of " + file.getName()));
+        }
+    }
+
+    @Test
+    public void testPartiallyAccepted() throws Exception {
+        // the names the server doesn't know are returned as they are, the caller only deletes its own files
+        local.server.enqueue(new MockResponse().setBody("{\"accepted\": [\"patient_gps_1.csv\", \"patient_accel_3.bin\", \"other.csv\"]}"));
+        assertEquals(set("patient_gps_1.csv", "patient_accel_3.bin", "other.csv"), local.serverApi.uploadFiles(files));
+
+        local.server.enqueue(new MockResponse().setBody("{\"accepted\": []}"));
+        assertEquals(set(), local.serverApi.uploadFiles(files));
+    }
+
+    @Test
+    public void testMalformedResponse() throws Exception {
+        local.server.enqueue(new MockResponse().setBody("OK"));
+        uploadExpectingFailure();
+        local.server.enqueue(new MockResponse().setBody("{\"stored\": [\"patient_gps_1.csv\"]}"));
+        uploadExpectingFailure();
+        local.server.enqueue(new MockResponse().setBody("{\"accepted\": \"patient_gps_1.csv\"}"));
+        uploadExpectingFailure();
+        local.server.enqueue(new MockResponse().setBody(""));
+        uploadExpectingFailure();
+    }
+
+    @Test
+    public void testNotFound() throws Exception {
+        // the servers without the batch upload, the caller falls back to the single file uploads
+        local.server.enqueue(new MockResponse().setResponseCode(404));
+        try {
+            local.serverApi.uploadFiles(files);
+            fail();
+        } catch (ServerException e) {
+            assertEquals(404, e.getResponseCode());
+        }
+    }
+}
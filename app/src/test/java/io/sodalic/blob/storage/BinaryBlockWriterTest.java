@@ -0,0 +1,142 @@
+package io.sodalic.blob.storage;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips of {@link BinaryBlockWriter} through {@link BinaryBlockDecoder}
+ */
+public class BinaryBlockWriterTest {
+    private static final BinaryRecordSchema ACCEL = new BinaryRecordSchema("accel",
+            new BinaryRecordSchema.Column("accuracy", BinaryRecordSchema.ColumnType.INT),
+            new BinaryRecordSchema.Column("x", BinaryRecordSchema.ColumnType.FLOAT),
+            new BinaryRecordSchema.Column("y", BinaryRecordSchema.ColumnType.FLOAT),
+            new BinaryRecordSchema.Column("z", BinaryRecordSchema.ColumnType.FLOAT));
+    private static final BinaryRecordSchema MIXED = new BinaryRecordSchema("mixed",
+            new BinaryRecordSchema.Column("name", BinaryRecordSchema.ColumnType.STRING),
+            new BinaryRecordSchema.Column("value", BinaryRecordSchema.ColumnType.DOUBLE),
+            new BinaryRecordSchema.Column("tag", BinaryRecordSchema.ColumnType.STRING));
+
+    private static void addAccel(BinaryBlockWriter writer, long timestamp, int accuracy, float x, float y, float z) {
+        writer.startRow(timestamp);
+        writer.putInt(accuracy).putFloat(x).putFloat(y).putFloat(z);
+        writer.endRow();
+    }
+
+    @Test
+    public void testRoundTrip() {
+        BinaryBlockWriter writer = new BinaryBlockWriter(ACCEL, 10);
+        addAccel(writer, 1560000000000L, 3, 0.5f, -9.81f, 0f);
+        addAccel(writer, 1560000000020L, 3, 0.25f, -9.75f, 1.5f);
+        // the clock may go back a little
+        addAccel(writer, 1560000000010L, 2, 1f, 2f, 3f);
+        assertEquals(3, writer.getRowCount());
+
+        List<String> rows = BinaryBlockDecoder.decodeToCsv(ACCEL, writer.encodeBlock());
+        assertEquals(Arrays.asList(
+                "1560000000000,3,0.5,-9.81,0.0",
+                "1560000000020,3,0.25,-9.75,1.5",
+                "1560000000010,2,1.0,2.0,3.0"), rows);
+    }
+
+    @Test
+    public void testStringColumns() {
+        BinaryBlockWriter writer = new BinaryBlockWriter(MIXED, 4);
+        writer.startRow(1000);
+        writer.putString("café ☃").putDouble(-71.123456789).putString("");
+        writer.endRow();
+        writer.startRow(2000);
+        // a lot more than the initial capacity of the column
+        char[] longValue = new char[500];
+        Arrays.fill(longValue, 'a');
+        writer.putString(new String(longValue)).putDouble(0.1).putString("t");
+        writer.endRow();
+
+        List<String> rows = BinaryBlockDecoder.decodeToCsv(MIXED, writer.encodeBlock());
+        assertEquals("1000,café ☃,-71.123456789,", rows.get(0));
+        assertEquals("2000," + new String(longValue) + ",0.1,t", rows.get(1));
+    }
+
+    @Test
+    public void testWriterIsResetByEncode() {
+        BinaryBlockWriter writer = new BinaryBlockWriter(ACCEL, 2);
+        addAccel(writer, 100, 1, 1f, 1f, 1f);
+        addAccel(writer, 200, 1, 2f, 2f, 2f);
+        assertTrue(writer.isFull());
+        assertFalse(writer.canAppend(300));
+        writer.encodeBlock();
+
+        assertTrue(writer.isEmpty());
+        addAccel(writer, 5000, 0, 3f, 3f, 3f);
+        assertEquals(5000, writer.getFirstTimestamp());
+        assertEquals(Arrays.asList("5000,0,3.0,3.0,3.0"), BinaryBlockDecoder.decodeToCsv(ACCEL, writer.encodeBlock()));
+    }
+
+    @Test
+    public void testEmptyBlock() {
+        BinaryBlockWriter writer = new BinaryBlockWriter(ACCEL, 2);
+        assertTrue(BinaryBlockDecoder.decodeToCsv(ACCEL, writer.encodeBlock()).isEmpty());
+    }
+
+    @Test
+    public void testTimestampDeltaMustFitInt() {
+        BinaryBlockWriter writer = new BinaryBlockWriter(ACCEL, 10);
+        addAccel(writer, 0, 1, 1f, 1f, 1f);
+        assertTrue(writer.canAppend(Integer.MAX_VALUE));
+        assertFalse(writer.canAppend(Integer.MAX_VALUE + 1L));
+        assertFalse(writer.canAppend(Integer.MIN_VALUE - 1L));
+        try {
+            writer.startRow(Integer.MAX_VALUE + 1L);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testColumnsMustFollowTheSchema() {
+        BinaryBlockWriter writer = new BinaryBlockWriter(ACCEL, 10);
+        writer.startRow(0);
+        try {
+            writer.putFloat(1f);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        writer.putInt(1).putFloat(1f);
+        try {
+            writer.endRow();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            writer.encodeBlock();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testHeaderLineRoundTrip() {
+        String header = MIXED.getHeaderLine();
+        assertEquals("BLOBBIN/1;stream=mixed;columns=name:str,value:f64,tag:str", header);
+        BinaryRecordSchema parsed = BinaryRecordSchema.parseHeaderLine(header);
+        assertEquals(MIXED.getStreamName(), parsed.getStreamName());
+        assertEquals(MIXED.getColumns().size(), parsed.getColumns().size());
+        for (int i = 0; i < MIXED.getColumns().size(); i++) {
+            assertEquals(MIXED.getColumns().get(i).name, parsed.getColumns().get(i).name);
+            assertEquals(MIXED.getColumns().get(i).type, parsed.getColumns().get(i).type);
+        }
+        assertEquals(header, parsed.getHeaderLine());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedHeaderLine() {
+        BinaryRecordSchema.parseHeaderLine("BLOBBIN/2;stream=accel;columns=x:f32");
+    }
+}
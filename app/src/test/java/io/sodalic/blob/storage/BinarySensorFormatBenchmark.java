@@ -0,0 +1,198 @@
+package io.sodalic.blob.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.beiwe.app.listeners.AccelerometerListener;
+import org.beiwe.app.listeners.GPSListener;
+import org.beiwe.app.storage.EncryptionEngine;
+import org.beiwe.app.storage.TestKeys;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Size and throughput of the accelerometer and GPS streams written as encrypted CSV lines, the way the listeners
+ * do by default, and as encrypted {@link BinaryBlockWriter} blocks of the same rows, the way
+ * {@link org.beiwe.app.storage.TextFileManager} writes them with the binary format on. The bytes are the ones
+ * of the lines written to the file, the time covers building the row, the encryption and the Base64.
+ * <p>
+ * The sizes don't depend on the JVM, so the binary format is asserted to be at least twice as compact.
+ * The timings only show the trend. Runs with {@code -Pbenchmarks}. Runs with Robolectric for {@link android.util.Base64}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BinarySensorFormatBenchmark {
+    private static final int ROWS = 100000;
+    // the same as the block size of TextFileManager
+    private static final int BLOCK_ROWS = 512;
+    private static final int ROUNDS = 3;
+
+    private EncryptionEngine.AESFileEncryptor encryptor;
+    private byte[] aesKey;
+
+    @Before
+    public void setUp() throws Exception {
+        TestKeys.useTestRSAKey();
+        aesKey = EncryptionEngine.newAESKey();
+        encryptor = EncryptionEngine.newAESFileEncryptor(aesKey);
+    }
+
+    /**
+     * One stream: how its rows are formatted as CSV and added to a binary block
+     */
+    private interface Stream {
+        BinaryRecordSchema getSchema();
+
+        String csvLine(int i);
+
+        void addRow(BinaryBlockWriter writer, int i);
+    }
+
+    /**
+     * A 200Hz accelerometer
+     */
+    private static final class AccelStream implements Stream {
+        final float[] values = new float[3 * ROWS];
+
+        AccelStream() {
+            Random random = new Random(1);
+            for (int i = 0; i < values.length; i++) {
+                values[i] = (float) (random.nextGaussian() * 2 + ((i % 3 == 2) ? 9.81 : 0));
+            }
+        }
+
+        @Override
+        public BinaryRecordSchema getSchema() {
+            return AccelerometerListener.binarySchema;
+        }
+
+        @Override
+        public String csvLine(int i) {
+            return (1560000000000L + i * 5) + "," + 3 + ',' + values[3 * i] + ',' + values[3 * i + 1] + ',' + values[3 * i + 2];
+        }
+
+        @Override
+        public void addRow(BinaryBlockWriter writer, int i) {
+            writer.startRow(1560000000000L + i * 5);
+            writer.putInt(3).putFloat(values[3 * i]).putFloat(values[3 * i + 1]).putFloat(values[3 * i + 2]);
+            writer.endRow();
+        }
+    }
+
+    /**
+     * A GPS fix a second walking around
+     */
+    private static final class GpsStream implements Stream {
+        final double[] values = new double[3 * ROWS];
+
+        GpsStream() {
+            Random random = new Random(2);
+            double latitude = 42.3601;
+            double longitude = -71.0589;
+            for (int i = 0; i < ROWS; i++) {
+                latitude += random.nextGaussian() * 1e-5;
+                longitude += random.nextGaussian() * 1e-5;
+                values[3 * i] = latitude;
+                values[3 * i + 1] = longitude;
+                values[3 * i + 2] = 20 + random.nextGaussian();
+            }
+        }
+
+        @Override
+        public BinaryRecordSchema getSchema() {
+            return GPSListener.binarySchema;
+        }
+
+        private float accuracy(int i) {
+            return 5 + i % 20;
+        }
+
+        @Override
+        public String csvLine(int i) {
+            return (1560000000000L + i * 1000L) + "," + values[3 * i] + ',' + values[3 * i + 1] + ',' + values[3 * i + 2] + ',' + accuracy(i);
+        }
+
+        @Override
+        public void addRow(BinaryBlockWriter writer, int i) {
+            writer.startRow(1560000000000L + i * 1000L);
+            writer.putDouble(values[3 * i]).putDouble(values[3 * i + 1]).putDouble(values[3 * i + 2]).putFloat(accuracy(i));
+            writer.endRow();
+        }
+    }
+
+    /**
+     * @return the bytes of the written lines
+     */
+    private long writeCsv(Stream stream) throws Exception {
+        long bytes = 0;
+        for (int i = 0; i < ROWS; i++) {
+            bytes += encryptor.encrypt(stream.csvLine(i)).length() + 1;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the bytes of the written lines
+     */
+    private long writeBinary(Stream stream, List<String> blocks) throws Exception {
+        BinaryBlockWriter writer = new BinaryBlockWriter(stream.getSchema(), BLOCK_ROWS);
+        long bytes = 0;
+        for (int i = 0; i < ROWS; i++) {
+            stream.addRow(writer, i);
+            if (writer.isFull() || i == ROWS - 1) {
+                String line = encryptor.encrypt(writer.encodeBlock());
+                bytes += line.length() + 1;
+                if (blocks != null)
+                    blocks.add(line);
+            }
+        }
+        return bytes;
+    }
+
+    private void compare(String name, Stream stream) throws Exception {
+        // the reference decoder restores the CSV rows
+        List<String> blocks = new ArrayList<>();
+        writeBinary(stream, blocks);
+        List<String> rows = new ArrayList<>();
+        for (String block : blocks) {
+            rows.addAll(BinaryBlockDecoder.decodeToCsv(stream.getSchema(), TestKeys.decryptAES(block, aesKey)));
+        }
+        assertEquals(ROWS, rows.size());
+        for (int i = 0; i < ROWS; i++) {
+            assertEquals(stream.csvLine(i), rows.get(i));
+        }
+
+        long csvBytes = 0;
+        long binaryBytes = 0;
+        long csvNanos = Long.MAX_VALUE;
+        long binaryNanos = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            csvBytes = writeCsv(stream);
+            csvNanos = Math.min(csvNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            binaryBytes = writeBinary(stream, null);
+            binaryNanos = Math.min(binaryNanos, System.nanoTime() - start);
+        }
+        System.out.println(String.format(Locale.ENGLISH, "%-5s csv    | %8.0f rows/s | %5.1f bytes/row", name, ROWS / (csvNanos / 1e9), csvBytes / (double) ROWS));
+        System.out.println(String.format(Locale.ENGLISH, "%-5s binary | %8.0f rows/s | %5.1f bytes/row, %.1fx smaller",
+                name, ROWS / (binaryNanos / 1e9), binaryBytes / (double) ROWS, csvBytes / (double) binaryBytes));
+        assertTrue(binaryBytes * 2 < csvBytes);
+    }
+
+    @Test
+    public void testAccel() throws Exception {
+        compare("accel", new AccelStream());
+    }
+
+    @Test
+    public void testGps() throws Exception {
+        compare("gps", new GpsStream());
+    }
+}
@@ -0,0 +1,88 @@
+package io.sodalic.blob.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lines/sec and write syscalls of an accelerometer-like stream written the way
+ * {@link org.beiwe.app.storage.TextFileManager} used to write every line (open, write the line,
+ * write the new line, close) and with a {@link BufferedStreamWriter}.
+ * <p>
+ * Only the syscall counts are asserted, the JVM timings only show the trend.
+ * Runs with {@code -Pbenchmarks}.
+ */
+public class BufferedStreamWriterBenchmark {
+    private static final int LINES = 100000;
+    private static final int BUFFER_BYTES = 16 * 1024;
+    private static final long NEVER = Long.MAX_VALUE;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private static String line(int i) {
+        return (1560000000000L + i * 5) + ",2019-06-08T13:20:00.000,unknown," + (i % 7) + ".1,-0.25,9.81";
+    }
+
+    /**
+     * @return the number of syscalls
+     */
+    private static long writeUnbuffered(File file) throws IOException {
+        for (int i = 0; i < LINES; i++) {
+            FileOutputStream out = new FileOutputStream(file, true);
+            out.write(line(i).getBytes());
+            out.write("\n".getBytes());
+            out.close();
+        }
+        return 4L * LINES;
+    }
+
+    /**
+     * @return the number of syscalls
+     */
+    private static long writeBuffered(File file) throws IOException {
+        BufferedStreamWriter out = new BufferedStreamWriter(file, BUFFER_BYTES, NEVER);
+        for (int i = 0; i < LINES; i++) {
+            out.writeLine(line(i));
+        }
+        out.close();
+        return 1 + out.getFlushCount() + 1;
+    }
+
+    private static void print(String name, long nanos, long syscalls) {
+        System.out.println(String.format(Locale.ENGLISH, "%-10s | %10.0f lines/s | %7d syscalls",
+                name, LINES / (nanos / 1e9), syscalls));
+    }
+
+    @Test
+    public void testLinesPerSecond() throws Exception {
+        // a warm-up round of both
+        writeUnbuffered(tmp.newFile());
+        writeBuffered(tmp.newFile());
+
+        File unbufferedFile = tmp.newFile();
+        long start = System.nanoTime();
+        long unbufferedSyscalls = writeUnbuffered(unbufferedFile);
+        long unbufferedNanos = System.nanoTime() - start;
+
+        File bufferedFile = tmp.newFile();
+        start = System.nanoTime();
+        long bufferedSyscalls = writeBuffered(bufferedFile);
+        long bufferedNanos = System.nanoTime() - start;
+
+        print("unbuffered", unbufferedNanos, unbufferedSyscalls);
+        print("buffered", bufferedNanos, bufferedSyscalls);
+        assertEquals(unbufferedFile.length(), bufferedFile.length());
+        // about one write per full buffer, a line that doesn't fit the rest of the buffer waits for the next one
+        assertTrue(bufferedSyscalls <= 2 + 2 * bufferedFile.length() / BUFFER_BYTES);
+        assertTrue(bufferedSyscalls * 100 < unbufferedSyscalls);
+    }
+}
@@ -0,0 +1,99 @@
+package io.sodalic.blob.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+public class BufferedStreamWriterTest {
+    private static final long NEVER = Long.MAX_VALUE;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+    }
+
+    @Test
+    public void testLinesStayInMemoryUntilTheBufferIsFull() throws IOException {
+        File file = tmp.newFile();
+        BufferedStreamWriter writer = new BufferedStreamWriter(file, 32, NEVER);
+        writer.writeLine("0123456789");
+        writer.writeLine("0123456789");
+        assertEquals(0, file.length());
+        assertEquals(0, writer.getFlushCount());
+
+        // 22 bytes are buffered, the third line doesn't fit and pushes them out
+        writer.writeLine("0123456789AB");
+        assertEquals("0123456789\n0123456789\n", read(file));
+        assertEquals(1, writer.getFlushCount());
+
+        writer.close();
+        assertEquals("0123456789\n0123456789\n0123456789AB\n", read(file));
+        assertEquals(2, writer.getFlushCount());
+    }
+
+    @Test
+    public void testExpiredBufferIsFlushedOnTheNextLine() throws IOException {
+        File file = tmp.newFile();
+        BufferedStreamWriter writer = new BufferedStreamWriter(file, 1024, 0);
+        writer.writeLine("a");
+        assertEquals("a\n", read(file));
+        writer.writeLine("b");
+        assertEquals("a\nb\n", read(file));
+        assertEquals(2, writer.getFlushCount());
+        writer.close();
+        assertEquals(2, writer.getFlushCount());
+    }
+
+    @Test
+    public void testBigWriteGoesStraightToTheFile() throws IOException {
+        File file = tmp.newFile();
+        BufferedStreamWriter writer = new BufferedStreamWriter(file, 8, NEVER);
+        writer.writeLine("ab");
+        byte[] big = "0123456789ABCDEF".getBytes("UTF-8");
+        writer.write(big, 0, big.length);
+        // the buffered line goes first to keep the order
+        assertEquals("ab\n0123456789ABCDEF", read(file));
+        assertEquals(2, writer.getFlushCount());
+        writer.close();
+    }
+
+    @Test
+    public void testLineOfTheBufferSize() throws IOException {
+        File file = tmp.newFile();
+        BufferedStreamWriter writer = new BufferedStreamWriter(file, 4, NEVER);
+        writer.writeLine("abcd");
+        writer.writeLine("ef");
+        writer.close();
+        assertEquals("abcd\nef\n", read(file));
+    }
+
+    @Test
+    public void testFileIsAppended() throws IOException {
+        File file = tmp.newFile();
+        Files.write(file.toPath(), "old\n".getBytes("UTF-8"));
+        BufferedStreamWriter writer = new BufferedStreamWriter(file, 1024, NEVER);
+        writer.writeLine("new");
+        writer.flush();
+        assertEquals("old\nnew\n", read(file));
+        writer.close();
+    }
+
+    @Test
+    public void testAbandonDropsTheBuffer() throws IOException {
+        File file = tmp.newFile();
+        BufferedStreamWriter writer = new BufferedStreamWriter(file, 1024, NEVER);
+        writer.writeLine("flushed");
+        writer.flush();
+        writer.writeLine("lost");
+        writer.abandon();
+        assertEquals("flushed\n", read(file));
+    }
+}
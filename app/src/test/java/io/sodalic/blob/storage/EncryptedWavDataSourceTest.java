@@ -0,0 +1,169 @@
+package io.sodalic.blob.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.beiwe.app.storage.EncryptionEngine;
+import org.beiwe.app.storage.TestKeys;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes with {@link EncryptedWavFileWriter} and reads back with {@link EncryptedWavDataSource}.
+ * Runs with Robolectric for {@link android.media.MediaDataSource}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class EncryptedWavDataSourceTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BIT_DEPTH = 16;
+    private static final int FRAME = EncryptedWavFileWriter.FRAME_SIZE_BYTES;
+    private static final int HEADER_SIZE = WavFileWriter.HEADER_SIZE;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private byte[] aesKey;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        TestKeys.useTestRSAKey();
+        aesKey = EncryptionEngine.newAESKey();
+        file = new File(tmp.getRoot(), "recording");
+    }
+
+    /**
+     * Records {@code pcm} in chunks of odd sizes, the way the recorder hands the buffers over
+     */
+    private void record(byte[] pcm) throws Exception {
+        EncryptedWavFileWriter writer = new EncryptedWavFileWriter(file, aesKey, "wrapped key", SAMPLE_RATE, 1, BIT_DEPTH);
+        for (int offset = 0; offset < pcm.length; ) {
+            int count = Math.min(pcm.length - offset, 3001);
+            writer.write(pcm, offset, count);
+            offset += count;
+        }
+        writer.close();
+        assertEquals(pcm.length, writer.getDataSize());
+    }
+
+    private static byte[] randomPcm(int size) {
+        byte[] pcm = new byte[size];
+        new Random(size).nextBytes(pcm);
+        return pcm;
+    }
+
+    /**
+     * Reads the whole source with readAt in chunks of {@code chunk} bytes
+     */
+    private static byte[] readAll(EncryptedWavDataSource source, int chunk) throws IOException {
+        byte[] content = new byte[(int) source.getSize()];
+        int position = 0;
+        while (position < content.length) {
+            int read = source.readAt(position, content, position, Math.min(chunk, content.length - position));
+            if (read <= 0)
+                fail("readAt returned " + read + " at " + position);
+            position += read;
+        }
+        assertEquals(-1, source.readAt(content.length, new byte[1], 0, 1));
+        return content;
+    }
+
+    private static byte[] expectedWav(byte[] pcm) {
+        byte[] wav = Arrays.copyOf(WavFileWriter.buildHeader(pcm.length, SAMPLE_RATE, 1, BIT_DEPTH), HEADER_SIZE + pcm.length);
+        System.arraycopy(pcm, 0, wav, HEADER_SIZE, pcm.length);
+        return wav;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        // a whole number of frames and a partial one
+        for (int size : new int[]{0, 1, FRAME - 1, FRAME, 3 * FRAME + FRAME / 2}) {
+            byte[] pcm = randomPcm(size);
+            file.delete();
+            record(pcm);
+            EncryptedWavDataSource source = new EncryptedWavDataSource(file, aesKey);
+            assertEquals(HEADER_SIZE + size, source.getSize());
+            assertArrayEquals("size " + size, expectedWav(pcm), readAll(source, 10000));
+            source.close();
+        }
+    }
+
+    @Test
+    public void testReadAtRandomPositions() throws Exception {
+        byte[] pcm = randomPcm(5 * FRAME + 123);
+        record(pcm);
+        byte[] wav = expectedWav(pcm);
+        EncryptedWavDataSource source = new EncryptedWavDataSource(file, aesKey);
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            // going back and forth between the frames, across the header and the frame ends
+            int position = random.nextInt(wav.length);
+            int size = 1 + random.nextInt(2 * FRAME);
+            byte[] buffer = new byte[size + 5];
+            int read = source.readAt(position, buffer, 5, size);
+            // never more than asked and never past the header or the frame
+            assertTrue(read > 0 && read <= size && position + read <= wav.length);
+            assertArrayEquals(Arrays.copyOfRange(wav, position, position + read), Arrays.copyOfRange(buffer, 5, 5 + read));
+        }
+        assertEquals(0, source.readAt(HEADER_SIZE, new byte[1], 0, 0));
+    }
+
+    @Test
+    public void testTornLastFrameIsDropped() throws Exception {
+        byte[] pcm = randomPcm(3 * FRAME + FRAME / 2);
+        record(pcm);
+        long length = file.length();
+        int lastFrame = FramedFileWriter.FRAME_HEADER_LENGTH + EncryptionEngine.AESFrameEncryptor.NONCE_LENGTH
+                + FRAME / 2 + EncryptionEngine.AESFrameEncryptor.TAG_LENGTH;
+        // a crash in the middle of the last frame, in its frame header, and in the middle of the frame before it
+        int[] cuts = {100, lastFrame - 3, lastFrame + 100};
+        int[] completeFrames = {3, 3, 2};
+        for (int i = 0; i < cuts.length; i++) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length - cuts[i]);
+            raf.close();
+            EncryptedWavDataSource source = new EncryptedWavDataSource(file, aesKey);
+            // the player gets the complete frames with the header sized for them
+            byte[] complete = Arrays.copyOf(pcm, completeFrames[i] * FRAME);
+            assertEquals(HEADER_SIZE + complete.length, source.getSize());
+            assertArrayEquals(expectedWav(complete), readAll(source, 7777));
+            source.close();
+        }
+    }
+
+    @Test
+    public void testModifiedFrameFailsToRead() throws Exception {
+        byte[] pcm = randomPcm(2 * FRAME);
+        record(pcm);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        // somewhere in the second PCM frame
+        long position = file.length() - FRAME / 2;
+        raf.seek(position);
+        int value = raf.read();
+        raf.seek(position);
+        raf.write(value ^ 1);
+        raf.close();
+
+        EncryptedWavDataSource source = new EncryptedWavDataSource(file, aesKey);
+        byte[] buffer = new byte[FRAME];
+        assertEquals(FRAME, source.readAt(HEADER_SIZE, buffer, 0, FRAME));
+        try {
+            source.readAt(HEADER_SIZE + FRAME, buffer, 0, FRAME);
+            fail("A modified frame must not be played");
+        } catch (IOException expected) {
+            // the tag doesn't match
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package io.sodalic.blob.storage;
+
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.beiwe.app.storage.TestKeys;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Runs with Robolectric for {@link android.util.Base64}
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FileKeyPoolTest {
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private KeyPair keyPair;
+
+    @Before
+    public void setUp() throws Exception {
+        keyPair = TestKeys.useTestRSAKey();
+    }
+
+    /**
+     * Waits for the background refill to give out a key
+     */
+    private static FileKeyPool.FileKey takeReady(FileKeyPool pool) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            FileKeyPool.FileKey key = pool.take();
+            if (key != null)
+                return key;
+            Thread.sleep(10);
+        }
+        throw new AssertionError("No key after " + TIMEOUT_MILLIS + " ms");
+    }
+
+    @Test
+    public void testEmptyPoolIsRefilled() throws Exception {
+        FileKeyPool pool = new FileKeyPool(2);
+        // nothing is prepared before the first request
+        assertNull(pool.take());
+        assertNotNull(takeReady(pool));
+    }
+
+    @Test
+    public void testKeysAreNotReused() throws Exception {
+        FileKeyPool pool = new FileKeyPool(3);
+        pool.requestRefill();
+        Set<String> aesKeys = new HashSet<>();
+        Set<String> wrappedKeys = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            FileKeyPool.FileKey key = takeReady(pool);
+            aesKeys.add(Arrays.toString(key.aesKey));
+            wrappedKeys.add(key.wrappedKey);
+        }
+        assertEquals(10, aesKeys.size());
+        assertEquals(10, wrappedKeys.size());
+    }
+
+    @Test
+    public void testWrappedKeyIsTheAESKey() throws Exception {
+        FileKeyPool pool = new FileKeyPool(1);
+        pool.requestRefill();
+        FileKeyPool.FileKey key = takeReady(pool);
+        assertEquals(16, key.aesKey.length);
+        assertArrayEquals(key.aesKey, TestKeys.decryptRSA(key.wrappedKey, keyPair.getPrivate()));
+    }
+}
@@ -0,0 +1,173 @@
+package io.sodalic.blob.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.beiwe.app.storage.EncryptionEngine;
+import org.beiwe.app.storage.TestKeys;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compression ratio and CPU time of the framed streams (accelerometer, GPS and Bluetooth, the ones that can be
+ * framed) written with and without the frame compression. The traces are generated in the formats the listeners
+ * write: a 200Hz accelerometer with the sensor jitter, a GPS fix every 10 seconds of a walk and Bluetooth scans
+ * every 5 minutes seeing some of 40 nearby devices. The frame limits are the ones of
+ * {@link org.beiwe.app.storage.TextFileManager}. The CPU time is the one of the writing thread, it covers the
+ * compression, the encryption and the buffering.
+ * <p>
+ * The sizes don't depend on the JVM, so the compressed files are asserted to be at least twice as small.
+ * The CPU times only show the trend. Runs with {@code -Pbenchmarks}.
+ */
+public class FrameCompressionBenchmark {
+    private static final long NEVER = Long.MAX_VALUE;
+    private static final int FRAME_MAX_LINES = 1000;
+    private static final int FRAME_MAX_BYTES = 16 * 1024;
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private byte[] aesKey;
+
+    @Before
+    public void setUp() throws Exception {
+        TestKeys.useTestRSAKey();
+        aesKey = EncryptionEngine.newAESKey();
+    }
+
+    /**
+     * 10 minutes of a 200Hz accelerometer
+     */
+    private static List<String> accelTrace() {
+        Random random = new Random(1);
+        List<String> lines = new ArrayList<>();
+        long time = 1560000000000L;
+        for (int i = 0; i < 10 * 60 * 200; i++) {
+            time += 4 + random.nextInt(3);
+            float x = (float) (random.nextGaussian() * 0.3);
+            float y = (float) (random.nextGaussian() * 0.3);
+            float z = (float) (9.81 + random.nextGaussian() * 0.3);
+            lines.add(time + ",unknown," + x + ',' + y + ',' + z);
+        }
+        return lines;
+    }
+
+    /**
+     * A day of a GPS fix every 10 seconds
+     */
+    private static List<String> gpsTrace() {
+        Random random = new Random(2);
+        List<String> lines = new ArrayList<>();
+        long time = 1560000000000L;
+        double latitude = 42.3601;
+        double longitude = -71.0589;
+        for (int i = 0; i < 24 * 60 * 6; i++) {
+            time += 10000 + random.nextInt(50);
+            latitude += random.nextGaussian() * 1e-5;
+            longitude += random.nextGaussian() * 1e-5;
+            double altitude = 20 + random.nextGaussian();
+            float accuracy = 5 + random.nextInt(20);
+            lines.add(time + "," + latitude + ',' + longitude + ',' + altitude + ',' + accuracy);
+        }
+        return lines;
+    }
+
+    /**
+     * A day of scans every 5 minutes
+     */
+    private static List<String> bluetoothTrace() throws Exception {
+        Random random = new Random(3);
+        String[] hashedMacs = new String[40];
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        for (int i = 0; i < hashedMacs.length; i++) {
+            String mac = String.format(Locale.ENGLISH, "00:1A:7D:DA:71:%02X", i);
+            // the format of EncryptionEngine.safeHash
+            hashedMacs[i] = Base64.getUrlEncoder().encodeToString(sha256.digest(mac.getBytes("UTF-8")));
+        }
+        List<String> lines = new ArrayList<>();
+        long time = 1560000000000L;
+        for (int scan = 0; scan < 24 * 12; scan++) {
+            time += 5 * 60 * 1000;
+            for (int i = 0; i < 15; i++) {
+                lines.add((time + random.nextInt(10000)) + "," + hashedMacs[random.nextInt(hashedMacs.length)] + "," + (-40 - random.nextInt(60)));
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return the CPU nanoseconds of the writing
+     */
+    private long write(File file, List<String> lines, boolean compress, long[] storedBytes) throws Exception {
+        BufferedStreamWriter out = new BufferedStreamWriter(file, 16 * 1024, NEVER);
+        out.writeLine("wrapped key");
+        out.writeLine(FramedFileWriter.getDescriptorLine(FramedFileWriter.PAYLOAD_CSV, compress));
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long start = threads.getCurrentThreadCpuTime();
+        FramedFileWriter writer = new FramedFileWriter(out, EncryptionEngine.newAESFrameEncryptor(aesKey), FRAME_MAX_LINES, FRAME_MAX_BYTES, NEVER, compress);
+        for (String line : lines) {
+            writer.appendLine(line);
+        }
+        writer.flush();
+        writer.release();
+        out.close();
+        long nanos = threads.getCurrentThreadCpuTime() - start;
+        storedBytes[0] = writer.getStoredBytes();
+        return nanos;
+    }
+
+    private void compare(String stream, List<String> lines) throws Exception {
+        File plainFile = tmp.newFile();
+        File compressedFile = tmp.newFile();
+        long[] plainBytes = {0};
+        long[] compressedBytes = {0};
+        long plainNanos = Long.MAX_VALUE;
+        long compressedNanos = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            plainNanos = Math.min(plainNanos, write(plainFile, lines, false, plainBytes));
+            compressedNanos = Math.min(compressedNanos, write(compressedFile, lines, true, compressedBytes));
+        }
+
+        // the compressed file has all the lines
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (String line : lines) {
+            expected.write(line.getBytes("UTF-8"));
+            expected.write('\n');
+        }
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        for (byte[] frame : FramedFileDecoder.decode(Files.readAllBytes(compressedFile.toPath()), aesKey).frames) {
+            decoded.write(frame);
+        }
+        assertArrayEquals(expected.toByteArray(), decoded.toByteArray());
+
+        System.out.println(String.format(Locale.ENGLISH, "%-12s | %6d lines | %5.1f -> %5.1f bytes/line, %4.1fx smaller | CPU %6.1f -> %6.1f ms, %5.2f us/line more",
+                stream, lines.size(), plainBytes[0] / (double) lines.size(), compressedBytes[0] / (double) lines.size(),
+                plainBytes[0] / (double) compressedBytes[0], plainNanos / 1e6, compressedNanos / 1e6,
+                (compressedNanos - plainNanos) / 1e3 / lines.size()));
+        assertTrue(compressedBytes[0] * 2 < plainBytes[0]);
+    }
+
+    @Test
+    public void testStreams() throws Exception {
+        // a warm-up round
+        compare("warm-up", accelTrace());
+        compare("accel", accelTrace());
+        compare("gps", gpsTrace());
+        compare("bluetoothLog", bluetoothTrace());
+    }
+}
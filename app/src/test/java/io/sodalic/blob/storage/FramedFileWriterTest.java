@@ -0,0 +1,213 @@
+package io.sodalic.blob.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.beiwe.app.storage.EncryptionEngine;
+import org.beiwe.app.storage.TestKeys;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes the files with {@link FramedFileWriter} and reads them back with {@link FramedFileDecoder}
+ */
+public class FramedFileWriterTest {
+    private static final long NEVER = Long.MAX_VALUE;
+    private static final int MAX_FRAME_LINES = 100;
+    private static final int MAX_FRAME_BYTES = 4096;
+    private static final String HEADER = "timestamp,UTC time,accuracy,x,y,z";
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private byte[] aesKey;
+    private File file;
+    private BufferedStreamWriter out;
+
+    @Before
+    public void setUp() throws Exception {
+        TestKeys.useTestRSAKey();
+        aesKey = EncryptionEngine.newAESKey();
+        file = tmp.newFile();
+    }
+
+    private FramedFileWriter newWriter(String payload, boolean compress) throws Exception {
+        out = new BufferedStreamWriter(file, 64 * 1024, NEVER);
+        // only the decoder reads the key line back, and it gets the key on its own
+        out.writeLine("wrapped key");
+        out.writeLine(FramedFileWriter.getDescriptorLine(payload, compress));
+        return new FramedFileWriter(out, EncryptionEngine.newAESFrameEncryptor(aesKey), MAX_FRAME_LINES, MAX_FRAME_BYTES, NEVER, compress);
+    }
+
+    private void close(FramedFileWriter writer) throws Exception {
+        writer.flush();
+        writer.release();
+        out.close();
+    }
+
+    private FramedFileDecoder.Result decode() throws Exception {
+        return FramedFileDecoder.decode(Files.readAllBytes(file.toPath()), aesKey);
+    }
+
+    private static String line(int i) {
+        return (1560000000000L + i * 20) + ",2019-06-08T13:20:00.000,unknown," + (i % 7) + ".1,-0.25,9.81";
+    }
+
+    private static byte[] join(List<byte[]> frames, int from) throws IOException {
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (byte[] frame : frames.subList(from, frames.size())) {
+            joined.write(frame);
+        }
+        return joined.toByteArray();
+    }
+
+    private void checkLinesRoundTrip(boolean compress) throws Exception {
+        FramedFileWriter writer = newWriter(FramedFileWriter.PAYLOAD_CSV, compress);
+        writer.writeFrame(HEADER.getBytes("UTF-8"));
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            writer.appendLine(line(i));
+            expected.append(line(i)).append('\n');
+        }
+        close(writer);
+
+        FramedFileDecoder.Result result = decode();
+        assertEquals(FramedFileWriter.getDescriptorLine(FramedFileWriter.PAYLOAD_CSV, compress), result.descriptorLine);
+        assertEquals(0, result.droppedBytes);
+        assertEquals(writer.getFrameCount(), result.frames.size());
+        assertEquals(HEADER, new String(result.frames.get(0), "UTF-8"));
+        assertEquals(expected.toString(), new String(join(result.frames, 1), "UTF-8"));
+        for (byte[] frame : result.frames) {
+            assertTrue(frame.length <= MAX_FRAME_BYTES);
+        }
+        assertEquals(HEADER.length() + expected.length(), writer.getPlainBytes());
+        assertEquals("wrapped key\n".length() + result.descriptorLine.length() + 1, file.length() - writer.getStoredBytes());
+    }
+
+    @Test
+    public void testLinesRoundTrip() throws Exception {
+        checkLinesRoundTrip(false);
+    }
+
+    @Test
+    public void testCompressedLinesRoundTrip() throws Exception {
+        checkLinesRoundTrip(true);
+    }
+
+    @Test
+    public void testCompressionShrinksTheFrames() throws Exception {
+        FramedFileWriter writer = newWriter(FramedFileWriter.PAYLOAD_CSV, true);
+        for (int i = 0; i < 1000; i++) {
+            writer.appendLine(line(i));
+        }
+        close(writer);
+        assertTrue(writer.getStoredBytes() * 2 < writer.getPlainBytes());
+    }
+
+    @Test
+    public void testHugeLineKeepsTheOrder() throws Exception {
+        for (boolean compress : new boolean[]{false, true}) {
+            assertTrue(file.delete());
+            char[] huge = new char[3 * MAX_FRAME_BYTES];
+            Arrays.fill(huge, 'x');
+            FramedFileWriter writer = newWriter(FramedFileWriter.PAYLOAD_CSV, compress);
+            writer.writeFrame(HEADER.getBytes("UTF-8"));
+            writer.appendLine("before");
+            writer.appendLine(new String(huge));
+            writer.appendLine("after");
+            close(writer);
+
+            FramedFileDecoder.Result result = decode();
+            assertEquals(4, result.frames.size());
+            assertEquals("before\n" + new String(huge) + "\nafter\n", new String(join(result.frames, 1), "UTF-8"));
+        }
+    }
+
+    @Test
+    public void testRawDataRoundTrip() throws Exception {
+        byte[] wavHeader = new byte[44];
+        byte[] pcm = new byte[10000];
+        new Random(1).nextBytes(pcm);
+        FramedFileWriter writer = newWriter(FramedFileWriter.PAYLOAD_WAV, true);
+        writer.writeFrame(wavHeader);
+        for (int offset = 0; offset < pcm.length; offset += 1000) {
+            writer.append(pcm, offset, 1000);
+        }
+        close(writer);
+
+        FramedFileDecoder.Result result = decode();
+        // the full frames and then the rest sealed by the flush
+        assertEquals(1 + 3, result.frames.size());
+        assertEquals(MAX_FRAME_BYTES, result.frames.get(1).length);
+        assertArrayEquals(wavHeader, result.frames.get(0));
+        assertArrayEquals(pcm, join(result.frames, 1));
+    }
+
+    /**
+     * @return the file with a few frames and the length of the file before the last frame
+     */
+    private long writeFramesAndOneMore(boolean compress) throws Exception {
+        FramedFileWriter writer = newWriter(FramedFileWriter.PAYLOAD_CSV, compress);
+        writer.writeFrame(HEADER.getBytes("UTF-8"));
+        writer.appendLine("first");
+        writer.flush();
+        long lengthBefore = file.length();
+        writer.appendLine("last");
+        close(writer);
+        return lengthBefore;
+    }
+
+    private void checkTornLastFrame(byte[] content, long lengthBefore) throws Exception {
+        FramedFileDecoder.Result result = FramedFileDecoder.decode(content, aesKey);
+        assertEquals(content.length - lengthBefore, result.droppedBytes);
+        assertEquals(2, result.frames.size());
+        assertEquals(HEADER, new String(result.frames.get(0), "UTF-8"));
+        assertEquals("first\n", new String(result.frames.get(1), "UTF-8"));
+    }
+
+    @Test
+    public void testTornLastFrameIsDropped() throws Exception {
+        for (boolean compress : new boolean[]{false, true}) {
+            assertTrue(file.delete());
+            long lengthBefore = writeFramesAndOneMore(compress);
+            byte[] content = Files.readAllBytes(file.toPath());
+            // cut in the frame header, in the nonce and in the tag
+            for (long cut = lengthBefore + 1; cut < content.length; cut++) {
+                checkTornLastFrame(Arrays.copyOf(content, (int) cut), lengthBefore);
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptLastFrameIsDropped() throws Exception {
+        long lengthBefore = writeFramesAndOneMore(true);
+        byte[] content = Files.readAllBytes(file.toPath());
+        // e.g. the sectors of the length and of the tag reached the disk, the ones between didn't
+        content[content.length - 1] ^= 1;
+        checkTornLastFrame(content, lengthBefore);
+        content[content.length - 1] ^= 1;
+        content[(int) lengthBefore] = 0;
+        checkTornLastFrame(content, lengthBefore);
+    }
+
+    @Test
+    public void testNoDescriptorLine() throws Exception {
+        byte[] content = "wrapped key\nBLOBFRA".getBytes("UTF-8");
+        FramedFileDecoder.Result result = FramedFileDecoder.decode(content, aesKey);
+        assertNull(result.descriptorLine);
+        assertTrue(result.frames.isEmpty());
+        assertEquals(content.length, result.droppedBytes);
+    }
+}
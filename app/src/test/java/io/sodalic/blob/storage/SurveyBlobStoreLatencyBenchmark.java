@@ -0,0 +1,96 @@
+package io.sodalic.blob.storage;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The per-write latency of a small preference as the number of surveys grows, with the survey contents
+ * kept in the preferences XML (how {@link org.beiwe.app.storage.PersistentData} used to store them) and in
+ * the {@link SurveyBlobStore}. The preferences are written with {@code commit()} in both cases: that is the
+ * latency the caller used to see and the one the background write of {@code apply()} has now.
+ * <p>
+ * The numbers are printed, not asserted, the JVM timings only show the trend. Run on a device for the real ones.
+ * Runs with {@code -Pbenchmarks}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SurveyBlobStoreLatencyBenchmark {
+    private static final int[] SURVEY_COUNTS = {1, 10, 50, 100};
+    private static final int SURVEY_CONTENT_CHARS = 20 * 1024;
+    private static final int WRITES = 50;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private static String surveyContent(int surveyIndex) {
+        char[] content = new char[SURVEY_CONTENT_CHARS];
+        Arrays.fill(content, (char) ('a' + surveyIndex % 26));
+        return new String(content);
+    }
+
+    /**
+     * @return the median and the 90th percentile in microseconds
+     */
+    private static String percentiles(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return String.format(Locale.ENGLISH, "%6d/%6d us", sorted[sorted.length / 2] / 1000, sorted[sorted.length * 9 / 10] / 1000);
+    }
+
+    private static long[] timeFlagWrites(SharedPreferences pref) {
+        long[] nanos = new long[WRITES];
+        for (int i = 0; i < WRITES; i++) {
+            long start = System.nanoTime();
+            pref.edit().putInt("flag", i).commit();
+            nanos[i] = System.nanoTime() - start;
+        }
+        return nanos;
+    }
+
+    @Test
+    public void testWriteLatency() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        System.out.println("surveys | prefs with contents | prefs without contents | SurveyBlobStore.put (median/p90)");
+        for (int surveyCount : SURVEY_COUNTS) {
+            SharedPreferences oldPref = context.getSharedPreferences("latency_old_" + surveyCount, Context.MODE_PRIVATE);
+            SharedPreferences newPref = context.getSharedPreferences("latency_new_" + surveyCount, Context.MODE_PRIVATE);
+            SurveyBlobStore blobs = new SurveyBlobStore(tmp.newFolder("surveys_" + surveyCount));
+            SharedPreferences.Editor oldEditor = oldPref.edit();
+            for (int i = 0; i < surveyCount; i++) {
+                oldEditor.putString("survey" + i + "-content", surveyContent(i));
+                blobs.put("survey" + i + "-content", surveyContent(i));
+            }
+            oldEditor.commit();
+
+            long[] oldNanos = timeFlagWrites(oldPref);
+            long[] newNanos = timeFlagWrites(newPref);
+            long[] blobNanos = new long[WRITES];
+            for (int i = 0; i < WRITES; i++) {
+                // an updated survey, only its own file is written
+                String content = surveyContent(i) + i;
+                long start = System.nanoTime();
+                blobs.put("survey0-content", content);
+                blobNanos[i] = System.nanoTime() - start;
+            }
+
+            System.out.println(String.format(Locale.ENGLISH, "%7d | %s | %s | %s",
+                    surveyCount, percentiles(oldNanos), percentiles(newNanos), percentiles(blobNanos)));
+            assertEquals(WRITES - 1, oldPref.getInt("flag", -1));
+            assertEquals(surveyContent(WRITES - 1) + (WRITES - 1), new SurveyBlobStore(new File(tmp.getRoot(), "surveys_" + surveyCount))
+                    .get("survey0-content"));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package io.sodalic.blob.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs with Robolectric for {@link android.util.AtomicFile}
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SurveyBlobStoreTest {
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = tmp.newFolder("surveys");
+    }
+
+    private static void write(File file, String text) throws IOException {
+        Files.write(file.toPath(), text.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void testValuesSurviveRestart() {
+        SurveyBlobStore store = new SurveyBlobStore(dir);
+        assertNull(store.get("s1-content"));
+        assertTrue(store.put("s1-content", "{\"questions\": [\"é\"]}"));
+        assertTrue(store.put("s1-settings", "{}"));
+        assertEquals("{\"questions\": [\"é\"]}", store.get("s1-content"));
+
+        SurveyBlobStore reopened = new SurveyBlobStore(dir);
+        assertEquals("{\"questions\": [\"é\"]}", reopened.get("s1-content"));
+        assertEquals("{}", reopened.get("s1-settings"));
+        assertNull(reopened.get("s2-content"));
+    }
+
+    @Test
+    public void testEmptyValue() {
+        SurveyBlobStore store = new SurveyBlobStore(dir);
+        assertTrue(store.put("key", ""));
+        assertEquals("", new SurveyBlobStore(dir).get("key"));
+    }
+
+    @Test
+    public void testNullRemovesTheKey() {
+        SurveyBlobStore store = new SurveyBlobStore(dir);
+        store.put("key", "value");
+        assertTrue(store.put("key", null));
+        assertNull(store.get("key"));
+        assertNull(new SurveyBlobStore(dir).get("key"));
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void testUnchangedValueIsNotWritten() {
+        SurveyBlobStore store = new SurveyBlobStore(dir);
+        store.put("key", "value");
+        File file = new File(dir, "key");
+        assertTrue(file.delete());
+
+        // the value is known to be on the disk already, so there is no write to bring the file back
+        assertTrue(store.put("key", "value"));
+        assertFalse(file.exists());
+        assertTrue(store.put("key", "new value"));
+        assertTrue(file.exists());
+    }
+
+    @Test
+    public void testTornWriteKeepsTheOldValue() throws IOException {
+        // what a crash in the middle of AtomicFile.startWrite()/finishWrite() leaves behind
+        write(new File(dir, "key.bak"), "old value");
+        write(new File(dir, "key"), "new va");
+
+        SurveyBlobStore store = new SurveyBlobStore(dir);
+        assertEquals("old value", store.get("key"));
+        assertTrue(store.put("key", "new value"));
+        assertEquals("new value", new SurveyBlobStore(dir).get("key"));
+        assertFalse(new File(dir, "key.bak").exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeyMustBeAName() {
+        new SurveyBlobStore(dir).put("../key", "value");
+    }
+}
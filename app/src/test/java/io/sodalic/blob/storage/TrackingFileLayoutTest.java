@@ -0,0 +1,120 @@
+package io.sodalic.blob.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrackingFileLayoutTest {
+    // 2019-06-08 13:20 UTC
+    private static final long TIME = 1560000000000L;
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private TrackingFileLayout layout;
+
+    @Before
+    public void setUp() throws IOException {
+        layout = new TrackingFileLayout(tmp.newFolder("data"));
+    }
+
+    private String createFile(String name, long creationTime) throws IOException {
+        String path = TrackingFileLayout.getRelativePath(name, creationTime);
+        assertTrue(layout.prepareFile(path).createNewFile());
+        return path;
+    }
+
+    private static String path(String... parts) {
+        StringBuilder path = new StringBuilder(parts[0]);
+        for (int i = 1; i < parts.length; i++) {
+            path.append(File.separator).append(parts[i]);
+        }
+        return path.toString();
+    }
+
+    @Test
+    public void testStreamName() {
+        assertEquals("gps", TrackingFileLayout.getStreamName("p1_gps_1560000000000.csv"));
+        assertEquals("surveyAnswers", TrackingFileLayout.getStreamName("p1_surveyAnswers_s1_1560000000000.csv"));
+        assertEquals(TrackingFileLayout.CRASH_LOG_STREAM, TrackingFileLayout.getStreamName("crashlog_1560000000000"));
+        assertEquals("other", TrackingFileLayout.getStreamName("p1_gps"));
+        assertEquals("other", TrackingFileLayout.getStreamName("p1__1560000000000.csv"));
+    }
+
+    @Test
+    public void testBucketIsTheHourInUTC() {
+        assertEquals("2019-06-08_13", TrackingFileLayout.getBucketName(TIME));
+        assertEquals("2019-06-08_13", TrackingFileLayout.getBucketName(TIME - TIME % HOUR));
+        assertEquals("2019-06-08_12", TrackingFileLayout.getBucketName(TIME - TIME % HOUR - 1));
+        assertEquals("2020-01-01_00", TrackingFileLayout.getBucketName(1577836800000L));
+
+        String path = TrackingFileLayout.getRelativePath("p1_gps_1560000000000.csv", TIME);
+        assertEquals(path("gps", "2019-06-08_13", "p1_gps_1560000000000.csv"), path);
+        assertEquals(path("gps", "2019-06-08_13"), TrackingFileLayout.getBucket(path));
+        assertEquals("", TrackingFileLayout.getBucket("p1_gps_1560000000000.csv"));
+    }
+
+    @Test
+    public void testOnlyCompleteBucketsAreListed() throws IOException {
+        String old = createFile("p1_gps_1.csv", TIME);
+        String previousHour = createFile("p1_gps_2.csv", TIME - HOUR);
+        String current = createFile("p1_accel_1.csv", TIME + HOUR);
+
+        // the bucket of 13:00 ends at 14:00 and is complete 5 minutes later
+        long bucketEnd = TIME - TIME % HOUR + HOUR;
+        assertEquals(Collections.singletonList(TrackingFileLayout.getBucket(previousHour)), layout.listBuckets(bucketEnd));
+        assertEquals(2, layout.listBuckets(bucketEnd + 5 * 60 * 1000).size());
+        assertEquals(3, layout.listBuckets(Long.MAX_VALUE).size());
+
+        assertEquals(Collections.singletonList(old), layout.listFiles(TrackingFileLayout.getBucket(old)));
+        List<String> all = layout.listAllFiles();
+        Collections.sort(all);
+        List<String> expected = Arrays.asList(old, previousHour, current);
+        Collections.sort(expected);
+        assertEquals(expected, all);
+        assertEquals(2, layout.listStreamFiles("gps").size());
+        assertTrue(layout.listStreamFiles("wifi").isEmpty());
+    }
+
+    @Test
+    public void testDeleteBucketIfEmpty() throws IOException {
+        String path = createFile("p1_gps_1.csv", TIME);
+        String bucket = TrackingFileLayout.getBucket(path);
+        layout.deleteBucketIfEmpty(bucket);
+        assertTrue(layout.getFile(path).exists());
+
+        assertTrue(layout.getFile(path).delete());
+        layout.deleteBucketIfEmpty(bucket);
+        assertFalse(layout.getFile(bucket).exists());
+        assertTrue(layout.listFiles(bucket).isEmpty());
+    }
+
+    @Test
+    public void testMigrateFlatFiles() throws IOException {
+        File flatDir = layout.getRoot();
+        File gps = new File(flatDir, "p1_gps_1560000000000.csv");
+        File key = new File(flatDir, "keyFile");
+        assertTrue(gps.createNewFile());
+        assertTrue(gps.setLastModified(TIME));
+        assertTrue(key.createNewFile());
+
+        assertEquals(1, layout.migrateFlatFiles(flatDir, Collections.singleton("keyFile")));
+        assertFalse(gps.exists());
+        assertTrue(key.exists());
+        assertTrue(layout.getFile(path("gps", "2019-06-08_13", "p1_gps_1560000000000.csv")).isFile());
+        // the bucket directories are not moved again
+        assertEquals(0, layout.migrateFlatFiles(flatDir, Collections.singleton("keyFile")));
+    }
+}
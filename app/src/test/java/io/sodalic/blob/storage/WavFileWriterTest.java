@@ -0,0 +1,102 @@
+package io.sodalic.blob.storage;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class WavFileWriterTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BIT_DEPTH = 16;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = tmp.newFile();
+    }
+
+    private static ByteBuffer header(byte[] content) {
+        return ByteBuffer.wrap(content, 0, WavFileWriter.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static String tag(ByteBuffer header, int offset) {
+        return new String(Arrays.copyOfRange(header.array(), offset, offset + 4));
+    }
+
+    @Test
+    public void testHeaderFields() {
+        ByteBuffer header = ByteBuffer.wrap(WavFileWriter.buildHeader(1000, SAMPLE_RATE, 2, BIT_DEPTH)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("RIFF", tag(header, 0));
+        assertEquals(1000 + 36, header.getInt(4));
+        assertEquals("WAVE", tag(header, 8));
+        assertEquals("fmt ", tag(header, 12));
+        assertEquals(16, header.getInt(16));
+        assertEquals(1, header.getShort(20));
+        assertEquals(2, header.getShort(22));
+        assertEquals(SAMPLE_RATE, header.getInt(24));
+        assertEquals(SAMPLE_RATE * 4, header.getInt(28));
+        assertEquals(4, header.getShort(32));
+        assertEquals(BIT_DEPTH, header.getShort(34));
+        assertEquals("data", tag(header, 36));
+        assertEquals(1000, header.getInt(40));
+
+        ByteBuffer unknown = ByteBuffer.wrap(WavFileWriter.buildHeader(WavFileWriter.UNKNOWN_DATA_SIZE, SAMPLE_RATE, 1, BIT_DEPTH)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0xFFFFFFFF, unknown.getInt(4));
+        assertEquals(0xFFFFFFFF, unknown.getInt(40));
+    }
+
+    @Test
+    public void testFinishPatchesTheSizes() throws Exception {
+        byte[] pcm = new byte[10000];
+        new Random(1).nextBytes(pcm);
+        WavFileWriter writer = new WavFileWriter(file, SAMPLE_RATE, 1, BIT_DEPTH);
+        for (int offset = 0; offset < pcm.length; offset += 1000) {
+            writer.write(pcm, offset, 1000);
+        }
+        assertEquals(pcm.length, writer.getDataSize());
+        writer.finish();
+        // already finished, nothing is written again
+        writer.close();
+
+        byte[] content = Files.readAllBytes(file.toPath());
+        assertEquals(WavFileWriter.HEADER_SIZE + pcm.length, content.length);
+        assertArrayEquals(WavFileWriter.buildHeader(pcm.length, SAMPLE_RATE, 1, BIT_DEPTH), Arrays.copyOf(content, WavFileWriter.HEADER_SIZE));
+        assertArrayEquals(pcm, Arrays.copyOfRange(content, WavFileWriter.HEADER_SIZE, content.length));
+    }
+
+    @Test
+    public void testUnfinishedFileHasZeroSizes() throws Exception {
+        WavFileWriter writer = new WavFileWriter(file, SAMPLE_RATE, 1, BIT_DEPTH);
+        writer.write(new byte[500], 0, 500);
+
+        byte[] content = Files.readAllBytes(file.toPath());
+        assertEquals(WavFileWriter.HEADER_SIZE + 500, content.length);
+        assertEquals(36, header(content).getInt(4));
+        assertEquals(0, header(content).getInt(40));
+        writer.close();
+        assertEquals(500, header(Files.readAllBytes(file.toPath())).getInt(40));
+    }
+
+    @Test
+    public void testPreviousRecordingIsTruncated() throws Exception {
+        Files.write(file.toPath(), new byte[100000]);
+        WavFileWriter writer = new WavFileWriter(file, SAMPLE_RATE, 1, BIT_DEPTH);
+        writer.write(new byte[10], 0, 10);
+        writer.finish();
+        assertEquals(WavFileWriter.HEADER_SIZE + 10, file.length());
+    }
+}
@@ -0,0 +1,147 @@
+package io.sodalic.blob.tracking;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import io.sodalic.blob.net.LocalHttpsServer;
+import io.sodalic.blob.net.ServerApi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Files/sec and bytes on the wire of uploading a backlog of small tracking files to a local HTTPS server
+ * one file per request and packed into the batches {@link UploadManager#groupIntoRequests} makes.
+ * The bytes are counted at the HTTP level: the request lines, the headers and the bodies, without TLS.
+ * <p>
+ * Only the request counts and that the batches send fewer bytes are asserted, the JVM timings only show the trend.
+ * Runs with {@code -Pbenchmarks}. Runs with Robolectric for the preferences and the device info.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BatchUploadBenchmark {
+    // an hour of the low-rate streams of a day or so
+    private static final int FILES = 500;
+    private static final int MIN_FILE_BYTES = 200;
+    private static final int MAX_FILE_BYTES = 8 * 1024;
+    private static final Pattern FILE_NAME = Pattern.compile("filename=\"([^\"]+)\"");
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private LocalHttpsServer local;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicLong requestBytes = new AtomicLong();
+
+    @Before
+    public void setUp() throws Exception {
+        local = new LocalHttpsServer(ApplicationProvider.getApplicationContext());
+        // accepts every file it gets
+        local.server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                requestCount.incrementAndGet();
+                requestBytes.addAndGet(request.getRequestLine().length() + 2 + request.getHeaders().toString().length() + 2 + request.getBodySize());
+                if (!"/upload_batch".equals(request.getPath()))
+                    return new MockResponse();
+                JSONArray accepted = new JSONArray();
+                Matcher matcher = FILE_NAME.matcher(request.getBody().readUtf8());
+                while (matcher.find()) {
+                    accepted.put(matcher.group(1));
+                }
+                return new MockResponse().setBody(new JSONObject(Collections.singletonMap("accepted", accepted)).toString());
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        local.shutdown();
+    }
+
+    private List<UploadManager.PendingUpload> newBacklog() throws Exception {
+        Random random = new Random(1);
+        List<UploadManager.PendingUpload> uploads = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            File file = tmp.newFile("patient_powerState_" + (1560000000000L + i) + ".csv");
+            byte[] content = new byte[MIN_FILE_BYTES + random.nextInt(MAX_FILE_BYTES - MIN_FILE_BYTES)];
+            random.nextBytes(content);
+            Files.write(file.toPath(), content);
+            uploads.add(new UploadManager.PendingUpload("powerState/" + file.getName(), file, i, content.length));
+        }
+        return uploads;
+    }
+
+    /**
+     * @return the number of requests
+     */
+    private int upload(String name, List<UploadManager.PendingUpload> uploads, boolean useBatches) throws Exception {
+        ServerApi serverApi = local.serverApi;
+        List<List<UploadManager.PendingUpload>> units = UploadManager.groupIntoRequests(uploads, useBatches);
+        requestCount.set(0);
+        requestBytes.set(0);
+        int uploaded = 0;
+        long start = System.nanoTime();
+        for (List<UploadManager.PendingUpload> unit : units) {
+            if (unit.size() == 1) {
+                serverApi.uploadFile(unit.get(0).file);
+                uploaded++;
+            } else {
+                List<File> files = new ArrayList<>(unit.size());
+                for (UploadManager.PendingUpload upload : unit) {
+                    files.add(upload.file);
+                }
+                uploaded += serverApi.uploadFiles(files).size();
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        assertEquals(FILES, uploaded);
+
+        long dataBytes = 0;
+        for (UploadManager.PendingUpload upload : uploads) {
+            dataBytes += upload.length;
+        }
+        System.out.println(String.format(Locale.ENGLISH, "%-7s | %7.0f files/s | %4d requests | %8d bytes on the wire, %5.1f%% over the data",
+                name, FILES / (nanos / 1e9), requestCount.get(), requestBytes.get(), 100.0 * (requestBytes.get() - dataBytes) / dataBytes));
+        return requestCount.get();
+    }
+
+    @Test
+    public void testBatchVsSingle() throws Exception {
+        List<UploadManager.PendingUpload> uploads = newBacklog();
+        // a warm-up round of both
+        upload("warm-up", uploads, false);
+        upload("warm-up", uploads, true);
+
+        assertEquals(FILES, upload("single", uploads, false));
+        long singleBytes = requestBytes.get();
+        int batchRequests = upload("batch", uploads, true);
+        assertEquals(UploadManager.groupIntoRequests(uploads, true).size(), batchRequests);
+        assertTrue(batchRequests * 10 <= FILES);
+        assertTrue(requestBytes.get() < singleBytes);
+    }
+}
@@ -0,0 +1,198 @@
+package io.sodalic.blob.tracking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.support.annotation.NonNull;
+
+import androidx.test.core.app.ApplicationProvider;
+import org.beiwe.app.storage.PersistentData;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import io.sodalic.blob.storage.TrackingFileLayout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The quota of these tests is far below the free space of any test machine, so the budget is the quota.
+ * The data files are sparse, they only take the space of their metadata.
+ * Runs with Robolectric for {@link PersistentData} and {@link android.util.AtomicFile}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DiskBudgetTest {
+    private static final long MB = 1024 * 1024;
+    private static final long RESERVE = 100 * MB;
+    // 2019-06-08 13:20 UTC, the bucket is long complete
+    private static final long OLD_TIME = 1560000000000L;
+
+    private static final UploadManifest.InUseFiles NONE_IN_USE = new UploadManifest.InUseFiles() {
+        @NonNull
+        @Override
+        public Set<String> getInUsePaths() {
+            return Collections.emptySet();
+        }
+    };
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private TrackingFileLayout layout;
+    private UploadManifest manifest;
+    private DiskBudget budget;
+    private final List<String> evicted = new ArrayList<>();
+    private final List<Integer> states = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        PersistentData.initialize(ApplicationProvider.getApplicationContext());
+        PersistentData.setStorageQuotaMegabytes(10);
+        layout = new TrackingFileLayout(tmp.newFolder("data"));
+        manifest = new UploadManifest(layout, new File(tmp.getRoot(), "upload_manifest"));
+        budget = new DiskBudget(layout.getRoot(), manifest, new DiskBudget.Listener() {
+            @Override
+            public void evictFile(@NonNull String path) {
+                evicted.add(path);
+                manifest.removeFile(path);
+            }
+
+            @Override
+            public void onStateChanged(int minAllowedPriority, @NonNull String summary) {
+                states.add(minAllowedPriority);
+            }
+        });
+    }
+
+    /**
+     * @return the relative path of a new data file of {@code size} bytes of the stream
+     */
+    private String createFile(String stream, long creationTime, long size) throws IOException {
+        String path = TrackingFileLayout.getRelativePath("patient_" + stream + "_" + creationTime + ".csv", creationTime);
+        File file = layout.prepareFile(path);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(size);
+        raf.close();
+        assertTrue(file.setLastModified(creationTime));
+        return path;
+    }
+
+    private void assertAllowed(boolean expendable, boolean normal) {
+        assertEquals(expendable, budget.isWriteAllowed("accel"));
+        assertEquals(expendable, budget.isWriteAllowed("logFile"));
+        assertEquals(normal, budget.isWriteAllowed("gps"));
+        assertTrue(budget.isWriteAllowed("surveyAnswers"));
+        assertTrue(budget.isWriteAllowed("voiceRecording"));
+    }
+
+    @Test
+    public void testBudgetBytes() {
+        // the quota when there is enough free space
+        assertEquals(10 * MB, DiskBudget.getBudgetBytes(10 * MB, 4 * MB, RESERVE + 20 * MB));
+        // the used and the free space above the reserve otherwise
+        assertEquals(9 * MB, DiskBudget.getBudgetBytes(10 * MB, 4 * MB, RESERVE + 5 * MB));
+        assertEquals(4 * MB, DiskBudget.getBudgetBytes(10 * MB, 4 * MB, RESERVE));
+        // never negative
+        assertEquals(0, DiskBudget.getBudgetBytes(10 * MB, 0, RESERVE / 2));
+        assertEquals(0, DiskBudget.getBudgetBytes(0, 4 * MB, RESERVE + 20 * MB));
+    }
+
+    @Test
+    public void testQuotaClamped() {
+        PersistentData.setStorageQuotaMegabytes(0);
+        assertTrue(PersistentData.getStorageQuotaMegabytes() > 0);
+        PersistentData.setStorageQuotaMegabytes(-5);
+        assertTrue(PersistentData.getStorageQuotaMegabytes() > 0);
+        PersistentData.setStorageQuotaMegabytes(1000);
+        assertEquals(1000, PersistentData.getStorageQuotaMegabytes());
+    }
+
+    @Test
+    public void testZeroQuotaAllowsWrites() throws IOException {
+        PersistentData.setStorageQuotaMegabytes(0);
+        createFile("gps", OLD_TIME, MB);
+        manifest.reconcile(NONE_IN_USE);
+        budget.check();
+        assertAllowed(true, true);
+        assertTrue(states.isEmpty());
+    }
+
+    @Test
+    public void testSoftLimit() throws IOException {
+        // 8.9MB of 10MB, below 0.9
+        createFile("accel", OLD_TIME, 5 * MB);
+        createFile("gps", OLD_TIME + 1000, 4 * MB - MB / 10);
+        manifest.reconcile(NONE_IN_USE);
+        budget.check();
+        assertAllowed(true, true);
+        assertTrue(states.isEmpty());
+
+        // 9MB, the expendable streams are refused but nothing is evicted yet
+        createFile("gps", OLD_TIME + 2000, MB / 10);
+        manifest.reconcile(NONE_IN_USE);
+        budget.check();
+        assertAllowed(false, true);
+        assertEquals(Arrays.asList(DiskBudget.PRIORITY_NORMAL), states);
+        assertTrue(evicted.isEmpty());
+    }
+
+    @Test
+    public void testEvictsOldestExpendableDownToTarget() throws IOException {
+        String accel1 = createFile("accel", OLD_TIME, 2 * MB);
+        String log = createFile("logFile", OLD_TIME + 1000, 2 * MB);
+        String accel2 = createFile("accel", OLD_TIME + 2000, 2 * MB);
+        // older than all of them, but not expendable
+        String gps = createFile("gps", OLD_TIME - 1000, 5 * MB);
+        manifest.reconcile(NONE_IN_USE);
+        assertEquals(11 * MB, manifest.getPendingBytes());
+
+        // 11MB over the budget of 10MB: 3MB must go to get down to 8MB, the two oldest expendable files
+        budget.check();
+        assertEquals(Arrays.asList(accel1, log), evicted);
+        assertEquals(7 * MB, manifest.getPendingBytes());
+        assertEquals(new HashSet<>(Arrays.asList(gps, accel2)), new HashSet<>(pathsOf(manifest.getPendingFiles(10, Collections.<String>emptySet()))));
+        // 7MB is below the soft limit, nothing is refused
+        assertAllowed(true, true);
+        assertTrue(states.isEmpty());
+    }
+
+    @Test
+    public void testEssentialNeverRefused() throws IOException {
+        String gps = createFile("gps", OLD_TIME, 6 * MB);
+        String answers = createFile("surveyAnswers", OLD_TIME + 1000, 6 * MB);
+        manifest.reconcile(NONE_IN_USE);
+
+        // nothing can be evicted, so all but the essential streams are refused
+        budget.check();
+        assertTrue(evicted.isEmpty());
+        assertEquals(12 * MB, manifest.getPendingBytes());
+        assertAllowed(false, false);
+        assertEquals(Arrays.asList(DiskBudget.PRIORITY_ESSENTIAL), states);
+
+        // and allowed again when the upload has made room
+        manifest.removeFile(gps);
+        budget.check();
+        assertAllowed(true, true);
+        assertEquals(Arrays.asList(DiskBudget.PRIORITY_ESSENTIAL, DiskBudget.PRIORITY_EXPENDABLE), states);
+        assertEquals(Arrays.asList(answers), pathsOf(manifest.getPendingFiles(10, Collections.<String>emptySet())));
+    }
+
+    private static List<String> pathsOf(List<UploadManifest.Entry> entries) {
+        List<String> paths = new ArrayList<>();
+        for (UploadManifest.Entry entry : entries) {
+            paths.add(entry.path);
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,264 @@
+package io.sodalic.blob.tracking;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.sodalic.blob.net.ServerException;
+import io.sodalic.blob.utils.StringUtils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResumableUploaderTest {
+    private static final int CHUNK = ResumableUploader.CHUNK_SIZE_BYTES;
+
+    private static final ResumableUploader.StopCondition NEVER_STOP = new ResumableUploader.StopCondition() {
+        @Override
+        public boolean shouldStop() {
+            return false;
+        }
+    };
+
+    /**
+     * Assembles the chunks the way the server does and checks the checksum on the completion
+     */
+    private static class StubServer implements ResumableUploader.ChunkApi {
+        byte[] assembled;
+        final List<Long> offsets = new ArrayList<>();
+        String completedChecksum;
+
+        /**
+         * @return what the server answers for a stored chunk, normally the end of the chunk
+         */
+        long nextOffset(long offset, int length) {
+            return offset + length;
+        }
+
+        @Override
+        public long uploadFileChunk(String fileName, long totalSize, long offset, byte[] chunk, int length) {
+            if (assembled == null)
+                assembled = new byte[(int) totalSize];
+            offsets.add(offset);
+            System.arraycopy(chunk, 0, assembled, (int) offset, length);
+            return nextOffset(offset, length);
+        }
+
+        @Override
+        public void completeChunkedUpload(String fileName, long totalSize, String sha256Hex) throws ServerException {
+            if (!sha256(assembled).equals(sha256Hex))
+                throw new ServerException(409, "Checksum mismatch");
+            completedChecksum = sha256Hex;
+        }
+    }
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private File stateDir;
+    private File file;
+    private byte[] content;
+
+    private static String sha256(byte[] data) {
+        try {
+            return StringUtils.toHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        stateDir = tmp.newFolder("state");
+        file = new File(tmp.newFolder("data"), "patient_voiceRecording_1560000000000.wav");
+        content = new byte[2 * CHUNK + CHUNK / 2];
+        new Random(1).nextBytes(content);
+        Files.write(file.toPath(), content);
+    }
+
+    private static ResumableUploader.StopCondition stopAfter(final int chunks, final StubServer server) {
+        return new ResumableUploader.StopCondition() {
+            @Override
+            public boolean shouldStop() {
+                return server.offsets.size() >= chunks;
+            }
+        };
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        StubServer server = new StubServer();
+        new ResumableUploader(server, stateDir).upload(file, NEVER_STOP);
+
+        assertEquals(Arrays.asList(0L, (long) CHUNK, 2L * CHUNK), server.offsets);
+        assertArrayEquals(content, server.assembled);
+        assertEquals(sha256(content), server.completedChecksum);
+        // no cursor is left behind
+        assertEquals(0, stateDir.list().length);
+    }
+
+    @Test
+    public void testResumeAfterStop() throws Exception {
+        StubServer server = new StubServer();
+        try {
+            new ResumableUploader(server, stateDir).upload(file, stopAfter(1, server));
+            fail();
+        } catch (ServerException expected) {
+        }
+        assertNull(server.completedChecksum);
+        assertEquals(1, stateDir.list().length);
+
+        // a new uploader, as after the process restart
+        server.offsets.clear();
+        new ResumableUploader(server, stateDir).upload(file, NEVER_STOP);
+        assertEquals(Arrays.asList((long) CHUNK, 2L * CHUNK), server.offsets);
+        assertArrayEquals(content, server.assembled);
+        assertEquals(0, stateDir.list().length);
+    }
+
+    @Test
+    public void testChangedFileStartsOver() throws Exception {
+        StubServer server = new StubServer();
+        try {
+            new ResumableUploader(server, stateDir).upload(file, stopAfter(1, server));
+            fail();
+        } catch (ServerException expected) {
+        }
+        content = Arrays.copyOf(content, content.length + 1);
+        Files.write(file.toPath(), content);
+
+        StubServer newServer = new StubServer();
+        new ResumableUploader(newServer, stateDir).upload(file, NEVER_STOP);
+        assertEquals(0L, (long) newServer.offsets.get(0));
+        assertArrayEquals(content, newServer.assembled);
+    }
+
+    @Test
+    public void testServerRewind() throws Exception {
+        StubServer server = new StubServer() {
+            boolean rewound = false;
+
+            @Override
+            long nextOffset(long offset, int length) {
+                // the server has lost the second chunk once
+                if (offset == CHUNK && !rewound) {
+                    rewound = true;
+                    return offset;
+                }
+                return offset + length;
+            }
+        };
+        new ResumableUploader(server, stateDir).upload(file, NEVER_STOP);
+        assertEquals(Arrays.asList(0L, (long) CHUNK, (long) CHUNK, 2L * CHUNK), server.offsets);
+        assertArrayEquals(content, server.assembled);
+        assertEquals(sha256(content), server.completedChecksum);
+    }
+
+    @Test
+    public void testStalledUploadIsGivenUp() throws Exception {
+        StubServer server = new StubServer() {
+            @Override
+            long nextOffset(long offset, int length) {
+                return offset;
+            }
+        };
+        try {
+            new ResumableUploader(server, stateDir).upload(file, NEVER_STOP);
+            fail();
+        } catch (ServerException expected) {
+        }
+        assertEquals(ResumableUploader.MAX_STALLED_CHUNKS, server.offsets.size());
+        assertNull(server.completedChecksum);
+    }
+
+    @Test
+    public void testBadNextOffset() throws Exception {
+        StubServer server = new StubServer() {
+            @Override
+            long nextOffset(long offset, int length) {
+                return Long.MAX_VALUE;
+            }
+        };
+        try {
+            new ResumableUploader(server, stateDir).upload(file, NEVER_STOP);
+            fail();
+        } catch (ServerException expected) {
+        }
+        assertEquals(1, server.offsets.size());
+    }
+
+    @Test
+    public void testChecksumMismatchStartsOver() throws Exception {
+        StubServer server = new StubServer() {
+            @Override
+            public long uploadFileChunk(String fileName, long totalSize, long offset, byte[] chunk, int length) {
+                long next = super.uploadFileChunk(fileName, totalSize, offset, chunk, length);
+                // the server corrupts the last chunk
+                if (next == totalSize)
+                    assembled[(int) totalSize - 1]++;
+                return next;
+            }
+        };
+        try {
+            new ResumableUploader(server, stateDir).upload(file, NEVER_STOP);
+            fail();
+        } catch (ServerException e) {
+            assertEquals(409, e.getResponseCode());
+        }
+        // the cursor is dropped, so the next attempt sends the whole file again
+        assertEquals(0, stateDir.list().length);
+    }
+
+    @Test
+    public void testOtherCompletionErrorKeepsTheCursor() throws Exception {
+        StubServer server = new StubServer() {
+            @Override
+            public void completeChunkedUpload(String fileName, long totalSize, String sha256Hex) throws ServerException {
+                throw new ServerException(500, "Internal error");
+            }
+        };
+        try {
+            new ResumableUploader(server, stateDir).upload(file, NEVER_STOP);
+            fail();
+        } catch (ServerException e) {
+            assertEquals(500, e.getResponseCode());
+        }
+        assertEquals(1, stateDir.list().length);
+
+        StubServer retryServer = new StubServer();
+        retryServer.assembled = server.assembled;
+        new ResumableUploader(retryServer, stateDir).upload(file, NEVER_STOP);
+        // only the completion is repeated
+        assertTrue(retryServer.offsets.isEmpty());
+        assertEquals(sha256(content), retryServer.completedChecksum);
+    }
+
+    @Test
+    public void testEmptyFile() throws Exception {
+        Files.write(file.toPath(), new byte[0]);
+        StubServer server = new StubServer() {
+            @Override
+            public void completeChunkedUpload(String fileName, long totalSize, String sha256Hex) throws ServerException {
+                assembled = new byte[0];
+                super.completeChunkedUpload(fileName, totalSize, sha256Hex);
+            }
+        };
+        new ResumableUploader(server, stateDir).upload(file, NEVER_STOP);
+        assertTrue(server.offsets.isEmpty());
+        assertFalse(server.completedChecksum.isEmpty());
+    }
+}
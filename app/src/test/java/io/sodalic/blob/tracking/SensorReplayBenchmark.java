@@ -0,0 +1,137 @@
+package io.sodalic.blob.tracking;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.security.InvalidKeyException;
+import java.util.Locale;
+
+import android.content.Context;
+
+import org.beiwe.app.storage.EncryptionEngine;
+import org.beiwe.app.storage.PersistentData;
+import org.beiwe.app.storage.TestKeys;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import io.sodalic.blob.storage.BufferedStreamWriter;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays a 200Hz accelerometer through the pipeline of {@link org.beiwe.app.listeners.AccelerometerListener}:
+ * the sensor thread publishes into a {@link SensorSampleRingBuffer} and a {@link SensorSampleDrainer} formats,
+ * encrypts and writes the lines the way the accel file does. The events come one by one and as the batches
+ * of a hardware FIFO, faster than the real time. Prints the sustained rate, i.e. how many times 200Hz the writer
+ * keeps up with, and the allocation per event on the sensor thread.
+ * <p>
+ * Only the dropped sample count is asserted, the JVM timings only show the trend. Runs with {@code -Pbenchmarks}.
+ * Runs with Robolectric for {@link android.util.Base64}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SensorReplayBenchmark {
+    private static final long PERIOD_MILLIS = 5;
+    // 10 minutes of 200Hz, one default accelerometer session
+    private static final int EVENTS = 10 * 60 * 200;
+    // what a 10 second FIFO delivers at once
+    private static final int BATCH_EVENTS = 2000;
+    private static final int BUFFER_CAPACITY = 4096;
+    private static final long TIMEOUT_MILLIS = 60 * 1000;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private Context context;
+    private EncryptionEngine.AESFileEncryptor encryptor;
+
+    @Before
+    public void setUp() throws Exception {
+        context = ApplicationProvider.getApplicationContext();
+        PersistentData.initialize(context);
+        TestKeys.useTestRSAKey();
+        encryptor = EncryptionEngine.newAESFileEncryptor(EncryptionEngine.newAESKey());
+    }
+
+    /**
+     * Writes the samples as the accel file does with the buffered writes
+     */
+    private final class AccelWriter implements SensorSampleRingBuffer.SampleConsumer {
+        final BufferedStreamWriter out;
+
+        AccelWriter(File file) throws IOException {
+            out = new BufferedStreamWriter(file, 16 * 1024, 10 * 1000);
+        }
+
+        @Override
+        public void accept(long timestamp, int accuracy, float x, float y, float z) {
+            try {
+                out.writeLine(encryptor.encrypt(timestamp + ",unknown," + x + ',' + y + ',' + z));
+            } catch (InvalidKeyException | IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * @return the allocated bytes of the current thread, HotSpot only
+     */
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void awaitWrittenOut(SensorSampleRingBuffer buffer) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (buffer.getDepth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, buffer.getDepth());
+    }
+
+    /**
+     * @return the number of dropped samples
+     */
+    private long replay(String name, int batchEvents) throws Exception {
+        SensorSampleRingBuffer buffer = new SensorSampleRingBuffer(BUFFER_CAPACITY);
+        AccelWriter writer = new AccelWriter(tmp.newFile());
+        SensorSampleDrainer drainer = new SensorSampleDrainer(buffer, writer, "replay_writer", context);
+        drainer.start();
+        long allocated = 0;
+        long start = System.nanoTime();
+        long time = 1560000000000L;
+        for (int sent = 0; sent < EVENTS; sent += batchEvents) {
+            long allocatedBefore = allocatedBytes();
+            for (int i = 0; i < batchEvents; i++) {
+                buffer.offer(time, -1, i % 7, -0.25f, 9.81f);
+                time += PERIOD_MILLIS;
+            }
+            allocated += allocatedBytes() - allocatedBefore;
+            // the replay is faster than the real time, it only waits when the next FIFO batch wouldn't fit
+            while (buffer.getDepth() > BUFFER_CAPACITY - BATCH_EVENTS) {
+                Thread.yield();
+            }
+        }
+        awaitWrittenOut(buffer);
+        long nanos = System.nanoTime() - start;
+        drainer.stop();
+        writer.out.close();
+
+        double eventsPerSecond = EVENTS / (nanos / 1e9);
+        System.out.println(String.format(Locale.ENGLISH, "%-8s | %8.0f events/s (%5.1fx 200Hz) | %5.2f bytes/event on the sensor thread | max depth %4d of %d",
+                name, eventsPerSecond, eventsPerSecond / 200, allocated / (double) EVENTS, buffer.getMaxDepth(), BUFFER_CAPACITY));
+        return buffer.getDroppedCount();
+    }
+
+    @Test
+    public void testReplay200Hz() throws Exception {
+        // a warm-up round
+        replay("warm-up", BATCH_EVENTS);
+        assertEquals(0, replay("single", 1));
+        assertEquals(0, replay("batched", BATCH_EVENTS));
+    }
+}
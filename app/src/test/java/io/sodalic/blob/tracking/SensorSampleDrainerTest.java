@@ -0,0 +1,174 @@
+package io.sodalic.blob.tracking;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+
+import org.beiwe.app.DeviceInfo;
+import org.beiwe.app.storage.PersistentData;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs with Robolectric for the crash reports of the consumer failures
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SensorSampleDrainerTest {
+    private static final String THREAD_NAME = "test_drainer";
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        // the crash report of a consumer failure includes the device info
+        PersistentData.initialize(context);
+        DeviceInfo.initialize(context);
+    }
+
+    private static final class Recorder implements SensorSampleRingBuffer.SampleConsumer {
+        final List<Long> timestamps = new ArrayList<>();
+
+        @Override
+        public synchronized void accept(long timestamp, int accuracy, float x, float y, float z) {
+            timestamps.add(timestamp);
+        }
+
+        synchronized int size() {
+            return timestamps.size();
+        }
+    }
+
+    /**
+     * Fails on some of the samples, like a write of a file that is being replaced
+     */
+    private static final class FailingRecorder implements SensorSampleRingBuffer.SampleConsumer {
+        final Recorder recorder = new Recorder();
+
+        @Override
+        public void accept(long timestamp, int accuracy, float x, float y, float z) {
+            if (timestamp % 100 == 7)
+                throw new IllegalStateException("sample " + timestamp);
+            recorder.accept(timestamp, accuracy, x, y, z);
+        }
+    }
+
+    private static boolean isDrainerAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (THREAD_NAME.equals(thread.getName()))
+                return true;
+        }
+        return false;
+    }
+
+    private static void awaitDrainerExit() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (isDrainerAlive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse("The drainer thread didn't exit", isDrainerAlive());
+    }
+
+    private static void offer(SensorSampleRingBuffer buffer, long from, long to) {
+        for (long i = from; i < to; i++) {
+            while (!buffer.offer(i, 0, 0f, 0f, 0f)) {
+                Thread.yield();
+            }
+        }
+    }
+
+    @Test
+    public void testStopWritesOutTheBuffer() throws InterruptedException {
+        SensorSampleRingBuffer buffer = new SensorSampleRingBuffer(1024);
+        Recorder recorder = new Recorder();
+        SensorSampleDrainer drainer = new SensorSampleDrainer(buffer, recorder, THREAD_NAME, context);
+        drainer.start();
+        offer(buffer, 0, 5000);
+
+        long stopStart = System.nanoTime();
+        drainer.stop();
+        // stop() doesn't wait for the thread, it is called on the main thread
+        assertTrue(System.nanoTime() - stopStart < 100 * 1000 * 1000L);
+
+        awaitDrainerExit();
+        assertEquals(5000, recorder.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i, (long) recorder.timestamps.get(i));
+        }
+    }
+
+    /**
+     * Two consumers of the ring buffer would lose or repeat samples
+     */
+    @Test
+    public void testRestartKeepsSingleConsumer() throws InterruptedException {
+        SensorSampleRingBuffer buffer = new SensorSampleRingBuffer(1024);
+        Recorder recorder = new Recorder();
+        SensorSampleDrainer drainer = new SensorSampleDrainer(buffer, recorder, THREAD_NAME, context);
+        long next = 0;
+        for (int round = 0; round < 50; round++) {
+            drainer.start();
+            offer(buffer, next, next + 200);
+            next += 200;
+            // the old thread may still be writing out the buffer when it is started again
+            drainer.stop();
+        }
+        awaitDrainerExit();
+
+        assertEquals(next, recorder.size());
+        for (int i = 0; i < next; i++) {
+            assertEquals(i, (long) recorder.timestamps.get(i));
+        }
+    }
+
+    @Test
+    public void testStopBeforeStart() throws InterruptedException {
+        SensorSampleRingBuffer buffer = new SensorSampleRingBuffer(16);
+        Recorder recorder = new Recorder();
+        SensorSampleDrainer drainer = new SensorSampleDrainer(buffer, recorder, THREAD_NAME, context);
+        drainer.stop();
+        assertFalse(isDrainerAlive());
+
+        offer(buffer, 0, 10);
+        drainer.start();
+        drainer.stop();
+        awaitDrainerExit();
+        assertEquals(10, recorder.size());
+    }
+
+    @Test
+    public void testConsumerFailureDropsOnlyItsSample() throws InterruptedException {
+        SensorSampleRingBuffer buffer = new SensorSampleRingBuffer(1024);
+        FailingRecorder consumer = new FailingRecorder();
+        SensorSampleDrainer drainer = new SensorSampleDrainer(buffer, consumer, THREAD_NAME, context);
+        drainer.start();
+        offer(buffer, 0, 1000);
+        drainer.stop();
+        awaitDrainerExit();
+
+        // the thread survived the 10 failures and wrote out the rest in order
+        assertEquals(990, consumer.recorder.size());
+        int index = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (i % 100 != 7)
+                assertEquals(i, (long) consumer.recorder.timestamps.get(index++));
+        }
+
+        // and it can be started again
+        drainer.start();
+        offer(buffer, 1000, 1005);
+        drainer.stop();
+        awaitDrainerExit();
+        assertEquals(995, consumer.recorder.size());
+    }
+}
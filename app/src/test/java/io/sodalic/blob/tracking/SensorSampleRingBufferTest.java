@@ -0,0 +1,141 @@
+package io.sodalic.blob.tracking;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SensorSampleRingBufferTest {
+
+    /**
+     * Collects the timestamps and checks that the other values came along with them
+     */
+    private static final class Collector implements SensorSampleRingBuffer.SampleConsumer {
+        final List<Long> timestamps = new ArrayList<>();
+
+        @Override
+        public void accept(long timestamp, int accuracy, float x, float y, float z) {
+            assertEquals((int) (timestamp % 4), accuracy);
+            assertEquals(timestamp, (long) x);
+            assertEquals(-timestamp, (long) y);
+            assertEquals(timestamp * 2, (long) z);
+            timestamps.add(timestamp);
+        }
+    }
+
+    private static boolean offer(SensorSampleRingBuffer buffer, long timestamp) {
+        return buffer.offer(timestamp, (int) (timestamp % 4), timestamp, -timestamp, timestamp * 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityMustBePowerOf2() {
+        new SensorSampleRingBuffer(12);
+    }
+
+    @Test
+    public void testDrainInOrder() {
+        SensorSampleRingBuffer buffer = new SensorSampleRingBuffer(8);
+        for (long i = 0; i < 5; i++) {
+            assertTrue(offer(buffer, i));
+        }
+        assertEquals(5, buffer.getDepth());
+
+        Collector collector = new Collector();
+        assertEquals(3, buffer.drain(collector, 3));
+        assertEquals(2, buffer.drain(collector, 100));
+        assertEquals(0, buffer.drain(collector, 100));
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L), collector.timestamps);
+        assertEquals(0, buffer.getDepth());
+        assertEquals(5, buffer.getMaxDepth());
+    }
+
+    @Test
+    public void testFullBufferDropsNewSamples() {
+        SensorSampleRingBuffer buffer = new SensorSampleRingBuffer(4);
+        for (long i = 0; i < 4; i++) {
+            assertTrue(offer(buffer, i));
+        }
+        assertFalse(offer(buffer, 4));
+        assertFalse(offer(buffer, 5));
+        assertEquals(2, buffer.getDroppedCount());
+        assertEquals(4, buffer.getPublishedCount());
+
+        Collector collector = new Collector();
+        buffer.drain(collector, 1);
+        assertTrue(offer(buffer, 6));
+        buffer.drain(collector, 100);
+        // the dropped ones are simply missing, the order of the rest is kept
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 6L), collector.timestamps);
+    }
+
+    @Test
+    public void testWrapAround() {
+        SensorSampleRingBuffer buffer = new SensorSampleRingBuffer(4);
+        Collector collector = new Collector();
+        List<Long> expected = new ArrayList<>();
+        for (long i = 0; i < 1000; i++) {
+            assertTrue(offer(buffer, i));
+            expected.add(i);
+            if (i % 3 == 2)
+                buffer.drain(collector, 3);
+        }
+        buffer.drain(collector, Integer.MAX_VALUE);
+        assertEquals(expected, collector.timestamps);
+        assertEquals(0, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void testConcurrentProducerAndConsumer() throws InterruptedException {
+        final int count = 1000000;
+        final SensorSampleRingBuffer buffer = new SensorSampleRingBuffer(256);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long i = 0; i < count; i++) {
+                    while (!offer(buffer, i)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        final long[] next = {0};
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SensorSampleRingBuffer.SampleConsumer checker = new SensorSampleRingBuffer.SampleConsumer() {
+                        @Override
+                        public void accept(long timestamp, int accuracy, float x, float y, float z) {
+                            // a torn or a repeated slot breaks the sequence
+                            assertEquals(next[0], timestamp);
+                            assertEquals((int) (timestamp % 4), accuracy);
+                            assertEquals((float) timestamp, x, 0f);
+                            next[0]++;
+                        }
+                    };
+                    while (next[0] < count) {
+                        if (buffer.drain(checker, 64) == 0)
+                            Thread.yield();
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        producer.start();
+        consumer.start();
+        producer.join(60000);
+        consumer.join(60000);
+        assertNull(error.get());
+        assertEquals(count, next[0]);
+        assertEquals(count, buffer.getPublishedCount());
+    }
+}
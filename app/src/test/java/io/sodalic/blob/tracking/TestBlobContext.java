@@ -0,0 +1,75 @@
+package io.sodalic.blob.tracking;
+
+import android.content.Context;
+
+import io.sodalic.blob.context.BlobContext;
+import io.sodalic.blob.face.FaceAnalysisService;
+import io.sodalic.blob.face.FaceSightcorpApi;
+import io.sodalic.blob.net.HttpStack;
+import io.sodalic.blob.net.ServerApi;
+import io.sodalic.blob.storage.UserStateData;
+
+/**
+ * Only the parts of the context the upload needs
+ */
+final class TestBlobContext implements BlobContext {
+    private final Context context;
+    private final ServerApi serverApi;
+    private final HttpStack httpStack;
+
+    TestBlobContext(Context context, ServerApi serverApi, HttpStack httpStack) {
+        this.context = context;
+        this.serverApi = serverApi;
+        this.httpStack = httpStack;
+    }
+
+    @Override
+    public Context getAndroidContext() {
+        return context;
+    }
+
+    @Override
+    public Context getAppContext() {
+        return context;
+    }
+
+    @Override
+    public boolean isFullyInitialized() {
+        return true;
+    }
+
+    @Override
+    public ServerApi getServerApi() {
+        return serverApi;
+    }
+
+    @Override
+    public void initServerApi(String serverUrl) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public HttpStack getHttpStack() {
+        return httpStack;
+    }
+
+    @Override
+    public UploadManager getUploadManager() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FaceSightcorpApi getFaceApi() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FaceAnalysisService getFaceAnalysisService() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public UserStateData getUserStateData() {
+        throw new UnsupportedOperationException();
+    }
+}
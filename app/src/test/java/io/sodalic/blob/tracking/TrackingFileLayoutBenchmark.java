@@ -0,0 +1,169 @@
+package io.sodalic.blob.tracking;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import io.sodalic.blob.storage.TrackingFileLayout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Listing and selection time of a backlog of 10k and 100k data files:
+ * <ul>
+ * <li>flat: all the files in one directory, listed and filtered by the list of the files in use
+ * and sorted to pick the oldest ones, the way the upload worked before the layout</li>
+ * <li>buckets: the full listing of the complete buckets, what a reconciliation of the {@link UploadManifest} does
+ * once a day</li>
+ * <li>manifest: picking a page of the oldest files from the {@link UploadManifest}, what every upload pass does,
+ * and the same right after a restart, when the manifest is read from its file first</li>
+ * </ul>
+ * Only the counts and the order are asserted, the timings depend on the file system. Runs with {@code -Pbenchmarks}.
+ * Runs with Robolectric for {@link android.util.AtomicFile}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TrackingFileLayoutBenchmark {
+    private static final String[] STREAMS = {"gps", "accel", "powerState", "callLog", "textsLog", "bluetoothLog", "wifiLog"};
+    // a file per stream every 10 minutes
+    private static final long FILE_INTERVAL_MILLIS = 10 * 60 * 1000;
+    // 2019-06-08 13:20 UTC, long before now so all the buckets are complete
+    private static final long START_TIME = 1560000000000L;
+    private static final int PAGE_SIZE = 500;
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final UploadManifest.InUseFiles NONE_IN_USE = new UploadManifest.InUseFiles() {
+        @NonNull
+        @Override
+        public Set<String> getInUsePaths() {
+            return Collections.emptySet();
+        }
+    };
+
+    private interface Task {
+        /**
+         * @return the number of files the task has seen
+         */
+        int run() throws Exception;
+    }
+
+    private static long fileTime(int i) {
+        return START_TIME + (i / STREAMS.length) * FILE_INTERVAL_MILLIS;
+    }
+
+    private static String fileName(int i) {
+        return "patient_" + STREAMS[i % STREAMS.length] + "_" + fileTime(i) + ".csv";
+    }
+
+    /**
+     * @return the best time in milliseconds
+     */
+    private static double measure(String name, int fileCount, int expectedCount, Task task) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            assertEquals(expectedCount, task.run());
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format(Locale.ENGLISH, "%6d files | %-32s | %8.2f ms", fileCount, name, best / 1e6));
+        return best / 1e6;
+    }
+
+    private void run(final int fileCount) throws Exception {
+        final File flatDir = tmp.newFolder("flat" + fileCount);
+        final TrackingFileLayout layout = new TrackingFileLayout(tmp.newFolder("buckets" + fileCount));
+        for (int i = 0; i < fileCount; i++) {
+            String name = fileName(i);
+            assertTrue(new File(flatDir, name).createNewFile());
+            File file = layout.prepareFile(TrackingFileLayout.getRelativePath(name, fileTime(i)));
+            assertTrue(file.createNewFile());
+            assertTrue(file.setLastModified(fileTime(i)));
+        }
+        // the files the old code kept out of the upload by name
+        final Set<String> blocklist = new HashSet<>(Arrays.asList("keyFile", "logFile", "currentDailyQuestionsFile.json",
+                "currentWeeklyQuestionsFile.json", "tempAudioFile.mp4", "rawAudioFile.raw", "tempAudioFile.wav"));
+        for (String stream : STREAMS) {
+            blocklist.add("patient_" + stream + "_" + fileTime(fileCount) + ".csv");
+        }
+
+        measure("flat: list, filter, pick oldest", fileCount, PAGE_SIZE, new Task() {
+            @Override
+            public int run() {
+                List<String> names = new ArrayList<>();
+                for (String name : flatDir.list()) {
+                    if (!blocklist.contains(name))
+                        names.add(name);
+                }
+                // the oldest files first, the time is at the end of the name
+                Collections.sort(names, new Comparator<String>() {
+                    @Override
+                    public int compare(String name1, String name2) {
+                        return name1.substring(name1.lastIndexOf('_')).compareTo(name2.substring(name2.lastIndexOf('_')));
+                    }
+                });
+                return names.subList(0, PAGE_SIZE).size();
+            }
+        });
+        measure("buckets: list the complete ones", fileCount, fileCount, new Task() {
+            @Override
+            public int run() {
+                int count = 0;
+                for (String bucket : layout.listBuckets(System.currentTimeMillis())) {
+                    count += layout.listFiles(bucket).size();
+                }
+                return count;
+            }
+        });
+
+        final File logFile = new File(tmp.getRoot(), "manifest" + fileCount);
+        final UploadManifest manifest = new UploadManifest(layout, logFile);
+        measure("manifest: reconcile", fileCount, fileCount, new Task() {
+            @Override
+            public int run() {
+                manifest.reconcile(NONE_IN_USE);
+                return manifest.getPendingCount();
+            }
+        });
+        final Set<String> skipped = Collections.emptySet();
+        measure("manifest: pick oldest", fileCount, PAGE_SIZE, new Task() {
+            @Override
+            public int run() {
+                List<UploadManifest.Entry> page = manifest.getPendingFiles(PAGE_SIZE, skipped);
+                assertEquals(START_TIME, page.get(0).closeTime);
+                assertEquals(START_TIME + (PAGE_SIZE - 1) / STREAMS.length * FILE_INTERVAL_MILLIS, page.get(PAGE_SIZE - 1).closeTime);
+                return page.size();
+            }
+        });
+        measure("manifest: read, pick oldest", fileCount, PAGE_SIZE, new Task() {
+            @Override
+            public int run() {
+                return new UploadManifest(layout, logFile).getPendingFiles(PAGE_SIZE, skipped).size();
+            }
+        });
+    }
+
+    @Test
+    public void testListing() throws Exception {
+        // a warm-up round
+        run(1000);
+        run(10 * 1000);
+        run(100 * 1000);
+    }
+}
@@ -0,0 +1,179 @@
+package io.sodalic.blob.tracking;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+
+import org.beiwe.app.DeviceInfo;
+import org.beiwe.app.storage.PersistentData;
+import org.beiwe.app.storage.TestKeys;
+import org.beiwe.app.storage.TextFileManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import io.sodalic.blob.net.HttpStack;
+import io.sodalic.blob.net.ServerApi;
+import io.sodalic.blob.net.ServerException;
+import io.sodalic.blob.storage.KnownDirs;
+import io.sodalic.blob.storage.TrackingFileLayout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The worker pool of {@link UploadManager} against a server that takes a while for every file.
+ * Runs with Robolectric for the preferences and the data files.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UploadManagerConcurrencyTest {
+    // 2019-06-08 13:20 UTC
+    private static final long OLD_TIME = 1560000000000L;
+    private static final long NO_TIME_LIMIT = 60 * 60 * 1000;
+    private static final int PAGE_SIZE = 500;
+
+    private Context context;
+    private SlowServerApi serverApi;
+
+    /**
+     * Accepts every file one by one after {@link #delayMillis}, the batch request is unknown to it
+     */
+    private static final class SlowServerApi extends ServerApi {
+        final long delayMillis;
+        final List<String> uploaded = new ArrayList<>();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        SlowServerApi(Context context, long delayMillis) {
+            super(context, "https://localhost:1", new HttpStack(context));
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public void uploadFile(File file) throws ServerException {
+            int current = inFlight.incrementAndGet();
+            synchronized (uploaded) {
+                maxInFlight.set(Math.max(maxInFlight.get(), current));
+            }
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                throw new ServerException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            synchronized (uploaded) {
+                uploaded.add(file.getName());
+            }
+        }
+
+        @Override
+        public Set<String> uploadFiles(List<File> files) throws ServerException {
+            throw new ServerException(404);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        context = ApplicationProvider.getApplicationContext();
+        PersistentData.initialize(context);
+        PersistentData.setRegistered(true);
+        PersistentData.setAllowUploadOverCellularData(true);
+        TestKeys.useTestRSAKey();
+        TextFileManager.initialize(context);
+        // the crash report of the time limit includes the device info
+        DeviceInfo.initialize(context);
+    }
+
+    @After
+    public void tearDown() {
+        PersistentData.setUploadConcurrency(3);
+        TextFileManager.resetForTests();
+    }
+
+    /**
+     * Adds {@code count} closed files to the manifest, the oldest first
+     */
+    private static Set<String> closeFiles(Context context, int count) throws Exception {
+        TrackingFileLayout layout = KnownDirs.getTrackingFileLayout(context);
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            long time = OLD_TIME + i * 1000L;
+            String name = "patient_gps_" + time + ".csv";
+            String path = TrackingFileLayout.getRelativePath(name, time);
+            Files.write(layout.prepareFile(path).toPath(), ("line " + i).getBytes("UTF-8"));
+            TextFileManager.getUploadManifest().addClosedFile(path, "gps");
+            names.add(name);
+        }
+        assertEquals(count, TextFileManager.getUploadManifest().getPendingCount());
+        return names;
+    }
+
+    private void upload(int concurrency, long delayMillis, long timeLimitMillis, int pageSize) {
+        PersistentData.setUploadConcurrency(concurrency);
+        serverApi = new SlowServerApi(context, delayMillis);
+        new UploadManager(new TestBlobContext(context, serverApi, null), timeLimitMillis, pageSize).doUploadAllFiles();
+    }
+
+    @Test
+    public void testConcurrencyIsClamped() {
+        int[][] clamped = {{-5, 1}, {0, 1}, {1, 1}, {3, 3}, {8, 8}, {9, 8}, {100, 8}};
+        for (int[] pair : clamped) {
+            PersistentData.setUploadConcurrency(pair[0]);
+            assertEquals("upload_concurrency " + pair[0], pair[1], UploadManager.getUploadConcurrency());
+        }
+    }
+
+    @Test
+    public void testEveryFileUploadedOnce() throws Exception {
+        Set<String> names = closeFiles(context, 60);
+        upload(4, 20, NO_TIME_LIMIT, PAGE_SIZE);
+
+        // the workers share the list, no file is taken twice or skipped
+        assertEquals(60, serverApi.uploaded.size());
+        assertEquals(names, new HashSet<>(serverApi.uploaded));
+        assertEquals(0, TextFileManager.getUploadManifest().getPendingCount());
+        assertTrue("At most 4 at once, " + serverApi.maxInFlight.get(), serverApi.maxInFlight.get() <= 4);
+        assertTrue("In parallel, " + serverApi.maxInFlight.get(), serverApi.maxInFlight.get() > 1);
+    }
+
+    @Test
+    public void testWorkerCountIsBounded() throws Exception {
+        closeFiles(context, 40);
+        upload(100, 50, NO_TIME_LIMIT, PAGE_SIZE);
+        assertEquals(40, serverApi.uploaded.size());
+        assertTrue("At most 8 at once, " + serverApi.maxInFlight.get(), serverApi.maxInFlight.get() <= UploadManager.MAX_UPLOAD_CONCURRENCY);
+
+        closeFiles(context, 10);
+        upload(0, 10, NO_TIME_LIMIT, PAGE_SIZE);
+        assertEquals(10, serverApi.uploaded.size());
+        assertEquals(1, serverApi.maxInFlight.get());
+    }
+
+    @Test
+    public void testTimeLimitIsSharedByPages() throws Exception {
+        // a page takes about 500ms, a limit per page would let all 3 of them through
+        closeFiles(context, 30);
+        upload(1, 50, 750, 10);
+
+        int uploaded = serverApi.uploaded.size();
+        assertTrue("Uploaded " + uploaded + " files", (uploaded > 10) && (uploaded < 30));
+        // the crash log of the time limit is waiting for the upload too
+        int pending = 0;
+        for (String path : TextFileManager.getUploadManifest().getPendingPaths()) {
+            if (path.contains("_gps_"))
+                pending++;
+        }
+        assertEquals(30 - uploaded, pending);
+    }
+}
@@ -0,0 +1,121 @@
+package io.sodalic.blob.tracking;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.Context;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import org.beiwe.app.storage.PersistentData;
+import org.beiwe.app.storage.TestKeys;
+import org.beiwe.app.storage.TextFileManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import io.sodalic.blob.net.LocalHttpsServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Uploads the closed data files to a local server that doesn't know the batch upload request.
+ * Runs with Robolectric for the preferences and the data files.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UploadManagerServerTest {
+    private Context context;
+    private LocalHttpsServer local;
+    private UploadManager uploadManager;
+    // the paths of the requests and the names of the files uploaded one by one
+    private final List<String> paths = new ArrayList<>();
+    private final List<String> singleUploads = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        context = ApplicationProvider.getApplicationContext();
+        local = new LocalHttpsServer(context);
+        local.server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                synchronized (paths) {
+                    paths.add(request.getPath());
+                    if ("/upload".equals(request.getPath())) {
+                        String body = request.getBody().readUtf8();
+                        int start = body.indexOf("filename=\"") + "filename=\"".length();
+                        singleUploads.add(body.substring(start, body.indexOf('"', start)));
+                        return new MockResponse();
+                    }
+                }
+                return new MockResponse().setResponseCode(404);
+            }
+        });
+        PersistentData.setRegistered(true);
+        PersistentData.setAllowUploadOverCellularData(true);
+        PersistentData.setGpsEnabled(true);
+        PersistentData.setPowerStateEnabled(true);
+        PersistentData.setCallsEnabled(true);
+        TestKeys.useTestRSAKey();
+        TextFileManager.initialize(context);
+        uploadManager = new UploadManager(new TestBlobContext(context, local.serverApi, local.httpStack));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        local.shutdown();
+        TextFileManager.resetForTests();
+    }
+
+    /**
+     * Writes a line to several streams and closes their files
+     *
+     * @return the number of the files waiting for the upload
+     */
+    private static int closeSomeFiles() {
+        TextFileManager.getGPSFile().writeEncrypted("1560000000000,1.0,2.0,3.0,4.0");
+        TextFileManager.getPowerStateFile().writeEncrypted("1560000000000,Screen turned on");
+        TextFileManager.getCallLogFile().writeEncrypted("1560000000000,hash,Outgoing Call,10");
+        TextFileManager.makeNewFilesForEverything();
+        return TextFileManager.getUploadManifest().getPendingCount();
+    }
+
+    private Set<String> takeSingleUploads() {
+        synchronized (paths) {
+            Set<String> names = new HashSet<>(singleUploads);
+            assertEquals("A file is uploaded twice", singleUploads.size(), names.size());
+            singleUploads.clear();
+            return names;
+        }
+    }
+
+    @Test
+    public void testFallbackToSingleUploads() throws Exception {
+        int pending = closeSomeFiles();
+        assertFalse(pending < 3);
+        uploadManager.doUploadAllFiles();
+
+        // the batch is refused and its files are sent one by one right away
+        assertEquals("/upload_batch", paths.get(0));
+        assertEquals(pending + 1, paths.size());
+        assertEquals(pending, takeSingleUploads().size());
+        assertEquals(0, TextFileManager.getUploadManifest().getPendingCount());
+
+        // the next passes don't try the batches again
+        paths.clear();
+        pending = closeSomeFiles();
+        uploadManager.doUploadAllFiles();
+        assertEquals(pending, paths.size());
+        assertFalse(paths.contains("/upload_batch"));
+        assertEquals(pending, takeSingleUploads().size());
+        assertEquals(0, TextFileManager.getUploadManifest().getPendingCount());
+    }
+}
@@ -0,0 +1,92 @@
+package io.sodalic.blob.tracking;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class UploadManagerTest {
+    private static final long KB = 1024;
+
+    private static List<UploadManager.PendingUpload> uploads(long... lengths) {
+        List<UploadManager.PendingUpload> uploads = new ArrayList<>();
+        for (int i = 0; i < lengths.length; i++) {
+            String name = "patient_accel_" + i + ".csv";
+            uploads.add(new UploadManager.PendingUpload("accel/2019-06-01_13/" + name, new File(name), i, lengths[i]));
+        }
+        return uploads;
+    }
+
+    private static long[] repeat(long length, int count) {
+        long[] lengths = new long[count];
+        for (int i = 0; i < count; i++) {
+            lengths[i] = length;
+        }
+        return lengths;
+    }
+
+    /**
+     * @return the sizes of the requests and checks that the files keep their order
+     */
+    private static List<Integer> groupSizes(List<UploadManager.PendingUpload> uploads, boolean useBatches) {
+        List<List<UploadManager.PendingUpload>> units = UploadManager.groupIntoRequests(uploads, useBatches);
+        List<Integer> sizes = new ArrayList<>();
+        int next = 0;
+        for (List<UploadManager.PendingUpload> unit : units) {
+            sizes.add(unit.size());
+            for (UploadManager.PendingUpload upload : unit) {
+                assertSame(uploads.get(next++), upload);
+            }
+        }
+        assertEquals(uploads.size(), next);
+        return sizes;
+    }
+
+    @Test
+    public void testFileCountLimit() {
+        int count = 2 * UploadManager.BATCH_MAX_FILES + 20;
+        List<Integer> sizes = groupSizes(uploads(repeat(KB, count)), true);
+        assertEquals(3, sizes.size());
+        assertEquals(UploadManager.BATCH_MAX_FILES, (int) sizes.get(0));
+        assertEquals(UploadManager.BATCH_MAX_FILES, (int) sizes.get(1));
+        assertEquals(20, (int) sizes.get(2));
+    }
+
+    @Test
+    public void testByteLimit() {
+        long length = UploadManager.BATCH_FILE_MAX_BYTES;
+        int perRequest = (int) (UploadManager.BATCH_MAX_BYTES / length);
+        List<Integer> sizes = groupSizes(uploads(repeat(length, 2 * perRequest + 1)), true);
+        assertEquals(3, sizes.size());
+        assertEquals(perRequest, (int) sizes.get(0));
+        assertEquals(perRequest, (int) sizes.get(1));
+        assertEquals(1, (int) sizes.get(2));
+    }
+
+    @Test
+    public void testBigFilesGoAlone() {
+        long big = UploadManager.BATCH_FILE_MAX_BYTES + 1;
+        List<Integer> sizes = groupSizes(uploads(KB, KB, big, KB, big, big, KB), true);
+        // the small files after a big one are not packed into the request before it
+        assertEquals(6, sizes.size());
+        assertEquals(2, (int) sizes.get(0));
+        for (int i = 1; i < 6; i++) {
+            assertEquals(1, (int) sizes.get(i));
+        }
+    }
+
+    @Test
+    public void testNoBatches() {
+        List<Integer> sizes = groupSizes(uploads(KB, KB, KB), false);
+        assertEquals(3, sizes.size());
+    }
+
+    @Test
+    public void testNothingToUpload() {
+        assertEquals(0, groupSizes(uploads(), true).size());
+    }
+}
@@ -0,0 +1,214 @@
+package io.sodalic.blob.tracking;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import io.sodalic.blob.storage.TrackingFileLayout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs with Robolectric for {@link android.util.AtomicFile}
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UploadManifestTest {
+    // 2019-06-08 13:20 UTC, the bucket is long complete
+    private static final long OLD_TIME = 1560000000000L;
+
+    private static final UploadManifest.InUseFiles NONE_IN_USE = new UploadManifest.InUseFiles() {
+        @NonNull
+        @Override
+        public Set<String> getInUsePaths() {
+            return Collections.emptySet();
+        }
+    };
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private TrackingFileLayout layout;
+    private File logFile;
+
+    @Before
+    public void setUp() throws IOException {
+        layout = new TrackingFileLayout(tmp.newFolder("data"));
+        logFile = new File(tmp.getRoot(), "upload_manifest");
+    }
+
+    private UploadManifest newManifest() {
+        return new UploadManifest(layout, logFile);
+    }
+
+    /**
+     * @return the relative path of a new data file of {@code size} bytes
+     */
+    private String createFile(String name, long creationTime, int size) throws IOException {
+        String path = TrackingFileLayout.getRelativePath(name, creationTime);
+        File file = layout.prepareFile(path);
+        Files.write(file.toPath(), new byte[size]);
+        assertTrue(file.setLastModified(creationTime));
+        return path;
+    }
+
+    private static Set<String> setOf(String... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    private static List<String> pathsOf(List<UploadManifest.Entry> entries) {
+        String[] paths = new String[entries.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = entries.get(i).path;
+        }
+        return Arrays.asList(paths);
+    }
+
+    @Test
+    public void testFilesSurviveRestart() throws IOException {
+        String gps = createFile("p1_gps_1560000000000.csv", OLD_TIME, 100);
+        String survey = createFile("p1_surveyAnswers_s1_1560000000000.csv", OLD_TIME, 20);
+        String audio = createFile("p1_voiceRecording_1560000000000.wav", OLD_TIME, 1000);
+        UploadManifest manifest = newManifest();
+        manifest.addClosedFile(gps, "gps");
+        manifest.addClosedFile(survey, "surveyAnswers");
+        manifest.addClosedFile(audio, "voiceRecording");
+        // added once only
+        manifest.addClosedFile(gps, "gps");
+        manifest.addClosedFile(TrackingFileLayout.getRelativePath("p1_gps_1.csv", OLD_TIME), "gps");
+
+        assertEquals(Arrays.asList(survey, audio, gps), manifest.getPendingPaths());
+        assertEquals(1120, manifest.getPendingBytes());
+        manifest.removeFile(audio);
+        manifest.removeFile(audio);
+
+        UploadManifest reloaded = newManifest();
+        assertEquals(Arrays.asList(survey, gps), reloaded.getPendingPaths());
+        assertEquals(2, reloaded.getPendingCount());
+        assertEquals(120, reloaded.getPendingBytes());
+        assertEquals(100L, (long) reloaded.getPendingBytesByStream().get("gps"));
+        assertEquals(20L, (long) reloaded.getPendingBytesByStream().get("surveyAnswers"));
+        assertFalse(reloaded.getPendingBytesByStream().containsKey("voiceRecording"));
+    }
+
+    @Test
+    public void testTornLastLineIsSkipped() throws IOException {
+        String gps = createFile("p1_gps_1560000000000.csv", OLD_TIME, 100);
+        String accel = createFile("p1_accel_1560000000000.csv", OLD_TIME, 50);
+        UploadManifest manifest = newManifest();
+        manifest.addClosedFile(gps, "gps");
+        manifest.addClosedFile(accel, "accel");
+        // a crash in the middle of appending a line
+        try (FileOutputStream out = new FileOutputStream(logFile, true)) {
+            out.write("+\tp1_accel_15600".getBytes("UTF-8"));
+        }
+
+        UploadManifest reloaded = newManifest();
+        assertEquals(2, reloaded.getPendingCount());
+        assertEquals(150, reloaded.getPendingBytes());
+    }
+
+    @Test
+    public void testFlatLayoutEntriesAreDropped() throws IOException {
+        Files.write(logFile.toPath(), "+\tp1_gps_1560000000000.csv\tgps\t100\t1560000000000\n".getBytes("UTF-8"));
+        assertEquals(0, newManifest().getPendingCount());
+    }
+
+    @Test
+    public void testLogIsCompacted() throws IOException {
+        String kept = createFile("p1_gps_1560000000000.csv", OLD_TIME, 100);
+        UploadManifest manifest = newManifest();
+        manifest.addClosedFile(kept, "gps");
+        for (int i = 0; i < 500; i++) {
+            String path = createFile("p1_accel_" + i + ".csv", OLD_TIME, 1);
+            manifest.addClosedFile(path, "accel");
+            manifest.removeFile(path);
+        }
+        // the 1000 dead lines are dropped with the last removal
+        assertEquals(1, Files.readAllLines(logFile.toPath()).size());
+        UploadManifest reloaded = newManifest();
+        assertEquals(Collections.singletonList(kept), reloaded.getPendingPaths());
+        assertEquals(100, reloaded.getPendingBytes());
+    }
+
+    @Test
+    public void testReconcile() throws Exception {
+        String orphan = createFile("p1_gps_1560000000000.csv", OLD_TIME, 100);
+        final String inUse = createFile("p1_accel_1560000000000.csv", OLD_TIME, 50);
+        String missing = createFile("p1_wifi_1560000000000.csv", OLD_TIME, 10);
+        String current = createFile("p1_bluetooth_1.csv", System.currentTimeMillis(), 10);
+        String emptyBucket = TrackingFileLayout.getBucket(TrackingFileLayout.getRelativePath("p1_calls_1.csv", OLD_TIME));
+        assertTrue(layout.getFile(emptyBucket).mkdirs());
+
+        UploadManifest manifest = newManifest();
+        manifest.addClosedFile(missing, "wifi");
+        manifest.addClosedFile(current, "bluetooth");
+        assertTrue(layout.getFile(missing).delete());
+        assertTrue(layout.getFile(current).delete());
+        // the entries added at the very start of the reconciliation are kept
+        Thread.sleep(10);
+
+        manifest.reconcile(new UploadManifest.InUseFiles() {
+            @NonNull
+            @Override
+            public Set<String> getInUsePaths() {
+                return Collections.singleton(inUse);
+            }
+        });
+        // the bucket of the current hour is not listed yet
+        assertEquals(Arrays.asList(orphan, current), manifest.getPendingPaths());
+        UploadManifest.Entry entry = manifest.getPendingFiles(10, setOf(current)).get(0);
+        assertEquals("gps", entry.stream);
+        assertEquals(100, entry.size);
+        assertEquals(OLD_TIME, entry.closeTime);
+        assertFalse(layout.getFile(emptyBucket).exists());
+
+        // the reconciliation has compacted the log
+        assertEquals(Arrays.asList(orphan, current), newManifest().getPendingPaths());
+    }
+
+    @Test
+    public void testPendingFilesPage() throws IOException {
+        UploadManifest manifest = newManifest();
+        String[] paths = new String[5];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = createFile("p1_gps_" + i + ".csv", OLD_TIME + i * 1000, 10);
+        }
+        manifest.reconcile(NONE_IN_USE);
+
+        assertEquals(Arrays.asList(paths[0], paths[1]), pathsOf(manifest.getPendingFiles(2, Collections.<String>emptySet())));
+        assertEquals(Arrays.asList(paths[2], paths[4]), pathsOf(manifest.getPendingFiles(2, setOf(paths[0], paths[1], paths[3]))));
+    }
+
+    @Test
+    public void testOldestFiles() throws IOException {
+        String gps1 = createFile("p1_gps_1.csv", OLD_TIME, 100);
+        createFile("p1_accel_1.csv", OLD_TIME + 1000, 100);
+        String gps2 = createFile("p1_gps_2.csv", OLD_TIME + 2000, 100);
+        String gps3 = createFile("p1_gps_3.csv", OLD_TIME + 3000, 100);
+        String wifi = createFile("p1_wifi_1.csv", OLD_TIME + 4000, 100);
+        UploadManifest manifest = newManifest();
+        manifest.reconcile(NONE_IN_USE);
+
+        assertEquals(Arrays.asList(gps1, gps2), pathsOf(manifest.getOldestFiles(setOf("gps", "wifi"), 101)));
+        assertEquals(Arrays.asList(gps1, gps2, gps3, wifi), pathsOf(manifest.getOldestFiles(setOf("gps", "wifi"), 10000)));
+        assertTrue(manifest.getOldestFiles(setOf("gps"), 0).isEmpty());
+        assertTrue(manifest.getOldestFiles(setOf("calls"), 100).isEmpty());
+    }
+}
@@ -0,0 +1,194 @@
+package org.beiwe.app.networking;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import org.beiwe.app.storage.PersistentData;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import io.sodalic.blob.net.LocalHttpsServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The ETag and the content hash short-circuits of {@link SurveyDownloader} against a local server.
+ * The writes are seen with a preferences listener, the survey contents and settings are in the
+ * {@link io.sodalic.blob.storage.SurveyBlobStore} that skips the unchanged values on its own.
+ * Runs with Robolectric for the preferences and the device info.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SurveyDownloaderTest {
+    private static final String SURVEY_ID = "survey1";
+
+    private Context context;
+    private LocalHttpsServer local;
+    private final List<String> changedKeys = new ArrayList<>();
+    // the preferences only keep a weak reference
+    private final SharedPreferences.OnSharedPreferenceChangeListener listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+            changedKeys.add(key);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        context = ApplicationProvider.getApplicationContext();
+        local = new LocalHttpsServer(context);
+        for (String surveyId : PersistentData.getSurveyIds()) {
+            PersistentData.deleteSurvey(surveyId);
+        }
+        PersistentData.setSurveysDownloadState(null, null);
+        PersistentData.addSurveyId(SURVEY_ID);
+        JSONObject survey = survey("tracking_survey");
+        PersistentData.createSurveyData(SURVEY_ID, survey.getString("content"), survey.getString("timings"),
+                survey.getString("survey_type"), survey.getString("settings"));
+        PersistentData.registerOnChangeListener(listener);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PersistentData.unregisterOnChangeListener(listener);
+        local.shutdown();
+    }
+
+    /**
+     * The stored survey the way the server sends it
+     */
+    private static JSONObject survey(String type) throws Exception {
+        JSONObject survey = new JSONObject();
+        survey.put("_id", SURVEY_ID);
+        survey.put("survey_type", type);
+        survey.put("content", new JSONArray().put(new JSONObject().put("question_id", "q1").put("question_text", "How are you?")));
+        survey.put("timings", new JSONArray(Arrays.asList(new JSONArray(), new JSONArray().put(32400), new JSONArray(),
+                new JSONArray(), new JSONArray(), new JSONArray(), new JSONArray())));
+        survey.put("settings", new JSONObject().put("trigger_on_first_download", false));
+        return survey;
+    }
+
+    private static String surveys(String type) throws Exception {
+        return new JSONArray().put(survey(type)).toString();
+    }
+
+    private void respond(String body, String etag) {
+        MockResponse response = new MockResponse().setBody(body);
+        if (etag != null)
+            response.setHeader("ETag", etag);
+        local.server.enqueue(response);
+    }
+
+    /**
+     * @return the If-None-Match header the download has sent
+     */
+    private String download() throws Exception {
+        SurveyDownloader.downloadAndUpdate(context, local.serverApi);
+        RecordedRequest request = local.server.takeRequest();
+        assertEquals("/download_surveys", request.getPath());
+        return request.getHeader("If-None-Match");
+    }
+
+    private void assertNoSurveyWrites() {
+        for (String key : changedKeys) {
+            assertTrue("Written " + key, !key.startsWith(SURVEY_ID) && !key.contains("survey_ids"));
+        }
+        assertEquals(Arrays.asList(SURVEY_ID), PersistentData.getSurveyIds());
+    }
+
+    @Test
+    public void testUnchangedSurveysAreNotWritten() throws Exception {
+        // nothing to compare with yet: the surveys are parsed, only the download state is written
+        respond(surveys("tracking_survey"), "\"v1\"");
+        assertNull(download());
+        assertNoSurveyWrites();
+        assertEquals("\"v1\"", PersistentData.getSurveysEtag());
+        assertNotNull(PersistentData.getSurveysContentHash());
+    }
+
+    @Test
+    public void testNotModifiedByEtag() throws Exception {
+        respond(surveys("tracking_survey"), "\"v1\"");
+        download();
+        changedKeys.clear();
+
+        local.server.enqueue(new MockResponse().setResponseCode(304));
+        assertEquals("\"v1\"", download());
+        assertTrue(changedKeys.isEmpty());
+    }
+
+    @Test
+    public void testNotModifiedByContentHash() throws Exception {
+        // a server without the ETags
+        respond(surveys("tracking_survey"), null);
+        assertNull(download());
+        String hash = PersistentData.getSurveysContentHash();
+        assertNotNull(hash);
+        changedKeys.clear();
+
+        respond(surveys("tracking_survey"), null);
+        assertNull(download());
+        assertTrue(changedKeys.isEmpty());
+        assertEquals(hash, PersistentData.getSurveysContentHash());
+    }
+
+    @Test
+    public void testNewEtagOfSameContent() throws Exception {
+        respond(surveys("tracking_survey"), "\"v1\"");
+        download();
+        String hash = PersistentData.getSurveysContentHash();
+        changedKeys.clear();
+
+        // only the ETag is updated, the surveys are not even parsed
+        respond(surveys("tracking_survey"), "\"v2\"");
+        assertEquals("\"v1\"", download());
+        assertNoSurveyWrites();
+        assertEquals("\"v2\"", PersistentData.getSurveysEtag());
+        assertEquals(hash, PersistentData.getSurveysContentHash());
+    }
+
+    @Test
+    public void testChangedSurveyIsWritten() throws Exception {
+        respond(surveys("tracking_survey"), "\"v1\"");
+        download();
+        String hash = PersistentData.getSurveysContentHash();
+        changedKeys.clear();
+
+        respond(surveys("audio_survey"), "\"v2\"");
+        assertEquals("\"v1\"", download());
+        assertEquals("audio_survey", PersistentData.getSurveyType(SURVEY_ID));
+        assertTrue(changedKeys.contains(SURVEY_ID + "-type"));
+        // only the changed value, the timings stay
+        assertTrue(!changedKeys.contains(SURVEY_ID + "-times"));
+        assertEquals("\"v2\"", PersistentData.getSurveysEtag());
+        assertTrue(!hash.equals(PersistentData.getSurveysContentHash()));
+    }
+
+    @Test
+    public void testNoEtagSentWithoutSurveys() throws Exception {
+        respond(surveys("tracking_survey"), "\"v1\"");
+        download();
+        PersistentData.deleteSurvey(SURVEY_ID);
+
+        // the stored ETag is for the surveys that are gone
+        respond("[]", "\"v1\"");
+        assertNull(download());
+        assertTrue(PersistentData.getSurveyIds().isEmpty());
+    }
+}
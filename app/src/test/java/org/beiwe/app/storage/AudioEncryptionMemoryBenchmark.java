@@ -0,0 +1,180 @@
+package org.beiwe.app.storage;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Peak memory of encrypting 44.1kHz 16-bit mono recordings of 1 to 60 minutes the way
+ * {@link AudioFileManager#encryptAudioFile} does, streaming through {@link EncryptionEngine#encryptAES(InputStream, OutputStream, byte[])},
+ * and the way it used to, reading the whole file into an array and encrypting it into a single string.
+ * The old way is only run on the short recordings, a 10 minute one would need about 450MB.
+ * <p>
+ * The peak is the largest live heap seen by a sampler that forces a GC every few milliseconds during the encryption,
+ * above the live heap before it. The recording is generated on the fly and the output is only counted,
+ * so neither of them is in memory at once.
+ * <p>
+ * The peak of the streaming path is asserted to stay below the size of a 5 minute recording. Runs with {@code -Pbenchmarks}.
+ * Runs with Robolectric for {@link android.util.Base64OutputStream}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AudioEncryptionMemoryBenchmark {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BYTES_PER_MINUTE = SAMPLE_RATE * 2 * 60;
+    private static final long SAMPLE_INTERVAL_MILLIS = 20;
+
+    private byte[] aesKey;
+
+    @Before
+    public void setUp() throws Exception {
+        TestKeys.useTestRSAKey();
+        aesKey = EncryptionEngine.newAESKey();
+    }
+
+    /**
+     * A 440Hz tone of the given length, a second of it repeated
+     */
+    private static final class ToneInputStream extends InputStream {
+        private static final byte[] SECOND = new byte[SAMPLE_RATE * 2];
+
+        static {
+            for (int i = 0; i < SAMPLE_RATE; i++) {
+                short sample = (short) (Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE) * 10000);
+                SECOND[2 * i] = (byte) sample;
+                SECOND[2 * i + 1] = (byte) (sample >> 8);
+            }
+        }
+
+        private final long length;
+        private long position = 0;
+
+        ToneInputStream(long length) {
+            this.length = length;
+        }
+
+        @Override
+        public int read() {
+            return (position < length) ? (SECOND[(int) (position++ % SECOND.length)] & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (position >= length)
+                return -1;
+            int start = (int) (position % SECOND.length);
+            int read = (int) Math.min(Math.min(count, length - position), SECOND.length - start);
+            System.arraycopy(SECOND, start, buffer, offset, read);
+            position += read;
+            return read;
+        }
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) {
+            count += length;
+        }
+    }
+
+    private interface Encryption {
+        /**
+         * @return the number of the encrypted bytes
+         */
+        long run(long length) throws Exception;
+    }
+
+    private static long liveHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * @return the peak live heap above the one before the run
+     */
+    private static long measure(String name, int minutes, Encryption encryption) throws Exception {
+        final long baseline = liveHeap();
+        final long[] peak = {0};
+        final boolean[] done = {false};
+        Thread sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (done) {
+                        if (done[0])
+                            return;
+                    }
+                    peak[0] = Math.max(peak[0], liveHeap() - baseline);
+                    try {
+                        Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        long length = (long) minutes * BYTES_PER_MINUTE;
+        sampler.start();
+        long start = System.nanoTime();
+        long encrypted = encryption.run(length);
+        long nanos = System.nanoTime() - start;
+        synchronized (done) {
+            done[0] = true;
+        }
+        sampler.join();
+        // "IV:data" in Base64, the data padded to whole AES blocks
+        long cipherLength = (length / 16 + 1) * 16;
+        assertEquals(24 + 1 + (cipherLength + 2) / 3 * 4, encrypted);
+        System.out.println(String.format(Locale.ENGLISH, "%-9s | %2d min | %6.1f MB | peak %7.1f MB above the baseline | %5.1f s",
+                name, minutes, length / 1e6, peak[0] / 1e6, nanos / 1e9));
+        return peak[0];
+    }
+
+    @Test
+    public void testPeakMemory() throws Exception {
+        Encryption streaming = new Encryption() {
+            @Override
+            public long run(long length) throws Exception {
+                CountingOutputStream out = new CountingOutputStream();
+                EncryptionEngine.encryptAES(new ToneInputStream(length), out, aesKey);
+                return out.count;
+            }
+        };
+        Encryption wholeFile = new Encryption() {
+            @Override
+            public long run(long length) throws Exception {
+                // what readInAudioFile and writePlaintext did
+                byte[] audio = new byte[(int) length];
+                InputStream in = new ToneInputStream(length);
+                for (int offset = 0; offset < audio.length; ) {
+                    offset += in.read(audio, offset, audio.length - offset);
+                }
+                return EncryptionEngine.encryptAES(audio, aesKey).getBytes().length;
+            }
+        };
+
+        for (int minutes : new int[]{1, 5}) {
+            measure("whole", minutes, wholeFile);
+        }
+        long maxStreamingPeak = 0;
+        for (int minutes : new int[]{1, 5, 10, 30, 60}) {
+            maxStreamingPeak = Math.max(maxStreamingPeak, measure("streaming", minutes, streaming));
+        }
+        assertTrue(maxStreamingPeak < 5L * BYTES_PER_MINUTE);
+    }
+}
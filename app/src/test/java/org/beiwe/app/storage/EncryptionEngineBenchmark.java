@@ -0,0 +1,98 @@
+package org.beiwe.app.storage;
+
+import java.util.Locale;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Lines/sec of encrypting accelerometer-like lines into the {@code IV:ciphertext} Base64 format
+ * with {@link EncryptionEngine#encryptAES(String, byte[])}, which sets up the key, the cipher and the IV source
+ * for every line, and with a per-file {@link EncryptionEngine.AESFileEncryptor}.
+ * <p>
+ * This is a JUnit test rather than a JMH one, JMH doesn't run in the unit tests of an Android module.
+ * It follows the JMH scheme though: warm-up iterations first, then several timed iterations of a fixed
+ * length, the best one is reported. Only the line format is asserted, the JVM timings only show the trend.
+ * Runs with {@code -Pbenchmarks}. Runs with Robolectric for {@link android.util.Base64}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class EncryptionEngineBenchmark {
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 1000 * 1000 * 1000L;
+
+    private byte[] aesKey;
+
+    @Before
+    public void setUp() throws Exception {
+        TestKeys.useTestRSAKey();
+        aesKey = EncryptionEngine.newAESKey();
+    }
+
+    private interface LineEncryptor {
+        String encrypt(String line) throws Exception;
+    }
+
+    private static String line(int i) {
+        return (1560000000000L + i * 5) + ",unknown," + (i % 7) + ".1,-0.25,9.81";
+    }
+
+    /**
+     * @return the number of lines encrypted in one iteration
+     */
+    private static long iteration(LineEncryptor encryptor) throws Exception {
+        long lines = 0;
+        long end = System.nanoTime() + ITERATION_NANOS;
+        while (System.nanoTime() < end) {
+            // a batch between the clock reads
+            for (int i = 0; i < 100; i++, lines++) {
+                encryptor.encrypt(line((int) lines));
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return the best lines/sec
+     */
+    private static double measure(String name, LineEncryptor encryptor) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(encryptor);
+        }
+        long best = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            best = Math.max(best, iteration(encryptor));
+        }
+        double linesPerSecond = best / (ITERATION_NANOS / 1e9);
+        System.out.println(String.format(Locale.ENGLISH, "%-16s | %9.0f lines/s", name, linesPerSecond));
+        return linesPerSecond;
+    }
+
+    @Test
+    public void testLinesPerSecond() throws Exception {
+        final EncryptionEngine.AESFileEncryptor fileEncryptor = EncryptionEngine.newAESFileEncryptor(aesKey);
+        // both produce the same format
+        String line = fileEncryptor.encrypt(line(0));
+        assertEquals(2, line.split(":").length);
+        assertEquals(line(0), new String(TestKeys.decryptAES(line, aesKey), "UTF-8"));
+        assertEquals(line(0), new String(TestKeys.decryptAES(EncryptionEngine.encryptAES(line(0), aesKey), aesKey), "UTF-8"));
+
+        double perLine = measure("encryptAES", new LineEncryptor() {
+            @Override
+            public String encrypt(String line) throws Exception {
+                return EncryptionEngine.encryptAES(line, aesKey);
+            }
+        });
+        double perFile = measure("AESFileEncryptor", new LineEncryptor() {
+            @Override
+            public String encrypt(String line) throws Exception {
+                return fileEncryptor.encrypt(line);
+            }
+        });
+        System.out.println(String.format(Locale.ENGLISH, "the per-file encryptor is %.1fx faster", perFile / perLine));
+    }
+}
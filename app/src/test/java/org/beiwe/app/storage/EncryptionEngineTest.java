@@ -0,0 +1,204 @@
+package org.beiwe.app.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs with Robolectric for {@link android.util.Base64}
+ */
+@RunWith(RobolectricTestRunner.class)
+public class EncryptionEngineTest {
+    private byte[] aesKey;
+
+    @Before
+    public void setUp() throws GeneralSecurityException {
+        TestKeys.useTestRSAKey();
+        aesKey = EncryptionEngine.newAESKey();
+    }
+
+    @Test
+    public void testFileEncryptorLinesDecrypt() throws Exception {
+        EncryptionEngine.AESFileEncryptor encryptor = EncryptionEngine.newAESFileEncryptor(aesKey);
+        for (int i = 0; i < 100; i++) {
+            String line = "1560000000000,accel,line " + i;
+            assertEquals(line, new String(TestKeys.decryptAES(encryptor.encrypt(line), aesKey), "UTF-8"));
+        }
+    }
+
+    @Test
+    public void testFileEncryptorUsesNewIVForEveryLine() throws Exception {
+        EncryptionEngine.AESFileEncryptor encryptor = EncryptionEngine.newAESFileEncryptor(aesKey);
+        Set<String> ivs = new HashSet<>();
+        Set<String> lines = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            String encrypted = encryptor.encrypt("the same line");
+            ivs.add(encrypted.split(":")[0]);
+            lines.add(encrypted);
+        }
+        assertEquals(100, ivs.size());
+        assertEquals(100, lines.size());
+    }
+
+    @Test
+    public void testFileEncryptorMatchesEncryptAES() throws Exception {
+        byte[] plainText = "1560000000000,gps,42.0,-71.0".getBytes("UTF-8");
+        String line = EncryptionEngine.newAESFileEncryptor(aesKey).encrypt(plainText);
+        String reference = EncryptionEngine.encryptAES(plainText, aesKey);
+        assertArrayEquals(plainText, TestKeys.decryptAES(line, aesKey));
+        assertArrayEquals(plainText, TestKeys.decryptAES(reference, aesKey));
+        // same IV and cipher text lengths, only the random IV differs
+        assertEquals(reference.length(), line.length());
+    }
+
+    @Test
+    public void testEmptyLine() throws Exception {
+        String encrypted = EncryptionEngine.newAESFileEncryptor(aesKey).encrypt("");
+        assertTrue(encrypted.contains(":"));
+        assertEquals(0, TestKeys.decryptAES(encrypted, aesKey).length);
+    }
+
+    /**
+     * The server side of {@link EncryptionEngine.AESFrameEncryptor#encryptFrame(byte[], int, int)}
+     */
+    private static byte[] decryptFrame(byte[] frame, byte[] aesKey) throws GeneralSecurityException {
+        int nonceLength = EncryptionEngine.AESFrameEncryptor.NONCE_LENGTH;
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(aesKey, "AES"),
+                new GCMParameterSpec(EncryptionEngine.AESFrameEncryptor.TAG_LENGTH * 8, frame, 0, nonceLength));
+        return cipher.doFinal(frame, nonceLength, frame.length - nonceLength);
+    }
+
+    @Test
+    public void testFramesDecrypt() throws Exception {
+        EncryptionEngine.AESFrameEncryptor encryptor = EncryptionEngine.newAESFrameEncryptor(aesKey);
+        byte[] data = new byte[1000];
+        new Random(3).nextBytes(data);
+        for (int length : new int[]{0, 1, 16, 17, 1000}) {
+            byte[] frame = encryptor.encryptFrame(data, 0, length);
+            assertEquals(EncryptionEngine.AESFrameEncryptor.NONCE_LENGTH + length + EncryptionEngine.AESFrameEncryptor.TAG_LENGTH, frame.length);
+            assertArrayEquals(Arrays.copyOf(data, length), decryptFrame(frame, aesKey));
+        }
+        // only the given range is encrypted
+        assertArrayEquals(Arrays.copyOfRange(data, 10, 30), decryptFrame(encryptor.encryptFrame(data, 10, 20), aesKey));
+    }
+
+    @Test
+    public void testFrameNonceIsPrefixAndCounter() throws Exception {
+        EncryptionEngine.AESFrameEncryptor encryptor = EncryptionEngine.newAESFrameEncryptor(aesKey);
+        byte[] plainText = "the same frame".getBytes("UTF-8");
+        Set<String> nonces = new HashSet<>();
+        byte[] prefix = null;
+        for (long i = 0; i < 1000; i++) {
+            ByteBuffer nonce = ByteBuffer.wrap(encryptor.encryptFrame(plainText, 0, plainText.length), 0, EncryptionEngine.AESFrameEncryptor.NONCE_LENGTH);
+            byte[] framePrefix = new byte[4];
+            nonce.get(framePrefix);
+            if (prefix == null)
+                prefix = framePrefix;
+            // the random prefix is the same for the whole file, the rest is the big-endian frame counter
+            assertArrayEquals(prefix, framePrefix);
+            assertEquals(i, nonce.getLong());
+            nonces.add(Arrays.toString(Arrays.copyOf(nonce.array(), EncryptionEngine.AESFrameEncryptor.NONCE_LENGTH)));
+        }
+        assertEquals(1000, nonces.size());
+    }
+
+    @Test
+    public void testFrameEncryptorsUseDifferentPrefixes() throws Exception {
+        // the key is per file, but a reused key must not reuse the nonces either, 1 in 2^32 to fail by chance
+        byte[] frame1 = EncryptionEngine.newAESFrameEncryptor(aesKey).encryptFrame(new byte[1], 0, 1);
+        byte[] frame2 = EncryptionEngine.newAESFrameEncryptor(aesKey).encryptFrame(new byte[1], 0, 1);
+        assertFalse(Arrays.equals(Arrays.copyOf(frame1, 4), Arrays.copyOf(frame2, 4)));
+    }
+
+    @Test
+    public void testTamperedFrameIsRejected() throws Exception {
+        byte[] frame = EncryptionEngine.newAESFrameEncryptor(aesKey).encryptFrame("1560000000000,gps".getBytes("UTF-8"), 0, 17);
+        frame[EncryptionEngine.AESFrameEncryptor.NONCE_LENGTH + 3] ^= 1;
+        try {
+            decryptFrame(frame, aesKey);
+            fail("A modified frame must not decrypt");
+        } catch (AEADBadTagException expected) {
+            // the tag doesn't match
+        }
+    }
+
+    /**
+     * Gives out the data a few bytes at a time, so the Base64 groups are split between the chunks
+     */
+    private static InputStream trickle(byte[] data) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+    }
+
+    @Test
+    public void testStreamingEncryptionMatchesEncryptAES() throws Exception {
+        Random random = new Random(1);
+        // around the AES block, the Base64 group and the 64 KB read chunk
+        int[] sizes = {0, 1, 2, 3, 15, 16, 17, 65535, 65536, 65537, 200000};
+        for (int size : sizes) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            EncryptionEngine.encryptAES(new ByteArrayInputStream(data), out, aesKey);
+            String streamed = out.toString("UTF-8");
+
+            assertArrayEquals("size " + size, data, TestKeys.decryptAES(streamed, aesKey));
+            assertEquals("size " + size, EncryptionEngine.encryptAES(data, aesKey).length(), streamed.length());
+        }
+    }
+
+    @Test
+    public void testStreamingEncryptionOfShortReads() throws Exception {
+        byte[] data = new byte[1000];
+        new Random(2).nextBytes(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EncryptionEngine.encryptAES(trickle(data), out, aesKey);
+        assertArrayEquals(data, TestKeys.decryptAES(out.toString("UTF-8"), aesKey));
+    }
+
+    @Test
+    public void testStreamingEncryptionLeavesTheOutputOpen() throws Exception {
+        final boolean[] closed = {false};
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        out.write("key line\n".getBytes("UTF-8"));
+        EncryptionEngine.encryptAES(new ByteArrayInputStream("audio".getBytes("UTF-8")), out, aesKey);
+        assertFalse(closed[0]);
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertEquals("key line", lines[0]);
+        assertEquals("audio", new String(TestKeys.decryptAES(lines[1], aesKey), "UTF-8"));
+    }
+}
@@ -0,0 +1,58 @@
+package org.beiwe.app.storage;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An RSA key for the tests in place of the one the server sends at the registration,
+ * plus the server side of the decryption to check what {@link EncryptionEngine} produces.
+ */
+public final class TestKeys {
+    private static KeyPair keyPair;
+
+    private TestKeys() {
+        throw new RuntimeException("This is a static class");
+    }
+
+    /**
+     * Makes {@link EncryptionEngine} use the test key, the same key pair is used for all the tests
+     */
+    public static synchronized KeyPair useTestRSAKey() throws GeneralSecurityException {
+        if (keyPair == null) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            keyPair = generator.generateKeyPair();
+        }
+        EncryptionEngine.setRSAKey(keyPair.getPublic());
+        return keyPair;
+    }
+
+    /**
+     * Reverse of {@link EncryptionEngine#encryptRSA(byte[])}
+     */
+    public static byte[] decryptRSA(String encrypted, PrivateKey privateKey) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("RSA");
+        cipher.init(Cipher.DECRYPT_MODE, privateKey);
+        byte[] base64 = cipher.doFinal(Base64.getUrlDecoder().decode(encrypted));
+        return Base64.getUrlDecoder().decode(base64);
+    }
+
+    /**
+     * Reverse of {@link EncryptionEngine#encryptAES(byte[], byte[])}, the {@code IV:data} format
+     */
+    public static byte[] decryptAES(String encrypted, byte[] aesKey) throws GeneralSecurityException {
+        String[] parts = encrypted.split(":");
+        if (parts.length != 2)
+            throw new IllegalArgumentException("Not an IV:data line '" + encrypted + "'");
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(aesKey, "AES"), new IvParameterSpec(Base64.getUrlDecoder().decode(parts[0])));
+        return cipher.doFinal(Base64.getUrlDecoder().decode(parts[1]));
+    }
+}
@@ -0,0 +1,121 @@
+package org.beiwe.app.storage;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import android.content.Context;
+
+import org.beiwe.app.listeners.AccelerometerListener;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import io.sodalic.blob.storage.KnownDirs;
+import io.sodalic.blob.storage.TrackingFileLayout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rotates the data files while a sensor keeps writing, reads all the files back and checks that the writes
+ * didn't wait for the rotation: the new files are created, get their keys and headers and the old ones are closed
+ * without the lock of the stream.
+ * Runs with Robolectric for the preferences and {@link android.util.Base64}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TextFileManagerRotationTest {
+    private static final int LINES = 5000;
+    private static final int ROTATIONS = 20;
+
+    /**
+     * @return the decrypted lines of all the files of the stream, the files in the order they were created
+     */
+    private static List<String> readStream(TrackingFileLayout layout, String stream, KeyPair keyPair) throws Exception {
+        List<File> files = layout.listStreamFiles(stream);
+        // the name ends with the creation time
+        Collections.sort(files);
+        List<String> lines = new ArrayList<>();
+        for (File file : files) {
+            List<String> fileLines = Files.readAllLines(file.toPath());
+            byte[] aesKey = TestKeys.decryptRSA(fileLines.get(0), keyPair.getPrivate());
+            assertEquals(AccelerometerListener.header, new String(TestKeys.decryptAES(fileLines.get(1), aesKey), "UTF-8"));
+            for (String line : fileLines.subList(2, fileLines.size())) {
+                lines.add(new String(TestKeys.decryptAES(line, aesKey), "UTF-8"));
+            }
+        }
+        return lines;
+    }
+
+    @After
+    public void tearDown() {
+        TextFileManager.resetForTests();
+    }
+
+    @Test
+    public void testRotationKeepsEveryLine() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        PersistentData.initialize(context);
+        PersistentData.setRegistered(true);
+        PersistentData.setAccelerometerEnabled(true);
+        PersistentData.setUseBufferedWrites(true);
+        KeyPair keyPair = TestKeys.useTestRSAKey();
+        TextFileManager.initialize(context);
+        final TextFileManager accelFile = TextFileManager.getAccelFile();
+        // the first write creates the first file with the lock held, like any write to a stream without a file
+        accelFile.writeEncrypted("0");
+
+        final long[] maxWriteNanos = {0};
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i < LINES; i++) {
+                    long start = System.nanoTime();
+                    accelFile.writeEncrypted(Integer.toString(i));
+                    maxWriteNanos[0] = Math.max(maxWriteNanos[0], System.nanoTime() - start);
+                }
+            }
+        });
+        writer.start();
+        long rotationNanos = 0;
+        // more rotations than the key pool holds, most of the keys are wrapped by the rotation itself
+        for (int i = 0; i < ROTATIONS && writer.isAlive(); i++) {
+            // the file name has the creation time in milliseconds
+            Thread.sleep(2);
+            long start = System.nanoTime();
+            TextFileManager.makeNewFilesForEverything();
+            rotationNanos += System.nanoTime() - start;
+        }
+        writer.join();
+        accelFile.closeFile();
+        // a write waits for the swap of the handles at most, a single rotation takes several key wraps and file opens
+        assertTrue(String.format(Locale.ENGLISH, "The worst write took %.2f ms, the rotations %.2f ms in total", maxWriteNanos[0] / 1e6, rotationNanos / 1e6),
+                maxWriteNanos[0] < rotationNanos);
+
+        TrackingFileLayout layout = KnownDirs.getTrackingFileLayout(context);
+        assertTrue(layout.listStreamFiles("accel").size() > 1);
+        List<String> lines = readStream(layout, "accel", keyPair);
+        assertEquals(LINES, lines.size());
+        for (int i = 0; i < LINES; i++) {
+            assertEquals(Integer.toString(i), lines.get(i));
+        }
+        // every closed file is waiting for the upload
+        assertEquals(layout.listStreamFiles("accel").size(), countPending("accel"));
+    }
+
+    private static int countPending(String stream) {
+        int count = 0;
+        for (String path : TextFileManager.getUploadManifest().getPendingPaths()) {
+            if (TrackingFileLayout.getStreamName(new File(path).getName()).equals(stream))
+                count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,69 @@
+package org.beiwe.app.survey;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs with Robolectric for {@link android.util.Log} and org.json
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AudioSurveySettingsTest {
+    @Test
+    public void testOldSurveyRecordsWav() {
+        AudioSurveySettings settings = AudioSurveySettings.parse("{\"sample_rate\": 16000}");
+        assertEquals(16000, settings.sampleRate);
+        assertFalse(settings.useAac);
+    }
+
+    @Test
+    public void testAacWithBitRate() {
+        AudioSurveySettings settings = AudioSurveySettings.parse(
+                "{\"sample_rate\": 22050, \"audio_encoding\": \"aac\", \"bit_rate\": 32000}");
+        assertEquals(22050, settings.sampleRate);
+        assertTrue(settings.useAac);
+        assertEquals(32000, settings.bitRate);
+    }
+
+    @Test
+    public void testAacWithoutBitRate() {
+        AudioSurveySettings settings = AudioSurveySettings.parse("{\"sample_rate\": 44100, \"audio_encoding\": \"aac\"}");
+        assertTrue(settings.useAac);
+        assertEquals(AudioSurveySettings.DEFAULT_BIT_RATE, settings.bitRate);
+    }
+
+    @Test
+    public void testInvalidBitRate() {
+        for (String bitRate : new String[]{"0", "-64000", "\"fast\""}) {
+            AudioSurveySettings settings = AudioSurveySettings.parse(
+                    "{\"sample_rate\": 44100, \"audio_encoding\": \"aac\", \"bit_rate\": " + bitRate + "}");
+            assertTrue(settings.useAac);
+            assertEquals(bitRate, AudioSurveySettings.DEFAULT_BIT_RATE, settings.bitRate);
+        }
+    }
+
+    @Test
+    public void testOtherEncodings() {
+        // the bit rate is ignored for the wav
+        for (String encoding : new String[]{"\"wav\"", "\"AAC\"", "\"\"", "null", "5"}) {
+            AudioSurveySettings settings = AudioSurveySettings.parse(
+                    "{\"sample_rate\": 44100, \"audio_encoding\": " + encoding + ", \"bit_rate\": 32000}");
+            assertFalse(encoding, settings.useAac);
+            assertEquals(AudioSurveySettings.DEFAULT_BIT_RATE, settings.bitRate);
+        }
+    }
+
+    @Test
+    public void testMissingSettings() {
+        for (String json : new String[]{null, "", "not json", "{}", "{\"sample_rate\": 0}", "{\"sample_rate\": \"high\"}"}) {
+            AudioSurveySettings settings = AudioSurveySettings.parse(json);
+            assertEquals(String.valueOf(json), AudioSurveySettings.DEFAULT_SAMPLE_RATE, settings.sampleRate);
+            assertFalse(settings.useAac);
+            assertEquals(AudioSurveySettings.DEFAULT_BIT_RATE, settings.bitRate);
+        }
+    }
+}